@@ -0,0 +1,29 @@
+package com.tavi.storage.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results as JSON to jmh-result.json unless -rf or -rff
+ * say otherwise, so runs of different releases can be compared, e.g. with the JMH visualizer.
+ */
+public final class Benchmarks
+{
+    /** Where results go unless -rff is given. */
+    public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    private Benchmarks() {}
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(commandLine.getResultFormat().orElse(ResultFormatType.JSON))
+                .result(commandLine.getResult().orElse(DEFAULT_RESULT_FILE))
+                .build()).run();
+    }
+}
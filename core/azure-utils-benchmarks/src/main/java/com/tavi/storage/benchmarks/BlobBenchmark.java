@@ -0,0 +1,97 @@
+package com.tavi.storage.benchmarks;
+
+import com.tavi.storage.BlobUtils;
+import com.tavi.storage.TransferOptions;
+import com.tavi.storage.UploadCondition;
+import com.tavi.storage.fake.FakeStorageServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads and downloads of block blobs at several payload sizes. Sizes above the 4 MB block size go through the
+ * parallel block transfers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlobBenchmark
+{
+    private static final String CONTAINER = "benchmark";
+    private static final String UPLOADED = "uploaded";
+    private static final String DOWNLOADED = "downloaded";
+
+    @Param({"1024", "1048576", "16777216"})
+    public int size;
+
+    private FakeStorageServer server;
+    private BlobUtils blobUtils;
+    private TransferOptions options;
+    private byte[] data;
+    private File source;
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = FakeStorageServer.start();
+        server.getAccount().createCloudBlobClient().getContainerReference(CONTAINER).create();
+        blobUtils = BlobUtils.from(server.getAccount());
+        options = TransferOptions.defaults();
+
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        blobUtils.uploadBlockBlobFromByteArray(CONTAINER, DOWNLOADED, data, options);
+        source = File.createTempFile("blob-benchmark-source", ".bin");
+        Files.write(source.toPath(), data);
+        file = File.createTempFile("blob-benchmark", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        source.delete();
+        file.delete();
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        blobUtils.uploadBlockBlobFromByteArray(CONTAINER, UPLOADED, data, options);
+    }
+
+    @Benchmark
+    public void uploadFromFile() throws Exception {
+        blobUtils.uploadBlockBlobFromFile(CONTAINER, UPLOADED, source.toPath(), options);
+    }
+
+    @Benchmark
+    public void uploadSingleRequest() throws Exception {
+        blobUtils.uploadBlockBlobFromByteArray(CONTAINER, UPLOADED, data, UploadCondition.overwrite());
+    }
+
+    @Benchmark
+    public void downloadToFile() throws Exception {
+        blobUtils.downloadToFile(CONTAINER, DOWNLOADED, file, options);
+    }
+
+    @Benchmark
+    public void downloadToFileSingleRequest() throws Exception {
+        blobUtils.downloadToFile(CONTAINER, DOWNLOADED, file);
+    }
+}
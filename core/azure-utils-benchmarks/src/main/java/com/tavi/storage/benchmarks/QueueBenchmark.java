@@ -0,0 +1,87 @@
+package com.tavi.storage.benchmarks;
+
+import com.tavi.storage.QueueUtils;
+import com.tavi.storage.fake.FakeStorageServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enqueue rates: one message per call, and batches sent concurrently.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark
+{
+    private static final String QUEUE = "benchmark";
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"256"})
+    public int messageSize;
+
+    @Param({"16"})
+    public int concurrency;
+
+    private FakeStorageServer server;
+    private QueueUtils queueUtils;
+    private String message;
+    private List<String> batch;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = FakeStorageServer.start();
+        server.getAccount().createCloudQueueClient().getQueueReference(QUEUE).create();
+        queueUtils = QueueUtils.from(server.getAccount());
+
+        final StringBuilder content = new StringBuilder(messageSize);
+        for(int i = 0; i < messageSize; i++)
+            content.append((char) ('a' + i % 26));
+        message = content.toString();
+        batch = new ArrayList<>(BATCH_SIZE);
+        for(int i = 0; i < BATCH_SIZE; i++)
+            batch.add(message);
+    }
+
+    /**
+     * Keeps the fake from growing across iterations.
+     */
+    @TearDown(Level.Iteration)
+    public void clear() throws Exception {
+        server.getAccount().createCloudQueueClient().getQueueReference(QUEUE).clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void addMessage() throws Exception {
+        queueUtils.addMessageToQueue(QUEUE, message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void addMessages() throws Exception {
+        queueUtils.addTextMessagesToQueue(QUEUE, batch, concurrency);
+    }
+}
@@ -0,0 +1,79 @@
+package com.tavi.storage.benchmarks;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.tavi.storage.BlobUtils;
+import com.tavi.storage.SasOptions;
+import com.tavi.storage.SasUrlGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URL;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared access URL generation: memoized and freshly signed URLs of the generator, against the SDK signing of
+ * createSharedBlobURL. Signing is local, so no backend is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SasBenchmark
+{
+    private static final String CONTAINER = "benchmark";
+    private static final int BLOBS = 1024;
+
+    private BlobUtils blobUtils;
+    private SasUrlGenerator memoized;
+    private SasUrlGenerator.Template memoizedTemplate;
+    private SasUrlGenerator unmemoized;
+    private SasUrlGenerator.Template unmemoizedTemplate;
+    private String[] blobNames;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        blobUtils = BlobUtils.from(CloudStorageAccount.getDevelopmentStorageAccount()).withLocalSasSigning(true);
+        final EnumSet<SharedAccessBlobPermissions> read = EnumSet.of(SharedAccessBlobPermissions.READ);
+        memoized = blobUtils.createSasUrlGenerator(SasOptions.defaults());
+        memoizedTemplate = memoized.template(1, TimeUnit.HOURS, read);
+        unmemoized = blobUtils.createSasUrlGenerator(SasOptions.defaults().withMaxMemoEntries(0));
+        unmemoizedTemplate = unmemoized.template(1, TimeUnit.HOURS, read);
+
+        blobNames = new String[BLOBS];
+        for(int i = 0; i < BLOBS; i++)
+            blobNames[i] = "downloads/" + i + ".bin";
+    }
+
+    private String nextBlob() {
+        next = (next + 1) & (BLOBS - 1);
+        return blobNames[next];
+    }
+
+    @Benchmark
+    public String memoized() {
+        return memoized.blobUrl(memoizedTemplate, CONTAINER, nextBlob());
+    }
+
+    @Benchmark
+    public String signed() {
+        return unmemoized.blobUrl(unmemoizedTemplate, CONTAINER, nextBlob());
+    }
+
+    @Benchmark
+    public URL sdk() throws Exception {
+        return blobUtils.createSharedBlobURL(CONTAINER, nextBlob(), 3600, SharedAccessBlobPermissions.READ);
+    }
+}
@@ -0,0 +1,88 @@
+package com.tavi.storage.benchmarks;
+
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.tavi.storage.TableBatchWriter;
+import com.tavi.storage.TableBatchWriterOptions;
+import com.tavi.storage.TableUtils;
+import com.tavi.storage.fake.FakeStorageServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Table writes: one request per entity against entity group transactions through {@link TableBatchWriter}.
+ * Both write the same entities over a handful of partitions; scores are entities per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableBenchmark
+{
+    private static final String TABLE = "benchmark";
+    private static final int ENTITIES = 1000;
+
+    @Param({"4"})
+    public int partitions;
+
+    private FakeStorageServer server;
+    private TableUtils tableUtils;
+    private TableBatchWriter writer;
+    private DynamicTableEntity[] entities;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = FakeStorageServer.start();
+        server.getAccount().createCloudTableClient().getTableReference(TABLE).create();
+        tableUtils = TableUtils.from(server.getAccount());
+        writer = tableUtils.createBatchWriter(TABLE, TableBatchWriterOptions.defaults());
+
+        entities = new DynamicTableEntity[ENTITIES];
+        for(int i = 0; i < ENTITIES; i++) {
+            final DynamicTableEntity entity = new DynamicTableEntity("partition-" + i % partitions, String.format("row-%06d", i));
+            entity.getProperties().put("Name", new EntityProperty("entity " + i));
+            entity.getProperties().put("Count", new EntityProperty((long) i));
+            entity.getProperties().put("Enabled", new EntityProperty(i % 2 == 0));
+            entities[i] = entity;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        writer.close();
+        server.close();
+        if(writer.getStats().getFailed() > 0)
+            throw new IllegalStateException("Batched writes failed: " + writer.getStats());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public void singleWrites() throws Exception {
+        for(DynamicTableEntity entity : entities)
+            tableUtils.execute(TABLE, TableOperation.insertOrReplace(entity));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTITIES)
+    public void batchedWrites() throws Exception {
+        for(DynamicTableEntity entity : entities)
+            writer.insertOrReplace(entity);
+        writer.flush();
+    }
+}
@@ -0,0 +1,565 @@
+package com.tavi.storage.fake;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Blob service: containers, block blobs with staged blocks, append blocks, page writes, ranged reads, conditional
+ * requests, server-side copies and listings with prefixes, delimiters and markers.
+ *
+ * Thread safe - every blob is locked on its own.
+ */
+final class FakeBlobService extends FakeService
+{
+    private static final Pattern BLOCK = Pattern.compile("<(Latest|Committed|Uncommitted)>([^<]*)</\\1>");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    /** The most results a listing answers with at once. */
+    private static final int MAX_RESULTS = 5000;
+
+    /** The size of a page of a page blob. */
+    private static final int PAGE_SIZE = 512;
+
+    /** The most blocks an append blob can have. */
+    private static final int MAX_APPEND_BLOCKS = 50000;
+
+    private final ConcurrentMap<String, Container> containers = new ConcurrentHashMap<>();
+
+    private final class Container
+    {
+        final String etag = newEtag();
+        final long lastModified = System.currentTimeMillis();
+        final Map<String, String> metadata;
+        final ConcurrentNavigableMap<String, Blob> blobs = new ConcurrentSkipListMap<>();
+
+        Container(Map<String, String> metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    /** A blob, or only the blocks staged for it while it does not exist yet. */
+    private static final class Blob
+    {
+        boolean exists;
+        String type;
+        byte[] data = new byte[0];
+        String etag;
+        long lastModified;
+        String contentType;
+        Map<String, String> metadata = new LinkedHashMap<>();
+        List<Block> committed = new ArrayList<>();
+        final Map<String, byte[]> uncommitted = new LinkedHashMap<>();
+
+        /** The last copy into the blob; null if it was never copied to. */
+        String copyId;
+        String copySource;
+        String copyStatus;
+    }
+
+    private static final class Block
+    {
+        final String id;
+        final byte[] data;
+
+        Block(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    FakeBlobService() {
+        super(FakeStorageServer.Service.BLOB);
+    }
+
+    @Override
+    Response handle(Request request) throws ServiceException {
+        if(request.path.isEmpty())
+            throw new ServiceException(400, "InvalidUri", "The requested URI does not represent any resource on the server.");
+        if(request.path.size() == 1)
+            return container(request, request.path.get(0));
+        return blob(request, request.path.get(0), String.join("/", request.path.subList(1, request.path.size())));
+    }
+
+    @Override
+    Response error(ServiceException e) {
+        return xmlError(e);
+    }
+
+    private Response container(Request request, String name) throws ServiceException {
+        if(!"container".equals(request.query.get("restype")))
+            throw invalidQueryParameter();
+
+        switch (request.method) {
+            case "PUT":
+                if(containers.putIfAbsent(name, new Container(request.metadata())) != null)
+                    throw new ServiceException(409, "ContainerAlreadyExists", "The specified container already exists.");
+                final Container created = containers.get(name);
+                return new Response(201).header("ETag", created.etag).header("Last-Modified", rfc1123(created.lastModified));
+            case "GET":
+                if("list".equals(request.query.get("comp")))
+                    return list(request, name, getContainer(name));
+            case "HEAD":
+                final Container container = getContainer(name);
+                return new Response(200).header("ETag", container.etag).header("Last-Modified", rfc1123(container.lastModified))
+                        .header("x-ms-lease-status", "unlocked").header("x-ms-lease-state", "available").metadata(container.metadata);
+            case "DELETE":
+                if(containers.remove(name) == null)
+                    throw containerNotFound();
+                return new Response(202);
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    /**
+     * Answers a page of a listing, in name order. Blob prefixes count towards the page size, and a marker points at
+     * the first name of the next page.
+     */
+    private Response list(Request request, String containerName, Container container) throws ServiceException {
+        final String prefix = request.query.getOrDefault("prefix", "");
+        final String delimiter = request.query.get("delimiter");
+        final String marker = request.query.get("marker");
+        final boolean metadata = request.query.getOrDefault("include", "").contains("metadata");
+        final int maxResults;
+        try {
+            maxResults = request.query.containsKey("maxresults") ? Integer.parseInt(request.query.get("maxresults")) : MAX_RESULTS;
+        } catch (NumberFormatException e) {
+            throw invalidQueryParameter();
+        }
+        if(maxResults < 1 || maxResults > MAX_RESULTS)
+            throw invalidQueryParameter();
+
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults ServiceEndpoint=\"")
+                .append(escapeXml(request.rawPath.substring(0, request.rawPath.indexOf('/', 1) + 1)))
+                .append("\" ContainerName=\"").append(escapeXml(containerName)).append("\">")
+                .append("<Prefix>").append(escapeXml(prefix)).append("</Prefix>");
+        if(marker != null)
+            xml.append("<Marker>").append(escapeXml(marker)).append("</Marker>");
+        xml.append("<MaxResults>").append(maxResults).append("</MaxResults>");
+        if(delimiter != null)
+            xml.append("<Delimiter>").append(escapeXml(delimiter)).append("</Delimiter>");
+        xml.append("<Blobs>");
+
+        final String from = marker != null && marker.compareTo(prefix) > 0 ? marker : prefix;
+        int count = 0;
+        String lastPrefix = null;
+        String nextMarker = null;
+        for(Map.Entry<String, Blob> entry : container.blobs.tailMap(from, true).entrySet()) {
+            final String name = entry.getKey();
+            if(!name.startsWith(prefix))
+                break;
+            final int end = delimiter == null || delimiter.isEmpty() ? -1 : name.indexOf(delimiter, prefix.length());
+            final String blobPrefix = end < 0 ? null : name.substring(0, end + delimiter.length());
+            if(blobPrefix != null && blobPrefix.equals(lastPrefix))
+                continue;
+
+            final Blob blob = entry.getValue();
+            synchronized (blob) {
+                if(!blob.exists)
+                    continue;
+                if(count == maxResults) {
+                    nextMarker = name;
+                    break;
+                }
+                count++;
+                if(blobPrefix != null) {
+                    lastPrefix = blobPrefix;
+                    xml.append("<BlobPrefix><Name>").append(escapeXml(blobPrefix)).append("</Name></BlobPrefix>");
+                } else {
+                    listEntry(xml, name, blob, metadata);
+                }
+            }
+        }
+        xml.append("</Blobs>").append("<NextMarker>").append(nextMarker == null ? "" : escapeXml(nextMarker)).append("</NextMarker>")
+                .append("</EnumerationResults>");
+        return new Response(200).body(xml.toString(), "application/xml");
+    }
+
+    private static void listEntry(StringBuilder xml, String name, Blob blob, boolean metadata) {
+        xml.append("<Blob><Name>").append(escapeXml(name)).append("</Name><Properties>")
+                .append("<Last-Modified>").append(rfc1123(blob.lastModified)).append("</Last-Modified>")
+                .append("<Etag>").append(escapeXml(blob.etag)).append("</Etag>")
+                .append("<Content-Length>").append(blob.data.length).append("</Content-Length>")
+                .append("<Content-Type>").append(escapeXml(contentType(blob))).append("</Content-Type>")
+                .append("<BlobType>").append(blob.type).append("</BlobType>")
+                .append("<LeaseStatus>unlocked</LeaseStatus><LeaseState>available</LeaseState>")
+                .append("<ServerEncrypted>false</ServerEncrypted></Properties>");
+        if(metadata) {
+            xml.append("<Metadata>");
+            for(Map.Entry<String, String> entry : blob.metadata.entrySet())
+                xml.append('<').append(entry.getKey()).append('>').append(escapeXml(entry.getValue())).append("</").append(entry.getKey()).append('>');
+            xml.append("</Metadata>");
+        }
+        xml.append("</Blob>");
+    }
+
+    private Response blob(Request request, String containerName, String name) throws ServiceException {
+        final Container container = getContainer(containerName);
+        final String comp = request.query.get("comp");
+        // Read before locking the target, so that two copies in opposite directions cannot deadlock.
+        final String copySource = request.header("x-ms-copy-source");
+        final Blob source = "PUT".equals(request.method) && comp == null && copySource != null ? copySource(copySource) : null;
+
+        while(true) {
+            final Blob blob = container.blobs.computeIfAbsent(name, key -> new Blob());
+            synchronized (blob) {
+                // Dropped by a request that held the lock before.
+                if(container.blobs.get(name) != blob)
+                    continue;
+                try {
+                    return dispatch(request, blob, comp, source);
+                } finally {
+                    if(!blob.exists && blob.uncommitted.isEmpty())
+                        container.blobs.remove(name, blob);
+                }
+            }
+        }
+    }
+
+    private Response dispatch(Request request, Blob blob, String comp, Blob source) throws ServiceException {
+        switch (request.method) {
+            case "PUT":
+                if(comp == null)
+                    return source != null ? copy(request, blob, source) : put(request, blob);
+                if("block".equals(comp))
+                    return putBlock(request, blob);
+                if("blocklist".equals(comp))
+                    return putBlockList(request, blob);
+                if("metadata".equals(comp))
+                    return putMetadata(request, blob);
+                if("appendblock".equals(comp))
+                    return appendBlock(request, blob);
+                if("page".equals(comp))
+                    return putPage(request, blob);
+                if("properties".equals(comp))
+                    return putProperties(request, blob);
+                throw unsupported(request);
+            case "GET":
+            case "HEAD":
+                if(comp == null)
+                    return get(request, blob);
+                throw unsupported(request);
+            case "DELETE":
+                checkExists(blob);
+                checkConditions(request, blob, false);
+                blob.exists = false;
+                blob.uncommitted.clear();
+                return new Response(202);
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    private Response put(Request request, Blob blob) throws ServiceException {
+        checkConditions(request, blob, false);
+        final String type = request.header("x-ms-blob-type");
+        if(type == null)
+            throw new ServiceException(400, "MissingRequiredHeader", "An HTTP header that's mandatory for this request is not specified.");
+
+        blob.type = type;
+        if("PageBlob".equals(type))
+            blob.data = new byte[Integer.parseInt(request.header("x-ms-blob-content-length"))];
+        else
+            blob.data = request.body;
+        blob.committed = new ArrayList<>();
+        blob.uncommitted.clear();
+        blob.contentType = request.header("x-ms-blob-content-type");
+        blob.metadata = request.metadata();
+        return committed(blob);
+    }
+
+    /**
+     * Copies a blob within the service. The copy completes at once, but reports itself pending until the properties
+     * of the target are read, so callers exercise their polling.
+     */
+    private Response copy(Request request, Blob blob, Blob source) throws ServiceException {
+        checkConditions(request, blob, false);
+        final Map<String, String> metadata = request.metadata();
+        blob.type = source.type;
+        blob.data = source.data;
+        blob.committed = source.committed;
+        blob.uncommitted.clear();
+        blob.contentType = source.contentType;
+        blob.metadata = metadata.isEmpty() ? source.metadata : metadata;
+        committed(blob);
+        blob.copyId = UUID.randomUUID().toString();
+        blob.copySource = request.header("x-ms-copy-source");
+        blob.copyStatus = "pending";
+        return new Response(202).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified))
+                .header("x-ms-copy-id", blob.copyId).header("x-ms-copy-status", blob.copyStatus);
+    }
+
+    /**
+     * @return a snapshot of the blob a copy source URL points to.
+     * @throws ServiceException if the source does not exist.
+     */
+    private Blob copySource(String url) throws ServiceException {
+        final String[] raw;
+        try {
+            raw = new URI(url).getRawPath().split("/", -1);
+        } catch (URISyntaxException e) {
+            throw new ServiceException(400, "InvalidHeaderValue", "The value for one of the HTTP headers is not in the correct format.");
+        }
+        // raw[0] is empty and raw[1] is the account.
+        final Container container = raw.length > 3 ? containers.get(decode(raw[2])) : null;
+        final List<String> segments = new ArrayList<>();
+        for(int i = 3; i < raw.length; i++)
+            segments.add(decode(raw[i]));
+        final Blob blob = container != null ? container.blobs.get(String.join("/", segments)) : null;
+        if(blob == null)
+            throw new ServiceException(404, "CannotVerifyCopySource", "The specified blob does not exist.");
+
+        final Blob snapshot = new Blob();
+        synchronized (blob) {
+            if(!blob.exists)
+                throw new ServiceException(404, "CannotVerifyCopySource", "The specified blob does not exist.");
+            snapshot.type = blob.type;
+            snapshot.data = blob.data;
+            snapshot.committed = new ArrayList<>(blob.committed);
+            snapshot.contentType = blob.contentType;
+            snapshot.metadata = new LinkedHashMap<>(blob.metadata);
+        }
+        return snapshot;
+    }
+
+    private Response putBlock(Request request, Blob blob) {
+        blob.uncommitted.put(request.query.get("blockid"), request.body);
+        return new Response(201);
+    }
+
+    private Response putBlockList(Request request, Blob blob) throws ServiceException {
+        checkConditions(request, blob, false);
+        final Map<String, byte[]> committed = new LinkedHashMap<>();
+        for(Block block : blob.committed)
+            committed.put(block.id, block.data);
+
+        final List<Block> blocks = new ArrayList<>();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final Matcher matcher = BLOCK.matcher(request.bodyText());
+        while(matcher.find()) {
+            final String list = matcher.group(1);
+            final String id = unescapeXml(matcher.group(2));
+            byte[] block = null;
+            if(!"Committed".equals(list))
+                block = blob.uncommitted.get(id);
+            if(block == null && !"Uncommitted".equals(list))
+                block = committed.get(id);
+            if(block == null)
+                throw new ServiceException(400, "InvalidBlockList", "The specified block list is invalid.");
+            blocks.add(new Block(id, block));
+            data.write(block, 0, block.length);
+        }
+
+        blob.type = "BlockBlob";
+        blob.data = data.toByteArray();
+        blob.committed = blocks;
+        blob.uncommitted.clear();
+        blob.contentType = request.header("x-ms-blob-content-type");
+        blob.metadata = request.metadata();
+        return committed(blob);
+    }
+
+    private Response appendBlock(Request request, Blob blob) throws ServiceException {
+        checkExists(blob);
+        if(!"AppendBlob".equals(blob.type))
+            throw new ServiceException(409, "InvalidBlobType", "The blob type is invalid for this operation.");
+        checkConditions(request, blob, false);
+        final String position = request.header("x-ms-blob-condition-appendpos");
+        if(position != null && Long.parseLong(position) != blob.data.length)
+            throw new ServiceException(412, "AppendPositionConditionNotMet", "The append position condition specified was not met.");
+        if(blob.committed.size() >= MAX_APPEND_BLOCKS)
+            throw new ServiceException(409, "BlockCountExceedsLimit", "The committed block count cannot exceed the maximum limit of 50,000 blocks.");
+
+        final long offset = blob.data.length;
+        final byte[] data = Arrays.copyOf(blob.data, blob.data.length + request.body.length);
+        System.arraycopy(request.body, 0, data, blob.data.length, request.body.length);
+        blob.data = data;
+        blob.committed.add(new Block(null, request.body));
+        blob.etag = newEtag();
+        blob.lastModified = System.currentTimeMillis();
+        return new Response(201).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified))
+                .header("x-ms-blob-append-offset", offset).header("x-ms-blob-committed-block-count", blob.committed.size())
+                .header("x-ms-request-server-encrypted", "false");
+    }
+
+    /**
+     * Writes or clears a range of 512-byte pages of a page blob.
+     */
+    private Response putPage(Request request, Blob blob) throws ServiceException {
+        checkPageBlob(blob);
+        checkConditions(request, blob, false);
+        final String range = request.header("x-ms-range") != null ? request.header("x-ms-range") : request.header("Range");
+        final Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        if(matcher == null || !matcher.matches() || matcher.group(2).isEmpty())
+            throw new ServiceException(400, "InvalidPageRange", "The page range specified is invalid.");
+        final long start = Long.parseLong(matcher.group(1));
+        final long end = Long.parseLong(matcher.group(2));
+        if(start % PAGE_SIZE != 0 || (end + 1) % PAGE_SIZE != 0 || end < start)
+            throw new ServiceException(400, "InvalidPageRange", "The page range specified is invalid.");
+        if(end >= blob.data.length)
+            throw new ServiceException(416, "InvalidPageRange", "The page range specified is invalid.");
+
+        final int length = (int) (end - start + 1);
+        final byte[] data = blob.data.clone();
+        if("clear".equals(request.header("x-ms-page-write"))) {
+            Arrays.fill(data, (int) start, (int) end + 1, (byte) 0);
+        } else {
+            if(request.body.length != length)
+                throw new ServiceException(400, "InvalidHeaderValue", "The value for one of the HTTP headers is not in the correct format.");
+            System.arraycopy(request.body, 0, data, (int) start, length);
+        }
+        blob.data = data;
+        blob.etag = newEtag();
+        blob.lastModified = System.currentTimeMillis();
+        return new Response(201).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified))
+                .header("x-ms-blob-sequence-number", 0).header("x-ms-request-server-encrypted", "false");
+    }
+
+    /**
+     * Sets the content type of a blob and resizes a page blob.
+     */
+    private Response putProperties(Request request, Blob blob) throws ServiceException {
+        checkExists(blob);
+        checkConditions(request, blob, false);
+        final String length = request.header("x-ms-blob-content-length");
+        if(length != null) {
+            checkPageBlob(blob);
+            final long size = Long.parseLong(length);
+            if(size < 0 || size % PAGE_SIZE != 0)
+                throw new ServiceException(400, "InvalidHeaderValue", "The value for one of the HTTP headers is not in the correct format.");
+            blob.data = Arrays.copyOf(blob.data, (int) size);
+        }
+        final String contentType = request.header("x-ms-blob-content-type");
+        if(contentType != null)
+            blob.contentType = contentType;
+        blob.etag = newEtag();
+        blob.lastModified = System.currentTimeMillis();
+        return new Response(200).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified))
+                .header("x-ms-blob-sequence-number", "PageBlob".equals(blob.type) ? 0 : null);
+    }
+
+    private Response putMetadata(Request request, Blob blob) throws ServiceException {
+        checkExists(blob);
+        checkConditions(request, blob, false);
+        blob.metadata = request.metadata();
+        blob.etag = newEtag();
+        blob.lastModified = System.currentTimeMillis();
+        return new Response(200).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified));
+    }
+
+    private Response get(Request request, Blob blob) throws ServiceException {
+        checkExists(blob);
+        if(!checkConditions(request, blob, true))
+            return new Response(304).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified));
+
+        String range = request.header("x-ms-range");
+        if(range == null)
+            range = request.header("Range");
+
+        final Response response;
+        if(range == null) {
+            response = new Response(200);
+            response.body(blob.data, contentType(blob));
+        } else {
+            final Matcher matcher = RANGE.matcher(range);
+            if(!matcher.matches())
+                throw new ServiceException(400, "InvalidRange", "The range specified is invalid for the current size of the resource.");
+            final long start = Long.parseLong(matcher.group(1));
+            final long end = matcher.group(2).isEmpty() ? blob.data.length - 1 : Math.min(Long.parseLong(matcher.group(2)), blob.data.length - 1);
+            if(start >= blob.data.length)
+                throw new ServiceException(416, "InvalidRange", "The range specified is invalid for the current size of the resource.");
+            response = new Response(206).header("Content-Range", "bytes " + start + "-" + end + "/" + blob.data.length);
+            response.body(slice(blob.data, start, end - start + 1), contentType(blob));
+        }
+        if("HEAD".equals(request.method))
+            response.header("Content-Length", blob.data.length);
+
+        response.header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified))
+                .header("x-ms-blob-type", blob.type).header("Accept-Ranges", "bytes")
+                .header("x-ms-lease-status", "unlocked").header("x-ms-lease-state", "available")
+                .header("x-ms-server-encrypted", "false").metadata(blob.metadata);
+        if("AppendBlob".equals(blob.type))
+            response.header("x-ms-blob-committed-block-count", blob.committed.size());
+        if(blob.copyId != null) {
+            blob.copyStatus = "success";
+            response.header("x-ms-copy-id", blob.copyId).header("x-ms-copy-source", blob.copySource)
+                    .header("x-ms-copy-status", blob.copyStatus)
+                    .header("x-ms-copy-progress", blob.data.length + "/" + blob.data.length)
+                    .header("x-ms-copy-completion-time", rfc1123(blob.lastModified));
+        }
+        return response;
+    }
+
+    private Response committed(Blob blob) {
+        blob.exists = true;
+        blob.copyId = null;
+        blob.etag = newEtag();
+        blob.lastModified = System.currentTimeMillis();
+        return new Response(201).header("ETag", blob.etag).header("Last-Modified", rfc1123(blob.lastModified))
+                .header("x-ms-request-server-encrypted", "false");
+    }
+
+    /**
+     * Evaluates If-Match and If-None-Match.
+     * @return false if a read is answered with 304 Not Modified.
+     * @throws ServiceException with 412 Condition Not Met if a write is refused.
+     */
+    private static boolean checkConditions(Request request, Blob blob, boolean read) throws ServiceException {
+        final String ifMatch = request.header("If-Match");
+        if(ifMatch != null && (!blob.exists || !("*".equals(ifMatch) || ifMatch.equals(blob.etag))))
+            throw new ServiceException(412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+
+        final String ifNoneMatch = request.header("If-None-Match");
+        if(ifNoneMatch != null && blob.exists && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(blob.etag))) {
+            if(read)
+                return false;
+            if("*".equals(ifNoneMatch))
+                throw new ServiceException(409, "BlobAlreadyExists", "The specified blob already exists.");
+            throw new ServiceException(412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+        }
+        return true;
+    }
+
+    private static void checkPageBlob(Blob blob) throws ServiceException {
+        checkExists(blob);
+        if(!"PageBlob".equals(blob.type))
+            throw new ServiceException(409, "InvalidBlobType", "The blob type is invalid for this operation.");
+    }
+
+    private static void checkExists(Blob blob) throws ServiceException {
+        if(!blob.exists)
+            throw new ServiceException(404, "BlobNotFound", "The specified blob does not exist.");
+    }
+
+    private static String contentType(Blob blob) {
+        return blob.contentType != null ? blob.contentType : "application/octet-stream";
+    }
+
+    private Container getContainer(String name) throws ServiceException {
+        final Container container = containers.get(name);
+        if(container == null)
+            throw containerNotFound();
+        return container;
+    }
+
+    private static ServiceException invalidQueryParameter() {
+        return new ServiceException(400, "InvalidQueryParameterValue", "Value for one of the query parameters specified in the request URI is invalid.");
+    }
+
+    private static ServiceException containerNotFound() {
+        return new ServiceException(404, "ContainerNotFound", "The specified container does not exist.");
+    }
+}
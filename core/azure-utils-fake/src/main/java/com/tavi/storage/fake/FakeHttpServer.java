@@ -0,0 +1,292 @@
+package com.tavi.storage.fake;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A minimal HTTP/1.1 server for one fake service: persistent connections, bodies with a length or chunked, and
+ * responses written with their header names exactly as given. The SDK only reads metadata from headers named
+ * "x-ms-meta-*" in lower case, which the JDK server would capitalize.
+ *
+ * Thread safe. Every connection is served by a thread of the executor.
+ */
+final class FakeHttpServer implements Closeable
+{
+    private static final int MAX_LINE = 64 * 1024;
+
+    private final FakeService service;
+    private final String contextPath;
+    private final ExecutorService executor;
+    private final ServerSocket socket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts serving on a free port of the loopback interface.
+     * @param service the service answering the requests.
+     * @param contextPath the path prefix of the requests the service answers; others get 404.
+     * @param backlog the most connections waiting to be accepted.
+     * @param executor the executor running the accept loop and the connections.
+     * @throws IOException
+     */
+    FakeHttpServer(FakeService service, String contextPath, int backlog, ExecutorService executor) throws IOException {
+        this.service = service;
+        this.contextPath = contextPath;
+        this.executor = executor;
+        this.socket = new ServerSocket(0, backlog, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Closing anyway.
+        }
+        for(Socket connection : connections)
+            closeQuietly(connection);
+    }
+
+    private void accept() {
+        while(!socket.isClosed()) {
+            final Socket connection;
+            try {
+                connection = socket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.add(connection);
+            try {
+                executor.execute(() -> serve(connection));
+            } catch (RuntimeException e) {
+                connections.remove(connection);
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of a connection until the client closes it.
+     */
+    private void serve(Socket connection) {
+        try {
+            // Without TCP_NODELAY, responses written as headers then body stall on delayed ACKs.
+            connection.setTcpNoDelay(true);
+            final InputStream input = new BufferedInputStream(connection.getInputStream());
+            final OutputStream output = new BufferedOutputStream(connection.getOutputStream());
+            while(true) {
+                final String requestLine = readLine(input);
+                if(requestLine == null)
+                    return;
+                if(requestLine.isEmpty())
+                    continue;
+                final String[] parts = requestLine.split(" ");
+                if(parts.length != 3)
+                    throw new IOException("Malformed request line: " + requestLine);
+
+                final Map<String, String> headers = readHeaders(input);
+                if("100-continue".equalsIgnoreCase(headers.get("Expect"))) {
+                    output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    output.flush();
+                }
+                final byte[] body = readBody(input, headers);
+
+                final boolean head = "HEAD".equals(parts[0]);
+                FakeService.Response response;
+                if(parts[1].equals(contextPath) || parts[1].startsWith(contextPath + "/") || parts[1].startsWith(contextPath + "?"))
+                    response = service.serve(new FakeService.Request(parts[0], parts[1], headers, body));
+                else
+                    response = new FakeService.Response(404);
+                byte[] status;
+                try {
+                    status = headers(response, head);
+                } catch (IllegalStateException e) {
+                    // Answer with an error rather than with headers other than the service meant.
+                    response = service.error(new FakeService.ServiceException(500, "InternalError", e.getMessage()));
+                    status = headers(response, head);
+                }
+                output.write(status);
+                if(!head && response.body != null)
+                    output.write(response.body);
+                output.flush();
+
+                if("close".equalsIgnoreCase(headers.get("Connection")))
+                    return;
+            }
+        } catch (EOFException | SocketException e) {
+            // The client closed the connection.
+        } catch (IOException e) {
+            // A malformed request; nothing sensible to answer.
+        } finally {
+            connections.remove(connection);
+            closeQuietly(connection);
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream input) throws IOException {
+        final Map<String, String> headers = FakeService.newHeaders();
+        for(String line; !(line = readLine(input, true)).isEmpty(); ) {
+            final int colon = line.indexOf(':');
+            if(colon <= 0)
+                throw new IOException("Malformed header: " + line);
+            final String name = line.substring(0, colon).trim();
+            final String value = line.substring(colon + 1).trim();
+            headers.merge(name, value, (first, next) -> first + "," + next);
+        }
+        return headers;
+    }
+
+    private static byte[] readBody(InputStream input, Map<String, String> headers) throws IOException {
+        final String encoding = headers.get("Transfer-Encoding");
+        if(encoding != null && encoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while(true) {
+                final String line = readLine(input, true);
+                final int extension = line.indexOf(';');
+                final int size = Integer.parseInt((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                if(size == 0)
+                    break;
+                final byte[] chunk = new byte[size];
+                readFully(input, chunk);
+                body.write(chunk, 0, size);
+                readLine(input, true);
+            }
+            // Trailers.
+            while(!readLine(input, true).isEmpty());
+            return body.toByteArray();
+        }
+
+        final String length = headers.get("Content-Length");
+        final byte[] body = new byte[length != null ? Integer.parseInt(length.trim()) : 0];
+        readFully(input, body);
+        return body;
+    }
+
+    /**
+     * @return the status line and headers of a response.
+     * @throws IllegalStateException if a header cannot be written as it is.
+     */
+    private static byte[] headers(FakeService.Response response, boolean head) {
+        final StringBuilder headers = new StringBuilder(512);
+        headers.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        String contentLength = null;
+        for(Map.Entry<String, String> header : response.headers.entrySet()) {
+            if("Content-Length".equalsIgnoreCase(header.getKey())) {
+                contentLength = header.getValue();
+                continue;
+            }
+            appendHeader(headers, header.getKey(), header.getValue());
+        }
+
+        final int length = response.body != null ? response.body.length : 0;
+        // A HEAD response announces the length of the body a GET would have.
+        appendHeader(headers, "Content-Length", head ? (contentLength != null ? contentLength : "0") : String.valueOf(length));
+        headers.append("\r\n");
+        return headers.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a header verbatim.
+     * @throws IllegalStateException if the header cannot be written as it is, rather than writing something else.
+     */
+    private static void appendHeader(StringBuilder headers, String name, String value) {
+        if(name.isEmpty() || hasLineBreak(name) || name.indexOf(':') >= 0 || hasLineBreak(value))
+            throw new IllegalStateException("Cannot write header " + name + ": " + value);
+        headers.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    private static boolean hasLineBreak(String value) {
+        return value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        return readLine(input, false);
+    }
+
+    /**
+     * @param required true if the stream must not end before the line.
+     * @return the line without its line break, or null if the stream ended before it.
+     */
+    private static String readLine(InputStream input, boolean required) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        while(true) {
+            final int b = input.read();
+            if(b < 0) {
+                if(required || line.size() > 0)
+                    throw new EOFException();
+                return null;
+            }
+            if(b == '\n')
+                break;
+            if(line.size() >= MAX_LINE)
+                throw new IOException("Line too long");
+            line.write(b);
+        }
+        final String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private static void readFully(InputStream input, byte[] buffer) throws IOException {
+        for(int offset = 0; offset < buffer.length; ) {
+            final int read = input.read(buffer, offset, buffer.length - offset);
+            if(read < 0)
+                throw new EOFException();
+            offset += read;
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            case 412: return "Precondition Failed";
+            case 416: return "Requested Range Not Satisfiable";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    private static void closeQuietly(Socket connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // Closing anyway.
+        }
+    }
+}
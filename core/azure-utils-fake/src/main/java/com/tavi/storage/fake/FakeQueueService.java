@@ -0,0 +1,229 @@
+package com.tavi.storage.fake;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Queue service: queues with metadata, and messages with visibility timeouts, pop receipts and time to live.
+ *
+ * Thread safe - every queue is locked on its own.
+ */
+final class FakeQueueService extends FakeService
+{
+    private static final Pattern MESSAGE_TEXT = Pattern.compile("<MessageText>(.*)</MessageText>", Pattern.DOTALL);
+
+    /** Default message time to live: 7 days. */
+    private static final long DEFAULT_TTL_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+    private static final int MAX_MESSAGES = 32;
+
+    private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<>();
+
+    private static final class Queue
+    {
+        Map<String, String> metadata;
+        final LinkedList<Message> messages = new LinkedList<>();
+
+        Queue(Map<String, String> metadata) {
+            this.metadata = metadata;
+        }
+    }
+
+    private static final class Message
+    {
+        final String id = UUID.randomUUID().toString();
+        String text;
+        final long inserted = System.currentTimeMillis();
+        long expires;
+        long visible;
+        String popReceipt = UUID.randomUUID().toString();
+        int dequeueCount;
+    }
+
+    FakeQueueService() {
+        super(FakeStorageServer.Service.QUEUE);
+    }
+
+    @Override
+    Response handle(Request request) throws ServiceException {
+        if(request.path.isEmpty())
+            throw new ServiceException(400, "InvalidUri", "The requested URI does not represent any resource on the server.");
+
+        final String name = request.path.get(0);
+        if(request.path.size() == 1)
+            return queue(request, name);
+
+        final Queue queue = getQueue(name);
+        synchronized (queue) {
+            expire(queue);
+            if(request.path.size() == 2 && "messages".equals(request.path.get(1)))
+                return messages(request, queue);
+            if(request.path.size() == 3 && "messages".equals(request.path.get(1)))
+                return message(request, queue, request.path.get(2));
+            throw unsupported(request);
+        }
+    }
+
+    @Override
+    Response error(ServiceException e) {
+        return xmlError(e);
+    }
+
+    private Response queue(Request request, String name) throws ServiceException {
+        final String comp = request.query.get("comp");
+        switch (request.method) {
+            case "PUT":
+                if("metadata".equals(comp)) {
+                    final Queue queue = getQueue(name);
+                    synchronized (queue) {
+                        queue.metadata = request.metadata();
+                    }
+                    return new Response(204);
+                }
+                return queues.putIfAbsent(name, new Queue(request.metadata())) == null ? new Response(201) : new Response(204);
+            case "GET":
+            case "HEAD":
+                if(!"metadata".equals(comp))
+                    throw unsupported(request);
+                final Queue queue = getQueue(name);
+                synchronized (queue) {
+                    expire(queue);
+                    return new Response(200).header("x-ms-approximate-messages-count", queue.messages.size()).metadata(queue.metadata);
+                }
+            case "DELETE":
+                if(queues.remove(name) == null)
+                    throw queueNotFound();
+                return new Response(204);
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    private Response messages(Request request, Queue queue) throws ServiceException {
+        final long now = System.currentTimeMillis();
+        switch (request.method) {
+            case "POST": {
+                final Message message = new Message();
+                message.text = messageText(request);
+                final long ttl = longParameter(request, "messagettl", DEFAULT_TTL_SECONDS);
+                message.expires = ttl < 0 ? Long.MAX_VALUE : now + TimeUnit.SECONDS.toMillis(ttl);
+                message.visible = now + TimeUnit.SECONDS.toMillis(longParameter(request, "visibilitytimeout", 0));
+                queue.messages.add(message);
+
+                final List<Message> added = new ArrayList<>();
+                added.add(message);
+                return new Response(201).body(list(added, false), "application/xml");
+            }
+            case "GET": {
+                final boolean peek = "true".equals(request.query.get("peekonly"));
+                final int count = (int) longParameter(request, "numofmessages", 1);
+                if(count < 1 || count > MAX_MESSAGES)
+                    throw new ServiceException(400, "OutOfRangeQueryParameterValue", "One of the query parameters specified in the request URI is outside the permissible range.");
+                final long visibilityTimeout = TimeUnit.SECONDS.toMillis(longParameter(request, "visibilitytimeout", 30));
+
+                final List<Message> retrieved = new ArrayList<>();
+                for(Message message : queue.messages) {
+                    if(retrieved.size() == count)
+                        break;
+                    if(message.visible > now)
+                        continue;
+                    if(!peek) {
+                        message.dequeueCount++;
+                        message.visible = now + visibilityTimeout;
+                        message.popReceipt = UUID.randomUUID().toString();
+                    }
+                    retrieved.add(message);
+                }
+                return new Response(200).body(list(retrieved, true), "application/xml");
+            }
+            case "DELETE":
+                queue.messages.clear();
+                return new Response(204);
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    private Response message(Request request, Queue queue, String id) throws ServiceException {
+        final Message message = find(queue, id, request.query.get("popreceipt"));
+        switch (request.method) {
+            case "DELETE":
+                queue.messages.remove(message);
+                return new Response(204);
+            case "PUT":
+                if(request.body.length > 0)
+                    message.text = messageText(request);
+                message.visible = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(longParameter(request, "visibilitytimeout", 0));
+                message.popReceipt = UUID.randomUUID().toString();
+                return new Response(204).header("x-ms-popreceipt", message.popReceipt).header("x-ms-time-next-visible", rfc1123(message.visible));
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    private static Message find(Queue queue, String id, String popReceipt) throws ServiceException {
+        for(Message message : queue.messages) {
+            if(!message.id.equals(id))
+                continue;
+            if(!message.popReceipt.equals(popReceipt))
+                throw new ServiceException(400, "PopReceiptMismatch", "The specified pop receipt did not match the pop receipt for a dequeued message.");
+            return message;
+        }
+        throw new ServiceException(404, "MessageNotFound", "The specified message does not exist.");
+    }
+
+    private static void expire(Queue queue) {
+        final long now = System.currentTimeMillis();
+        for(Iterator<Message> iterator = queue.messages.iterator(); iterator.hasNext(); )
+            if(iterator.next().expires <= now)
+                iterator.remove();
+    }
+
+    private static String list(List<Message> messages, boolean withText) {
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><QueueMessagesList>");
+        for(Message message : messages) {
+            xml.append("<QueueMessage><MessageId>").append(message.id).append("</MessageId>")
+                    .append("<InsertionTime>").append(rfc1123(message.inserted)).append("</InsertionTime>")
+                    .append("<ExpirationTime>").append(rfc1123(Math.min(message.expires, 253402300799000L))).append("</ExpirationTime>")
+                    .append("<PopReceipt>").append(message.popReceipt).append("</PopReceipt>")
+                    .append("<TimeNextVisible>").append(rfc1123(message.visible)).append("</TimeNextVisible>");
+            if(withText)
+                xml.append("<DequeueCount>").append(message.dequeueCount).append("</DequeueCount>")
+                        .append("<MessageText>").append(escapeXml(message.text)).append("</MessageText>");
+            xml.append("</QueueMessage>");
+        }
+        return xml.append("</QueueMessagesList>").toString();
+    }
+
+    private static String messageText(Request request) throws ServiceException {
+        final Matcher matcher = MESSAGE_TEXT.matcher(request.bodyText());
+        if(!matcher.find())
+            throw new ServiceException(400, "InvalidXmlDocument", "XML specified is not syntactically valid.");
+        return unescapeXml(matcher.group(1));
+    }
+
+    private static long longParameter(Request request, String name, long defaultValue) {
+        final String value = request.query.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private Queue getQueue(String name) throws ServiceException {
+        final Queue queue = queues.get(name);
+        if(queue == null)
+            throw queueNotFound();
+        return queue;
+    }
+
+    private static ServiceException queueNotFound() {
+        return new ServiceException(404, "QueueNotFound", "The specified queue does not exist.");
+    }
+}
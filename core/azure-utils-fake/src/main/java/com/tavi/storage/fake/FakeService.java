@@ -0,0 +1,315 @@
+package com.tavi.storage.fake;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of the fake storage services: adds latency and injected faults, stamps the common response headers and turns
+ * {@link ServiceException}s into error responses in the format of the service. {@link FakeHttpServer} parses the
+ * requests and writes the responses.
+ *
+ * Thread safe.
+ */
+abstract class FakeService
+{
+    /** The service version the fake claims to speak. */
+    static final String VERSION = "2017-07-29";
+
+    static final DateTimeFormatter RFC1123 = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private final FakeStorageServer.Service service;
+    private final AtomicLong etags = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private final List<Fault> faults = new CopyOnWriteArrayList<>();
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+
+    FakeService(FakeStorageServer.Service service) {
+        this.service = service;
+    }
+
+    /**
+     * Answers a request, with an error response if it fails.
+     * @param request the request.
+     * @return the response.
+     */
+    Response serve(Request request) {
+        requests.incrementAndGet();
+        delay();
+
+        Response response;
+        try {
+            final ServiceException fault = fault(request);
+            if(fault != null)
+                throw fault;
+            response = handle(request);
+        } catch (ServiceException e) {
+            response = error(e);
+        } catch (RuntimeException e) {
+            response = error(new ServiceException(500, "InternalError", String.valueOf(e)));
+        }
+        response.header("x-ms-request-id", UUID.randomUUID().toString())
+                .header("x-ms-version", VERSION)
+                .header("Date", rfc1123(System.currentTimeMillis()));
+        return response;
+    }
+
+    FakeStorageServer.Service getService() {
+        return service;
+    }
+
+    void setLatency(long minMillis, long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = maxMillis;
+    }
+
+    void addFault(Fault fault) {
+        faults.add(fault);
+    }
+
+    void clearFaults() {
+        faults.clear();
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    private ServiceException fault(Request request) {
+        for(Fault fault : faults) {
+            final ServiceException e = fault.apply(service, request);
+            if(e != null)
+                return e;
+        }
+        return null;
+    }
+
+    private void delay() {
+        final long min = minLatencyMillis;
+        final long max = maxLatencyMillis;
+        if(max <= 0)
+            return;
+        try {
+            Thread.sleep(min >= max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles a request.
+     * @param request the request.
+     * @return the response.
+     * @throws ServiceException to answer with an error.
+     */
+    abstract Response handle(Request request) throws ServiceException;
+
+    /**
+     * @param e an error.
+     * @return the error response, in the format of the service.
+     */
+    abstract Response error(ServiceException e);
+
+    /**
+     * @param e an error.
+     * @return the error response of the Blob and Queue services.
+     */
+    static Response xmlError(ServiceException e) {
+        return new Response(e.status).header("x-ms-error-code", e.code)
+                .body("<?xml version=\"1.0\" encoding=\"utf-8\"?><Error><Code>" + e.code + "</Code><Message>"
+                        + escapeXml(e.getMessage()) + "</Message></Error>", "application/xml");
+    }
+
+    static ServiceException unsupported(Request request) {
+        return new ServiceException(400, "UnsupportedHttpVerb", "The fake does not support " + request.method + " " + request.rawPath);
+    }
+
+    /**
+     * @return a new, unique ETag.
+     */
+    String newEtag() {
+        return "\"0x8D" + Long.toHexString(System.nanoTime()).toUpperCase(Locale.ROOT) + Long.toHexString(etags.incrementAndGet()) + "\"";
+    }
+
+    static String rfc1123(long millis) {
+        return RFC1123.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * A request, with its body read.
+     */
+    static final class Request
+    {
+        final String method;
+        final String rawPath;
+        /** The decoded path segments after the account name. */
+        final List<String> path;
+        final Map<String, String> query;
+        /** Case insensitive. */
+        final Map<String, String> headers;
+        final byte[] body;
+
+        /**
+         * @param method the request method.
+         * @param target the request target: the raw path and query.
+         * @param headers the headers, case insensitive.
+         * @param body the body.
+         */
+        Request(String method, String target, Map<String, String> headers, byte[] body) {
+            final String override = headers.get("X-HTTP-Method");
+            final int question = target.indexOf('?');
+            this.method = override != null ? override : method;
+            this.rawPath = question < 0 ? target : target.substring(0, question);
+            this.headers = headers;
+            this.query = parseQuery(question < 0 ? null : target.substring(question + 1));
+            this.body = body;
+
+            final List<String> segments = new ArrayList<>();
+            final String[] raw = rawPath.split("/", -1);
+            // raw[0] is empty and raw[1] is the account.
+            for(int i = 2; i < raw.length; i++)
+                segments.add(decode(raw[i]));
+            if(!segments.isEmpty() && segments.get(segments.size() - 1).isEmpty())
+                segments.remove(segments.size() - 1);
+            this.path = Collections.unmodifiableList(segments);
+        }
+
+        Request(String method, String rawPath, Map<String, String> query, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.rawPath = rawPath;
+            this.path = Collections.emptyList();
+            this.query = query;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        String bodyText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the x-ms-meta-* headers, by name without the prefix.
+         */
+        Map<String, String> metadata() {
+            final Map<String, String> metadata = new LinkedHashMap<>();
+            for(Map.Entry<String, String> header : headers.entrySet())
+                if(header.getKey().toLowerCase(Locale.ROOT).startsWith("x-ms-meta-"))
+                    metadata.put(header.getKey().substring("x-ms-meta-".length()).toLowerCase(Locale.ROOT), header.getValue());
+            return metadata;
+        }
+    }
+
+    /**
+     * A response.
+     */
+    static final class Response
+    {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body;
+
+        Response(int status) {
+            this.status = status;
+        }
+
+        Response header(String name, Object value) {
+            if(value != null)
+                headers.put(name, String.valueOf(value));
+            return this;
+        }
+
+        Response body(byte[] body, String contentType) {
+            this.body = body;
+            return header("Content-Type", contentType);
+        }
+
+        Response body(String body, String contentType) {
+            return body(body.getBytes(StandardCharsets.UTF_8), contentType);
+        }
+
+        Response metadata(Map<String, String> metadata) {
+            for(Map.Entry<String, String> entry : metadata.entrySet())
+                header("x-ms-meta-" + entry.getKey(), entry.getValue());
+            return this;
+        }
+    }
+
+    /**
+     * An error answered to the client.
+     */
+    static final class ServiceException extends Exception
+    {
+        final int status;
+        final String code;
+
+        ServiceException(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    /**
+     * @return an empty header map that looks names up ignoring case, as HTTP does.
+     */
+    static Map<String, String> newHeaders() {
+        return new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    static Map<String, String> parseQuery(String rawQuery) {
+        if(rawQuery == null || rawQuery.isEmpty())
+            return Collections.emptyMap();
+        final Map<String, String> query = new HashMap<>();
+        for(String parameter : rawQuery.split("&")) {
+            final int equals = parameter.indexOf('=');
+            if(equals < 0)
+                query.put(decode(parameter), "");
+            else
+                query.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+        }
+        return query;
+    }
+
+    static String decode(String value) {
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    static String unescapeXml(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    static byte[] slice(byte[] data, long offset, long length) {
+        return Arrays.copyOfRange(data, (int) offset, (int) (offset + length));
+    }
+}
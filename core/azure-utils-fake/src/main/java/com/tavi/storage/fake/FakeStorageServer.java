@@ -0,0 +1,161 @@
+package com.tavi.storage.fake;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory stand-in for the Blob, Queue and Table REST endpoints of a storage account, served over HTTP on the
+ * loopback interface. The real SDK talks to it through {@link #getAccount()}, so serialization, HTTP and
+ * concurrency costs are all paid, without a network or an emulator. Requests are not authenticated.
+ *
+ * Latency and errors can be injected per service with {@link #withLatency(Service, long, long)} and
+ * {@link #withFault(Fault)}, to exercise retries, throttling and timeouts.
+ *
+ * Thread safe. Close to stop serving; the data is dropped with the server.
+ */
+public final class FakeStorageServer implements Closeable
+{
+    /** The account name of the development storage account. */
+    public static final String ACCOUNT_NAME = "devstoreaccount1";
+
+    /** The well known key of the development storage account. */
+    public static final String ACCOUNT_KEY = "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+
+    private static final int BACKLOG = 1024;
+
+    /**
+     * The services of an account.
+     */
+    public enum Service
+    {
+        BLOB, QUEUE, TABLE
+    }
+
+    private final ExecutorService executor;
+    private final Map<Service, FakeService> services = new EnumMap<>(Service.class);
+    private final FakeHttpServer blob;
+    private final FakeHttpServer queue;
+    private final FakeHttpServer table;
+
+    private FakeStorageServer() throws IOException {
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "fake-storage-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.blob = serve(new FakeBlobService());
+        this.queue = serve(new FakeQueueService());
+        this.table = serve(new FakeTableService());
+    }
+
+    /**
+     * Starts a server on free ports of the loopback interface.
+     * @return the server.
+     * @throws IOException
+     */
+    public static FakeStorageServer start() throws IOException {
+        return new FakeStorageServer();
+    }
+
+    /**
+     * @return a connection string pointing every service at this server.
+     */
+    public String getConnectionString() {
+        return "DefaultEndpointsProtocol=http;AccountName=" + ACCOUNT_NAME + ";AccountKey=" + ACCOUNT_KEY
+                + ";BlobEndpoint=" + endpoint(blob) + ";QueueEndpoint=" + endpoint(queue) + ";TableEndpoint=" + endpoint(table);
+    }
+
+    /**
+     * @return an account pointing every service at this server.
+     * @throws URISyntaxException
+     * @throws InvalidKeyException
+     */
+    public CloudStorageAccount getAccount() throws URISyntaxException, InvalidKeyException {
+        return CloudStorageAccount.parse(getConnectionString());
+    }
+
+    /**
+     * Delays every request by a random time between two bounds, to simulate the network and the service.
+     * @param minMillis the shortest delay, in milliseconds.
+     * @param maxMillis the longest delay, in milliseconds; 0 for none.
+     * @return this instance.
+     */
+    public FakeStorageServer withLatency(long minMillis, long maxMillis) {
+        for(Service service : Service.values())
+            withLatency(service, minMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * Delays the requests of a service by a random time between two bounds.
+     * @param service the service.
+     * @param minMillis the shortest delay, in milliseconds.
+     * @param maxMillis the longest delay, in milliseconds; 0 for none.
+     * @return this instance.
+     */
+    public FakeStorageServer withLatency(Service service, long minMillis, long maxMillis) {
+        if(minMillis < 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Latency bounds must satisfy 0 <= min <= max");
+        services.get(service).setLatency(minMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * Fails the requests a fault matches, in addition to the faults added before. The first matching fault wins.
+     * @param fault the fault.
+     * @return this instance.
+     */
+    public FakeStorageServer withFault(Fault fault) {
+        for(FakeService service : services.values())
+            service.addFault(fault);
+        return this;
+    }
+
+    /**
+     * Removes every fault.
+     * @return this instance.
+     */
+    public FakeStorageServer clearFaults() {
+        for(FakeService service : services.values())
+            service.clearFaults();
+        return this;
+    }
+
+    /**
+     * @param service a service.
+     * @return the number of requests the service received, failed ones included.
+     */
+    public long getRequestCount(Service service) {
+        return services.get(service).getRequestCount();
+    }
+
+    /**
+     * Stops serving.
+     */
+    @Override
+    public void close() {
+        blob.close();
+        queue.close();
+        table.close();
+        executor.shutdownNow();
+    }
+
+    private FakeHttpServer serve(FakeService service) throws IOException {
+        services.put(service.getService(), service);
+        return new FakeHttpServer(service, "/" + ACCOUNT_NAME, BACKLOG, executor);
+    }
+
+    private static String endpoint(FakeHttpServer server) {
+        return "http://127.0.0.1:" + server.getPort() + "/" + ACCOUNT_NAME;
+    }
+}
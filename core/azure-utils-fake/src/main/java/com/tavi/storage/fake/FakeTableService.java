@@ -0,0 +1,585 @@
+package com.tavi.storage.fake;
+
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Table service, in the JSON format: tables, single entity operations, entity group transactions and queries
+ * with $filter, $top, $select and continuation tokens.
+ *
+ * Thread safe - every table is locked on its own, and a batch applies atomically.
+ */
+final class FakeTableService extends FakeService
+{
+    static final String JSON = "application/json;odata=minimalmetadata;streaming=true;charset=utf-8";
+
+    private static final Pattern TABLE_ENTRY = Pattern.compile("Tables\\('(.*)'\\)");
+    private static final Pattern ENTITY = Pattern.compile("(.+?)\\(PartitionKey='((?:[^']|'')*)',RowKey='((?:[^']|'')*)'\\)");
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=([^;\\s]+)");
+    private static final Pattern REQUEST_LINE = Pattern.compile("([A-Z]+) (\\S+) HTTP/1\\.1");
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    /** The most entities a query answers with at once. */
+    private static final int MAX_PAGE = 1000;
+
+    private static final Comparator<Key> KEY_ORDER = Comparator.comparing((Key key) -> key.partitionKey).thenComparing(key -> key.rowKey);
+
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    private static final class Table
+    {
+        final TreeMap<Key, Entity> entities = new TreeMap<>(KEY_ORDER);
+    }
+
+    private static final class Key
+    {
+        final String partitionKey;
+        final String rowKey;
+
+        Key(String partitionKey, String rowKey) {
+            this.partitionKey = partitionKey;
+            this.rowKey = rowKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && partitionKey.equals(((Key) o).partitionKey) && rowKey.equals(((Key) o).rowKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return partitionKey.hashCode() * 31 + rowKey.hashCode();
+        }
+    }
+
+    private static final class Entity
+    {
+        final Key key;
+        final Map<String, String> properties;
+        final long timestamp;
+        final String etag;
+
+        Entity(Key key, Map<String, String> properties, long timestampNanos) {
+            this.key = key;
+            this.properties = properties;
+            this.timestamp = timestampNanos;
+            this.etag = "W/\"datetime'" + TIMESTAMP.format(instant(timestampNanos)).replace(":", "%3A") + "'\"";
+        }
+    }
+
+    FakeTableService() {
+        super(FakeStorageServer.Service.TABLE);
+    }
+
+    @Override
+    Response handle(Request request) throws ServiceException {
+        if(request.path.size() != 1)
+            throw unsupported(request);
+        final String resource = request.path.get(0);
+
+        if("Tables".equals(resource))
+            return tables(request);
+        final Matcher entry = TABLE_ENTRY.matcher(resource);
+        if(entry.matches())
+            return tableEntry(request, entry.group(1));
+        if("$batch".equals(resource))
+            return batch(request);
+
+        final Matcher entity = ENTITY.matcher(resource);
+        if(entity.matches())
+            return entity(request, entity.group(1), new Key(entity.group(2).replace("''", "'"), entity.group(3).replace("''", "'")));
+        return entities(request, resource.endsWith("()") ? resource.substring(0, resource.length() - 2) : resource);
+    }
+
+    @Override
+    Response error(ServiceException e) {
+        return new Response(e.status).header("x-ms-error-code", e.code).body(errorBody(e), JSON);
+    }
+
+    private static String errorBody(ServiceException e) {
+        return "{\"odata.error\":{\"code\":" + Json.quote(e.code) + ",\"message\":{\"lang\":\"en-US\",\"value\":"
+                + Json.quote(e.getMessage()) + "}}}";
+    }
+
+    private Response tables(Request request) throws ServiceException {
+        if("GET".equals(request.method))
+            return listTables(request);
+        if(!"POST".equals(request.method))
+            throw unsupported(request);
+        final String name = Json.string(Json.parseObject(request.bodyText()).get("TableName"));
+        if(tables.putIfAbsent(name, new Table()) != null)
+            throw new ServiceException(409, "TableAlreadyExists", "The table specified already exists.");
+        if(returnNoContent(request))
+            return new Response(204).header("DataServiceVersion", "3.0;");
+        return new Response(201).header("DataServiceVersion", "3.0;").body("{\"TableName\":" + Json.quote(name) + "}", JSON);
+    }
+
+    private Response tableEntry(Request request, String name) throws ServiceException {
+        switch (request.method) {
+            case "GET":
+                getTable(name);
+                return new Response(200).header("DataServiceVersion", "3.0;").body("{\"TableName\":" + Json.quote(name) + "}", JSON);
+            case "DELETE":
+                if(tables.remove(name) == null)
+                    throw tableNotFound();
+                return new Response(204);
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    private Response listTables(Request request) throws ServiceException {
+        final TableFilter filter = filter(request);
+        final List<String> names = new ArrayList<>(tables.keySet());
+        names.sort(null);
+
+        final StringBuilder json = new StringBuilder("{\"odata.metadata\":\"").append(metadata(request)).append("#Tables\",\"value\":[");
+        boolean first = true;
+        for(String name : names) {
+            if(!filter.matches(property -> "TableName".equals(property) ? name : null))
+                continue;
+            if(!first)
+                json.append(',');
+            json.append("{\"TableName\":").append(Json.quote(name)).append('}');
+            first = false;
+        }
+        return new Response(200).header("DataServiceVersion", "3.0;").body(json.append("]}").toString(), JSON);
+    }
+
+    private Response entities(Request request, String name) throws ServiceException {
+        final Table table = getTable(name);
+        synchronized (table) {
+            switch (request.method) {
+                case "POST":
+                    return insert(table, request);
+                case "GET":
+                    return query(table, name, request);
+                default:
+                    throw unsupported(request);
+            }
+        }
+    }
+
+    /**
+     * Answers a page of a query. The page ends after $top matching entities, and a continuation points at the
+     * next entity of the table, matching or not, as the service may hand back short or even empty pages.
+     */
+    private Response query(Table table, String name, Request request) throws ServiceException {
+        final TableFilter filter = filter(request);
+        final int top;
+        try {
+            top = request.query.containsKey("$top") ? Integer.parseInt(request.query.get("$top")) : MAX_PAGE;
+        } catch (NumberFormatException e) {
+            throw invalidInput();
+        }
+        if(top < 1 || top > MAX_PAGE)
+            throw invalidInput();
+        final Set<String> select = select(request.query.get("$select"));
+
+        final String nextPartitionKey = request.query.get("NextPartitionKey");
+        final Map<Key, Entity> candidates = nextPartitionKey == null ? table.entities
+                : table.entities.tailMap(new Key(tokenKey(nextPartitionKey), tokenKey(request.query.getOrDefault("NextRowKey", ""))), true);
+
+        final StringBuilder json = new StringBuilder("{\"odata.metadata\":\"").append(metadata(request))
+                .append('#').append(name).append("\",\"value\":[");
+        int count = 0;
+        Key next = null;
+        for(Entity entity : candidates.values()) {
+            if(count == top) {
+                next = entity.key;
+                break;
+            }
+            if(!filter.matches(property -> value(entity, property)))
+                continue;
+            if(count++ > 0)
+                json.append(',');
+            json.append(json(entity, select));
+        }
+
+        final Response response = new Response(200).header("DataServiceVersion", "3.0;");
+        if(next != null)
+            response.header("x-ms-continuation-NextPartitionKey", token(next.partitionKey))
+                    .header("x-ms-continuation-NextRowKey", token(next.rowKey));
+        return response.body(json.append("]}").toString(), JSON);
+    }
+
+    private static String metadata(Request request) {
+        return request.rawPath.substring(0, request.rawPath.lastIndexOf('/')) + "/$metadata";
+    }
+
+    private static TableFilter filter(Request request) throws ServiceException {
+        try {
+            return TableFilter.parse(request.query.get("$filter"));
+        } catch (IllegalArgumentException e) {
+            throw invalidInput();
+        }
+    }
+
+    private static Set<String> select(String select) {
+        if(select == null || select.isEmpty() || "*".equals(select))
+            return null;
+        final Set<String> names = new HashSet<>();
+        for(String name : select.split(","))
+            names.add(name.trim());
+        return names;
+    }
+
+    /**
+     * @return the value of a property of an entity as compared by filters, or null if missing.
+     */
+    private static Object value(Entity entity, String property) {
+        switch (property) {
+            case "PartitionKey": return entity.key.partitionKey;
+            case "RowKey": return entity.key.rowKey;
+            case "Timestamp": return instant(entity.timestamp);
+            default:
+                final String raw = entity.properties.get(property);
+                return raw == null ? null : TableFilter.value(raw, Json.string(entity.properties.get(property + "@odata.type")));
+        }
+    }
+
+    /**
+     * Converts between keys and continuation tokens, which are opaque to clients.
+     */
+    private static String token(String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String tokenKey(String token) throws ServiceException {
+        try {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw invalidInput();
+        }
+    }
+
+    private Response entity(Request request, String name, Key key) throws ServiceException {
+        final Table table = getTable(name);
+        synchronized (table) {
+            return apply(table, request, key);
+        }
+    }
+
+    /**
+     * Applies a single entity operation to a locked table.
+     */
+    private Response apply(Table table, Request request, Key key) throws ServiceException {
+        final Entity existing = table.entities.get(key);
+        final String ifMatch = request.header("If-Match");
+
+        switch (request.method) {
+            case "GET":
+                if(existing == null)
+                    throw entityNotFound();
+                return new Response(200).header("ETag", existing.etag).header("DataServiceVersion", "3.0;")
+                        .body(json(existing), JSON);
+            case "PUT":
+            case "MERGE": {
+                checkMatch(existing, ifMatch);
+                final Map<String, String> properties = properties(request);
+                if("MERGE".equals(request.method) && existing != null) {
+                    final Map<String, String> merged = new LinkedHashMap<>(existing.properties);
+                    merged.putAll(properties);
+                    properties.clear();
+                    properties.putAll(merged);
+                }
+                final Entity entity = new Entity(key, properties, tick());
+                table.entities.put(key, entity);
+                return new Response(204).header("ETag", entity.etag).header("DataServiceVersion", "1.0;");
+            }
+            case "DELETE":
+                checkMatch(existing, ifMatch == null ? "*" : ifMatch);
+                table.entities.remove(key);
+                return new Response(204).header("DataServiceVersion", "1.0;");
+            default:
+                throw unsupported(request);
+        }
+    }
+
+    private Response insert(Table table, Request request) throws ServiceException {
+        final Map<String, String> body = Json.parseObject(request.bodyText());
+        final Key key = new Key(Json.string(body.get("PartitionKey")), Json.string(body.get("RowKey")));
+        if(key.partitionKey == null || key.rowKey == null)
+            throw new ServiceException(400, "PropertiesNeedValue", "The values are not specified for all properties in the entity.");
+        if(table.entities.containsKey(key))
+            throw new ServiceException(409, "EntityAlreadyExists", "The specified entity already exists.");
+
+        final Entity entity = new Entity(key, properties(body), tick());
+        table.entities.put(key, entity);
+        if(returnNoContent(request))
+            return new Response(204).header("ETag", entity.etag).header("DataServiceVersion", "3.0;");
+        return new Response(201).header("ETag", entity.etag).header("DataServiceVersion", "3.0;").body(json(entity), JSON);
+    }
+
+    /**
+     * Runs the operations of a changeset atomically: the changes are undone if any operation fails.
+     */
+    private Response batch(Request request) throws ServiceException {
+        if(!"POST".equals(request.method))
+            throw unsupported(request);
+
+        final String body = request.bodyText();
+        final String batchBoundary = boundary(request.header("Content-Type"));
+        final List<String> parts = parts(body, batchBoundary);
+        if(parts.size() != 1)
+            throw new ServiceException(400, "InvalidInput", "One of the request inputs is not valid.");
+
+        final String part = parts.get(0);
+        final int headersEnd = part.indexOf("\r\n\r\n");
+        final String partHeaders = part.substring(0, headersEnd);
+        final List<Request> operations = new ArrayList<>();
+        if(partHeaders.contains("multipart/mixed")) {
+            for(String operation : parts(part.substring(headersEnd + 4), boundary(partHeaders)))
+                operations.add(operation(operation));
+        } else {
+            operations.add(operation(part));
+        }
+
+        final String responseBoundary = "batchresponse_" + UUID.randomUUID();
+        final String changesetBoundary = "changesetresponse_" + UUID.randomUUID();
+        final StringBuilder response = new StringBuilder();
+        response.append("--").append(responseBoundary).append("\r\n")
+                .append("Content-Type: multipart/mixed; boundary=").append(changesetBoundary).append("\r\n\r\n");
+
+        final List<Response> responses = new ArrayList<>();
+        String tableName = null;
+        Table table = null;
+        final Map<Key, Entity> undo = new HashMap<>();
+        for(int i = 0; i < operations.size(); i++) {
+            final Request operation = operations.get(i);
+            try {
+                final String path = operation.rawPath.substring(operation.rawPath.lastIndexOf('/') + 1);
+                final String resource = decode(path);
+                final Matcher entity = ENTITY.matcher(resource);
+                final String name = entity.matches() ? entity.group(1) : resource.replace("()", "");
+                if(table == null) {
+                    tableName = name;
+                    table = getTable(name);
+                } else if(!name.equals(tableName)) {
+                    throw new ServiceException(400, "InvalidInput", "All operations in a batch must target the same table.");
+                }
+
+                synchronized (table) {
+                    final Key key;
+                    if(entity.matches()) {
+                        key = new Key(entity.group(2).replace("''", "'"), entity.group(3).replace("''", "'"));
+                    } else {
+                        final Map<String, String> properties = Json.parseObject(operation.bodyText());
+                        key = new Key(Json.string(properties.get("PartitionKey")), Json.string(properties.get("RowKey")));
+                    }
+                    if(undo.containsKey(key))
+                        throw new ServiceException(400, "InvalidDuplicateRow", "The batch request contains multiple changes with same row key.");
+                    if(!undo.isEmpty() && !undo.keySet().iterator().next().partitionKey.equals(key.partitionKey))
+                        throw new ServiceException(400, "CommandsInBatchActOnDifferentPartitions", "All commands in a batch must operate on same entity group.");
+
+                    final Entity before = table.entities.get(key);
+                    responses.add(entity.matches() ? apply(table, operation, key) : insert(table, operation));
+                    undo.put(key, before);
+                }
+            } catch (ServiceException e) {
+                if(table != null) {
+                    synchronized (table) {
+                        for(Map.Entry<Key, Entity> change : undo.entrySet()) {
+                            if(change.getValue() == null)
+                                table.entities.remove(change.getKey());
+                            else
+                                table.entities.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+                final ServiceException indexed = new ServiceException(e.status, e.code, i + ":" + e.getMessage());
+                responses.clear();
+                responses.add(error(indexed));
+                break;
+            }
+        }
+
+        for(int i = 0; i < responses.size(); i++) {
+            final Response operationResponse = responses.get(i);
+            response.append("--").append(changesetBoundary).append("\r\n")
+                    .append("Content-Type: application/http\r\nContent-Transfer-Encoding: binary\r\n\r\n")
+                    .append("HTTP/1.1 ").append(operationResponse.status).append(' ').append(reason(operationResponse.status)).append("\r\n")
+                    .append("Content-ID: ").append(i + 1).append("\r\n")
+                    .append("X-Content-Type-Options: nosniff\r\nCache-Control: no-cache\r\n");
+            for(Map.Entry<String, String> header : operationResponse.headers.entrySet())
+                response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            response.append("\r\n");
+            if(operationResponse.body != null)
+                response.append(new String(operationResponse.body, StandardCharsets.UTF_8)).append("\r\n");
+        }
+        response.append("--").append(changesetBoundary).append("--\r\n")
+                .append("--").append(responseBoundary).append("--\r\n");
+
+        return new Response(202).header("DataServiceVersion", "3.0;")
+                .body(response.toString(), "multipart/mixed; boundary=" + responseBoundary);
+    }
+
+    /**
+     * Parses an operation of a batch: MIME headers, then the HTTP request line, headers and body.
+     */
+    private static Request operation(String part) throws ServiceException {
+        final String[] sections = part.split("\r\n\r\n", 3);
+        if(sections.length < 2)
+            throw new ServiceException(400, "InvalidInput", "One of the request inputs is not valid.");
+        final String[] lines = sections[1].split("\r\n");
+        final Matcher requestLine = REQUEST_LINE.matcher(lines[0]);
+        if(!requestLine.matches())
+            throw new ServiceException(400, "InvalidInput", "One of the request inputs is not valid.");
+
+        final Map<String, String> headers = newHeaders();
+        for(int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if(colon > 0)
+                headers.putIfAbsent(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        final String body = sections.length > 2 ? sections[2].trim() : "";
+        final String url = requestLine.group(2);
+        final int query = url.indexOf('?');
+        final String rawPath = query < 0 ? url : url.substring(0, query);
+        final String method = headers.get("X-HTTP-Method") != null ? headers.get("X-HTTP-Method") : requestLine.group(1);
+        return new Request(method, rawPath, parseQuery(query < 0 ? null : url.substring(query + 1)), headers,
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> parts(String body, String boundary) {
+        final List<String> parts = new ArrayList<>();
+        final String delimiter = "--" + boundary;
+        int start = body.indexOf(delimiter);
+        while(start >= 0) {
+            start += delimiter.length();
+            if(body.startsWith("--", start))
+                break;
+            start = body.indexOf("\r\n", start) + 2;
+            final int end = body.indexOf(delimiter, start);
+            parts.add(body.substring(start, end < 0 ? body.length() : end));
+            start = end;
+        }
+        return parts;
+    }
+
+    private static String boundary(String contentType) throws ServiceException {
+        final Matcher matcher = BOUNDARY.matcher(contentType == null ? "" : contentType);
+        if(!matcher.find())
+            throw new ServiceException(400, "InvalidInput", "One of the request inputs is not valid.");
+        return matcher.group(1);
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            case 412: return "Precondition Failed";
+            default: return "Error";
+        }
+    }
+
+    private static void checkMatch(Entity existing, String ifMatch) throws ServiceException {
+        if(ifMatch == null)
+            return;
+        if(existing == null)
+            throw entityNotFound();
+        if(!"*".equals(ifMatch) && !ifMatch.equals(existing.etag))
+            throw new ServiceException(412, "UpdateConditionNotSatisfied", "The update condition specified in the request was not satisfied.");
+    }
+
+    private static Map<String, String> properties(Request request) {
+        return properties(Json.parseObject(request.bodyText()));
+    }
+
+    /**
+     * @return the properties stored for an entity: everything but the keys, timestamp and OData annotations.
+     */
+    private static Map<String, String> properties(Map<String, String> body) {
+        final Map<String, String> properties = new LinkedHashMap<>();
+        for(Map.Entry<String, String> property : body.entrySet()) {
+            final String name = property.getKey();
+            if(name.startsWith("odata.") || name.equals("PartitionKey") || name.equals("RowKey") || name.startsWith("Timestamp"))
+                continue;
+            properties.put(name, property.getValue());
+        }
+        return properties;
+    }
+
+    private static String json(Entity entity) {
+        return json(entity, null);
+    }
+
+    /**
+     * @param select the properties to answer with besides the keys and timestamp, null for all.
+     */
+    private static String json(Entity entity, Set<String> select) {
+        final Map<String, String> json = new LinkedHashMap<>();
+        json.put("odata.etag", Json.quote(entity.etag));
+        json.put("PartitionKey", Json.quote(entity.key.partitionKey));
+        json.put("RowKey", Json.quote(entity.key.rowKey));
+        json.put("Timestamp@odata.type", "\"Edm.DateTime\"");
+        json.put("Timestamp", Json.quote(TIMESTAMP.format(instant(entity.timestamp))));
+        for(Map.Entry<String, String> property : entity.properties.entrySet()) {
+            final int annotation = property.getKey().indexOf('@');
+            if(select == null || select.contains(annotation < 0 ? property.getKey() : property.getKey().substring(0, annotation)))
+                json.put(property.getKey(), property.getValue());
+        }
+        return Json.object(json);
+    }
+
+    /**
+     * @return a strictly increasing timestamp, in nanoseconds since the epoch, so every change gets a new ETag.
+     */
+    private long tick() {
+        final long now = System.currentTimeMillis() * 1000000;
+        return clock.updateAndGet(last -> Math.max(last + 100, now));
+    }
+
+    private static Instant instant(long nanos) {
+        return Instant.ofEpochSecond(nanos / 1000000000, nanos % 1000000000);
+    }
+
+    private static boolean returnNoContent(Request request) {
+        return "return-no-content".equals(request.header("Prefer"));
+    }
+
+    private Table getTable(String name) throws ServiceException {
+        final Table table = tables.get(name);
+        if(table == null)
+            throw tableNotFound();
+        return table;
+    }
+
+    private static ServiceException tableNotFound() {
+        return new ServiceException(404, "TableNotFound", "The table specified does not exist.");
+    }
+
+    private static ServiceException invalidInput() {
+        return new ServiceException(400, "InvalidInput", "One of the request inputs is not valid.");
+    }
+
+    private static ServiceException entityNotFound() {
+        return new ServiceException(404, "ResourceNotFound", "The specified resource does not exist.");
+    }
+}
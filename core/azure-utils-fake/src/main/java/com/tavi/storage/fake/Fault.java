@@ -0,0 +1,125 @@
+package com.tavi.storage.fake;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * An error the fake answers some requests with instead of serving them, e.g. 503 Server Busy on one request in ten
+ * or on the first three requests to a queue. Matching requests fail before they change anything.
+ *
+ * Thread safe once added to a server - configure before {@link FakeStorageServer#withFault(Fault)}.
+ */
+public final class Fault
+{
+    private final int status;
+    private final String code;
+    private FakeStorageServer.Service service;
+    private String method;
+    private Pattern path;
+    private double probability = 1;
+    private final AtomicInteger remaining = new AtomicInteger(Integer.MAX_VALUE);
+
+    private Fault(int status, String code) {
+        this.status = status;
+        this.code = code;
+    }
+
+    /**
+     * @param status the HTTP status to answer with.
+     * @param code the error code to answer with.
+     * @return a fault failing every request.
+     */
+    public static Fault of(int status, String code) {
+        return new Fault(status, code);
+    }
+
+    /**
+     * @return a fault answering 503 Server Busy, as the service does when an account or partition is over its
+     * scalability targets.
+     */
+    public static Fault serverBusy() {
+        return new Fault(503, "ServerBusy");
+    }
+
+    /**
+     * @return a fault answering 500 Operation Timed Out.
+     */
+    public static Fault timeout() {
+        return new Fault(500, "OperationTimedOut");
+    }
+
+    /**
+     * @param service the only service to fail requests of.
+     * @return this instance.
+     */
+    public Fault forService(FakeStorageServer.Service service) {
+        this.service = service;
+        return this;
+    }
+
+    /**
+     * @param method the only HTTP method to fail requests of, e.g. PUT; MERGE for table merges.
+     * @return this instance.
+     */
+    public Fault forMethod(String method) {
+        this.method = method;
+        return this;
+    }
+
+    /**
+     * @param regex a pattern the raw request path must contain, e.g. "/orders/messages".
+     * @return this instance.
+     */
+    public Fault forPath(String regex) {
+        this.path = Pattern.compile(regex);
+        return this;
+    }
+
+    /**
+     * @param probability the chance a matching request fails, between 0 and 1.
+     * @return this instance.
+     */
+    public Fault withProbability(double probability) {
+        if(probability < 0 || probability > 1)
+            throw new IllegalArgumentException("probability must be between 0 and 1");
+        this.probability = probability;
+        return this;
+    }
+
+    /**
+     * @param count the number of requests to fail; the fault is spent afterwards.
+     * @return this instance.
+     */
+    public Fault times(int count) {
+        if(count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+        this.remaining.set(count);
+        return this;
+    }
+
+    /**
+     * @return the number of requests the fault still fails, Integer.MAX_VALUE if unlimited.
+     */
+    public int getRemaining() {
+        return remaining.get();
+    }
+
+    /**
+     * Decides whether a request fails, using up one of the failures if so.
+     * @return the error to answer with, or null.
+     */
+    FakeService.ServiceException apply(FakeStorageServer.Service requestService, FakeService.Request request) {
+        if(service != null && service != requestService)
+            return null;
+        if(method != null && !method.equals(request.method))
+            return null;
+        if(path != null && !path.matcher(request.rawPath).find())
+            return null;
+        if(probability < 1 && ThreadLocalRandom.current().nextDouble() >= probability)
+            return null;
+        if(remaining.getAndUpdate(left -> left == Integer.MAX_VALUE ? left : Math.max(0, left - 1)) <= 0)
+            return null;
+        return new FakeService.ServiceException(status, code, "Injected fault");
+    }
+}
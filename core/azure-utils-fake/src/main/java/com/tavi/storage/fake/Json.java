@@ -0,0 +1,150 @@
+package com.tavi.storage.fake;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes the flat JSON objects of the Table service. Values are kept as raw JSON, so entities are stored
+ * and echoed back exactly as the client sent them, type annotations included.
+ */
+final class Json
+{
+    private Json() {}
+
+    /**
+     * @param json a JSON object of strings, numbers, booleans and nulls.
+     * @return the raw JSON value of every property, in order.
+     * @throws IllegalArgumentException if the object is malformed or nested.
+     */
+    static Map<String, String> parseObject(String json) {
+        final Map<String, String> properties = new LinkedHashMap<>();
+        int i = skip(json, 0);
+        expect(json, i++, '{');
+        i = skip(json, i);
+        if(json.charAt(i) == '}')
+            return properties;
+
+        while(true) {
+            i = skip(json, i);
+            final int keyEnd = endOfString(json, i);
+            final String key = unquote(json.substring(i, keyEnd));
+            i = skip(json, keyEnd);
+            expect(json, i++, ':');
+            i = skip(json, i);
+
+            final int valueEnd = json.charAt(i) == '"' ? endOfString(json, i) : endOfLiteral(json, i);
+            properties.put(key, json.substring(i, valueEnd));
+            i = skip(json, valueEnd);
+            if(json.charAt(i) == '}')
+                return properties;
+            expect(json, i++, ',');
+        }
+    }
+
+    /**
+     * @param raw a raw JSON value.
+     * @return the string it holds, or null for null.
+     */
+    static String string(String raw) {
+        if(raw == null || "null".equals(raw))
+            return null;
+        return raw.startsWith("\"") ? unquote(raw) : raw;
+    }
+
+    /**
+     * @param value a string.
+     * @return the string as a JSON string literal.
+     */
+    static String quote(String value) {
+        final StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for(int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * @param properties raw JSON values by name.
+     * @return the JSON object.
+     */
+    static String object(Map<String, String> properties) {
+        final StringBuilder json = new StringBuilder("{");
+        for(Map.Entry<String, String> property : properties.entrySet()) {
+            if(json.length() > 1)
+                json.append(',');
+            json.append(quote(property.getKey())).append(':').append(property.getValue());
+        }
+        return json.append('}').toString();
+    }
+
+    private static String unquote(String literal) {
+        final StringBuilder value = new StringBuilder(literal.length());
+        for(int i = 1; i < literal.length() - 1; i++) {
+            final char c = literal.charAt(i);
+            if(c != '\\') {
+                value.append(c);
+                continue;
+            }
+            final char escaped = literal.charAt(++i);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    value.append((char) Integer.parseInt(literal.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        return value.toString();
+    }
+
+    private static int endOfString(String json, int start) {
+        expect(json, start, '"');
+        for(int i = start + 1; i < json.length(); i++) {
+            final char c = json.charAt(i);
+            if(c == '\\')
+                i++;
+            else if(c == '"')
+                return i + 1;
+        }
+        throw new IllegalArgumentException("Unterminated string at " + start);
+    }
+
+    private static int endOfLiteral(String json, int start) {
+        int i = start;
+        while(i < json.length() && ",}] \t\r\n".indexOf(json.charAt(i)) < 0)
+            i++;
+        if(i == start || "{[".indexOf(json.charAt(start)) >= 0)
+            throw new IllegalArgumentException("Unsupported value at " + start);
+        return i;
+    }
+
+    private static int skip(String json, int i) {
+        while(i < json.length() && Character.isWhitespace(json.charAt(i)))
+            i++;
+        if(i == json.length())
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        return i;
+    }
+
+    private static void expect(String json, int i, char c) {
+        if(json.charAt(i) != c)
+            throw new IllegalArgumentException("Expected " + c + " at " + i + " but found " + json.charAt(i));
+    }
+}
@@ -0,0 +1,302 @@
+package com.tavi.storage.fake;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * The $filter expressions of table queries: comparisons of properties with literals, combined with and, or, not
+ * and parentheses. A comparison with a missing property or a value of another type is false, as on the service.
+ *
+ * Immutable and thread safe once parsed.
+ */
+final class TableFilter
+{
+    /** Matches every entity. */
+    static final TableFilter ALL = new TableFilter(properties -> true);
+
+    private final Node root;
+
+    private TableFilter(Node root) {
+        this.root = root;
+    }
+
+    private interface Node
+    {
+        boolean matches(Function<String, Object> properties);
+    }
+
+    /**
+     * @param filter a $filter expression, or null.
+     * @return the filter.
+     * @throws IllegalArgumentException if the expression is malformed.
+     */
+    static TableFilter parse(String filter) {
+        if(filter == null || filter.trim().isEmpty())
+            return ALL;
+        final Parser parser = new Parser(tokenize(filter));
+        final Node root = parser.or();
+        if(parser.position != parser.tokens.size())
+            throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position) + " in filter " + filter);
+        return new TableFilter(root);
+    }
+
+    /**
+     * @param properties the typed value of a property of the entity by name, null if missing.
+     * @return whether the entity matches.
+     */
+    boolean matches(Function<String, Object> properties) {
+        return root.matches(properties);
+    }
+
+    private static final class Token
+    {
+        /** A literal value, or null for a word or a parenthesis. */
+        final Object literal;
+        final String text;
+
+        Token(Object literal, String text) {
+            this.literal = literal;
+            this.text = text;
+        }
+
+        boolean is(String word) {
+            return literal == null && text.equalsIgnoreCase(word);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static List<Token> tokenize(String filter) {
+        final List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while(i < filter.length()) {
+            final char c = filter.charAt(i);
+            if(Character.isWhitespace(c)) {
+                i++;
+            } else if(c == '(' || c == ')') {
+                tokens.add(new Token(null, String.valueOf(c)));
+                i++;
+            } else if(c == '\'') {
+                final int end = endOfQuoted(filter, i);
+                tokens.add(new Token(unquote(filter.substring(i, end)), filter.substring(i, end)));
+                i = end;
+            } else {
+                int end = i;
+                while(end < filter.length() && !Character.isWhitespace(filter.charAt(end)) && "()'".indexOf(filter.charAt(end)) < 0)
+                    end++;
+                final String word = filter.substring(i, end);
+                if(end < filter.length() && filter.charAt(end) == '\'') {
+                    final int quotedEnd = endOfQuoted(filter, end);
+                    tokens.add(new Token(typed(word, unquote(filter.substring(end, quotedEnd))), filter.substring(i, quotedEnd)));
+                    i = quotedEnd;
+                } else {
+                    tokens.add(new Token(number(word), word));
+                    i = end;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static int endOfQuoted(String filter, int start) {
+        for(int i = start + 1; i < filter.length(); i++) {
+            if(filter.charAt(i) != '\'')
+                continue;
+            if(i + 1 < filter.length() && filter.charAt(i + 1) == '\'')
+                i++;
+            else
+                return i + 1;
+        }
+        throw new IllegalArgumentException("Unterminated string in filter " + filter);
+    }
+
+    private static String unquote(String quoted) {
+        return quoted.substring(1, quoted.length() - 1).replace("''", "'");
+    }
+
+    private static Object typed(String prefix, String value) {
+        switch (prefix.toLowerCase(Locale.ROOT)) {
+            case "datetime":
+                return Instant.parse(value);
+            case "guid":
+                return UUID.fromString(value);
+            case "x":
+            case "binary":
+                return ByteBuffer.wrap(hex(value));
+            default:
+                throw new IllegalArgumentException("Unsupported literal " + prefix + "'" + value + "'");
+        }
+    }
+
+    /**
+     * @return the number or boolean a word holds, or null for an operator or a property name.
+     */
+    private static Object number(String word) {
+        if("true".equals(word))
+            return Boolean.TRUE;
+        if("false".equals(word))
+            return Boolean.FALSE;
+        if(word.isEmpty() || !(Character.isDigit(word.charAt(0)) || word.charAt(0) == '-'))
+            return null;
+        if(word.endsWith("L"))
+            return Long.parseLong(word.substring(0, word.length() - 1));
+        if(word.indexOf('.') >= 0 || word.indexOf('e') >= 0 || word.indexOf('E') >= 0)
+            return Double.parseDouble(word);
+        return Long.parseLong(word);
+    }
+
+    private static byte[] hex(String value) {
+        final byte[] bytes = new byte[value.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+
+    /**
+     * Recursive descent over the tokens; and binds tighter than or.
+     */
+    private static final class Parser
+    {
+        final List<Token> tokens;
+        int position;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node or() {
+            Node left = and();
+            while(accept("or")) {
+                final Node first = left;
+                final Node second = and();
+                left = properties -> first.matches(properties) || second.matches(properties);
+            }
+            return left;
+        }
+
+        Node and() {
+            Node left = unary();
+            while(accept("and")) {
+                final Node first = left;
+                final Node second = unary();
+                left = properties -> first.matches(properties) && second.matches(properties);
+            }
+            return left;
+        }
+
+        Node unary() {
+            if(accept("not")) {
+                final Node operand = unary();
+                return properties -> !operand.matches(properties);
+            }
+            if(accept("(")) {
+                final Node inner = or();
+                if(!accept(")"))
+                    throw new IllegalArgumentException("Expected ) at token " + position);
+                return inner;
+            }
+            return comparison();
+        }
+
+        Node comparison() {
+            final Function<Function<String, Object>, Object> left = operand();
+            final String operator = next().text.toLowerCase(Locale.ROOT);
+            final Function<Function<String, Object>, Object> right = operand();
+            switch (operator) {
+                case "eq": return properties -> test(left, right, properties, order -> order == 0);
+                case "ne": return properties -> test(left, right, properties, order -> order != 0);
+                case "gt": return properties -> test(left, right, properties, order -> order > 0);
+                case "ge": return properties -> test(left, right, properties, order -> order >= 0);
+                case "lt": return properties -> test(left, right, properties, order -> order < 0);
+                case "le": return properties -> test(left, right, properties, order -> order <= 0);
+                default: throw new IllegalArgumentException("Unsupported operator " + operator);
+            }
+        }
+
+        Function<Function<String, Object>, Object> operand() {
+            final Token token = next();
+            if(token.literal != null)
+                return properties -> token.literal;
+            if("(".equals(token.text) || ")".equals(token.text))
+                throw new IllegalArgumentException("Unexpected " + token + " at token " + position);
+            return properties -> properties.apply(token.text);
+        }
+
+        Token next() {
+            if(position == tokens.size())
+                throw new IllegalArgumentException("Unexpected end of filter");
+            return tokens.get(position++);
+        }
+
+        boolean accept(String word) {
+            if(position < tokens.size() && tokens.get(position).is(word)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private interface Order
+    {
+        boolean test(int order);
+    }
+
+    private static boolean test(Function<Function<String, Object>, Object> left, Function<Function<String, Object>, Object> right,
+                                Function<String, Object> properties, Order order) {
+        final Integer compared = compare(left.apply(properties), right.apply(properties));
+        return compared != null && order.test(compared);
+    }
+
+    /**
+     * @return the order of two values, or null if they cannot be compared.
+     */
+    @SuppressWarnings("unchecked")
+    private static Integer compare(Object left, Object right) {
+        if(left == null || right == null)
+            return null;
+        if(left instanceof Number && right instanceof Number) {
+            if(left instanceof Long && right instanceof Long)
+                return Long.compare((Long) left, (Long) right);
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+        if(left.getClass() != right.getClass() || !(left instanceof Comparable))
+            return null;
+        return ((Comparable<Object>) left).compareTo(right);
+    }
+
+    /**
+     * @param raw the raw JSON value of a property.
+     * @param type its odata.type annotation, or null.
+     * @return the value to compare in filters.
+     */
+    static Object value(String raw, String type) {
+        final String string = Json.string(raw);
+        if(string == null)
+            return null;
+        if(type != null) {
+            switch (type) {
+                case "Edm.Int64": return Long.parseLong(string);
+                case "Edm.Double": return Double.parseDouble(string);
+                case "Edm.DateTime": return Instant.parse(string);
+                case "Edm.Guid": return UUID.fromString(string);
+                case "Edm.Binary": return ByteBuffer.wrap(Base64.getDecoder().decode(string));
+                default: return string;
+            }
+        }
+        if(raw.startsWith("\""))
+            return string;
+        if("true".equals(raw) || "false".equals(raw))
+            return Boolean.valueOf(raw);
+        return raw.indexOf('.') >= 0 || raw.indexOf('e') >= 0 || raw.indexOf('E') >= 0 ? (Object) Double.parseDouble(raw) : (Object) Long.parseLong(raw);
+    }
+}
@@ -0,0 +1,224 @@
+package com.tavi.storage.fake;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableOperation;
+import com.microsoft.azure.storage.table.TableQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.*;
+
+public class FakeStorageServerTest
+{
+    private FakeStorageServer server;
+    private CloudStorageAccount account;
+
+    @Before
+    public void setUp() throws Exception {
+        server = FakeStorageServer.start();
+        account = server.getAccount();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testBlocksAndRanges() throws Exception {
+        final CloudBlobContainer container = account.createCloudBlobClient().getContainerReference("container");
+        container.create();
+
+        final byte[] data = new byte[3000];
+        new Random(7).nextBytes(data);
+        final CloudBlockBlob blob = container.getBlockBlobReference("dir/blob");
+        final List<String> ids = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            final String id = Base64.getEncoder().encodeToString(String.format("block-%03d", i).getBytes("UTF-8"));
+            blob.uploadBlock(id, new ByteArrayInputStream(data, i * 1000, 1000), 1000);
+            ids.add(id);
+        }
+        assertFalse(blob.exists());
+        blob.commitBlockList(blockList(ids));
+        assertTrue(blob.exists());
+
+        final byte[] range = new byte[500];
+        assertEquals(500, blob.downloadRangeToByteArray(1200, 500L, range, 0));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1200, 1700), range));
+
+        final ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        blob.download(whole);
+        assertTrue(Arrays.equals(data, whole.toByteArray()));
+        assertEquals(3000, blob.getProperties().getLength());
+
+        // Copies finish at once but report pending until polled.
+        final CloudBlockBlob copy = container.getBlockBlobReference("copy");
+        copy.startCopy(blob);
+        assertEquals(CopyStatus.PENDING, copy.getCopyState().getStatus());
+        copy.downloadAttributes();
+        assertEquals(CopyStatus.SUCCESS, copy.getCopyState().getStatus());
+        assertEquals(3000, copy.getProperties().getLength());
+    }
+
+    @Test
+    public void testListingWithDelimiterAndMarkers() throws Exception {
+        final CloudBlobContainer container = account.createCloudBlobClient().getContainerReference("container");
+        container.create();
+        for(String name : new String[] {"a/1", "a/2", "b", "c/1", "d"})
+            container.getBlockBlobReference(name).uploadText(name);
+
+        final List<String> names = new ArrayList<>();
+        ResultContinuation token = null;
+        int pages = 0;
+        do {
+            final ResultSegment<ListBlobItem> segment = container.listBlobsSegmented("", false, EnumSet.noneOf(BlobListingDetails.class), 2, token, null, null);
+            for(ListBlobItem item : segment.getResults())
+                names.add(item instanceof CloudBlobDirectory ? ((CloudBlobDirectory) item).getPrefix() : ((CloudBlob) item).getName());
+            token = segment.getContinuationToken();
+            pages++;
+        } while(token != null);
+
+        assertEquals(Arrays.asList("a/", "b", "c/", "d"), names);
+        assertEquals(2, pages);
+
+        int flat = 0;
+        for(ListBlobItem item : container.listBlobs("a/", true)) {
+            assertTrue(((CloudBlob) item).getName().startsWith("a/"));
+            flat++;
+        }
+        assertEquals(2, flat);
+    }
+
+    @Test
+    public void testBatchAndQueryContinuation() throws Exception {
+        final CloudTable table = account.createCloudTableClient().getTableReference("table");
+        table.create();
+
+        final TableBatchOperation batch = new TableBatchOperation();
+        for(int i = 0; i < 10; i++) {
+            final DynamicTableEntity entity = new DynamicTableEntity("p", String.format("r%02d", i));
+            entity.getProperties().put("Count", new EntityProperty((long) i));
+            batch.insert(entity);
+        }
+        table.execute(batch);
+
+        final TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class)
+                .where(TableQuery.generateFilterCondition("Count", TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, 3L))
+                .take(3);
+        final List<String> rows = new ArrayList<>();
+        ResultContinuation token = null;
+        int pages = 0;
+        do {
+            final ResultSegment<DynamicTableEntity> segment = table.executeSegmented(query, token);
+            for(DynamicTableEntity entity : segment.getResults())
+                rows.add(entity.getRowKey());
+            token = segment.getContinuationToken();
+            pages++;
+        } while(token != null);
+
+        assertEquals(Arrays.asList("r03", "r04", "r05", "r06", "r07", "r08", "r09"), rows);
+        assertTrue(pages >= 3);
+
+        final TableBatchOperation conflicting = new TableBatchOperation();
+        conflicting.insert(new DynamicTableEntity("p", "r10"));
+        conflicting.insert(new DynamicTableEntity("p", "r00"));
+        try {
+            table.execute(conflicting);
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(409, e.getHttpStatusCode());
+        }
+        assertNull(table.execute(TableOperation.retrieve("p", "r10", DynamicTableEntity.class)).getResultAsType());
+    }
+
+    @Test
+    public void testFaultInjection() throws Exception {
+        final CloudBlobClient blobClient = account.createCloudBlobClient();
+        blobClient.getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
+        final CloudBlobContainer container = blobClient.getContainerReference("container");
+        container.create();
+
+        final Fault fault = Fault.serverBusy().forService(FakeStorageServer.Service.BLOB).forMethod("PUT").times(2);
+        server.withFault(fault);
+        final CloudBlockBlob blob = container.getBlockBlobReference("blob");
+        for(int i = 0; i < 2; i++) {
+            try {
+                blob.uploadText("text");
+                fail("Expected StorageException not thrown!");
+            } catch (StorageException e) {
+                assertEquals(503, e.getHttpStatusCode());
+                assertEquals("ServerBusy", e.getErrorCode());
+            }
+        }
+        assertEquals(0, fault.getRemaining());
+        blob.uploadText("text");
+        assertEquals("text", blob.downloadText());
+
+        // Other services are not affected.
+        final CloudQueue queue = account.createCloudQueueClient().getQueueReference("queue");
+        server.withFault(Fault.timeout().forService(FakeStorageServer.Service.TABLE));
+        queue.create();
+        queue.addMessage(new CloudQueueMessage("message"));
+        assertEquals("message", queue.retrieveMessage().getMessageContentAsString());
+
+        server.clearFaults();
+        account.createCloudTableClient().getTableReference("table").create();
+    }
+
+    @Test
+    public void testLatencyAndRequestCount() throws Exception {
+        final CloudQueue queue = account.createCloudQueueClient().getQueueReference("queue");
+        queue.create();
+        final long before = server.getRequestCount(FakeStorageServer.Service.QUEUE);
+
+        server.withLatency(FakeStorageServer.Service.QUEUE, 50, 50);
+        final long start = System.nanoTime();
+        queue.addMessage(new CloudQueueMessage("message"));
+        assertTrue(System.nanoTime() - start >= 50000000L);
+        assertEquals(before + 1, server.getRequestCount(FakeStorageServer.Service.QUEUE));
+        assertEquals(0, server.getRequestCount(FakeStorageServer.Service.BLOB));
+
+        try {
+            server.withLatency(10, 5);
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    private static List<BlockEntry> blockList(List<String> ids) {
+        final List<BlockEntry> blocks = new ArrayList<>();
+        for(String id : ids)
+            blocks.add(new BlockEntry(id));
+        return blocks;
+    }
+}
@@ -0,0 +1,556 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlobType;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends records to an append blob in large blocks instead of one request per record.
+ *
+ * Records are copied into a ring buffer and cut into blocks of whole records, at most
+ * {@link AppendBlobWriterOptions#getBlockSize()} bytes each. A block is appended as soon as the next record does not
+ * fit in it, or once its oldest record waited {@link AppendBlobWriterOptions#getFlushIntervalMillis()}. Blocks are
+ * appended one after the other in write order, each at the position the previous one ended, so a retried block is
+ * never appended twice. Once a blob holds {@link AppendBlobWriterOptions#getRolloverBlockCount()} blocks the writer
+ * moves on to the next blob of the sequence "name", "name.1", "name.2", ...; a record never spans two blobs.
+ * Blocks that could not be appended go to {@link AppendBlobWriterOptions#getErrorHandler()}.
+ *
+ * The writer must be the only one appending to its blobs.
+ *
+ * Thread safe - any number of threads may write. Create through
+ * {@link BlobUtils#createAppendBlobWriter(String, String, AppendBlobWriterOptions)}.
+ */
+public final class AppendBlobWriter implements Closeable
+{
+    private static final String APPEND_POSITION_CONDITION_NOT_MET = "AppendPositionConditionNotMet";
+    private static final String BLOCK_COUNT_EXCEEDS_LIMIT = "BlockCountExceedsLimit";
+
+    private final CloudBlobContainer container;
+    private final String name;
+    private final AppendBlobWriterOptions options;
+    private final TransferOptions retries;
+    private final BlobRequestOptions requestOptions = new BlobRequestOptions();
+    private final ExecutorService sender;
+    private final ScheduledExecutorService timer;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final byte[] ring;
+    /** Positions in the stream of written bytes; the ring holds [head, tail). Guarded by lock. */
+    private long head;
+    private long tail;
+    /** The start of the block still taking records, and when its first record was written. Guarded by lock. */
+    private long openStart;
+    private long openSinceNanos;
+    /** The ends of the blocks ready to be appended, in order. Guarded by lock. */
+    private final ArrayDeque<Long> sealed = new ArrayDeque<>();
+    /** The sender is draining the sealed blocks. Guarded by lock. */
+    private boolean scheduled;
+    private boolean closed;
+
+    /** The blob being appended to and its state; only used by the sender once the writer is open. */
+    private final byte[] block;
+    private CloudAppendBlob blob;
+    private int segment;
+    private long length;
+    private int blockCount;
+    private boolean stale;
+    private volatile String blobName;
+
+    private final long createdNanos = System.nanoTime();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rollovers = new AtomicLong();
+
+    /**
+     * Initializes a writer.
+     * @param container the container of the blobs.
+     * @param name the name of the first blob of the sequence.
+     * @param options the writer options.
+     */
+    private AppendBlobWriter(CloudBlobContainer container, String name, AppendBlobWriterOptions options) {
+        this.container = container;
+        this.name = name;
+        this.options = options;
+        this.retries = TransferOptions.defaults()
+                .withMaxRetries(options.getMaxRetries())
+                .withRetryBackoffMillis(options.getRetryBackoffMillis());
+        // Retried here, so that a retry knows whether an earlier attempt may have been appended.
+        this.requestOptions.setRetryPolicyFactory(new RetryNoRetry());
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getFlushIntervalMillis());
+        this.ring = new byte[Math.max(options.getBufferSize(), options.getBlockSize())];
+        this.block = new byte[options.getBlockSize()];
+
+        final String threads = "append-blob-" + container.getName();
+        this.sender = Executors.newSingleThreadExecutor(new DaemonThreadFactory(threads + "-send"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(threads + "-flush"));
+    }
+
+    /**
+     * Opens a writer on the first blob of the sequence that is not full, creating it if needed.
+     * @param container the container of the blobs.
+     * @param name the name of the first blob of the sequence.
+     * @param options the writer options.
+     * @return the writer.
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    static AppendBlobWriter open(CloudBlobContainer container, String name, AppendBlobWriterOptions options) throws URISyntaxException, StorageException {
+        final AppendBlobWriter writer = new AppendBlobWriter(container, name, options);
+        try {
+            writer.openSegment(0);
+        } catch (StorageException | URISyntaxException | RuntimeException e) {
+            writer.timer.shutdownNow();
+            writer.sender.shutdownNow();
+            throw e;
+        }
+        final long period = Math.max(1, options.getFlushIntervalMillis() / 4);
+        writer.timer.scheduleAtFixedRate(writer::flushExpired, period, period, TimeUnit.MILLISECONDS);
+        return writer;
+    }
+
+    /**
+     * Queues a record, waiting while the buffer is full.
+     * @param record the record.
+     * @throws InterruptedException
+     */
+    public void write(byte[] record) throws InterruptedException {
+        write(record, 0, record.length);
+    }
+
+    /**
+     * Queues a record encoded as UTF-8. Line separators are not added.
+     * @param record the record.
+     * @throws InterruptedException
+     */
+    public void write(String record) throws InterruptedException {
+        write(record.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a record, waiting while the buffer is full. The bytes are copied before this method returns.
+     * @param record the array holding the record.
+     * @param offset the offset of the record in the array.
+     * @param length the length of the record, at most {@link AppendBlobWriterOptions#getBlockSize()}.
+     * @throws InterruptedException
+     */
+    public void write(byte[] record, int offset, int length) throws InterruptedException {
+        if(offset < 0 || length < 0 || offset + length > record.length)
+            throw new IndexOutOfBoundsException();
+        if(length > block.length)
+            throw new IllegalArgumentException("Record of " + length + " bytes is larger than the block size " + block.length);
+        if(length == 0)
+            return;
+
+        lock.lockInterruptibly();
+        try {
+            while(tail - head + length > ring.length && !closed)
+                notFull.await();
+            if(closed)
+                throw new IllegalStateException("Writer closed");
+
+            if(tail - openStart + length > block.length)
+                seal();
+            if(tail == openStart)
+                openSinceNanos = System.nanoTime();
+
+            final int index = (int) (tail % ring.length);
+            final int first = Math.min(length, ring.length - index);
+            System.arraycopy(record, offset, ring, index, first);
+            System.arraycopy(record, offset + first, ring, 0, length - first);
+            tail += length;
+            records.incrementAndGet();
+
+            if(tail - openStart == block.length)
+                seal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends every queued record, partial blocks included, and waits until they completed.
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if(tail > openStart)
+                seal();
+            final long target = tail;
+            while(head < target)
+                drained.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the queued records and releases the writer threads. Further writes throw.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdownNow();
+            sender.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the name of the blob being appended to.
+     */
+    public String getBlobName() {
+        return blobName;
+    }
+
+    /**
+     * @return the number of bytes written but not appended yet.
+     */
+    public long getPendingBytes() {
+        lock.lock();
+        try {
+            return tail - head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the writer counters.
+     */
+    public Stats getStats() {
+        return new Stats(records.get(), written.get(), failed.get(), blocks.get(), requests.get(), rollovers.get(),
+                System.nanoTime() - createdNanos);
+    }
+
+    /**
+     * Ends the open block and hands it to the sender. Requires lock.
+     */
+    private void seal() {
+        sealed.add(tail);
+        openStart = tail;
+        if(!scheduled) {
+            scheduled = true;
+            sender.execute(this::drain);
+        }
+    }
+
+    private void flushExpired() {
+        lock.lock();
+        try {
+            if(tail > openStart && System.nanoTime() - openSinceNanos >= flushIntervalNanos)
+                seal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the sealed blocks until there are none left.
+     */
+    private void drain() {
+        boolean done = false;
+        try {
+            while(true) {
+                final long start;
+                final long end;
+                lock.lock();
+                try {
+                    final Long next = sealed.peek();
+                    if(next == null) {
+                        scheduled = false;
+                        done = true;
+                        return;
+                    }
+                    start = head;
+                    end = next;
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    // Writers never touch [head, tail), so the block can be copied without the lock.
+                    final int size = (int) (end - start);
+                    final int index = (int) (start % ring.length);
+                    final int first = Math.min(size, ring.length - index);
+                    System.arraycopy(ring, index, block, 0, first);
+                    System.arraycopy(ring, 0, block, first, size - first);
+                    send(size);
+                } finally {
+                    // Done with even if appending ended abnormally, so that writers and flush never wait for it.
+                    lock.lock();
+                    try {
+                        sealed.poll();
+                        head = end;
+                        notFull.signalAll();
+                        drained.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            if(!done)
+                release();
+        }
+    }
+
+    /**
+     * Gives up draining after the sender ended abnormally, handing the blocks left to a new run.
+     */
+    private void release() {
+        lock.lock();
+        try {
+            scheduled = false;
+            if(!sealed.isEmpty()) {
+                scheduled = true;
+                try {
+                    sender.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    scheduled = false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the first bytes of the block buffer, rolling over first if the blob is full. Failures go to the
+     * error handler.
+     */
+    private void send(int size) {
+        try {
+            if(stale)
+                refresh();
+            if(blockCount >= options.getRolloverBlockCount())
+                rollover();
+            try {
+                append(size);
+            } catch (StorageException e) {
+                if(!BLOCK_COUNT_EXCEEDS_LIMIT.equals(e.getErrorCode()))
+                    throw e;
+                rollover();
+                append(size);
+            }
+            blocks.incrementAndGet();
+            written.addAndGet(size);
+        } catch (StorageException | URISyntaxException | IOException | RuntimeException e) {
+            if(e instanceof InterruptedIOException)
+                Thread.currentThread().interrupt();
+            // The append may or may not have happened; read the blob state before the next one.
+            stale = true;
+            failed.addAndGet(size);
+            try {
+                options.getErrorHandler().accept(Arrays.copyOf(block, size), e);
+            } catch (RuntimeException ignored) {
+                // A failing handler must not stall the writer.
+            }
+        }
+    }
+
+    /**
+     * Appends the first bytes of the block buffer at the current end of the blob, retrying on server errors.
+     */
+    private void append(int size) throws StorageException, IOException {
+        final long position = length;
+        final boolean[] attempted = {false};
+        ParallelTransfer.retry(retries, () -> {
+            final AccessCondition condition = new AccessCondition();
+            condition.setIfAppendPositionEqual(position);
+            requests.incrementAndGet();
+            try {
+                blob.appendBlock(new ByteArrayInputStream(block, 0, size), size, condition, requestOptions, null);
+            } catch (StorageException e) {
+                // An earlier attempt that timed out may have been appended after all.
+                if(!attempted[0] || !APPEND_POSITION_CONDITION_NOT_MET.equals(e.getErrorCode()))
+                    throw e;
+                requests.incrementAndGet();
+                blob.downloadAttributes(null, requestOptions, null);
+                if(blob.getProperties().getLength() != position + size)
+                    throw e;
+            } finally {
+                attempted[0] = true;
+            }
+            return null;
+        });
+        length = position + size;
+        blockCount++;
+    }
+
+    private void rollover() throws StorageException, URISyntaxException {
+        openSegment(segment + 1);
+        rollovers.incrementAndGet();
+    }
+
+    /**
+     * Reads the length and block count of the current blob again, e.g. after a failed append.
+     */
+    private void refresh() throws StorageException {
+        requests.incrementAndGet();
+        blob.downloadAttributes(null, requestOptions, null);
+        length = blob.getProperties().getLength();
+        blockCount = committedBlockCount(blob);
+        stale = false;
+    }
+
+    /**
+     * Switches to the first blob of the sequence, from a given one on, that is not full, creating it if needed.
+     * @param from the index of the first blob to try.
+     */
+    private void openSegment(int from) throws StorageException, URISyntaxException {
+        for(int next = from; ; next++) {
+            final CloudAppendBlob candidate = container.getAppendBlobReference(segmentName(next));
+            try {
+                requests.incrementAndGet();
+                candidate.createOrReplace(AccessCondition.generateIfNotExistsCondition(), null, null);
+                use(candidate, next, 0, 0);
+                return;
+            } catch (StorageException e) {
+                if(e.getHttpStatusCode() != HttpURLConnection.HTTP_CONFLICT)
+                    throw e;
+            }
+
+            requests.incrementAndGet();
+            candidate.downloadAttributes();
+            if(candidate.getProperties().getBlobType() != BlobType.APPEND_BLOB)
+                throw new StorageException("InvalidBlobType", "Blob " + candidate.getName() + " is not an append blob", null);
+            final int count = committedBlockCount(candidate);
+            if(count < options.getRolloverBlockCount()) {
+                use(candidate, next, candidate.getProperties().getLength(), count);
+                return;
+            }
+        }
+    }
+
+    private void use(CloudAppendBlob blob, int segment, long length, int blockCount) {
+        this.blob = blob;
+        this.segment = segment;
+        this.length = length;
+        this.blockCount = blockCount;
+        this.stale = false;
+        this.blobName = blob.getName();
+    }
+
+    /**
+     * @param segment the index of a blob of the sequence.
+     * @return its name: the name of the writer for the first blob, followed by ".index" for the others.
+     */
+    private String segmentName(int segment) {
+        return segment == 0 ? name : name + "." + segment;
+    }
+
+    private static int committedBlockCount(CloudAppendBlob blob) {
+        final Integer count = blob.getProperties().getAppendBlobCommittedBlockCount();
+        return count != null ? count : 0;
+    }
+
+    /**
+     * A snapshot of the counters of a writer.
+     */
+    public static final class Stats
+    {
+        private final long records;
+        private final long written;
+        private final long failed;
+        private final long blocks;
+        private final long requests;
+        private final long rollovers;
+        private final long elapsedNanos;
+
+        public Stats(long records, long written, long failed, long blocks, long requests, long rollovers, long elapsedNanos) {
+            this.records = records;
+            this.written = written;
+            this.failed = failed;
+            this.blocks = blocks;
+            this.requests = requests;
+            this.rollovers = rollovers;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** @return the number of records written to the writer. */
+        public long getRecords() {
+            return records;
+        }
+
+        /** @return the number of bytes appended. */
+        public long getWritten() {
+            return written;
+        }
+
+        /** @return the number of bytes reported to the error handler. */
+        public long getFailed() {
+            return failed;
+        }
+
+        /** @return the number of blocks appended. */
+        public long getBlocks() {
+            return blocks;
+        }
+
+        /** @return the number of requests sent, retries and blob creations included. */
+        public long getRequests() {
+            return requests;
+        }
+
+        /** @return the number of times the writer moved on to the next blob. */
+        public long getRollovers() {
+            return rollovers;
+        }
+
+        /** @return the mean number of bytes per appended block. */
+        public double getMeanBlockSize() {
+            return blocks == 0 ? 0 : (double) written / blocks;
+        }
+
+        /** @return bytes appended per second since the writer was created. */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : written * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{records=" + records + ", written=" + written + ", failed=" + failed + ", blocks=" + blocks
+                    + ", requests=" + requests + ", rollovers=" + rollovers + ", meanBlockSize=" + getMeanBlockSize()
+                    + ", throughput=" + getThroughput() + "}";
+        }
+    }
+}
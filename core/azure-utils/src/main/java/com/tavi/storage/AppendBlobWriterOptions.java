@@ -0,0 +1,169 @@
+package com.tavi.storage;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Options for an {@link AppendBlobWriter}.
+ *
+ * Not thread safe - configure before creating the writer.
+ */
+public class AppendBlobWriterOptions
+{
+    /** The largest append block accepted by the service: 4 MB. */
+    public static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /** The most blocks an append blob can have. */
+    public static final int MAX_BLOCKS = 50000;
+
+    private int blockSize = MAX_BLOCK_SIZE;
+    private int bufferSize = 4 * MAX_BLOCK_SIZE;
+    private long flushIntervalMillis = 1000;
+    private int rolloverBlockCount = MAX_BLOCKS - 1000;
+    private int maxRetries = TransferOptions.DEFAULT_MAX_RETRIES;
+    private long retryBackoffMillis = TransferOptions.DEFAULT_RETRY_BACKOFF_MILLIS;
+    private BiConsumer<byte[], Exception> errorHandler = (records, error) -> {};
+
+    /**
+     * @return a new AppendBlobWriterOptions with default values.
+     */
+    public static AppendBlobWriterOptions defaults() {
+        return new AppendBlobWriterOptions();
+    }
+
+    /**
+     * @return the most bytes appended in one block.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the most bytes appended in one block, which is also the largest record that can be written. A block is
+     * appended as soon as the next record does not fit in it.
+     * @param blockSize between 1 and {@link #MAX_BLOCK_SIZE}.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withBlockSize(int blockSize) {
+        if(blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("blockSize must be between 1 and " + MAX_BLOCK_SIZE);
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * @return the size of the buffer holding the records written but not appended yet, in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size of the buffer holding the records written but not appended yet. Writes block while the buffer
+     * is full. A buffer smaller than {@link #getBlockSize()} is grown to the block size.
+     * @param bufferSize the size in bytes, at least 1.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withBufferSize(int bufferSize) {
+        if(bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * @return the longest a record waits for its block to fill up, in milliseconds.
+     */
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    /**
+     * Sets the longest a record waits for its block to fill up before the partial block is appended.
+     * @param flushIntervalMillis the interval in milliseconds, at least 1.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withFlushIntervalMillis(long flushIntervalMillis) {
+        if(flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("flushIntervalMillis must be positive");
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of blocks after which the writer moves on to the next blob.
+     */
+    public int getRolloverBlockCount() {
+        return rolloverBlockCount;
+    }
+
+    /**
+     * Sets the number of blocks after which the writer moves on to the next blob. Rolling over before
+     * {@link #MAX_BLOCKS} leaves room for blocks appended by other tools, e.g. a final marker.
+     * @param rolloverBlockCount between 1 and {@link #MAX_BLOCKS}.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withRolloverBlockCount(int rolloverBlockCount) {
+        if(rolloverBlockCount <= 0 || rolloverBlockCount > MAX_BLOCKS)
+            throw new IllegalArgumentException("rolloverBlockCount must be between 1 and " + MAX_BLOCKS);
+        this.rolloverBlockCount = rolloverBlockCount;
+        return this;
+    }
+
+    /**
+     * @return the number of times a block failing with a server error or timeout is retried.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a block failing with a server error or timeout is retried.
+     * @param maxRetries the number of retries, 0 to disable.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withMaxRetries(int maxRetries) {
+        if(maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @return the delay before the first retry of a block, in milliseconds.
+     */
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    /**
+     * Sets the delay before the first retry of a block. The delay doubles with every retry.
+     * @param retryBackoffMillis the delay in milliseconds.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withRetryBackoffMillis(long retryBackoffMillis) {
+        if(retryBackoffMillis < 0)
+            throw new IllegalArgumentException("retryBackoffMillis must not be negative");
+        this.retryBackoffMillis = retryBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return the callback receiving every block that could not be appended.
+     */
+    public BiConsumer<byte[], Exception> getErrorHandler() {
+        return errorHandler;
+    }
+
+    /**
+     * Sets the callback receiving the records of every block that could not be appended, concatenated in write
+     * order, with the reason. Called from the writer thread; must not block. Exceptions it throws are ignored.
+     * @param errorHandler the callback.
+     * @return this instance.
+     */
+    public AppendBlobWriterOptions withErrorHandler(BiConsumer<byte[], Exception> errorHandler) {
+        if(errorHandler == null)
+            throw new IllegalArgumentException("errorHandler must not be null");
+        this.errorHandler = errorHandler;
+        return this;
+    }
+}
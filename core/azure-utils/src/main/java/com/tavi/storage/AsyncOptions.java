@@ -0,0 +1,62 @@
+package com.tavi.storage;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Options for the asynchronous methods of the utils classes.
+ *
+ * Not thread safe - configure before handing to a utils instance.
+ */
+public class AsyncOptions
+{
+    /** Default number of asynchronous operations running at the same time. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private Executor executor;
+
+    /**
+     * @return a new AsyncOptions with default values.
+     */
+    public static AsyncOptions defaults() {
+        return new AsyncOptions();
+    }
+
+    /**
+     * @return the most asynchronous operations running at the same time.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the most asynchronous operations running at the same time. Once reached, starting another operation
+     * blocks the caller until one completes.
+     * @param maxInFlight the limit, at least 1.
+     * @return this instance.
+     */
+    public AsyncOptions withMaxInFlight(int maxInFlight) {
+        if(maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @return the executor operations run on, or null to use the default one.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor operations run on. The default executor starts a virtual thread per operation on JDKs that
+     * have them and uses a shared pool of daemon threads otherwise. The executor is never shut down by the utils.
+     * @param executor the executor, or null to use the default one.
+     * @return this instance.
+     */
+    public AsyncOptions withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+}
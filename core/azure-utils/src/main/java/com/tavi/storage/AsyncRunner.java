@@ -0,0 +1,121 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs blocking operations on an executor and completes futures with their outcome, with at most
+ * {@link AsyncOptions#getMaxInFlight()} operations running at the same time.
+ *
+ * Thread safe.
+ */
+final class AsyncRunner
+{
+    /**
+     * A blocking operation.
+     * @param <T> the result type.
+     */
+    interface Call<T>
+    {
+        T call() throws Exception;
+    }
+
+    /** The runner of utils instances without options of their own, so the in-flight limit is process-wide. */
+    private static final class Shared
+    {
+        private static final AsyncRunner INSTANCE = new AsyncRunner(AsyncOptions.defaults());
+    }
+
+    private static final class DefaultExecutor
+    {
+        private static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                // Java 21+; looked up reflectively to keep compiling for Java 8.
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(new DaemonThreadFactory("storage-async"));
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+
+    /**
+     * @param options the executor and in-flight limit.
+     */
+    AsyncRunner(AsyncOptions options) {
+        this.executor = options.getExecutor() != null ? options.getExecutor() : DefaultExecutor.INSTANCE;
+        this.maxInFlight = options.getMaxInFlight();
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * @return the runner shared by every utils instance without options of its own.
+     */
+    static AsyncRunner shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Starts an operation, first waiting for a free slot if the maximum number of operations is already in flight.
+     * @param call the operation.
+     * @param <T> the result type.
+     * @return a future completed with the result, or exceptionally with whatever the operation threw.
+     */
+    <T> CompletableFuture<T> submit(final Call<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new StorageException("OperationInterrupted", "Interrupted while waiting for a free slot", e));
+            return future;
+        }
+
+        try {
+            executor.execute(() -> {
+                T result = null;
+                Throwable failure = null;
+                try {
+                    result = call.call();
+                } catch (Throwable t) {
+                    failure = t;
+                }
+                // Release first: dependent stages run on this thread and may start operations of their own.
+                permits.release();
+                if(failure != null) {
+                    future.completeExceptionally(failure);
+                } else {
+                    future.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the executor the operations run on, for work bounded by its own limit, e.g. bulk sends.
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the number of operations running or waiting for a thread.
+     */
+    int getInFlightCount() {
+        return maxInFlight - permits.availablePermits();
+    }
+}
@@ -0,0 +1,56 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.CloudBlob;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The properties and metadata of a blob, as returned together by a single service request.
+ *
+ * Immutable apart from the SDK properties object, which callers must not change.
+ */
+public final class BlobAttributes
+{
+    private final BlobProperties properties;
+    private final Map<String, String> metadata;
+
+    /**
+     * @param blob a blob reference whose attributes were fetched from the service.
+     */
+    BlobAttributes(CloudBlob blob) {
+        this.properties = blob.getProperties();
+        this.metadata = blob.getMetadata() != null ? Collections.unmodifiableMap(new HashMap<>(blob.getMetadata()))
+                : Collections.<String, String>emptyMap();
+    }
+
+    /**
+     * @return the properties of the blob.
+     */
+    public BlobProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return the metadata of the blob, unmodifiable.
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return the ETag of the version the attributes belong to.
+     */
+    public String getEtag() {
+        return properties.getEtag();
+    }
+
+    /**
+     * @return the length of the blob, in bytes.
+     */
+    public long getLength() {
+        return properties.getLength();
+    }
+}
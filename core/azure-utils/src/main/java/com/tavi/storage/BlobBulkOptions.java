@@ -0,0 +1,123 @@
+package com.tavi.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for bulk deletes and copies of the blobs below a prefix.
+ *
+ * Not thread safe - configure before starting the operation.
+ */
+public class BlobBulkOptions
+{
+    private int parallelism = 16;
+    private int maxPendingCopies = 1000;
+    private long pollIntervalMillis = 500;
+    private int maxReportedFailures = 100;
+    private BlobListOptions listOptions = BlobListOptions.defaults();
+
+    /**
+     * @return a new BlobBulkOptions with default values.
+     */
+    public static BlobBulkOptions defaults() {
+        return new BlobBulkOptions();
+    }
+
+    /**
+     * @return the most delete or copy requests in flight at the same time.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the most delete or copy requests in flight at the same time, which is also the number of worker threads.
+     * @param parallelism the parallelism, at least 1.
+     * @return this instance.
+     */
+    public BlobBulkOptions withParallelism(int parallelism) {
+        if(parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return the most copies started but not yet finished by the service.
+     */
+    public int getMaxPendingCopies() {
+        return maxPendingCopies;
+    }
+
+    /**
+     * Sets the most copies started but not yet finished by the service. Pending copies do not hold a worker; new
+     * copies wait while this many are pending.
+     * @param maxPendingCopies the number of copies, at least 1.
+     * @return this instance.
+     */
+    public BlobBulkOptions withMaxPendingCopies(int maxPendingCopies) {
+        if(maxPendingCopies <= 0)
+            throw new IllegalArgumentException("maxPendingCopies must be positive");
+        this.maxPendingCopies = maxPendingCopies;
+        return this;
+    }
+
+    /**
+     * @return how often the status of a pending copy is checked, in milliseconds.
+     */
+    public long getPollIntervalMillis() {
+        return pollIntervalMillis;
+    }
+
+    /**
+     * Sets how often the status of a pending copy is checked.
+     * @param pollInterval the interval, positive.
+     * @param unit the unit of pollInterval.
+     * @return this instance.
+     */
+    public BlobBulkOptions withPollInterval(long pollInterval, TimeUnit unit) {
+        if(pollInterval <= 0)
+            throw new IllegalArgumentException("pollInterval must be positive");
+        this.pollIntervalMillis = Math.max(1, unit.toMillis(pollInterval));
+        return this;
+    }
+
+    /**
+     * @return the most failures reported individually.
+     */
+    public int getMaxReportedFailures() {
+        return maxReportedFailures;
+    }
+
+    /**
+     * Sets the most failures reported individually by {@link BlobBulkResult#getFailures()}. Further failures are
+     * only counted.
+     * @param maxReportedFailures the number of failures, 0 to only count them.
+     * @return this instance.
+     */
+    public BlobBulkOptions withMaxReportedFailures(int maxReportedFailures) {
+        if(maxReportedFailures < 0)
+            throw new IllegalArgumentException("maxReportedFailures must not be negative");
+        this.maxReportedFailures = maxReportedFailures;
+        return this;
+    }
+
+    /**
+     * @return the options of the listing that finds the blobs.
+     */
+    public BlobListOptions getListOptions() {
+        return listOptions;
+    }
+
+    /**
+     * Sets the options of the listing that finds the blobs, e.g. its parallelism or a checkpoint to resume an
+     * interrupted operation from.
+     * @param listOptions the listing options.
+     * @return this instance.
+     */
+    public BlobBulkOptions withListOptions(BlobListOptions listOptions) {
+        if(listOptions == null)
+            throw new IllegalArgumentException("listOptions must not be null");
+        this.listOptions = listOptions;
+        return this;
+    }
+}
@@ -0,0 +1,46 @@
+package com.tavi.storage;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk delete or copy: how many blobs succeeded and failed, and why the first failures failed.
+ */
+public final class BlobBulkResult
+{
+    private final long succeeded;
+    private final long failed;
+    private final Map<String, Exception> failures;
+
+    public BlobBulkResult(long succeeded, long failed, Map<String, Exception> failures) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the number of blobs deleted or copied.
+     */
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return the number of blobs that could not be deleted or copied.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the first failures, by blob name, up to {@link BlobBulkOptions#getMaxReportedFailures()}.
+     */
+    public Map<String, Exception> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "BlobBulkResult{succeeded=" + succeeded + ", failed=" + failed + ", failures=" + failures.keySet() + "}";
+    }
+}
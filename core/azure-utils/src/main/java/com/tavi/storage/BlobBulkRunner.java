@@ -0,0 +1,176 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CopyState;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.tavi.storage.exceptions.UncheckedStorageException;
+
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Applies an operation to every blob of a listing on a bounded pool of workers, at most
+ * {@link BlobBulkOptions#getParallelism()} requests at a time. Copies the service has not finished are handed to a
+ * small pool of pollers, so they do not hold a worker. Failures of single blobs are recorded and do not stop the
+ * run; a failure of the listing does.
+ *
+ * Single use - every run creates a runner and pools of its own.
+ */
+final class BlobBulkRunner
+{
+    private static final ThreadFactory WORKERS = new DaemonThreadFactory("blob-bulk");
+    private static final ThreadFactory POLLERS = new DaemonThreadFactory("blob-bulk-poll");
+
+    /**
+     * Deletes or copies one blob.
+     */
+    interface Operation
+    {
+        /**
+         * @param blob the listed blob.
+         * @param requestOptions the options to send the request with; null for the defaults of the client.
+         * @return the target of a copy the service has not finished yet, or null if the blob is done.
+         */
+        CloudBlob apply(CloudBlob blob, BlobRequestOptions requestOptions) throws StorageException, URISyntaxException;
+    }
+
+    private final BlobBulkOptions options;
+    private final StorageThrottle throttle;
+
+    /** Held by every blob between its listing and the end of its request. */
+    private final Semaphore running;
+    /** Held by every copy until the service finished it; only used by copies. */
+    private final Semaphore pending;
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    /** Guarded by itself. */
+    private final Map<String, Exception> failures = new LinkedHashMap<>();
+
+    /**
+     * @param options the bulk options.
+     * @param throttle the throttle requests go through; may be null.
+     */
+    BlobBulkRunner(BlobBulkOptions options, StorageThrottle throttle) {
+        this.options = options;
+        this.throttle = throttle;
+        this.running = new Semaphore(options.getParallelism());
+        this.pending = new Semaphore(options.getMaxPendingCopies());
+    }
+
+    /**
+     * Applies an operation to every listed blob and waits until every blob is done.
+     * @param blobs the listing; closed when done.
+     * @param operation the operation.
+     * @param copies true if the operation starts copies, whose number pending is bounded.
+     * @return the aggregated result.
+     * @throws StorageException if the listing failed or the run was interrupted.
+     */
+    BlobBulkResult run(Stream<ListBlobItem> blobs, Operation operation, boolean copies) throws StorageException {
+        final ExecutorService workers = Executors.newFixedThreadPool(options.getParallelism(), WORKERS);
+        final ScheduledExecutorService pollers = Executors.newScheduledThreadPool(Math.max(1, options.getParallelism() / 4), POLLERS);
+        try (Stream<ListBlobItem> listing = blobs) {
+            final Iterator<ListBlobItem> iterator = listing.iterator();
+            while(iterator.hasNext()) {
+                final CloudBlob blob = (CloudBlob) iterator.next();
+                running.acquire();
+                workers.execute(() -> {
+                    try {
+                        if(copies)
+                            pending.acquire();
+                        apply(blob, operation, copies, pollers);
+                    } catch (InterruptedException e) {
+                        fail(blob, e);
+                    } finally {
+                        running.release();
+                    }
+                });
+            }
+            running.acquire(options.getParallelism());
+            pending.acquire(options.getMaxPendingCopies());
+        } catch (UncheckedStorageException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while waiting for the bulk operation", e);
+        } finally {
+            workers.shutdownNow();
+            pollers.shutdownNow();
+        }
+
+        synchronized (failures) {
+            return new BlobBulkResult(succeeded.get(), failed.get(), new LinkedHashMap<>(failures));
+        }
+    }
+
+    private void apply(CloudBlob blob, Operation operation, boolean copies, ScheduledExecutorService pollers) {
+        boolean done = true;
+        try {
+            final CloudBlob target = StorageThrottle.call(throttle, BlobRequestOptions::new, requestOptions -> operation.apply(blob, requestOptions));
+            if(target == null) {
+                succeeded.incrementAndGet();
+            } else {
+                done = false;
+                schedulePoll(blob, target, pollers);
+            }
+        } catch (StorageException | URISyntaxException | RuntimeException e) {
+            fail(blob, e);
+        } finally {
+            if(copies && done)
+                pending.release();
+        }
+    }
+
+    private void schedulePoll(CloudBlob blob, CloudBlob target, ScheduledExecutorService pollers) {
+        pollers.schedule(() -> poll(blob, target, pollers), options.getPollIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks a pending copy, scheduling the next check until the service finished it.
+     */
+    private void poll(CloudBlob blob, CloudBlob target, ScheduledExecutorService pollers) {
+        boolean done = true;
+        try {
+            StorageThrottle.call(throttle, BlobRequestOptions::new, requestOptions -> {
+                target.downloadAttributes(null, requestOptions, null);
+                return null;
+            });
+            final CopyState state = target.getCopyState();
+            if(state == null || state.getStatus() == CopyStatus.SUCCESS) {
+                succeeded.incrementAndGet();
+            } else if(state.getStatus() == CopyStatus.PENDING) {
+                done = false;
+                schedulePoll(blob, target, pollers);
+            } else {
+                fail(blob, new StorageException("Copy" + state.getStatus(), "Copy to " + target.getName() + " ended with status "
+                        + state.getStatus() + ": " + state.getStatusDescription(), null));
+            }
+        } catch (StorageException | RuntimeException e) {
+            fail(blob, e);
+        } finally {
+            if(done)
+                pending.release();
+        }
+    }
+
+    private void fail(CloudBlob blob, Exception e) {
+        failed.incrementAndGet();
+        synchronized (failures) {
+            if(failures.size() < options.getMaxReportedFailures())
+                failures.put(blob.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.tavi.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of blob contents, keyed by container name and blob name joined with '/'. Every entry keeps the
+ * ETag it was downloaded with, so a stale entry costs a conditional request answered with 304 Not Modified instead
+ * of a download. The memory tier is bounded by a byte budget and evicts the least recently used blobs, optionally
+ * into a disk tier with its own budget.
+ *
+ * Thread safe. The disk tier is best effort: files that cannot be written or read are treated as misses.
+ */
+public final class BlobCache
+{
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long freshnessNanos;
+
+    /** The memory tier, in access order. Guarded by itself. */
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    /** Null without a disk tier. */
+    private final DiskTier disk;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+
+    /**
+     * Initializes a cache.
+     * @param options the budgets, freshness and disk tier.
+     */
+    public BlobCache(BlobCacheOptions options) {
+        this.maxBytes = options.getMaxBytes();
+        this.maxEntryBytes = options.getMaxEntryBytes();
+        this.freshnessNanos = options.getFreshnessNanos();
+        this.disk = options.getDiskDirectory() != null ? new DiskTier(options.getDiskDirectory(), options.getMaxDiskBytes()) : null;
+    }
+
+    /**
+     * A cached blob.
+     */
+    static final class Entry
+    {
+        final String key;
+        final String etag;
+        final byte[] data;
+        /** When the service last confirmed the ETag, in System.nanoTime() terms. */
+        volatile long validatedNanos;
+
+        Entry(String key, String etag, byte[] data, long validatedNanos) {
+            this.key = key;
+            this.etag = etag;
+            this.data = data;
+            this.validatedNanos = validatedNanos;
+        }
+    }
+
+    /**
+     * Looks up a blob in memory, then on disk. A blob found on disk moves back to memory.
+     * @param key the blob key.
+     * @return the entry, or null on a miss.
+     */
+    Entry get(String key) {
+        Entry entry;
+        synchronized (memory) {
+            entry = memory.get(key);
+        }
+        if(entry == null && disk != null) {
+            entry = disk.take(key);
+            if(entry != null) {
+                diskHits.incrementAndGet();
+                store(entry);
+            }
+        }
+        if(entry == null)
+            misses.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * @param entry a cached blob.
+     * @return true if the blob may be served without asking the service.
+     */
+    boolean isFresh(Entry entry) {
+        if(freshnessNanos > 0 && System.nanoTime() - entry.validatedNanos < freshnessNanos) {
+            hits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that the service confirmed a cached blob is unchanged.
+     * @param entry the cached blob.
+     */
+    void revalidated(Entry entry) {
+        entry.validatedNanos = System.nanoTime();
+        notModified.incrementAndGet();
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Caches a downloaded blob, replacing any previous version. Blobs over the entry size limit are not cached.
+     * @param key the blob key.
+     * @param etag the ETag the blob was downloaded with.
+     * @param data the content.
+     */
+    void put(String key, String etag, byte[] data) {
+        if(etag == null || data.length > maxEntryBytes) {
+            invalidate(key);
+            return;
+        }
+        store(new Entry(key, etag, data, System.nanoTime()));
+    }
+
+    private void store(Entry entry) {
+        final List<Entry> evicted = new ArrayList<>();
+        synchronized (memory) {
+            final Entry previous = memory.put(entry.key, entry);
+            if(previous != null)
+                memoryBytes -= previous.data.length;
+            memoryBytes += entry.data.length;
+
+            final Iterator<Entry> eldest = memory.values().iterator();
+            while(memoryBytes > maxBytes && eldest.hasNext()) {
+                final Entry victim = eldest.next();
+                eldest.remove();
+                memoryBytes -= victim.data.length;
+                evicted.add(victim);
+            }
+        }
+        evictions.addAndGet(evicted.size());
+        if(disk != null) {
+            for(Entry victim : evicted)
+                disk.put(victim);
+        }
+    }
+
+    /**
+     * Removes a blob from both tiers.
+     * @param key the blob key.
+     */
+    public void invalidate(String key) {
+        synchronized (memory) {
+            final Entry removed = memory.remove(key);
+            if(removed != null)
+                memoryBytes -= removed.data.length;
+        }
+        if(disk != null)
+            disk.take(key);
+    }
+
+    /**
+     * Removes every blob from both tiers.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        if(disk != null)
+            disk.clear();
+    }
+
+    /**
+     * @return a snapshot of the cache counters.
+     */
+    public Stats getStats() {
+        final int size;
+        final long bytes;
+        synchronized (memory) {
+            size = memory.size();
+            bytes = memoryBytes;
+        }
+        return new Stats(hits.get(), notModified.get(), misses.get(), evictions.get(), diskHits.get(), size, bytes,
+                disk != null ? disk.getBytes() : 0);
+    }
+
+    /**
+     * Files of evicted blobs, in access order.
+     */
+    private static final class DiskTier
+    {
+        private final Path directory;
+        private final long maxBytes;
+        private final AtomicLong files = new AtomicLong();
+
+        /** Guarded by itself. */
+        private final LinkedHashMap<String, DiskEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        DiskTier(Path directory, long maxBytes) {
+            this.directory = directory;
+            this.maxBytes = maxBytes;
+        }
+
+        void put(Entry entry) {
+            if(entry.data.length > maxBytes)
+                return;
+            final Path file = directory.resolve("blob-" + files.incrementAndGet() + ".cache");
+            try {
+                Files.write(file, entry.data);
+            } catch (IOException e) {
+                delete(file);
+                return;
+            }
+
+            final List<Path> dropped = new ArrayList<>();
+            synchronized (entries) {
+                final DiskEntry previous = entries.put(entry.key, new DiskEntry(file, entry.etag, entry.data.length, entry.validatedNanos));
+                if(previous != null) {
+                    bytes -= previous.length;
+                    dropped.add(previous.file);
+                }
+                bytes += entry.data.length;
+
+                final Iterator<DiskEntry> eldest = entries.values().iterator();
+                while(bytes > maxBytes && eldest.hasNext()) {
+                    final DiskEntry victim = eldest.next();
+                    eldest.remove();
+                    bytes -= victim.length;
+                    dropped.add(victim.file);
+                }
+            }
+            for(Path path : dropped)
+                delete(path);
+        }
+
+        /**
+         * Removes a blob from the tier.
+         * @return the blob, or null if it is not on disk or cannot be read.
+         */
+        Entry take(String key) {
+            final DiskEntry entry;
+            synchronized (entries) {
+                entry = entries.remove(key);
+                if(entry != null)
+                    bytes -= entry.length;
+            }
+            if(entry == null)
+                return null;
+            try {
+                return new Entry(key, entry.etag, Files.readAllBytes(entry.file), entry.validatedNanos);
+            } catch (IOException e) {
+                return null;
+            } finally {
+                delete(entry.file);
+            }
+        }
+
+        void clear() {
+            final List<DiskEntry> dropped;
+            synchronized (entries) {
+                dropped = new ArrayList<>(entries.values());
+                entries.clear();
+                bytes = 0;
+            }
+            for(DiskEntry entry : dropped)
+                delete(entry.file);
+        }
+
+        long getBytes() {
+            synchronized (entries) {
+                return bytes;
+            }
+        }
+
+        private static void delete(Path file) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                ; // NO-OP; an orphaned file only wastes space
+            }
+        }
+    }
+
+    private static final class DiskEntry
+    {
+        final Path file;
+        final String etag;
+        final long length;
+        final long validatedNanos;
+
+        DiskEntry(Path file, String etag, long length, long validatedNanos) {
+            this.file = file;
+            this.etag = etag;
+            this.length = length;
+            this.validatedNanos = validatedNanos;
+        }
+    }
+
+    /**
+     * Point in time snapshot of the cache counters.
+     */
+    public static final class Stats
+    {
+        private final long hits;
+        private final long notModified;
+        private final long misses;
+        private final long evictions;
+        private final long diskHits;
+        private final int size;
+        private final long bytes;
+        private final long diskBytes;
+
+        public Stats(long hits, long notModified, long misses, long evictions, long diskHits, int size, long bytes, long diskBytes) {
+            this.hits = hits;
+            this.notModified = notModified;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.diskHits = diskHits;
+            this.size = size;
+            this.bytes = bytes;
+            this.diskBytes = diskBytes;
+        }
+
+        /** @return the number of reads served from the cache, without downloading the blob. */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return the number of hits that needed a conditional request answered with 304 Not Modified. */
+        public long getNotModified() {
+            return notModified;
+        }
+
+        /** @return the number of reads of blobs in neither tier. */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return the number of blobs evicted from memory because the byte budget was exceeded. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** @return the number of blobs read back from the disk tier. */
+        public long getDiskHits() {
+            return diskHits;
+        }
+
+        /** @return the number of blobs in memory at the time of the snapshot. */
+        public int getSize() {
+            return size;
+        }
+
+        /** @return the bytes held in memory at the time of the snapshot. */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return the bytes held on disk at the time of the snapshot. */
+        public long getDiskBytes() {
+            return diskBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", notModified=" + notModified + ", misses=" + misses + ", evictions=" + evictions
+                    + ", diskHits=" + diskHits + ", size=" + size + ", bytes=" + bytes + ", diskBytes=" + diskBytes + "}";
+        }
+    }
+}
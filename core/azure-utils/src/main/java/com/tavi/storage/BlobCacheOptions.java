@@ -0,0 +1,123 @@
+package com.tavi.storage;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for a {@link BlobCache}.
+ *
+ * Not thread safe - configure before creating the cache.
+ */
+public class BlobCacheOptions
+{
+    /** Default byte budget of the memory tier. */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** Default size of the largest cached blob. */
+    public static final long DEFAULT_MAX_ENTRY_BYTES = 1024 * 1024;
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxEntryBytes = DEFAULT_MAX_ENTRY_BYTES;
+    private long freshnessNanos;
+
+    private Path diskDirectory;
+    private long maxDiskBytes;
+
+    /**
+     * @return a new BlobCacheOptions with default values.
+     */
+    public static BlobCacheOptions defaults() {
+        return new BlobCacheOptions();
+    }
+
+    /**
+     * @return the byte budget of the memory tier.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the byte budget of the memory tier. The least recently used blobs are evicted once it is exceeded.
+     * @param maxBytes the budget, in bytes.
+     * @return this instance.
+     */
+    public BlobCacheOptions withMaxBytes(long maxBytes) {
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @return the size of the largest cached blob, in bytes.
+     */
+    public long getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Sets the size of the largest cached blob. Larger blobs are always downloaded, so one large blob does not
+     * flush the many small ones the cache is meant for.
+     * @param maxEntryBytes the size, in bytes.
+     * @return this instance.
+     */
+    public BlobCacheOptions withMaxEntryBytes(long maxEntryBytes) {
+        if(maxEntryBytes <= 0)
+            throw new IllegalArgumentException("maxEntryBytes must be positive");
+        this.maxEntryBytes = maxEntryBytes;
+        return this;
+    }
+
+    /**
+     * @return how long a cached blob is served without asking the service, in nanoseconds.
+     */
+    public long getFreshnessNanos() {
+        return freshnessNanos;
+    }
+
+    /**
+     * Sets how long a cached blob is served without asking the service. Afterwards, and by default always, a read
+     * revalidates the cached ETag with a conditional request and only downloads the blob if it changed.
+     * @param freshness the period; 0 to always revalidate.
+     * @param unit the unit of freshness.
+     * @return this instance.
+     */
+    public BlobCacheOptions withFreshness(long freshness, TimeUnit unit) {
+        if(freshness < 0)
+            throw new IllegalArgumentException("freshness must not be negative");
+        this.freshnessNanos = unit.toNanos(freshness);
+        return this;
+    }
+
+    /**
+     * @return the directory of the disk tier, or null if there is none.
+     */
+    public Path getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    /**
+     * @return the byte budget of the disk tier.
+     */
+    public long getMaxDiskBytes() {
+        return maxDiskBytes;
+    }
+
+    /**
+     * Adds a disk tier. Blobs evicted from memory are written to files in a directory and read back, instead of
+     * downloaded, on the next miss. The files are only valid for the cache that wrote them.
+     * @param directory an existing directory the cache owns.
+     * @param maxDiskBytes the byte budget of the disk tier.
+     * @return this instance.
+     */
+    public BlobCacheOptions withDiskTier(Path directory, long maxDiskBytes) {
+        if(directory == null)
+            throw new IllegalArgumentException("directory must not be null");
+        if(maxDiskBytes <= 0)
+            throw new IllegalArgumentException("maxDiskBytes must be positive");
+        this.diskDirectory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        return this;
+    }
+}
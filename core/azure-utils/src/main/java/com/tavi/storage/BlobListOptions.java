@@ -0,0 +1,157 @@
+package com.tavi.storage;
+
+/**
+ * Options for parallel blob listings.
+ *
+ * Not thread safe - configure before starting the listing.
+ */
+public class BlobListOptions
+{
+    /** The most blobs the service returns per segment. */
+    public static final int MAX_PAGE_SIZE = 5000;
+
+    private int parallelism = 8;
+    private int queueCapacity = 1000;
+    private Integer pageSize;
+    private int splitDepth = 1;
+    private boolean prefetch = true;
+    private boolean includeMetadata;
+    private BlobListingCheckpoint checkpoint;
+
+    /**
+     * @return a new BlobListOptions with default values.
+     */
+    public static BlobListOptions defaults() {
+        return new BlobListOptions();
+    }
+
+    /**
+     * @return the most prefixes listed at the same time.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the most prefixes listed at the same time.
+     * @param parallelism the parallelism, at least 1.
+     * @return this instance.
+     */
+    public BlobListOptions withParallelism(int parallelism) {
+        if(parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return the most blobs listed but not yet consumed by a stream.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the most blobs listed but not yet consumed by a stream. Listing pauses while the queue is full.
+     * @param queueCapacity the capacity, at least 1.
+     * @return this instance.
+     */
+    public BlobListOptions withQueueCapacity(int queueCapacity) {
+        if(queueCapacity <= 0)
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * @return the most blobs fetched per segment, or null for the service default.
+     */
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the most blobs fetched per segment of each prefix.
+     * @param pageSize between 1 and {@link #MAX_PAGE_SIZE}.
+     * @return this instance.
+     */
+    public BlobListOptions withPageSize(int pageSize) {
+        if(pageSize <= 0 || pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_PAGE_SIZE);
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @return how many levels of virtual directories are split into prefixes listed in parallel.
+     */
+    public int getSplitDepth() {
+        return splitDepth;
+    }
+
+    /**
+     * Sets how many levels of virtual directories are split into prefixes listed in parallel. Directories at the
+     * split depth are listed flat, in one sequence of segments each. Deeper splits suit trees whose top level has
+     * few, large directories; every split level costs a delimited listing of its directories.
+     * @param splitDepth the depth; 0 lists everything as one flat sequence.
+     * @return this instance.
+     */
+    public BlobListOptions withSplitDepth(int splitDepth) {
+        if(splitDepth < 0)
+            throw new IllegalArgumentException("splitDepth must not be negative");
+        this.splitDepth = splitDepth;
+        return this;
+    }
+
+    /**
+     * @return true if the next segment of each prefix is fetched while the current one is consumed.
+     */
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Sets whether the next segment of each prefix is fetched while the current one is consumed. Enabled by default.
+     * @param prefetch true to prefetch.
+     * @return this instance.
+     */
+    public BlobListOptions withPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * @return true if listed blobs carry their metadata.
+     */
+    public boolean isIncludeMetadata() {
+        return includeMetadata;
+    }
+
+    /**
+     * Sets whether listed blobs carry their metadata, saving a request per blob that needs it.
+     * @param includeMetadata true to include metadata.
+     * @return this instance.
+     */
+    public BlobListOptions withIncludeMetadata(boolean includeMetadata) {
+        this.includeMetadata = includeMetadata;
+        return this;
+    }
+
+    /**
+     * @return the checkpoint the listing resumes from and records its progress in, or null.
+     */
+    public BlobListingCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets the checkpoint the listing resumes from and records its progress in. Persist it while the listing runs,
+     * and pass it, parsed back, with the same options to resume the listing after a crash.
+     * @param checkpoint a new checkpoint, or one of an unfinished listing of the same container and prefix.
+     * @return this instance.
+     */
+    public BlobListOptions withCheckpoint(BlobListingCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+}
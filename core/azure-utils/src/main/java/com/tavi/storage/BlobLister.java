@@ -0,0 +1,372 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlobDirectory;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.tavi.storage.exceptions.UncheckedStorageException;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists a container below a prefix in parallel on a fork/join pool. Prefixes above the split depth are listed with
+ * the directory delimiter: their blobs are returned and every virtual directory found is forked as a prefix of its
+ * own, so idle threads steal directories as soon as they are discovered. Prefixes at the split depth are listed
+ * flat. Each prefix is read segment by segment, optionally fetching the next segment while the current one is
+ * consumed, and its progress is recorded in a {@link BlobListingCheckpoint}.
+ *
+ * Single use - every listing creates a lister and a pool of its own.
+ */
+final class BlobLister
+{
+    /** Fetches the next segments; idle threads are released after a minute. */
+    private static final ExecutorService PREFETCHER = Executors.newCachedThreadPool(new DaemonThreadFactory("blob-list-prefetch"));
+
+    /** Marks the end of the blobs in the queue of a stream. */
+    private static final Object END = new Object();
+
+    /** How often a producer blocked on a full queue checks whether the stream was closed. */
+    private static final long OFFER_MILLIS = 100;
+
+    private final CloudBlobContainer container;
+    private final BlobListOptions options;
+    private final BlobListingCheckpoint checkpoint;
+    private final boolean resumed;
+    private final EnumSet<BlobListingDetails> details;
+
+    private volatile boolean cancelled;
+
+    /** The first failure of any prefix; the other prefixes are cancelled and fail with a CancellationException. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param container the container to list.
+     * @param prefix the prefix to list below; empty for the whole container.
+     * @param options the listing options.
+     * @throws IllegalArgumentException if the checkpoint of the options belongs to another listing.
+     */
+    BlobLister(CloudBlobContainer container, String prefix, BlobListOptions options) {
+        this.container = container;
+        this.options = options;
+        this.checkpoint = options.getCheckpoint() != null ? options.getCheckpoint() : new BlobListingCheckpoint();
+        this.resumed = checkpoint.begin(container.getName(), prefix);
+        this.details = options.isIncludeMetadata() ? EnumSet.of(BlobListingDetails.METADATA) : EnumSet.noneOf(BlobListingDetails.class);
+    }
+
+    /**
+     * Records that every blob of a segment reached the consumer.
+     */
+    private static final class Progress
+    {
+        final String prefix;
+        final ResultContinuation next;
+
+        Progress(String prefix, ResultContinuation next) {
+            this.prefix = prefix;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Lists every prefix, handing blobs to a consumer from the listing threads. Stops at the first failure.
+     * @param consumer the consumer; called concurrently, in no particular order.
+     * @return the number of blobs listed.
+     * @throws StorageException
+     */
+    long forEach(Consumer<? super ListBlobItem> consumer) throws StorageException {
+        final AtomicLong count = new AtomicLong();
+        final ForkJoinPool pool = newPool();
+        try {
+            pool.submit(new RootTask(item -> {
+                if(item instanceof Progress) {
+                    checkpoint.advance(((Progress) item).prefix, ((Progress) item).next);
+                } else {
+                    consumer.accept((ListBlobItem) item);
+                    count.incrementAndGet();
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while listing " + container.getName(), e);
+        } catch (ExecutionException e) {
+            throw rethrow(failure.get() != null ? failure.get() : e.getCause());
+        } catch (CancellationException e) {
+            throw rethrow(failure.get() != null ? failure.get() : e);
+        } finally {
+            cancelled = true;
+            pool.shutdownNow();
+        }
+        return count.get();
+    }
+
+    /**
+     * Starts listing every prefix into a bounded queue and returns the blobs as a stream. Listing pauses while the
+     * queue is full; closing the stream stops it. The checkpoint advances as the stream is consumed. A failure ends
+     * the stream with an {@link UncheckedStorageException} or the original runtime exception.
+     * @return the blobs, in no particular order.
+     */
+    Stream<ListBlobItem> stream() {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        final ForkJoinPool pool = newPool();
+
+        pool.execute(() -> {
+            try {
+                new RootTask(item -> offer(queue, item)).invoke();
+            } catch (Throwable ignored) {
+                // Recorded in failure by the prefix that failed first.
+            } finally {
+                try {
+                    offer(queue, END);
+                } catch (CancellationException ignored) {
+                    // Nobody is reading any more.
+                }
+            }
+        });
+
+        final Iterator<ListBlobItem> iterator = new Iterator<ListBlobItem>() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                while(next == null || next instanceof Progress) {
+                    if(next != null)
+                        checkpoint.advance(((Progress) next).prefix, ((Progress) next).next);
+                    next = take(queue);
+                }
+                if(next != END)
+                    return true;
+
+                final Throwable t = failure.get();
+                if(t == null)
+                    return false;
+                if(t instanceof Error)
+                    throw (Error) t;
+                final StorageException e = storageException(t);
+                if(e != null)
+                    throw new UncheckedStorageException(e);
+                throw (RuntimeException) t;
+            }
+
+            @Override
+            public ListBlobItem next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                final ListBlobItem item = (ListBlobItem) next;
+                next = null;
+                return item;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    cancelled = true;
+                    pool.shutdownNow();
+                    queue.clear();
+                });
+    }
+
+    /**
+     * Lists the prefix the listing started from, after forking the unfinished directories of a resumed checkpoint.
+     */
+    private final class RootTask extends RecursiveAction
+    {
+        private final Consumer<Object> sink;
+
+        private RootTask(Consumer<Object> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            final List<PrefixTask> restored = new ArrayList<>();
+            if(resumed) {
+                for(Map.Entry<String, BlobListingCheckpoint.Prefix> entry : checkpoint.getPendingDirectories()) {
+                    final PrefixTask task = new PrefixTask(entry.getKey(), entry.getValue(), sink);
+                    task.fork();
+                    restored.add(task);
+                }
+            }
+            final String root = checkpoint.getRootPrefix();
+            new PrefixTask(root, checkpoint.get(root), sink).compute();
+            for(PrefixTask task : restored)
+                task.join();
+        }
+    }
+
+    /**
+     * Lists one prefix, forking a task for every new virtual directory it finds.
+     */
+    private final class PrefixTask extends RecursiveAction
+    {
+        private final String prefix;
+        private final BlobListingCheckpoint.Prefix progress;
+        private final Consumer<Object> sink;
+
+        private PrefixTask(String prefix, BlobListingCheckpoint.Prefix progress, Consumer<Object> sink) {
+            this.prefix = prefix;
+            this.progress = progress;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if(progress.done)
+                return;
+
+            final List<PrefixTask> children = new ArrayList<>();
+            try {
+                list(children);
+            } catch (CancellationException e) {
+                throw e;
+            } catch (StorageException e) {
+                throw fail(new UncheckedStorageException("Unable to list " + container.getName() + "/" + prefix, e));
+            } catch (RuntimeException e) {
+                throw fail(e);
+            } catch (Error e) {
+                throw fail(e);
+            }
+            for(PrefixTask child : children)
+                child.join();
+        }
+
+        private void list(List<PrefixTask> children) throws StorageException {
+            final boolean flat = progress.level >= options.getSplitDepth();
+            ResultSegment<ListBlobItem> segment = fetch(prefix, flat, progress.getToken());
+            while(true) {
+                final ResultContinuation nextToken = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+                Future<ResultSegment<ListBlobItem>> next = null;
+                if(options.isPrefetch() && nextToken != null)
+                    next = PREFETCHER.submit(() -> fetch(prefix, flat, nextToken));
+
+                try {
+                    for(ListBlobItem item : segment.getResults()) {
+                        if(cancelled)
+                            throw new CancellationException();
+                        if(item instanceof CloudBlobDirectory) {
+                            final String directory = ((CloudBlobDirectory) item).getPrefix();
+                            if(checkpoint.register(directory, progress.level + 1)) {
+                                final PrefixTask child = new PrefixTask(directory, checkpoint.get(directory), sink);
+                                child.fork();
+                                children.add(child);
+                            }
+                        } else {
+                            sink.accept(item);
+                        }
+                    }
+                    sink.accept(new Progress(prefix, nextToken));
+                } catch (RuntimeException | Error e) {
+                    if(next != null)
+                        next.cancel(true);
+                    throw e;
+                }
+
+                if(nextToken == null)
+                    return;
+                segment = next != null ? await(next) : fetch(prefix, flat, nextToken);
+            }
+        }
+    }
+
+    private ResultSegment<ListBlobItem> fetch(String prefix, boolean flat, ResultContinuation token) throws StorageException {
+        return container.listBlobsSegmented(prefix, flat, details, options.getPageSize(), token, null, null);
+    }
+
+    private ResultSegment<ListBlobItem> await(Future<ResultSegment<ListBlobItem>> prefetched) throws StorageException {
+        try {
+            return prefetched.get();
+        } catch (InterruptedException e) {
+            throw new CancellationException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof StorageException)
+                throw (StorageException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Records the first failure and stops the other prefixes instead of letting them run to completion for nothing.
+     * @return t, to throw.
+     */
+    private <E extends Throwable> E fail(E t) {
+        failure.compareAndSet(null, t);
+        cancelled = true;
+        return t;
+    }
+
+    private void offer(BlockingQueue<Object> queue, Object item) {
+        try {
+            while(!queue.offer(item, OFFER_MILLIS, TimeUnit.MILLISECONDS))
+                if(cancelled)
+                    throw new CancellationException();
+        } catch (InterruptedException e) {
+            throw new CancellationException();
+        }
+    }
+
+    private Object take(BlockingQueue<Object> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedStorageException(new StorageException("OperationInterrupted", "Interrupted while listing " + container.getName(), e));
+        }
+    }
+
+    private ForkJoinPool newPool() {
+        final String name = "blob-list-" + container.getName();
+        return new ForkJoinPool(options.getParallelism(), pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * @return the StorageException behind a listing failure, or null if there is none.
+     */
+    private static StorageException storageException(Throwable t) {
+        for(Throwable cause = t; cause != null; cause = cause.getCause())
+            if(cause instanceof StorageException)
+                return (StorageException) cause;
+        return null;
+    }
+
+    private static StorageException rethrow(Throwable t) throws StorageException {
+        final StorageException e = storageException(t);
+        if(e != null)
+            return e;
+        if(t instanceof Error)
+            throw (Error) t;
+        throw (RuntimeException) t;
+    }
+}
@@ -0,0 +1,225 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Progress of a parallel blob listing: every prefix the listing split the key space into, with the continuation
+ * token of its next segment or whether it is done. A prefix advances once every blob of a segment was handed to
+ * the consumer, so a resumed listing repeats at most the segment each unfinished prefix was in.
+ *
+ * {@link #toString()} serializes the checkpoint and {@link #parse(String)} reads it back. Thread safe.
+ */
+public final class BlobListingCheckpoint
+{
+    private static final String VERSION = "v1";
+    private static final String START = "start";
+    private static final String DONE = "done";
+    /** Precedes markers, which are encoded and so never contain it. */
+    private static final String MARKER = "@";
+
+    /** Guarded by this. */
+    private String containerName;
+    private String rootPrefix;
+
+    /** The prefixes, sorted for a stable serialization. */
+    private final ConcurrentSkipListMap<String, Prefix> prefixes = new ConcurrentSkipListMap<>();
+
+    /**
+     * The progress of one prefix.
+     */
+    static final class Prefix
+    {
+        /** 0 for the prefix the listing started from, one more for each virtual directory below it. */
+        final int level;
+        /** The marker of the next segment; null before the first segment. */
+        final String marker;
+        final boolean done;
+
+        Prefix(int level, String marker, boolean done) {
+            this.level = level;
+            this.marker = marker;
+            this.done = done;
+        }
+
+        ResultContinuation getToken() {
+            if(marker == null)
+                return null;
+            final ResultContinuation token = new ResultContinuation();
+            token.setContinuationType(ResultContinuationType.BLOB);
+            token.setNextMarker(marker);
+            return token;
+        }
+    }
+
+    /**
+     * Reads a checkpoint back.
+     * @param serialized the result of {@link #toString()}.
+     * @return the checkpoint.
+     * @throws IllegalArgumentException if serialized is not a checkpoint.
+     */
+    public static BlobListingCheckpoint parse(String serialized) {
+        final BlobListingCheckpoint checkpoint = new BlobListingCheckpoint();
+        final String[] lines = serialized.split("\n");
+        final String[] header = lines[0].split(" ", 3);
+        if(header.length != 3 || !VERSION.equals(header[0]))
+            throw new IllegalArgumentException("Not a blob listing checkpoint");
+        checkpoint.containerName = decode(header[1]);
+        checkpoint.rootPrefix = decode(header[2]);
+
+        for(int i = 1; i < lines.length; i++) {
+            final String[] fields = lines[i].split(" ", 3);
+            if(fields.length != 3)
+                throw new IllegalArgumentException("Malformed checkpoint line " + i);
+            final int level;
+            try {
+                level = Integer.parseInt(fields[0]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed checkpoint line " + i, e);
+            }
+            final boolean done = DONE.equals(fields[1]);
+            final boolean started = fields[1].startsWith(MARKER);
+            if(!done && !started && !START.equals(fields[1]))
+                throw new IllegalArgumentException("Malformed checkpoint line " + i);
+            final String marker = started ? decode(fields[1].substring(MARKER.length())) : null;
+            checkpoint.prefixes.put(decode(fields[2]), new Prefix(level, marker, done));
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Binds a new checkpoint to a listing, or checks that a parsed one belongs to it.
+     * @return true if the listing resumes from this checkpoint.
+     * @throws IllegalArgumentException if the checkpoint belongs to another listing.
+     */
+    synchronized boolean begin(String containerName, String rootPrefix) {
+        if(this.containerName == null) {
+            this.containerName = containerName;
+            this.rootPrefix = rootPrefix;
+            prefixes.put(rootPrefix, new Prefix(0, null, false));
+            return false;
+        }
+        if(!this.containerName.equals(containerName) || !this.rootPrefix.equals(rootPrefix))
+            throw new IllegalArgumentException("Checkpoint belongs to the listing of " + this.containerName + "/" + this.rootPrefix);
+        return true;
+    }
+
+    /**
+     * @return the prefix the listing started from.
+     */
+    synchronized String getRootPrefix() {
+        return rootPrefix;
+    }
+
+    /**
+     * @return the progress of a prefix, or null if the listing has not found it.
+     */
+    Prefix get(String prefix) {
+        return prefixes.get(prefix);
+    }
+
+    /**
+     * @return the unfinished prefixes other than the one the listing started from.
+     */
+    List<Map.Entry<String, Prefix>> getPendingDirectories() {
+        final String root = getRootPrefix();
+        final List<Map.Entry<String, Prefix>> pending = new ArrayList<>();
+        for(Map.Entry<String, Prefix> entry : prefixes.entrySet())
+            if(!entry.getValue().done && !entry.getKey().equals(root))
+                pending.add(entry);
+        return pending;
+    }
+
+    /**
+     * Records a virtual directory found by the listing.
+     * @return true if the directory is new and needs to be listed.
+     */
+    boolean register(String prefix, int level) {
+        return prefixes.putIfAbsent(prefix, new Prefix(level, null, false)) == null;
+    }
+
+    /**
+     * Records that every blob of a segment was consumed.
+     * @param prefix the prefix listed.
+     * @param next the token of the next segment, or null if the prefix is done.
+     */
+    void advance(String prefix, ResultContinuation next) {
+        final Prefix previous = prefixes.get(prefix);
+        prefixes.put(prefix, new Prefix(previous.level, next != null ? next.getNextMarker() : null, next == null));
+    }
+
+    /**
+     * @return true if every prefix of the listing is done.
+     */
+    public boolean isComplete() {
+        if(prefixes.isEmpty())
+            return false;
+        for(Prefix prefix : prefixes.values())
+            if(!prefix.done)
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the number of prefixes found so far.
+     */
+    public int getPrefixCount() {
+        return prefixes.size();
+    }
+
+    /**
+     * @return the number of prefixes listed to the end.
+     */
+    public int getDonePrefixCount() {
+        int done = 0;
+        for(Prefix prefix : prefixes.values())
+            if(prefix.done)
+                done++;
+        return done;
+    }
+
+    /**
+     * @return the serialized checkpoint, for {@link #parse(String)}.
+     * @throws IllegalStateException if the checkpoint was not used by a listing yet.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder serialized = new StringBuilder(VERSION);
+        synchronized (this) {
+            if(containerName == null)
+                throw new IllegalStateException("Checkpoint not used by a listing yet");
+            serialized.append(' ').append(encode(containerName)).append(' ').append(encode(rootPrefix));
+        }
+        for(Map.Entry<String, Prefix> entry : prefixes.entrySet()) {
+            final Prefix prefix = entry.getValue();
+            serialized.append('\n').append(prefix.level).append(' ')
+                    .append(prefix.done ? DONE : prefix.marker == null ? START : MARKER + encode(prefix.marker))
+                    .append(' ').append(encode(entry.getKey()));
+        }
+        return serialized.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
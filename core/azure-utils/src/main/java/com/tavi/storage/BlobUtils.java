@@ -1,23 +1,43 @@
 package com.tavi.storage;
 
+import com.microsoft.azure.storage.AccessCondition;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
+import com.tavi.storage.exceptions.BlobConditionFailedException;
 import com.tavi.storage.exceptions.BlobNotFoundException;
 import com.tavi.storage.exceptions.ContainerNotFoundException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Helper class for Azure Blob Storage related operations.
  *
- * WARNING: Not thread safe - assumes instances are not shared between threads.
+ * Thread safe - instances may be shared between threads. Use {@link #shared(String)} to also share the
+ * underlying client between instances created for the same account.
  */
 // TODO: Custom StorageException wrapper exceptions or use StorageExceptions?
 public class BlobUtils
@@ -28,6 +48,48 @@ public class BlobUtils
     /** The CloudBlobClient used for all the blob operations. */
     private final CloudBlobClient client;
 
+    /** Default maximum number of cached references and existence results. */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /** Container references, keyed by container name. */
+    private volatile TtlCache<CloudBlobContainer> containers = new TtlCache<>(DEFAULT_CACHE_SIZE);
+
+    /**
+     * Containers and blobs known to exist, keyed by container name or by container name and blob name
+     * joined with '/'. Null when existence memoization is disabled.
+     */
+    private volatile TtlCache<Boolean> existing;
+
+    /** Runs the asynchronous methods. */
+    private volatile AsyncRunner async = AsyncRunner.shared();
+
+    /** Retries and paces requests. Null when requests go straight to the client. */
+    private volatile StorageThrottle throttle;
+
+    /** Records operations. Null when metrics are off. */
+    private volatile StorageMetrics metrics;
+
+    /**
+     * Attributes fetched by {@link #getAttributes(String, String)}, keyed like existence results. Null when
+     * attributes are not cached.
+     */
+    private volatile TtlCache<BlobAttributes> attributes;
+
+    /** Whether shared access URLs are signed without looking up the container and blob first. */
+    private volatile boolean localSasSigning;
+
+    /** Range buffers of parallel downloads. */
+    private volatile BufferPool buffers = BufferPool.shared();
+
+    /** Blob contents read by {@link #downloadText(String, String)}. Null when downloads are not cached. */
+    private volatile BlobCache downloads;
+
+    /**
+     * Blob references fetched by {@link #getBlobReferenceFromServer(String, String)}, keyed like existence results.
+     * Null unless downloads are cached with a freshness period.
+     */
+    private volatile TtlCache<CloudBlob> serverReferences;
+
     /**
      * Initializes a BlobUtils from a given connection string.
      * @param connectionString the given connection string.
@@ -43,8 +105,17 @@ public class BlobUtils
      * @param account the storage account to use.
      */
     private BlobUtils(CloudStorageAccount account) {
+        this(account, account.createCloudBlobClient());
+    }
+
+    /**
+     * Initializes a BlobUtils from a given CloudStorageAccount and client.
+     * @param account the storage account to use.
+     * @param client the blob client to use.
+     */
+    private BlobUtils(CloudStorageAccount account, CloudBlobClient client) {
         this.account = account;
-        this.client = account.createCloudBlobClient();
+        this.client = client;
     }
 
 
@@ -74,26 +145,237 @@ public class BlobUtils
     }
 
     /**
-     * Uploads a blob from a byte array.
+     * Initializes a BlobUtils backed by the process-wide client of the account behind a connection string.
+     * The connection string is only parsed the first time it is seen.
+     * @param connectionString the given connection string.
+     * @throws URISyntaxException
+     * @throws InvalidKeyException
+     * @see StorageClientRegistry
+     */
+    public static BlobUtils shared(String connectionString) throws URISyntaxException, InvalidKeyException {
+        return shared(StorageClientRegistry.account(connectionString));
+    }
+
+    /**
+     * Initializes a BlobUtils backed by the process-wide client of a given CloudStorageAccount.
+     * @param account the storage account to use.
+     * @see StorageClientRegistry
+     */
+    public static BlobUtils shared(CloudStorageAccount account) {
+        return new BlobUtils(account, StorageClientRegistry.blobClient(account));
+    }
+
+    /**
+     * Configures the reference cache and existence memoization. By default container references are cached
+     * and every operation that needs it checks that its container or blob exists.
+     * @param maxEntries the maximum number of cached references and existence results.
+     * @param existenceTtl how long a successful existence check is trusted for. Zero disables memoization.
+     * @param unit the unit of existenceTtl.
+     * @return this instance.
+     */
+    public BlobUtils withReferenceCache(int maxEntries, long existenceTtl, TimeUnit unit) {
+        this.containers = new TtlCache<>(maxEntries);
+        this.existing = existenceTtl > 0 ? new TtlCache<Boolean>(maxEntries, existenceTtl, unit) : null;
+        return this;
+    }
+
+    /**
+     * @return the counters of the container reference cache.
+     */
+    public TtlCache.Stats getReferenceCacheStats() {
+        return containers.getStats();
+    }
+
+    /**
+     * @return the counters of the existence memoization; all zero when it is disabled.
+     */
+    public TtlCache.Stats getExistenceCacheStats() {
+        final TtlCache<Boolean> memo = existing;
+        return memo != null ? memo.getStats() : new TtlCache.Stats(0, 0, 0, 0);
+    }
+
+    /**
+     * Configures the asynchronous methods. By default they share a process-wide limit of
+     * {@link AsyncOptions#DEFAULT_MAX_IN_FLIGHT} operations in flight with every other utils instance.
+     * @param options the executor and in-flight limit.
+     * @return this instance.
+     */
+    public BlobUtils withAsync(AsyncOptions options) {
+        this.async = new AsyncRunner(options);
+        return this;
+    }
+
+    /**
+     * @return the number of asynchronous operations in flight, counting those of every instance sharing the limit.
+     */
+    public int getAsyncInFlightCount() {
+        return async.getInFlightCount();
+    }
+
+    /**
+     * Routes the requests of this instance through a throttle: retried with jittered backoff, paced by the
+     * concurrency limit and rate of the throttle. The requests are sent without the retries of the SDK, which would
+     * otherwise retry on their own below the throttle; the default request options of the client, which may be
+     * shared with other instances, are left as they are. Parallel block transfers keep their own per-block retries.
+     * @param throttle the throttle, usually shared by every utils of the account; null to stop throttling.
+     * @return this instance.
+     */
+    public BlobUtils withThrottle(StorageThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Records the operations of this instance: "blob.upload", "blob.download", "blob.downloadText" and
+     * "blob.getProperties".
+     * @param metrics the metrics, usually shared by every utils of the application; null to stop recording.
+     * @return this instance.
+     */
+    public BlobUtils withMetrics(StorageMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Caches the attributes fetched by {@link #getAttributes(String, String)}, which also serves
+     * {@link #getProperties(String, String)} and {@link #getMetadata(String, String)}. Uploads through this
+     * instance drop the cached attributes of the blob; changes made elsewhere are seen once the TTL is over, so keep
+     * it short.
+     * @param maxEntries the maximum number of cached attributes.
+     * @param ttl how long fetched attributes are trusted for. Zero disables the cache.
+     * @param unit the unit of ttl.
+     * @return this instance.
+     */
+    public BlobUtils withAttributeCache(int maxEntries, long ttl, TimeUnit unit) {
+        this.attributes = ttl > 0 ? new TtlCache<BlobAttributes>(maxEntries, ttl, unit) : null;
+        return this;
+    }
+
+    /**
+     * @return the counters of the attribute cache; all zero when it is disabled.
+     */
+    public TtlCache.Stats getAttributeCacheStats() {
+        final TtlCache<BlobAttributes> cache = attributes;
+        return cache != null ? cache.getStats() : new TtlCache.Stats(0, 0, 0, 0);
+    }
+
+    /**
+     * Signs shared access URLs locally. By default {@link #createSharedBlobURL(String, String, String, int, EnumSet)}
+     * first checks that the container exists and fetches the blob from the service, two round trips before a
+     * signature that needs neither. With local signing the URL is built from the names alone, so it is also
+     * returned for blobs that do not exist (yet).
+     * @param enabled true to sign without service requests.
+     * @return this instance.
+     */
+    public BlobUtils withLocalSasSigning(boolean enabled) {
+        this.localSasSigning = enabled;
+        return this;
+    }
+
+    /**
+     * Configures the pool the range buffers of parallel downloads come from. By default they share a process-wide
+     * heap buffer pool with every other utils instance. A direct pool suits downloads into channels and direct
+     * buffers; heap buffers let the SDK write into them without an extra copy.
+     * @param pool the buffer pool.
+     * @return this instance.
+     */
+    public BlobUtils withBufferPool(BufferPool pool) {
+        if(pool == null)
+            throw new IllegalArgumentException("pool must not be null");
+        this.buffers = pool;
+        return this;
+    }
+
+    /**
+     * Caches downloaded blobs. {@link #downloadText(String, String)} then revalidates its cached copy with a
+     * conditional request instead of checking existence and downloading again, so an unchanged blob costs a 304 Not
+     * Modified. Within the freshness period of the options it costs nothing, and
+     * {@link #getBlobReferenceFromServer(String, String)}, {@link #getProperties(String, String)} and
+     * {@link #getMetadata(String, String)} reuse the reference fetched last. Uploads through this instance drop
+     * the blob from the cache; changes made elsewhere are seen once the freshness period is over.
+     * @param options the budgets, freshness and disk tier; null to stop caching.
+     * @return this instance.
+     */
+    public BlobUtils withDownloadCache(BlobCacheOptions options) {
+        if(options == null) {
+            this.downloads = null;
+            this.serverReferences = null;
+            return this;
+        }
+        this.downloads = new BlobCache(options);
+        this.serverReferences = options.getFreshnessNanos() > 0
+                ? new TtlCache<CloudBlob>(DEFAULT_CACHE_SIZE, options.getFreshnessNanos(), TimeUnit.NANOSECONDS) : null;
+        return this;
+    }
+
+    /**
+     * @return the counters of the download cache; all zero when it is disabled.
+     */
+    public BlobCache.Stats getDownloadCacheStats() {
+        final BlobCache cache = downloads;
+        return cache != null ? cache.getStats() : new BlobCache.Stats(0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Uploads a blob from a byte array, replacing an existing blob in the same request.
      * @param containerName the container name to upload the blob to.
      * @param blobName the blob name.
      * @param bytes the data to upload.
      * @param offset the offset in the data to upload.
      * @param length the number of bytes in the data to upload.
-     * @param deleteIfExists delete the blob if it exists or not.
+     * @param deleteIfExists ignored - an existing blob is always replaced, without a separate delete request that
+     *                       would leave readers without a blob in between.
      * @throws URISyntaxException
      * @throws StorageException
      * @throws IOException
+     * @deprecated use {@link #uploadBlockBlobFromByteArray(String, String, byte[], int, int, UploadCondition)}.
      */
+    @Deprecated
     public void uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, int offset, int length, boolean deleteIfExists)
             throws URISyntaxException, StorageException, IOException {
-        CloudBlobContainer container = client.getContainerReference(containerName);
-        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        upload(containerName, blobName, bytes, offset, length, null, null);
+    }
 
-        if(deleteIfExists)
-            blob.deleteIfExists();
+    /**
+     * Uploads a blob from a byte array in a single request, if a condition holds. The condition is checked by the
+     * service as part of the upload, so an existing blob is replaced atomically and no reader sees it missing.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param bytes the data to upload.
+     * @param offset the offset in the data to upload.
+     * @param length the number of bytes in the data to upload.
+     * @param condition when the blob may be written.
+     * @return the ETag of the uploaded blob, e.g. for the next {@link UploadCondition#ifMatch(String)}.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @throws BlobConditionFailedException if the blob exists for a create-only upload, or changed for an If-Match one.
+     */
+    public String uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, int offset, int length, UploadCondition condition)
+            throws URISyntaxException, StorageException, IOException, BlobConditionFailedException {
+        try {
+            return upload(containerName, blobName, bytes, offset, length, condition.toAccessCondition(), null).getProperties().getEtag();
+        } catch (StorageException e) {
+            throw conditionFailed(containerName, blobName, condition, e);
+        }
+    }
 
-        blob.uploadFromByteArray(bytes, offset, length);
+    /**
+     * Uploads a blob from an entire byte array in a single request, if a condition holds.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param bytes the data to upload.
+     * @param condition when the blob may be written.
+     * @return the ETag of the uploaded blob.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @throws BlobConditionFailedException if the condition does not hold.
+     * @see #uploadBlockBlobFromByteArray(String, String, byte[], int, int, UploadCondition)
+     */
+    public String uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, UploadCondition condition)
+            throws URISyntaxException, StorageException, IOException, BlobConditionFailedException {
+        return uploadBlockBlobFromByteArray(containerName, blobName, bytes, 0, bytes.length, condition);
     }
 
     /**
@@ -101,16 +383,262 @@ public class BlobUtils
      * @param containerName the container name to upload the blob to.
      * @param blobName the blob name.
      * @param bytes the data to upload.
-     * @param deleteIfExists delete the blob if it exists or not.
+     * @param deleteIfExists ignored - an existing blob is always replaced.
      * @throws URISyntaxException
      * @throws StorageException
      * @throws IOException
+     * @deprecated use {@link #uploadBlockBlobFromByteArray(String, String, byte[], UploadCondition)}.
      */
+    @Deprecated
     public void uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, boolean deleteIfExists)
             throws URISyntaxException, StorageException, IOException {
         uploadBlockBlobFromByteArray(containerName, blobName, bytes, 0, bytes.length, deleteIfExists);
     }
 
+    /**
+     * Uploads a block blob from a byte array, staging blocks of {@link TransferOptions#getBlockSize()} bytes in
+     * parallel and committing them once all are staged. Data that fits in a single block is uploaded in one request.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param bytes the data to upload.
+     * @param offset the offset in the data to upload.
+     * @param length the number of bytes in the data to upload.
+     * @param options the block size, parallelism and retry options.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     */
+    public void uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, int offset, int length, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        upload(containerName, blobName, bytes, offset, length, null, options);
+    }
+
+    /**
+     * Uploads a block blob from a byte array, staging blocks in parallel, if a condition holds. The condition is
+     * checked when the block list is committed, so an existing blob is replaced atomically.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param bytes the data to upload.
+     * @param offset the offset in the data to upload.
+     * @param length the number of bytes in the data to upload.
+     * @param condition when the blob may be written.
+     * @param options the block size, parallelism and retry options.
+     * @return the ETag of the uploaded blob.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @throws BlobConditionFailedException if the condition does not hold.
+     * @see #uploadBlockBlobFromByteArray(String, String, byte[], int, int, TransferOptions)
+     */
+    public String uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, int offset, int length, UploadCondition condition, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException, BlobConditionFailedException {
+        try {
+            return upload(containerName, blobName, bytes, offset, length, condition.toAccessCondition(), options).getProperties().getEtag();
+        } catch (StorageException e) {
+            throw conditionFailed(containerName, blobName, condition, e);
+        }
+    }
+
+    /**
+     * Uploads a block blob from a byte array, in a single request or in parallel blocks.
+     * @param condition the condition of the request that writes the blob; null for none.
+     * @param options the transfer options; null for a single request.
+     * @return the uploaded blob, with the properties returned by the service.
+     */
+    private CloudBlockBlob upload(String containerName, String blobName, byte[] bytes, int offset, int length, AccessCondition condition, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.upload");
+        sample.addBytes(length);
+        try {
+            CloudBlockBlob blob = getBlockBlobReference(containerName, blobName);
+
+            if(options == null || length <= options.getBlockSize()) {
+                uploadInOneRequest(blob, bytes, offset, length, condition);
+                return blob;
+            }
+
+            try (BlockBlobUploader uploader = new BlockBlobUploader(blob, options)) {
+                for(int position = offset; position < offset + length; position += options.getBlockSize())
+                    uploader.stage(bytes, position, Math.min(options.getBlockSize(), offset + length - position));
+                uploader.commit(condition);
+            }
+            return blob;
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            forgetDownload(containerName, blobName);
+            sample.stop();
+        }
+    }
+
+    /**
+     * Uploads data that fits in a single block in one request, through the throttle if any.
+     * @param blob the blob to upload.
+     * @param bytes the data.
+     * @param offset the offset of the data in bytes.
+     * @param length the length of the data.
+     * @param condition the condition of the upload; null for none.
+     * @throws StorageException
+     * @throws IOException
+     */
+    private void uploadInOneRequest(CloudBlockBlob blob, byte[] bytes, int offset, int length, AccessCondition condition)
+            throws StorageException, IOException {
+        call(requestOptions -> {
+            blob.uploadFromByteArray(bytes, offset, length, condition, requestOptions, null);
+            return null;
+        });
+    }
+
+    /**
+     * Translates the refusal of a conditional upload.
+     * @return the exception to throw for a condition that does not hold.
+     * @throws StorageException e, for any other failure.
+     */
+    private static BlobConditionFailedException conditionFailed(String containerName, String blobName, UploadCondition condition, StorageException e)
+            throws StorageException {
+        if(e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED
+                || StorageErrorCodeStrings.BLOB_ALREADY_EXISTS.equals(e.getErrorCode()))
+            return new BlobConditionFailedException("Upload of " + blobName + " inside " + containerName + " refused: " + condition, e);
+        throw e;
+    }
+
+    /**
+     * Uploads a block blob from an entire byte array, staging blocks in parallel.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param bytes the data to upload.
+     * @param options the block size, parallelism and retry options.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @see #uploadBlockBlobFromByteArray(String, String, byte[], int, int, TransferOptions)
+     */
+    public void uploadBlockBlobFromByteArray(String containerName, String blobName, byte[] bytes, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        uploadBlockBlobFromByteArray(containerName, blobName, bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * Uploads a block blob from an entire byte array asynchronously. Blocks while the maximum number of
+     * asynchronous operations is in flight.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param bytes the data to upload; must not change until the future completes.
+     * @param options the block size, parallelism and retry options.
+     * @return a future completed once the blob is uploaded.
+     * @see #uploadBlockBlobFromByteArray(String, String, byte[], TransferOptions)
+     */
+    public CompletableFuture<Void> uploadBlockBlobFromByteArrayAsync(String containerName, String blobName, byte[] bytes, TransferOptions options) {
+        return async.submit(() -> {
+            uploadBlockBlobFromByteArray(containerName, blobName, bytes, options);
+            return null;
+        });
+    }
+
+    /**
+     * Uploads a block blob from a stream, without reading the whole stream into memory. Blocks of
+     * {@link TransferOptions#getBlockSize()} bytes are staged in parallel while the next ones are read, and heap use
+     * is bounded by block size * (parallelism + 1). The stream is read to its end but not closed.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param data the data to upload.
+     * @param options the block size, parallelism and retry options.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     */
+    public void uploadBlockBlobFromStream(String containerName, String blobName, InputStream data, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.upload");
+        try {
+            final CloudBlockBlob blob = getBlockBlobReference(containerName, blobName);
+            sample.addBytes(BlockBlobUploader.upload(blob, data::read, options,
+                    (buffer, length) -> uploadInOneRequest(blob, buffer, 0, length, null)));
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            forgetDownload(containerName, blobName);
+            sample.stop();
+        }
+    }
+
+    /**
+     * Uploads a block blob from a channel, without reading the whole channel into memory.
+     * The channel is read to its end but not closed.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param data the data to upload.
+     * @param options the block size, parallelism and retry options.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @see #uploadBlockBlobFromStream(String, String, InputStream, TransferOptions)
+     */
+    public void uploadBlockBlobFromChannel(String containerName, String blobName, final ReadableByteChannel data, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.upload");
+        try {
+            final CloudBlockBlob blob = getBlockBlobReference(containerName, blobName);
+            sample.addBytes(BlockBlobUploader.upload(blob, (buffer, offset, length) -> data.read(ByteBuffer.wrap(buffer, offset, length)), options,
+                    (buffer, length) -> uploadInOneRequest(blob, buffer, 0, length, null)));
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            forgetDownload(containerName, blobName);
+            sample.stop();
+        }
+    }
+
+    /**
+     * Uploads a block blob from a file without reading it into heap buffers. Each block of
+     * {@link TransferOptions#getBlockSize()} bytes is memory-mapped and staged straight from the mapping, in
+     * parallel; a region is dropped as soon as its block is staged. Files that fit in a single block
+     * are uploaded in one request. The file must not change during the upload.
+     * @param containerName the container name to upload the blob to.
+     * @param blobName the blob name.
+     * @param file the file to upload.
+     * @param options the block size, parallelism and retry options.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     */
+    public void uploadBlockBlobFromFile(String containerName, String blobName, Path file, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.upload");
+        try {
+            CloudBlockBlob blob = getBlockBlobReference(containerName, blobName);
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                final long length = channel.size();
+                sample.addBytes(length);
+                final int blockSize = options.getBlockSize();
+                if(length <= blockSize) {
+                    final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    call(requestOptions -> {
+                        blob.upload(new ByteBufferInputStream(data.duplicate()), length, null, requestOptions, null);
+                        return null;
+                    });
+                    return;
+                }
+
+                try (BlockBlobUploader uploader = new BlockBlobUploader(blob, options)) {
+                    for(long position = 0; position < length; position += blockSize)
+                        uploader.stage(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(blockSize, length - position)));
+                    uploader.commit();
+                }
+            }
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            forgetDownload(containerName, blobName);
+            sample.stop();
+        }
+    }
+
     /**
      * Downloads a blob to a file.
      * @param containerName the container name to download this blob form.
@@ -122,7 +650,248 @@ public class BlobUtils
      */
     public void downloadToFile(String containerName, String blobName, File file)
             throws URISyntaxException, StorageException, IOException {
-        getBlobReferenceFromServer(containerName, blobName).downloadToFile(file.getAbsolutePath());
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.download");
+        try {
+            final CloudBlob blob = fetchBlobReference(containerName, blobName);
+            call(requestOptions -> {
+                blob.downloadToFile(file.getAbsolutePath(), null, requestOptions, null);
+                return null;
+            });
+            sample.addBytes(file.length());
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Downloads a blob to a file using parallel range requests of {@link TransferOptions#getBlockSize()} bytes.
+     * The blob length is fetched once, the file is sized up front and every range is written straight to its
+     * offset, so at most {@link TransferOptions#getParallelism()} ranges are held in memory. Ranges are pinned
+     * to the ETag seen when the length was fetched; a blob modified during the download fails it.
+     * @param containerName the container name to download this blob form.
+     * @param blobName the blob name.
+     * @param file the file to download this blob to.
+     * @param options the range size, parallelism and retry options.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     */
+    public void downloadToFile(String containerName, String blobName, File file, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.download");
+        try {
+            final CloudBlob blob = fetchBlobReference(containerName, blobName);
+            final long length = blob.getProperties().getLength();
+            final AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+            final int rangeSize = options.getBlockSize();
+            final BufferPool pool = buffers;
+
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw");
+                 ParallelTransfer transfer = new ParallelTransfer(options)) {
+                output.setLength(length);
+                final FileChannel channel = output.getChannel();
+
+                for(long position = 0; position < length; position += rangeSize) {
+                    final long offset = position;
+                    final int count = (int) Math.min(rangeSize, length - position);
+                    transfer.submit(() -> {
+                        final ByteBuffer range = pool.acquire(count);
+                        try {
+                            range.limit(downloadRange(blob, offset, count, range, sameVersion));
+                            while(range.hasRemaining())
+                                channel.write(range, offset + range.position());
+                        } finally {
+                            pool.release(range);
+                        }
+                        return null;
+                    });
+                }
+                transfer.await();
+            }
+            sample.addBytes(length);
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Downloads a blob into the remaining space of a buffer, heap or direct, using parallel range requests of
+     * {@link TransferOptions#getBlockSize()} bytes. Heap buffers are written by the SDK directly; direct buffers
+     * receive each range with a single copy. Ranges are pinned to the ETag seen when the length was fetched.
+     * @param containerName the container name to download this blob form.
+     * @param blobName the blob name.
+     * @param target the buffer; its position advances past the blob.
+     * @param options the range size, parallelism and retry options.
+     * @return the number of bytes written.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @throws java.nio.BufferOverflowException if the blob does not fit; nothing is downloaded then.
+     */
+    public int downloadToBuffer(String containerName, String blobName, ByteBuffer target, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.download");
+        try {
+            final CloudBlob blob = fetchBlobReference(containerName, blobName);
+            if(blob.getProperties().getLength() > target.remaining())
+                throw new BufferOverflowException();
+            final int length = downloadToBuffer(blob, target, options);
+            sample.addBytes(length);
+            return length;
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Downloads a blob into a buffer taken from a pool, sized to the blob.
+     * @param containerName the container name to download this blob form.
+     * @param blobName the blob name.
+     * @param pool the pool to take the buffer from; release the buffer to it once done with.
+     * @param options the range size, parallelism and retry options.
+     * @return the buffer, flipped: from position 0 to the length of the blob.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     * @see #downloadToBuffer(String, String, ByteBuffer, TransferOptions)
+     */
+    public ByteBuffer downloadToBuffer(String containerName, String blobName, BufferPool pool, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.download");
+        ByteBuffer buffer = null;
+        try {
+            final CloudBlob blob = fetchBlobReference(containerName, blobName);
+            final long length = blob.getProperties().getLength();
+            if(length > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Blob " + blobName + " is too large for a buffer: " + length + " bytes");
+            buffer = pool.acquire((int) length);
+            downloadToBuffer(blob, buffer, options);
+            buffer.flip();
+            sample.addBytes(length);
+
+            final ByteBuffer result = buffer;
+            buffer = null;
+            return result;
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            pool.release(buffer);
+            sample.stop();
+        }
+    }
+
+    /**
+     * Downloads a blob whose properties were fetched into a buffer, in parallel ranges pinned to the fetched ETag.
+     * @return the number of bytes written; the position of target advances past them.
+     */
+    private static int downloadToBuffer(CloudBlob blob, ByteBuffer target, TransferOptions options) throws StorageException, IOException {
+        final int length = (int) blob.getProperties().getLength();
+        final AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        final int start = target.position();
+        final int rangeSize = options.getBlockSize();
+
+        try (ParallelTransfer transfer = new ParallelTransfer(options)) {
+            for(int offset = 0; offset < length; offset += rangeSize) {
+                final int count = Math.min(rangeSize, length - offset);
+                final ByteBuffer range = target.duplicate();
+                range.limit(start + offset + count);
+                range.position(start + offset);
+                final long rangeOffset = offset;
+                transfer.submit(() -> downloadRange(blob, rangeOffset, count, range, sameVersion));
+            }
+            transfer.await();
+        }
+        target.position(start + length);
+        return length;
+    }
+
+    /**
+     * Downloads a blob into a channel, e.g. a socket or a file, using parallel range requests. Up to
+     * {@link TransferOptions#getParallelism()} ranges are fetched at a time into pooled buffers, then written to
+     * the channel in order, so memory use is bounded by range size * parallelism. The channel is not closed.
+     * @param containerName the container name to download this blob form.
+     * @param blobName the blob name.
+     * @param channel the channel to write to.
+     * @param options the range size, parallelism and retry options.
+     * @return the number of bytes written.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws IOException
+     */
+    public long downloadToChannel(String containerName, String blobName, WritableByteChannel channel, TransferOptions options)
+            throws URISyntaxException, StorageException, IOException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.download");
+        try {
+            final CloudBlob blob = fetchBlobReference(containerName, blobName);
+            final long length = blob.getProperties().getLength();
+            final AccessCondition sameVersion = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+            final int rangeSize = options.getBlockSize();
+            final BufferPool pool = buffers;
+            final ByteBuffer[] window = new ByteBuffer[options.getParallelism()];
+
+            try (ParallelTransfer transfer = new ParallelTransfer(options)) {
+                for(long position = 0; position < length; ) {
+                    int ranges = 0;
+                    try {
+                        for(; ranges < window.length && position < length; ranges++, position += rangeSize) {
+                            final long offset = position;
+                            final int count = (int) Math.min(rangeSize, length - position);
+                            final ByteBuffer range = pool.acquire(count);
+                            window[ranges] = range;
+                            transfer.submit(() -> range.limit(downloadRange(blob, offset, count, range, sameVersion)));
+                        }
+                        transfer.await();
+                        for(int i = 0; i < ranges; i++) {
+                            while(window[i].hasRemaining())
+                                channel.write(window[i]);
+                        }
+                    } catch (Exception e) {
+                        // Ranges still running must not write into buffers back in the pool.
+                        transfer.close();
+                        throw e;
+                    } finally {
+                        for(int i = 0; i < ranges; i++) {
+                            pool.release(window[i]);
+                            window[i] = null;
+                        }
+                    }
+                }
+            }
+            sample.addBytes(length);
+            return length;
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Downloads a blob to a file asynchronously, fetching ranges in parallel. Blocks while the maximum number of
+     * asynchronous operations is in flight.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @param file the file to write to.
+     * @param options the range size, parallelism and retry options.
+     * @return a future completed once the file is written.
+     * @see #downloadToFile(String, String, File, TransferOptions)
+     */
+    public CompletableFuture<Void> downloadToFileAsync(String containerName, String blobName, File file, TransferOptions options) {
+        return async.submit(() -> {
+            downloadToFile(containerName, blobName, file, options);
+            return null;
+        });
     }
 
     /**
@@ -136,14 +905,84 @@ public class BlobUtils
      * @throws IOException
      */
     public String downloadText(String containerName, String blockBlobName) throws URISyntaxException, StorageException, IOException, BlobNotFoundException {
-        CloudBlockBlob blob = getBlockBlobReference(containerName, blockBlobName);
-        if(blob.exists()) {
-            return blob.downloadText();
-        } else {
-            throw new BlobNotFoundException("Unable to locate blob " + blockBlobName + " inside " + containerName);
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.downloadText");
+        try {
+            final BlobCache cache = downloads;
+            if(cache != null)
+                return new String(download(cache, containerName, blockBlobName, sample));
+
+            CloudBlockBlob blob = getBlockBlobReference(containerName, blockBlobName);
+            final String key = blobKey(containerName, blockBlobName);
+            if(exists(key, blob)) {
+                try {
+                    final String text = call(requestOptions -> blob.downloadText(null, null, requestOptions, null));
+                    if(blob.getProperties() != null)
+                        sample.addBytes(blob.getProperties().getLength());
+                    return text;
+                } catch (StorageException e) {
+                    forgetIfNotFound(containerName, key, e);
+                    throw new BlobNotFoundException("Unable to locate blob " + blockBlobName + " inside " + containerName, e);
+                }
+            } else {
+                throw new BlobNotFoundException("Unable to locate blob " + blockBlobName + " inside " + containerName);
+            }
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
         }
     }
 
+    /**
+     * Reads a blob through the download cache: served from the cache while fresh, revalidated with If-None-Match
+     * otherwise, and downloaded on a miss or a change.
+     * @return the content of the blob.
+     */
+    private byte[] download(BlobCache cache, String containerName, String blobName, StorageMetrics.Sample sample)
+            throws URISyntaxException, StorageException, BlobNotFoundException {
+        final String key = blobKey(containerName, blobName);
+        final BlobCache.Entry cached = cache.get(key);
+        if(cached != null && cache.isFresh(cached))
+            return cached.data;
+
+        final CloudBlockBlob blob = getBlockBlobReference(containerName, blobName);
+        final AccessCondition condition = cached != null ? AccessCondition.generateIfNoneMatchCondition(cached.etag) : null;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try {
+            call(requestOptions -> {
+                data.reset();
+                blob.download(data, condition, requestOptions, null);
+                return null;
+            });
+        } catch (StorageException e) {
+            if(cached != null && e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.revalidated(cached);
+                return cached.data;
+            }
+            cache.invalidate(key);
+            forgetIfNotFound(containerName, key, e);
+            throw new BlobNotFoundException("Unable to locate blob " + blobName + " inside " + containerName, e);
+        }
+
+        final byte[] bytes = data.toByteArray();
+        cache.put(key, blob.getProperties().getEtag(), bytes);
+        sample.addBytes(bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Downloads a block blob as text asynchronously. Blocks while the maximum number of asynchronous operations is
+     * in flight.
+     * @param containerName the container name to download this blob form.
+     * @param blockBlobName the blob name.
+     * @return a future completed with the blob's text.
+     * @see #downloadText(String, String)
+     */
+    public CompletableFuture<String> downloadTextAsync(String containerName, String blockBlobName) {
+        return async.submit(() -> downloadText(containerName, blockBlobName));
+    }
+
     /**
      * Creates a sharable URL for a blob.
      * @param containerName the container name this blob resides in.
@@ -159,12 +998,24 @@ public class BlobUtils
      */
     public URL createSharedBlobURL(String containerName, String blobName, String groupPolicyIdentifier, int expireTimeSeconds, EnumSet<SharedAccessBlobPermissions> permissions)
             throws URISyntaxException, StorageException, InvalidKeyException, MalformedURLException, ContainerNotFoundException {
-        CloudBlobContainer container = client.getContainerReference(containerName);
+        CloudBlobContainer container = getContainerReference(containerName);
 
-        if(!container.exists())
-            throw new ContainerNotFoundException("Unable to locate container " + containerName);
+        final URI blobUri;
+        if(localSasSigning) {
+            blobUri = container.getBlockBlobReference(blobName).getUri();
+        } else {
+            if(!exists(containerName, container))
+                throw new ContainerNotFoundException("Unable to locate container " + containerName);
 
-        CloudBlob blob = container.getBlobReferenceFromServer(blobName);
+            CloudBlob blob;
+            try {
+                blob = call(requestOptions -> container.getBlobReferenceFromServer(blobName, null, null, requestOptions, null));
+            } catch (StorageException e) {
+                forgetIfNotFound(containerName, blobKey(containerName, blobName), e);
+                throw e;
+            }
+            blobUri = blob.getUri();
+        }
 
         Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
         cal.setTime(new Date());
@@ -174,7 +1025,7 @@ public class BlobUtils
         policy.setSharedAccessExpiryTime(cal.getTime());
         String sas = container.generateSharedAccessSignature(policy, groupPolicyIdentifier);
 
-        return new URL(blob.getUri() + "?" + sas);
+        return new URL(blobUri + "?" + sas);
     }
 
     /**
@@ -230,6 +1081,148 @@ public class BlobUtils
         return createSharedBlobURL(containerName, blobName, null, expireTimeSeconds, permissions);
     }
 
+    /**
+     * Creates a generator of blob shared access URLs for this account. It signs locally with cached keys and
+     * memoizes URLs per expiry bucket, for callers issuing far more URLs than createSharedBlobURL keeps up with.
+     * @param options the bucket width and memo size.
+     * @return the generator.
+     * @throws InvalidKeyException
+     */
+    public SasUrlGenerator createSasUrlGenerator(SasOptions options) throws InvalidKeyException {
+        return new SasUrlGenerator(account, options);
+    }
+
+    /**
+     * Lists the blobs below a prefix, splitting it by virtual directory into prefixes listed in parallel. Resumes
+     * from the checkpoint of the options, if any, and records the progress in it.
+     * @param containerName the container name.
+     * @param prefix the prefix to list below; empty for the whole container.
+     * @param options the listing options.
+     * @param consumer the consumer; called concurrently from the listing threads, in no particular order.
+     * @return the number of blobs listed.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws ContainerNotFoundException
+     */
+    public long listBlobs(String containerName, String prefix, BlobListOptions options, Consumer<? super ListBlobItem> consumer)
+            throws URISyntaxException, StorageException, ContainerNotFoundException {
+        return new BlobLister(getExistingContainer(containerName), prefix, options).forEach(consumer);
+    }
+
+    /**
+     * Lists the blobs below a prefix as a stream, splitting it by virtual directory into prefixes listed in parallel
+     * while the stream is consumed. Resumes from the checkpoint of the options, if any, and records the progress in
+     * it as blobs are consumed. Listing failures surface from the stream as
+     * {@link com.tavi.storage.exceptions.UncheckedStorageException}.
+     * @param containerName the container name.
+     * @param prefix the prefix to list below; empty for the whole container.
+     * @param options the listing options.
+     * @return the blobs, in no particular order; close the stream to stop listing early.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws ContainerNotFoundException
+     */
+    public Stream<ListBlobItem> listBlobs(String containerName, String prefix, BlobListOptions options)
+            throws URISyntaxException, StorageException, ContainerNotFoundException {
+        return new BlobLister(getExistingContainer(containerName), prefix, options).stream();
+    }
+
+    /**
+     * Deletes every blob below a prefix, with its snapshots, listing and deleting in parallel. Blobs that fail to
+     * delete do not stop the operation; they are reported in the result. Blobs deleted by someone else meanwhile
+     * count as deleted.
+     * @param containerName the container name.
+     * @param prefix the prefix to delete below; empty for the whole container.
+     * @param options the parallelism, listing options and failure reporting.
+     * @return the number of blobs deleted and the failures.
+     * @throws URISyntaxException
+     * @throws StorageException if the listing fails.
+     * @throws ContainerNotFoundException
+     */
+    public BlobBulkResult deleteBlobs(String containerName, String prefix, BlobBulkOptions options)
+            throws URISyntaxException, StorageException, ContainerNotFoundException {
+        final Stream<ListBlobItem> blobs = listBlobs(containerName, prefix, options.getListOptions());
+        return new BlobBulkRunner(options, throttle).run(blobs, (blob, requestOptions) -> {
+            try {
+                blob.delete(DeleteSnapshotsOption.INCLUDE_SNAPSHOTS, null, requestOptions, null);
+            } catch (StorageException e) {
+                if(e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+                    throw e;
+            }
+            forgetBlob(containerName, blob.getName());
+            return null;
+        }, false);
+    }
+
+    /**
+     * Copies every blob below a prefix to another prefix with server-side copies, listing and starting copies in
+     * parallel. Copies the service does not finish at once are polled until they do. Blobs that fail to copy do not
+     * stop the operation; they are reported in the result.
+     * @param sourceContainerName the container to copy from.
+     * @param prefix the prefix to copy below; it is replaced by targetPrefix in the target blob names.
+     * @param targetContainerName the container to copy to; may be the source container.
+     * @param targetPrefix the prefix of the copies; must not fall below prefix within the same container.
+     * @param options the parallelism, copy polling, listing options and failure reporting.
+     * @return the number of blobs copied and the failures.
+     * @throws URISyntaxException
+     * @throws StorageException if the listing fails.
+     * @throws ContainerNotFoundException
+     */
+    public BlobBulkResult copyBlobs(String sourceContainerName, String prefix, String targetContainerName, String targetPrefix, BlobBulkOptions options)
+            throws URISyntaxException, StorageException, ContainerNotFoundException {
+        if(sourceContainerName.equals(targetContainerName) && targetPrefix.startsWith(prefix))
+            throw new IllegalArgumentException("The copies would be listed as blobs to copy");
+
+        final CloudBlobContainer target = getExistingContainer(targetContainerName);
+        final Stream<ListBlobItem> blobs = listBlobs(sourceContainerName, prefix, options.getListOptions());
+        return new BlobBulkRunner(options, throttle).run(blobs, (blob, requestOptions) -> {
+            final String targetName = targetPrefix + blob.getName().substring(prefix.length());
+            final CloudBlob copy;
+            if(blob instanceof CloudPageBlob)
+                copy = target.getPageBlobReference(targetName);
+            else if(blob instanceof CloudAppendBlob)
+                copy = target.getAppendBlobReference(targetName);
+            else
+                copy = target.getBlockBlobReference(targetName);
+
+            copy.startCopy(blob.getUri(), null, null, requestOptions, null);
+            forgetBlob(targetContainerName, targetName);
+            final CopyState state = copy.getCopyState();
+            if(state == null || state.getStatus() == CopyStatus.SUCCESS)
+                return null;
+            if(state.getStatus() == CopyStatus.PENDING)
+                return copy;
+            throw new StorageException("Copy" + state.getStatus(), "Copy to " + targetName + " ended with status "
+                    + state.getStatus() + ": " + state.getStatusDescription(), null);
+        }, true);
+    }
+
+    /**
+     * Drops a blob that was deleted or replaced from the caches and the existence memoization.
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     */
+    private void forgetBlob(String containerName, String blobName) {
+        forgetDownload(containerName, blobName);
+        final TtlCache<Boolean> memo = existing;
+        if(memo != null)
+            memo.invalidate(blobKey(containerName, blobName));
+    }
+
+    /**
+     * @param containerName the container name.
+     * @return the reference of a container known to exist.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws ContainerNotFoundException
+     */
+    private CloudBlobContainer getExistingContainer(String containerName) throws URISyntaxException, StorageException, ContainerNotFoundException {
+        final CloudBlobContainer container = getContainerReference(containerName);
+        if(!exists(containerName, container))
+            throw new ContainerNotFoundException("Unable to locate container " + containerName);
+        return container;
+    }
+
     /**
      * Get properties of a blob.
      * @param containerName the container name this blob resides in.
@@ -239,7 +1232,51 @@ public class BlobUtils
      * @throws StorageException
      */
     public BlobProperties getProperties(String containerName, String blobName) throws URISyntaxException, StorageException {
-        return getBlobReferenceFromServer(containerName, blobName).getProperties();
+        return getAttributes(containerName, blobName).getProperties();
+    }
+
+    /**
+     * Get the properties and metadata of a blob with a single service request, or none while they are cached.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @return the attributes of the blob.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @see #withAttributeCache(int, long, TimeUnit)
+     */
+    public BlobAttributes getAttributes(String containerName, String blobName) throws URISyntaxException, StorageException {
+        final TtlCache<BlobAttributes> cache = attributes;
+        final String key = blobKey(containerName, blobName);
+        if(cache != null) {
+            final BlobAttributes cached = cache.get(key);
+            if(cached != null)
+                return cached;
+        }
+
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "blob.getProperties");
+        try {
+            final BlobAttributes fetched = new BlobAttributes(getBlobReferenceFromServer(containerName, blobName));
+            if(cache != null)
+                cache.put(key, fetched);
+            return fetched;
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Get properties of a blob asynchronously. Blocks while the maximum number of asynchronous operations is in
+     * flight.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @return a future completed with the {@link BlobProperties}.
+     * @see #getProperties(String, String)
+     */
+    public CompletableFuture<BlobProperties> getPropertiesAsync(String containerName, String blobName) {
+        return async.submit(() -> getProperties(containerName, blobName));
     }
 
     /**
@@ -251,7 +1288,7 @@ public class BlobUtils
      * @throws StorageException
      */
     public Map<String, String> getMetadata(String containerName, String blobName) throws URISyntaxException, StorageException {
-        return getBlobReferenceFromServer(containerName, blobName).getMetadata();
+        return new HashMap<>(getAttributes(containerName, blobName).getMetadata());
     }
 
     /**
@@ -263,7 +1300,7 @@ public class BlobUtils
      * @throws StorageException
      */
     public CloudBlockBlob getBlockBlobReference(String containerName, String blobName) throws URISyntaxException, StorageException {
-        CloudBlobContainer container = client.getContainerReference(containerName);
+        CloudBlobContainer container = getContainerReference(containerName);
         return container.getBlockBlobReference(blobName);
     }
 
@@ -276,10 +1313,26 @@ public class BlobUtils
      * @throws StorageException
      */
     public CloudAppendBlob getAppendBlobReference(String containerName, String blobName) throws URISyntaxException, StorageException {
-        CloudBlobContainer container = client.getContainerReference(containerName);
+        CloudBlobContainer container = getContainerReference(containerName);
         return container.getAppendBlobReference(blobName);
     }
 
+    /**
+     * Creates a writer that appends records to an append blob in blocks of many records. When a blob nears the
+     * block limit the writer moves on to "blobName.1", "blobName.2", ...; it starts on the first blob of that
+     * sequence that is not full, creating it if needed.
+     * @param containerName the container name.
+     * @param blobName the name of the first blob.
+     * @param options the writer options.
+     * @return the writer; close it to append the remaining records.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws ContainerNotFoundException
+     */
+    public AppendBlobWriter createAppendBlobWriter(String containerName, String blobName, AppendBlobWriterOptions options) throws URISyntaxException, StorageException, ContainerNotFoundException {
+        return AppendBlobWriter.open(getExistingContainer(containerName), blobName, options);
+    }
+
     /**
      * Get a page blob reference.
      * @param containerName the container name this blob resides in.
@@ -289,10 +1342,61 @@ public class BlobUtils
      * @throws StorageException
      */
     public CloudPageBlob getPageBlobReference(String containerName, String blobName) throws URISyntaxException, StorageException {
-        CloudBlobContainer container = client.getContainerReference(containerName);
+        CloudBlobContainer container = getContainerReference(containerName);
         return container.getPageBlobReference(blobName);
     }
 
+    /**
+     * Opens a channel with random access to an existing page blob, caching its pages and merging the writes of
+     * adjacent pages into single requests.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @param options the cache and request size options.
+     * @return the channel; close it to write the remaining dirty pages.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws BlobNotFoundException
+     */
+    public PageBlobChannel openPageBlobChannel(String containerName, String blobName, PageBlobChannelOptions options) throws URISyntaxException, StorageException, BlobNotFoundException {
+        final CloudPageBlob blob = getPageBlobReference(containerName, blobName);
+        try {
+            call(requestOptions -> {
+                blob.downloadAttributes(null, requestOptions, null);
+                return null;
+            });
+        } catch (StorageException e) {
+            forgetIfNotFound(containerName, blobKey(containerName, blobName), e);
+            throw new BlobNotFoundException("Unable to locate blob " + blobName + " inside " + containerName, e);
+        }
+        if(blob.getProperties().getBlobType() != BlobType.PAGE_BLOB)
+            throw new StorageException("InvalidBlobType", "Blob " + blobName + " inside " + containerName + " is not a page blob", null);
+        forgetDownload(containerName, blobName);
+        return new PageBlobChannel(blob, blob.getProperties().getLength(), options);
+    }
+
+    /**
+     * Creates a page blob of zeros, replacing any blob of the same name, and opens a channel with random access to
+     * it.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @param size the size of the blob, a multiple of {@link PageBlobChannelOptions#PAGE_SIZE}.
+     * @param options the cache and request size options.
+     * @return the channel; close it to write the remaining dirty pages.
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    public PageBlobChannel createPageBlobChannel(String containerName, String blobName, long size, PageBlobChannelOptions options) throws URISyntaxException, StorageException {
+        if(size < 0 || size % PageBlobChannelOptions.PAGE_SIZE != 0)
+            throw new IllegalArgumentException("size must be a non-negative multiple of " + PageBlobChannelOptions.PAGE_SIZE);
+        final CloudPageBlob blob = getPageBlobReference(containerName, blobName);
+        call(requestOptions -> {
+            blob.create(size, null, requestOptions, null);
+            return null;
+        });
+        forgetBlob(containerName, blobName);
+        return new PageBlobChannel(blob, size, options);
+    }
+
     /**
      * Get a blob reference. This method does a service request to retrieve the blob's metadata and properties.
      * @param containerName the container name this blob resides in.
@@ -302,8 +1406,158 @@ public class BlobUtils
      * @throws StorageException
      */
     public CloudBlob getBlobReferenceFromServer(String containerName, String blobName) throws URISyntaxException, StorageException {
-        CloudBlobContainer container = client.getContainerReference(containerName);
+        final TtlCache<CloudBlob> cache = serverReferences;
+        if(cache != null) {
+            final CloudBlob cached = cache.get(blobKey(containerName, blobName));
+            if(cached != null)
+                return cached;
+        }
+        final CloudBlob blob = fetchBlobReference(containerName, blobName);
+        if(cache != null)
+            cache.put(blobKey(containerName, blobName), blob);
+        return blob;
+    }
+
+    /**
+     * Gets a blob reference with its properties and metadata from the service, bypassing the download cache.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @return a blob reference of its own.
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    private CloudBlob fetchBlobReference(String containerName, String blobName) throws URISyntaxException, StorageException {
+        CloudBlobContainer container = getContainerReference(containerName);
         // No need to check if exists - will throw if it doesn't.
-        return container.getBlobReferenceFromServer(blobName);
+        return call(requestOptions -> container.getBlobReferenceFromServer(blobName, null, null, requestOptions, null));
+    }
+
+    /**
+     * Get a container reference. References are cached per container name.
+     * @param containerName the container name.
+     * @return a container reference.
+     * @throws URISyntaxException
+     * @throws StorageException
+     */
+    public CloudBlobContainer getContainerReference(String containerName) throws URISyntaxException, StorageException {
+        final TtlCache<CloudBlobContainer> cache = containers;
+        CloudBlobContainer container = cache.get(containerName);
+        if(container == null)
+            container = cache.putIfAbsent(containerName, client.getContainerReference(containerName));
+        return container;
+    }
+
+    /**
+     * Builds the existence memoization key of a blob.
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @return the key.
+     */
+    private static String blobKey(String containerName, String blobName) {
+        return containerName + "/" + blobName;
+    }
+
+    /**
+     * Downloads a range of a blob into the remaining space of a buffer, without moving its position. Heap buffers
+     * are filled by the SDK in place. Safe to retry: every attempt starts over at the same position.
+     * @return the number of bytes downloaded.
+     */
+    private static int downloadRange(CloudBlob blob, long offset, int count, ByteBuffer target, AccessCondition sameVersion)
+            throws StorageException, IOException {
+        if(target.hasArray())
+            return blob.downloadRangeToByteArray(offset, (long) count, target.array(), target.arrayOffset() + target.position(), sameVersion, null, null);
+        final ByteBuffer range = target.duplicate();
+        blob.downloadRange(offset, (long) count, new ByteBufferOutputStream(range), sameVersion, null, null);
+        return range.position() - target.position();
+    }
+
+    /**
+     * Drops a blob from the download and attribute caches after it was written.
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     */
+    private void forgetDownload(String containerName, String blobName) {
+        final BlobCache cache = downloads;
+        if(cache != null)
+            cache.invalidate(blobKey(containerName, blobName));
+        final TtlCache<CloudBlob> references = serverReferences;
+        if(references != null)
+            references.invalidate(blobKey(containerName, blobName));
+        final TtlCache<BlobAttributes> cachedAttributes = attributes;
+        if(cachedAttributes != null)
+            cachedAttributes.invalidate(blobKey(containerName, blobName));
+    }
+
+    /**
+     * Runs a request through the throttle, if any.
+     * @param call the request.
+     * @return the result.
+     * @throws StorageException
+     */
+    private <T, E extends Exception> T call(StorageThrottle.OptionsCall<BlobRequestOptions, T, E> call) throws StorageException, E {
+        return StorageThrottle.call(throttle, BlobRequestOptions::new, call);
+    }
+
+    /**
+     * Checks if a container exists, trusting a previous successful check while it is memoized.
+     * @param key the container name.
+     * @param container the container reference.
+     * @return true if the container exists.
+     * @throws StorageException
+     */
+    private boolean exists(String key, CloudBlobContainer container) throws StorageException {
+        final TtlCache<Boolean> memo = existing;
+        if(memo == null)
+            return call(requestOptions -> container.exists(null, requestOptions, null));
+        if(memo.get(key) != null)
+            return true;
+
+        final boolean exists = call(requestOptions -> container.exists(null, requestOptions, null));
+        if(exists)
+            memo.put(key, Boolean.TRUE);
+        return exists;
+    }
+
+    /**
+     * Checks if a blob exists, trusting a previous successful check while it is memoized.
+     * @param key the blob key.
+     * @param blob the blob reference.
+     * @return true if the blob exists.
+     * @throws StorageException
+     */
+    private boolean exists(String key, CloudBlob blob) throws StorageException {
+        final TtlCache<Boolean> memo = existing;
+        if(memo == null)
+            return call(requestOptions -> blob.exists(null, requestOptions, null));
+        if(memo.get(key) != null)
+            return true;
+
+        final boolean exists = call(requestOptions -> blob.exists(null, requestOptions, null));
+        if(exists)
+            memo.put(key, Boolean.TRUE);
+        return exists;
+    }
+
+    /**
+     * Forgets memoized existence checks if the service reported a blob or its container as missing.
+     * A missing container also drops every blob memoized inside it.
+     * @param containerName the container name.
+     * @param key the blob key.
+     * @param e the service error.
+     * @throws StorageException e itself, if nothing is missing.
+     */
+    private void forgetIfNotFound(String containerName, String key, StorageException e) throws StorageException {
+        if(e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+            throw e;
+
+        final TtlCache<Boolean> memo = existing;
+        if(memo == null)
+            return;
+        if(StorageErrorCodeStrings.CONTAINER_NOT_FOUND.equals(e.getErrorCode())) {
+            memo.invalidate(containerName);
+            memo.invalidatePrefix(containerName + "/");
+        } else {
+            memo.invalidate(key);
+        }
     }
 }
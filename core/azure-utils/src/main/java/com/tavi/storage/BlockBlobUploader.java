@@ -0,0 +1,275 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Uploads a block blob as a sequence of blocks staged in parallel, then commits them in order.
+ *
+ * Block ids are derived from the block index only, so a failed upload of the same data with the same block size
+ * can be resumed: blocks already staged with the expected size are not uploaded again.
+ *
+ * Not thread safe - blocks are staged from a single thread.
+ */
+final class BlockBlobUploader implements Closeable
+{
+    /** The most blocks a block blob can have. */
+    static final int MAX_BLOCKS = 50000;
+
+    private final CloudBlockBlob blob;
+    private final ParallelTransfer transfer;
+    private final List<BlockEntry> blocks = new ArrayList<>();
+
+    /** Sizes of the blocks staged by a previous attempt, keyed by block id. Empty unless resuming. */
+    private final Map<String, Long> staged;
+
+    /**
+     * Initializes an uploader. When resuming, this looks up the uncommitted blocks of the blob.
+     * @param blob the blob to upload.
+     * @param options the transfer options.
+     * @throws StorageException
+     */
+    BlockBlobUploader(CloudBlockBlob blob, TransferOptions options) throws StorageException {
+        this.blob = blob;
+        this.staged = options.isResume() ? stagedBlocks(blob) : new HashMap<String, Long>();
+        this.transfer = new ParallelTransfer(options);
+    }
+
+    /**
+     * Stages the next block, waiting for a free slot if needed. The data must not change until
+     * {@link #commit()} returns.
+     * @param data the block data.
+     * @param offset the offset of the block in data.
+     * @param length the length of the block.
+     * @throws StorageException if a previous block failed.
+     * @throws IOException if a previous block failed.
+     */
+    void stage(byte[] data, int offset, int length) throws StorageException, IOException {
+        stage(data, offset, length, null);
+    }
+
+    /**
+     * Stages the next block, waiting for a free slot if needed.
+     * @param data the block data.
+     * @param offset the offset of the block in data.
+     * @param length the length of the block.
+     * @param onStaged run once the block no longer needs data, e.g. to reuse the buffer; may be null.
+     * @throws StorageException if a previous block failed.
+     * @throws IOException if a previous block failed.
+     */
+    void stage(final byte[] data, final int offset, final int length, Runnable onStaged) throws StorageException, IOException {
+        final String blockId = nextBlockId(length);
+        if(blockId == null) {
+            if(onStaged != null)
+                onStaged.run();
+            return;
+        }
+
+        transfer.submit(() -> {
+            blob.uploadBlock(blockId, new ByteArrayInputStream(data, offset, length), length);
+            return null;
+        }, onStaged);
+    }
+
+    /**
+     * Stages the next block from a buffer, e.g. a memory-mapped file region, waiting for a free slot if needed.
+     * The block is the remaining bytes of data; each attempt reads its own duplicate, so data is never modified.
+     * @param data the block data.
+     * @throws StorageException if a previous block failed.
+     * @throws IOException if a previous block failed.
+     */
+    void stage(final ByteBuffer data) throws StorageException, IOException {
+        final int length = data.remaining();
+        final String blockId = nextBlockId(length);
+        if(blockId != null)
+            transfer.submit(() -> {
+                blob.uploadBlock(blockId, new ByteBufferInputStream(data.duplicate()), length);
+                return null;
+            });
+    }
+
+    /**
+     * Waits for every staged block and commits the block list.
+     * @throws StorageException
+     * @throws IOException
+     */
+    void commit() throws StorageException, IOException {
+        transfer.await();
+        blob.commitBlockList(blocks);
+    }
+
+    /**
+     * Waits for every staged block and commits the block list if a condition holds.
+     * @param condition the condition of the commit; null for none.
+     * @throws StorageException
+     * @throws IOException
+     */
+    void commit(AccessCondition condition) throws StorageException, IOException {
+        if(condition == null) {
+            commit();
+            return;
+        }
+        transfer.await();
+        blob.commitBlockList(blocks, condition, null, null);
+    }
+
+    /**
+     * @return the number of blocks staged so far, including blocks skipped because a previous attempt staged them.
+     */
+    int getBlockCount() {
+        return blocks.size();
+    }
+
+    @Override
+    public void close() {
+        transfer.close();
+    }
+
+    /**
+     * Source of block data, e.g. a stream or a channel.
+     */
+    interface BlockSource
+    {
+        /**
+         * Reads up to length bytes.
+         * @return the number of bytes read, or -1 at the end of the data.
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Uploads data that fits in a single block in one request, e.g. through the throttle of the caller.
+     */
+    interface SingleUpload
+    {
+        /**
+         * @param data the data, starting at offset 0.
+         * @param length the length of the data.
+         */
+        void upload(byte[] data, int length) throws StorageException, IOException;
+    }
+
+    /**
+     * Uploads a block blob from a source of unknown length, staging each block while the next one is read.
+     * Blocks are read into a pool of {@link TransferOptions#getParallelism()} + 1 reusable buffers, so memory use
+     * is bounded by that many blocks regardless of the data size. Data that fits in a single block is uploaded
+     * in one request by single.
+     * @param blob the blob to upload.
+     * @param source the data.
+     * @param options the transfer options.
+     * @param single uploads data that fits in a single block.
+     * @return the number of bytes uploaded.
+     * @throws StorageException
+     * @throws IOException
+     */
+    static long upload(CloudBlockBlob blob, BlockSource source, TransferOptions options, SingleUpload single) throws StorageException, IOException {
+        final int blockSize = options.getBlockSize();
+        byte[] buffer = new byte[blockSize];
+        int filled = fill(source, buffer);
+        if(filled < blockSize) {
+            single.upload(buffer, filled);
+            return filled;
+        }
+
+        final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(options.getParallelism() + 1);
+        int allocated = 1;
+        long uploaded = 0;
+        try (BlockBlobUploader uploader = new BlockBlobUploader(blob, options)) {
+            while(filled > 0) {
+                final byte[] block = buffer;
+                uploader.stage(block, 0, filled, () -> buffers.offer(block));
+                uploaded += filled;
+
+                buffer = buffers.poll();
+                if(buffer == null && allocated <= options.getParallelism()) {
+                    buffer = new byte[blockSize];
+                    allocated++;
+                } else if(buffer == null) {
+                    buffer = take(buffers);
+                }
+                filled = fill(source, buffer);
+            }
+            uploader.commit();
+        }
+        return uploaded;
+    }
+
+    /**
+     * Reads until a buffer is full or the data ends.
+     * @return the number of bytes read.
+     */
+    private static int fill(BlockSource source, byte[] buffer) throws IOException {
+        int filled = 0;
+        while(filled < buffer.length) {
+            final int read = source.read(buffer, filled, buffer.length - filled);
+            if(read < 0)
+                break;
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> buffers) throws InterruptedIOException {
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free block buffer");
+        }
+    }
+
+    /**
+     * Registers the next block.
+     * @param length the block length.
+     * @return the id to stage the block under, or null if a previous attempt already staged it.
+     */
+    private String nextBlockId(long length) {
+        if(blocks.size() >= MAX_BLOCKS)
+            throw new IllegalArgumentException("A block blob cannot have more than " + MAX_BLOCKS + " blocks; use a larger block size");
+
+        final String blockId = blockId(blocks.size());
+        blocks.add(new BlockEntry(blockId));
+
+        final Long stagedLength = staged.get(blockId);
+        return stagedLength != null && stagedLength == length ? null : blockId;
+    }
+
+    /**
+     * @param index the block index.
+     * @return the id of the block at index; ids have the same length for every index.
+     */
+    static String blockId(int index) {
+        return Base64.getEncoder().encodeToString(String.format("block-%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, Long> stagedBlocks(CloudBlockBlob blob) throws StorageException {
+        final Map<String, Long> staged = new HashMap<>();
+        try {
+            for(BlockEntry entry : blob.downloadBlockList(BlockListingFilter.UNCOMMITTED, null, null, null))
+                staged.put(entry.getId(), entry.getSize());
+        } catch (StorageException e) {
+            // Nothing staged yet.
+            if(e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+                throw e;
+        }
+        return staged;
+    }
+}
@@ -0,0 +1,134 @@
+package com.tavi.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable buffers in power of two size classes, heap or direct. Released buffers are kept up to a byte
+ * budget, so steady-state transfers allocate close to nothing.
+ *
+ * Thread safe.
+ */
+public final class BufferPool
+{
+    /** Default byte budget of the buffers kept for reuse. */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    /** The smallest size class. */
+    private static final int MIN_CLASS = 12;
+
+    /** The pool of utils instances without a pool of their own. */
+    private static final class Shared
+    {
+        private static final BufferPool INSTANCE = new BufferPool(false, DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    private final boolean direct;
+    private final long maxPooledBytes;
+
+    /** Free buffers by size class: index i holds buffers of 2^(MIN_CLASS + i) bytes. */
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Initializes a pool.
+     * @param direct true for direct buffers, false for heap buffers.
+     * @param maxPooledBytes the byte budget of the buffers kept for reuse.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, long maxPooledBytes) {
+        if(maxPooledBytes < 0)
+            throw new IllegalArgumentException("maxPooledBytes must not be negative");
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+        this.free = new Queue[31 - MIN_CLASS];
+        for(int i = 0; i < free.length; i++)
+            free[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return the process-wide heap buffer pool.
+     */
+    public static BufferPool shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none is free.
+     * @param size the number of bytes needed.
+     * @return a cleared buffer whose limit is size; its capacity may be larger.
+     */
+    public ByteBuffer acquire(int size) {
+        if(size < 0)
+            throw new IllegalArgumentException("size must not be negative");
+        final int sizeClass = sizeClass(size);
+        ByteBuffer buffer = sizeClass < free.length ? free[sizeClass].poll() : null;
+        if(buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            reuses.incrementAndGet();
+        } else {
+            final int capacity = sizeClass < free.length ? 1 << (MIN_CLASS + sizeClass) : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            allocations.incrementAndGet();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must come from {@link #acquire(int)} and not be used afterwards.
+     * Buffers over the byte budget are left to the garbage collector.
+     * @param buffer the buffer; null is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || buffer.isDirect() != direct || Integer.bitCount(buffer.capacity()) != 1)
+            return;
+        final int sizeClass = Integer.numberOfTrailingZeros(buffer.capacity()) - MIN_CLASS;
+        if(sizeClass < 0 || sizeClass >= free.length)
+            return;
+        if(pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        free[sizeClass].offer(buffer);
+    }
+
+    /**
+     * @return true if the pool hands out direct buffers.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return the number of buffers allocated because none was free.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of buffers handed out again after a release.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return the bytes of the free buffers kept for reuse.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private static int sizeClass(int size) {
+        if(size <= 1 << MIN_CLASS)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CLASS;
+    }
+}
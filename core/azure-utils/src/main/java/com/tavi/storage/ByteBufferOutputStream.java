@@ -0,0 +1,40 @@
+package com.tavi.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream writing into the remaining space of a buffer, e.g. a direct buffer, without an intermediate array.
+ *
+ * Not thread safe.
+ */
+final class ByteBufferOutputStream extends OutputStream
+{
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer the buffer to fill; its position advances as the stream is written.
+     */
+    ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(!buffer.hasRemaining())
+            throw overflow(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if(length > buffer.remaining())
+            throw overflow(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    private IOException overflow(int length) {
+        return new IOException("Cannot write " + length + " bytes into a buffer with " + buffer.remaining() + " bytes remaining");
+    }
+}
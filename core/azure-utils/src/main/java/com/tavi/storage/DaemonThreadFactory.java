@@ -0,0 +1,29 @@
+package com.tavi.storage;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so pools private to the utils never keep the JVM alive.
+ *
+ * Thread safe.
+ */
+final class DaemonThreadFactory implements ThreadFactory
+{
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * @param prefix the thread name prefix; threads are named prefix-1, prefix-2 and so on.
+     */
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,126 @@
+package com.tavi.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies with a bounded relative error, laid out like HdrHistogram: every power of two
+ * is split into {@value #SUB_BUCKETS} linear buckets, so any recorded value is reported within 1/{@value #SUB_BUCKETS}
+ * of itself. Recording is a couple of shifts and an atomic increment.
+ *
+ * Thread safe.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a latency.
+     * @param nanos the latency in nanoseconds; negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return a snapshot of the recorded latencies. Latencies recorded meanwhile may be partially included.
+     */
+    public Snapshot getSnapshot() {
+        final long[] buckets = new long[BUCKETS];
+        long recorded = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            buckets[i] = counts.get(i);
+            recorded += buckets[i];
+        }
+        return new Snapshot(buckets, recorded, total.sum(), max.get());
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) | (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the highest value that falls into a bucket.
+     */
+    static long highestValue(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        final int shift = (index >>> SUB_BITS) - 1;
+        final long sub = SUB_BUCKETS + (index & (SUB_BUCKETS - 1));
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * The latencies recorded by a histogram at some point in time.
+     */
+    public static final class Snapshot
+    {
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] buckets, long count, long totalNanos, long maxNanos) {
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /** @return the number of latencies recorded. */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return the mean latency, in milliseconds. */
+        public double getMeanMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        /** @return the highest latency, in milliseconds. */
+        public double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100.
+         * @return the latency at or below which the given percentage of latencies fall, in milliseconds.
+         */
+        public double getPercentileMillis(double percentile) {
+            if(percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            if(count == 0)
+                return 0;
+
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank)
+                    return Math.min(highestValue(i), maxNanos) / 1e6;
+            }
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{count=" + count + ", meanMillis=" + getMeanMillis() + ", p50Millis=" + getPercentileMillis(50)
+                    + ", p99Millis=" + getPercentileMillis(99) + ", maxMillis=" + getMaxMillis() + "}";
+        }
+    }
+}
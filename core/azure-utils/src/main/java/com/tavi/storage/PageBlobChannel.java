@@ -0,0 +1,343 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudPageBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import static com.tavi.storage.PageBlobChannelOptions.PAGE_SIZE;
+
+/**
+ * Random access to a page blob through a local cache of its 512-byte pages.
+ *
+ * Reads are served from the cache; a miss downloads at least {@link PageBlobChannelOptions#getReadSize()} bytes in
+ * one range request. Writes only change cached pages and mark them dirty: a write covering whole pages does not read
+ * them first, a partial write reads its page once. Dirty pages are written on {@link #flush()}, on {@link #close()}
+ * and when the cache is full, with runs of adjacent pages merged into single page writes of up to
+ * {@link PageBlobChannelOptions#getMaxWriteSize()} bytes. Writing past the end grows the blob to the next page
+ * boundary, so its size is always a multiple of {@link PageBlobChannelOptions#PAGE_SIZE}.
+ *
+ * The channel must be the only one writing to its blob, or cached pages go stale.
+ *
+ * Not thread safe - use from one thread at a time. Open through
+ * {@link BlobUtils#openPageBlobChannel(String, String, PageBlobChannelOptions)} or
+ * {@link BlobUtils#createPageBlobChannel(String, String, long, PageBlobChannelOptions)}.
+ */
+public final class PageBlobChannel implements SeekableByteChannel
+{
+    private final CloudPageBlob blob;
+    private final PageBlobChannelOptions options;
+    private final int maxCachedPages;
+
+    /** Cached pages by index, least recently used first. */
+    private final LinkedHashMap<Long, byte[]> pages = new LinkedHashMap<>(16, 0.75f, true);
+    /** Indexes of the cached pages written but not uploaded yet, in order. */
+    private final TreeSet<Long> dirty = new TreeSet<>();
+    /** Holds the pages of one page write. */
+    private byte[] writeBuffer;
+
+    private long size;
+    private long position;
+    private boolean open = true;
+
+    private long readRequests;
+    private long writeRequests;
+    private long cacheHits;
+
+    /**
+     * Initializes a channel.
+     * @param blob the page blob.
+     * @param size the size of the blob.
+     * @param options the channel options.
+     */
+    PageBlobChannel(CloudPageBlob blob, long size, PageBlobChannelOptions options) {
+        this.blob = blob;
+        this.size = size;
+        this.options = options;
+        this.maxCachedPages = options.getCacheSize() / PAGE_SIZE;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if(position >= size)
+            return -1;
+
+        final long end = Math.min(size, position + dst.remaining());
+        int read = 0;
+        while(position < end) {
+            final long index = position / PAGE_SIZE;
+            final int offset = (int) (position % PAGE_SIZE);
+            final int length = (int) Math.min(PAGE_SIZE - offset, end - position);
+            dst.put(page(index, end), offset, length);
+            position += length;
+            read += length;
+            evict();
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        final int written = src.remaining();
+        final long end = position + written;
+        if(end > size)
+            resize(alignUp(end));
+
+        while(position < end) {
+            final long index = position / PAGE_SIZE;
+            final int offset = (int) (position % PAGE_SIZE);
+            final int length = (int) Math.min(PAGE_SIZE - offset, end - position);
+            byte[] page;
+            if(length == PAGE_SIZE) {
+                // Overwritten as a whole; its old content is not needed.
+                page = pages.get(index);
+                if(page == null) {
+                    page = new byte[PAGE_SIZE];
+                    pages.put(index, page);
+                }
+            } else {
+                page = page(index, end);
+            }
+            src.get(page, offset, length);
+            dirty.add(index);
+            position += length;
+            evict();
+        }
+        return written;
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public PageBlobChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if(newPosition < 0)
+            throw new IllegalArgumentException("position must not be negative");
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    /**
+     * Shrinks the blob. Pages past the new size are dropped, written or not. Does nothing if the blob is not larger
+     * than the given size.
+     * @param size the new size, a multiple of {@link PageBlobChannelOptions#PAGE_SIZE}.
+     * @return this channel.
+     * @throws IOException
+     */
+    @Override
+    public PageBlobChannel truncate(long size) throws IOException {
+        checkOpen();
+        if(size < 0 || size % PAGE_SIZE != 0)
+            throw new IllegalArgumentException("size must be a non-negative multiple of " + PAGE_SIZE);
+        if(size < this.size) {
+            final long first = size / PAGE_SIZE;
+            dirty.tailSet(first).clear();
+            pages.keySet().removeIf(index -> index >= first);
+            resize(size);
+        }
+        position = Math.min(position, size);
+        return this;
+    }
+
+    /**
+     * Writes the dirty pages, merging adjacent ones into single page writes.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        writeDirty();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Writes the dirty pages and closes the channel.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if(!open)
+            return;
+        try {
+            writeDirty();
+        } finally {
+            open = false;
+            pages.clear();
+            dirty.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached pages written but not uploaded yet.
+     */
+    public int getDirtyPageCount() {
+        return dirty.size();
+    }
+
+    /**
+     * @return the number of range downloads sent.
+     */
+    public long getReadRequestCount() {
+        return readRequests;
+    }
+
+    /**
+     * @return the number of page writes sent.
+     */
+    public long getWriteRequestCount() {
+        return writeRequests;
+    }
+
+    /**
+     * @return the number of pages read or partially written that were found in the cache.
+     */
+    public long getCacheHitCount() {
+        return cacheHits;
+    }
+
+    /**
+     * @param index the page index.
+     * @param end the end of the whole read or write the page is needed for; the download on a miss covers it,
+     *            up to the cache size.
+     * @return the cached page, downloaded on a miss.
+     */
+    private byte[] page(long index, long end) throws IOException {
+        final byte[] cached = pages.get(index);
+        if(cached != null) {
+            cacheHits++;
+            return cached;
+        }
+
+        final long start = index * PAGE_SIZE;
+        long last = Math.min(alignUp(Math.min(size, Math.max(end, start + options.getReadSize()))) / PAGE_SIZE,
+                index + maxCachedPages);
+        // Stop at the next cached page, which may be dirty.
+        for(long next = index + 1; next < last; next++) {
+            if(pages.containsKey(next)) {
+                last = next;
+                break;
+            }
+        }
+
+        final int length = (int) ((last - index) * PAGE_SIZE);
+        final byte[] data = new byte[length];
+        try {
+            readRequests++;
+            blob.downloadRangeToByteArray(start, (long) length, data, 0);
+        } catch (StorageException e) {
+            throw new IOException("Unable to read " + length + " bytes at " + start + " of " + blob.getName(), e);
+        }
+
+        byte[] page = null;
+        for(int i = 0; i < length / PAGE_SIZE; i++) {
+            final byte[] copy = new byte[PAGE_SIZE];
+            System.arraycopy(data, i * PAGE_SIZE, copy, 0, PAGE_SIZE);
+            pages.put(index + i, copy);
+            if(i == 0)
+                page = copy;
+        }
+        // Used last, so read-ahead pages are dropped first.
+        pages.get(index);
+        return page;
+    }
+
+    /**
+     * Drops the least recently used pages while the cache holds too many. Dropping a dirty page first writes all
+     * dirty pages, so they go out together in as few writes as possible.
+     */
+    private void evict() throws IOException {
+        if(pages.size() <= maxCachedPages)
+            return;
+        Iterator<Long> indexes = pages.keySet().iterator();
+        while(pages.size() > maxCachedPages) {
+            final Long index = indexes.next();
+            if(dirty.contains(index)) {
+                writeDirty();
+                // Writing reads the pages, which reorders them.
+                indexes = pages.keySet().iterator();
+                continue;
+            }
+            indexes.remove();
+        }
+    }
+
+    /**
+     * Writes the dirty pages, one page write per run of adjacent pages up to the maximum write size.
+     */
+    private void writeDirty() throws IOException {
+        if(dirty.isEmpty())
+            return;
+
+        final int maxRun = Math.min(options.getMaxWriteSize() / PAGE_SIZE, maxCachedPages);
+        final List<long[]> runs = new ArrayList<>();
+        long first = -1;
+        int count = 0;
+        for(long index : dirty) {
+            if(count > 0 && (index != first + count || count == maxRun)) {
+                runs.add(new long[] {first, count});
+                count = 0;
+            }
+            if(count == 0)
+                first = index;
+            count++;
+        }
+        runs.add(new long[] {first, count});
+
+        if(writeBuffer == null)
+            writeBuffer = new byte[maxRun * PAGE_SIZE];
+        for(long[] run : runs) {
+            final int length = (int) run[1] * PAGE_SIZE;
+            for(int i = 0; i < run[1]; i++)
+                System.arraycopy(pages.get(run[0] + i), 0, writeBuffer, i * PAGE_SIZE, PAGE_SIZE);
+            try {
+                writeRequests++;
+                blob.uploadPages(new ByteArrayInputStream(writeBuffer, 0, length), run[0] * PAGE_SIZE, length);
+            } catch (StorageException e) {
+                throw new IOException("Unable to write " + length + " bytes at " + run[0] * PAGE_SIZE + " of " + blob.getName(), e);
+            }
+            dirty.subSet(run[0], run[0] + run[1]).clear();
+        }
+    }
+
+    private void resize(long newSize) throws IOException {
+        try {
+            blob.resize(newSize);
+        } catch (StorageException e) {
+            throw new IOException("Unable to resize " + blob.getName() + " to " + newSize + " bytes", e);
+        }
+        size = newSize;
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if(!open)
+            throw new ClosedChannelException();
+    }
+
+    private static long alignUp(long offset) {
+        return (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+}
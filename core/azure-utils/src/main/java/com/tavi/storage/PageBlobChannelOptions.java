@@ -0,0 +1,89 @@
+package com.tavi.storage;
+
+/**
+ * Options for a {@link PageBlobChannel}.
+ *
+ * Not thread safe - configure before opening the channel.
+ */
+public class PageBlobChannelOptions
+{
+    /** The size of a page blob page; page blobs are written in whole pages. */
+    public static final int PAGE_SIZE = 512;
+
+    /** The largest range written by a single page write: 4 MB. */
+    public static final int MAX_WRITE_SIZE = 4 * 1024 * 1024;
+
+    private int cacheSize = 4 * 1024 * 1024;
+    private int readSize = 64 * 1024;
+    private int maxWriteSize = MAX_WRITE_SIZE;
+
+    /**
+     * @return a new PageBlobChannelOptions with default values.
+     */
+    public static PageBlobChannelOptions defaults() {
+        return new PageBlobChannelOptions();
+    }
+
+    /**
+     * @return the most bytes of pages cached, in bytes.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the most bytes of pages cached. When the cache is full, the dirty pages are written and the least
+     * recently used pages are dropped.
+     * @param cacheSize the size in bytes, a positive multiple of {@link #PAGE_SIZE}.
+     * @return this instance.
+     */
+    public PageBlobChannelOptions withCacheSize(int cacheSize) {
+        checkPages("cacheSize", cacheSize);
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * @return the least bytes downloaded when a read misses the cache.
+     */
+    public int getReadSize() {
+        return readSize;
+    }
+
+    /**
+     * Sets the least bytes downloaded when a read misses the cache, so that the reads following it are served from
+     * the cache. Larger reads download what they need in one range request.
+     * @param readSize the size in bytes, a positive multiple of {@link #PAGE_SIZE}.
+     * @return this instance.
+     */
+    public PageBlobChannelOptions withReadSize(int readSize) {
+        checkPages("readSize", readSize);
+        this.readSize = readSize;
+        return this;
+    }
+
+    /**
+     * @return the most bytes of adjacent dirty pages written in one request.
+     */
+    public int getMaxWriteSize() {
+        return maxWriteSize;
+    }
+
+    /**
+     * Sets the most bytes of adjacent dirty pages written in one request.
+     * @param maxWriteSize the size in bytes, a positive multiple of {@link #PAGE_SIZE} up to {@link #MAX_WRITE_SIZE}.
+     * @return this instance.
+     */
+    public PageBlobChannelOptions withMaxWriteSize(int maxWriteSize) {
+        checkPages("maxWriteSize", maxWriteSize);
+        if(maxWriteSize > MAX_WRITE_SIZE)
+            throw new IllegalArgumentException("maxWriteSize must not exceed " + MAX_WRITE_SIZE);
+        this.maxWriteSize = maxWriteSize;
+        return this;
+    }
+
+    private static void checkPages(String name, int size) {
+        if(size <= 0 || size % PAGE_SIZE != 0)
+            throw new IllegalArgumentException(name + " must be a positive multiple of " + PAGE_SIZE);
+    }
+}
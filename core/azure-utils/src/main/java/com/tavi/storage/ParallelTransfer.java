@@ -0,0 +1,243 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the blocks of a single transfer on an executor, at most {@link TransferOptions#getParallelism()} at a time,
+ * retrying failed blocks. The first block that fails for good fails the whole transfer: the blocks still in flight
+ * are cancelled, and the failure is only thrown once none of them runs anymore, so the buffers they write into
+ * can be reused right away.
+ *
+ * Not thread safe - blocks are submitted and awaited from a single thread.
+ */
+final class ParallelTransfer implements Closeable
+{
+    /** Creates the threads of private transfer pools. */
+    private static final ThreadFactory THREAD_FACTORY = new DaemonThreadFactory("blob-transfer");
+
+    /**
+     * A unit of work of a transfer, e.g. staging one block or downloading one range.
+     * @param <T> the result type.
+     */
+    interface Block<T>
+    {
+        T call() throws StorageException, IOException;
+    }
+
+    private final TransferOptions options;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final CompletionService<Object> completion;
+    private final List<Future<Object>> submitted = new ArrayList<>();
+    private int inFlight;
+
+    /** Guarded by this. Set once blocks must no longer start. */
+    private boolean cancelled;
+    /** Guarded by this. The number of blocks running on the executor. */
+    private int running;
+
+    /**
+     * Initializes a transfer.
+     * @param options the transfer options.
+     */
+    ParallelTransfer(TransferOptions options) {
+        this.options = options;
+        this.ownsExecutor = options.getExecutor() == null;
+        this.executor = ownsExecutor ? Executors.newFixedThreadPool(options.getParallelism(), THREAD_FACTORY) : options.getExecutor();
+        this.completion = new ExecutorCompletionService<>(executor);
+    }
+
+    /**
+     * Submits a block, first waiting for a free slot if the maximum number of blocks is already in flight.
+     * @param block the block.
+     * @throws StorageException if a previously submitted block failed.
+     * @throws IOException if a previously submitted block failed.
+     */
+    void submit(Block<?> block) throws StorageException, IOException {
+        submit(block, null);
+    }
+
+    /**
+     * Submits a block, first waiting for a free slot if the maximum number of blocks is already in flight.
+     * @param block the block.
+     * @param onDone run once the block succeeded or failed for good, e.g. to release its buffer; may be null.
+     * @throws StorageException if a previously submitted block failed.
+     * @throws IOException if a previously submitted block failed.
+     */
+    void submit(final Block<?> block, final Runnable onDone) throws StorageException, IOException {
+        while(inFlight >= options.getParallelism())
+            awaitOne();
+
+        submitted.add(completion.submit(() -> {
+            try {
+                if(!started())
+                    return null;
+                try {
+                    return retry(options, block);
+                } finally {
+                    finished();
+                }
+            } finally {
+                if(onDone != null)
+                    onDone.run();
+            }
+        }));
+        inFlight++;
+    }
+
+    /**
+     * Waits for every submitted block.
+     * @throws StorageException if a block failed.
+     * @throws IOException if a block failed.
+     */
+    void await() throws StorageException, IOException {
+        while(inFlight > 0)
+            awaitOne();
+    }
+
+    /**
+     * Cancels the blocks still in flight, waits until none of them runs anymore and releases the private pool,
+     * if any.
+     */
+    @Override
+    public void close() {
+        cancel();
+        if(ownsExecutor)
+            executor.shutdownNow();
+    }
+
+    private void awaitOne() throws StorageException, IOException {
+        try {
+            final Future<Object> done = completion.take();
+            inFlight--;
+            done.get();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer");
+        } catch (ExecutionException e) {
+            cancel();
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the blocks still in flight: those not started yet never start, running ones are interrupted and waited
+     * for. An interrupt does not stop a blocking socket read, and the block may still be writing into its buffer.
+     */
+    private void cancel() {
+        synchronized (this) {
+            if(cancelled && running == 0)
+                return;
+            cancelled = true;
+        }
+        for(Future<Object> future : submitted)
+            future.cancel(true);
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while(running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return true if the block may run, false if the transfer was cancelled first.
+     */
+    private synchronized boolean started() {
+        if(cancelled)
+            return false;
+        running++;
+        return true;
+    }
+
+    private synchronized void finished() {
+        if(--running == 0)
+            notifyAll();
+    }
+
+    /**
+     * Runs a block, retrying it on retryable failures with an exponential backoff.
+     * @param options the transfer options.
+     * @param block the block.
+     * @param <T> the result type.
+     * @return the block result.
+     * @throws StorageException if the block failed for good.
+     * @throws IOException if the block failed for good.
+     */
+    static <T> T retry(TransferOptions options, Block<T> block) throws StorageException, IOException {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                return block.call();
+            } catch (StorageException e) {
+                if(attempt >= options.getMaxRetries() || !isRetryable(e))
+                    throw e;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if(attempt >= options.getMaxRetries())
+                    throw e;
+            }
+
+            try {
+                Thread.sleep(options.getRetryBackoffMillis() << Math.min(attempt, 16));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry a transfer");
+            }
+        }
+    }
+
+    /**
+     * @param e a service error.
+     * @return true for timeouts, server errors and client side failures that never got a response.
+     */
+    static boolean isRetryable(StorageException e) {
+        final int status = e.getHttpStatusCode();
+        return status < 100
+                || status == 306 // client side timeout, reported by the SDK as "unused"
+                || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || (status >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                        && status != HttpURLConnection.HTTP_NOT_IMPLEMENTED
+                        && status != HttpURLConnection.HTTP_VERSION);
+    }
+
+    /**
+     * Unwraps the failure of a block so it can be rethrown with its original type.
+     * @param cause the failure.
+     * @return an IOException to throw if cause is neither a StorageException nor an IOException.
+     * @throws StorageException cause itself.
+     */
+    static IOException rethrow(Throwable cause) throws StorageException {
+        if(cause instanceof StorageException)
+            throw (StorageException) cause;
+        if(cause instanceof IOException)
+            return (IOException) cause;
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if(cause instanceof Error)
+            throw (Error) cause;
+        return new IOException(cause);
+    }
+}
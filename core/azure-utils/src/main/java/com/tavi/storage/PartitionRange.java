@@ -0,0 +1,108 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A range of partition keys, from an inclusive lower bound to an exclusive upper bound. A null bound leaves that
+ * side of the range open.
+ */
+public final class PartitionRange
+{
+    private static final String PARTITION_KEY = "PartitionKey";
+
+    private final String from;
+    private final String to;
+
+    private PartitionRange(String from, String to) {
+        if(from != null && to != null && from.compareTo(to) >= 0)
+            throw new IllegalArgumentException("Empty partition range [" + from + ", " + to + ")");
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return the range of every partition key.
+     */
+    public static PartitionRange all() {
+        return new PartitionRange(null, null);
+    }
+
+    /**
+     * @param from the lowest partition key in the range, or null for no lower bound.
+     * @param to the first partition key past the range, or null for no upper bound.
+     * @return the range.
+     */
+    public static PartitionRange between(String from, String to) {
+        return new PartitionRange(from, to);
+    }
+
+    /**
+     * Splits the key space at given partition keys, e.g. "g", "n", "t" gives [-, g), [g, n), [n, t) and [t, -).
+     * @param boundaries the partition keys to split at; sorted and duplicates dropped first.
+     * @return boundaries.length + 1 ranges covering the whole key space.
+     */
+    public static List<PartitionRange> split(String... boundaries) {
+        final List<String> sorted = new ArrayList<>(Arrays.asList(boundaries));
+        Collections.sort(sorted);
+
+        final List<PartitionRange> ranges = new ArrayList<>(sorted.size() + 1);
+        String from = null;
+        for(String boundary : sorted) {
+            if(boundary.equals(from))
+                continue;
+            ranges.add(new PartitionRange(from, boundary));
+            from = boundary;
+        }
+        ranges.add(new PartitionRange(from, null));
+        return ranges;
+    }
+
+    /** @return the lowest partition key in the range, or null for no lower bound. */
+    public String getFrom() {
+        return from;
+    }
+
+    /** @return the first partition key past the range, or null for no upper bound. */
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * @return the filter selecting the range, or null if the range is unbounded.
+     */
+    public String toFilter() {
+        final String lower = from != null ? TableQuery.generateFilterCondition(PARTITION_KEY, TableQuery.QueryComparisons.GREATER_THAN_OR_EQUAL, from) : null;
+        final String upper = to != null ? TableQuery.generateFilterCondition(PARTITION_KEY, TableQuery.QueryComparisons.LESS_THAN, to) : null;
+        if(lower == null)
+            return upper;
+        if(upper == null)
+            return lower;
+        return TableQuery.combineFilters(lower, TableQuery.Operators.AND, upper);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof PartitionRange))
+            return false;
+        final PartitionRange other = (PartitionRange) o;
+        return (from == null ? other.from == null : from.equals(other.from))
+                && (to == null ? other.to == null : to.equals(other.to));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (from == null ? 0 : from.hashCode()) + (to == null ? 0 : to.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "[" + (from == null ? "-" : from) + ", " + (to == null ? "-" : to) + ")";
+    }
+}
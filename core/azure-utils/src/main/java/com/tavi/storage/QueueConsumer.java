@@ -0,0 +1,313 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consumes a queue with a pool of workers.
+ *
+ * A single fetcher retrieves up to {@link QueueConsumerOptions#getBatchSize()} messages per call into a bounded
+ * local buffer, workers hand buffered messages to the handler and messages handled without an exception are
+ * deleted asynchronously. While a handler runs, the visibility of its message is extended every half visibility
+ * timeout. Polls of an empty queue back off exponentially. Messages whose handler fails are left on the queue and
+ * become visible again once their visibility timeout expires.
+ *
+ * Thread safe. Create through {@link QueueUtils#createConsumer(String, MessageHandler, QueueConsumerOptions)}.
+ */
+public final class QueueConsumer implements Closeable
+{
+    /** Buffered messages this close to becoming visible again are dropped instead of handled. */
+    private static final long EXPIRY_MARGIN_MILLIS = 1000;
+
+    /** How long an idle worker waits for a message before checking whether the consumer stopped. */
+    private static final long WORKER_POLL_MILLIS = 100;
+
+    /**
+     * Processes one message.
+     */
+    public interface MessageHandler
+    {
+        /**
+         * Handles a message. The message is deleted if this returns normally.
+         * @param message the message.
+         * @throws Exception to leave the message on the queue.
+         */
+        void handle(CloudQueueMessage message) throws Exception;
+    }
+
+    private final CloudQueue queue;
+    private final MessageHandler handler;
+    private final QueueConsumerOptions options;
+    private final BlockingQueue<CloudQueueMessage> buffer;
+
+    private final ExecutorService fetcher;
+    private final ExecutorService workers;
+    private final ExecutorService deleters;
+    private final ScheduledExecutorService extenders;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong extended = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong emptyPolls = new AtomicLong();
+
+    /**
+     * Initializes a consumer; call {@link #start()} to begin consuming.
+     * @param queue the queue to consume.
+     * @param handler the message handler.
+     * @param options the consumer options.
+     */
+    QueueConsumer(CloudQueue queue, MessageHandler handler, QueueConsumerOptions options) {
+        this.queue = queue;
+        this.handler = handler;
+        this.options = options;
+        this.buffer = new LinkedBlockingQueue<>(options.getPrefetch());
+
+        final String name = "queue-consumer-" + queue.getName();
+        this.fetcher = Executors.newSingleThreadExecutor(new DaemonThreadFactory(name + "-fetch"));
+        this.workers = Executors.newFixedThreadPool(options.getWorkers(), new DaemonThreadFactory(name + "-work"));
+        this.deleters = Executors.newFixedThreadPool(options.getDeleteConcurrency(), new DaemonThreadFactory(name + "-delete"));
+        this.extenders = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name + "-extend"));
+    }
+
+    /**
+     * Starts fetching and handling messages. A consumer can only be started once.
+     * @return this instance.
+     */
+    public QueueConsumer start() {
+        if(!started.compareAndSet(false, true))
+            throw new IllegalStateException("Consumer already started");
+
+        running = true;
+        fetcher.execute(this::fetch);
+        for(int i = 0; i < options.getWorkers(); i++)
+            workers.execute(this::work);
+        return this;
+    }
+
+    /**
+     * Stops fetching, waits for the running handlers and the pending deletes. Messages still buffered are not
+     * handled; they become visible again once their visibility timeout expires.
+     * @param timeout the longest time to wait.
+     * @param unit the unit of timeout.
+     * @return true if everything finished in time.
+     * @throws InterruptedException
+     */
+    public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        running = false;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        fetcher.shutdownNow();
+        workers.shutdown();
+        boolean done = workers.awaitTermination(remaining(deadline), TimeUnit.NANOSECONDS);
+        deleters.shutdown();
+        done &= deleters.awaitTermination(remaining(deadline), TimeUnit.NANOSECONDS);
+        extenders.shutdownNow();
+        buffer.clear();
+        return done;
+    }
+
+    /**
+     * Stops the consumer, waiting as long as it takes.
+     * @see #stop(long, TimeUnit)
+     */
+    @Override
+    public void close() {
+        try {
+            stop(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return true between {@link #start()} and {@link #stop(long, TimeUnit)}. */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** @return the number of messages retrieved. */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /** @return the number of messages handled without an exception. */
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    /** @return the number of messages whose handler threw. */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /** @return the number of messages deleted after being handled. */
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    /** @return the number of buffered messages dropped because their visibility timeout was about to expire. */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /** @return the number of visibility timeout extensions. */
+    public long getExtendedCount() {
+        return extended.get();
+    }
+
+    /** @return the number of retrieve calls. */
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    /** @return the number of retrieve calls that returned no message. */
+    public long getEmptyPollCount() {
+        return emptyPolls.get();
+    }
+
+    /** @return the number of messages waiting in the local buffer. */
+    public int getBufferedCount() {
+        return buffer.size();
+    }
+
+    private void fetch() {
+        long backoff = 0;
+        while(running) {
+            try {
+                if(backoff > 0)
+                    Thread.sleep(backoff);
+
+                final int count = Math.min(options.getBatchSize(), buffer.remainingCapacity());
+                if(count == 0) {
+                    // Buffer full - workers are the bottleneck, not the queue.
+                    Thread.sleep(options.getMinBackoffMillis());
+                    continue;
+                }
+
+                polls.incrementAndGet();
+                int retrieved = 0;
+                for(CloudQueueMessage message : queue.retrieveMessages(count, options.getVisibilityTimeoutSeconds(), null, null)) {
+                    buffer.put(message);
+                    retrieved++;
+                }
+                received.addAndGet(retrieved);
+
+                if(retrieved == 0) {
+                    emptyPolls.incrementAndGet();
+                    backoff = nextBackoff(backoff);
+                } else {
+                    backoff = 0;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (StorageException | RuntimeException e) {
+                report(e);
+                backoff = nextBackoff(backoff);
+            }
+        }
+    }
+
+    private long nextBackoff(long backoff) {
+        return backoff == 0 ? options.getMinBackoffMillis() : Math.min(backoff * 2, options.getMaxBackoffMillis());
+    }
+
+    private void work() {
+        while(running) {
+            final CloudQueueMessage message;
+            try {
+                message = buffer.poll(WORKER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(message != null)
+                process(message);
+        }
+    }
+
+    private void process(final CloudQueueMessage message) {
+        final Date nextVisible = message.getNextVisibleTime();
+        if(nextVisible != null && nextVisible.getTime() - System.currentTimeMillis() < EXPIRY_MARGIN_MILLIS) {
+            expired.incrementAndGet();
+            return;
+        }
+
+        final long period = Math.max(1000, options.getVisibilityTimeoutSeconds() * 1000L / 2);
+        final ScheduledFuture<?> extension = extenders.scheduleAtFixedRate(() -> extend(message), period, period, TimeUnit.MILLISECONDS);
+        try {
+            handler.handle(message);
+            handled.incrementAndGet();
+        } catch (Throwable e) {
+            // Errors too: the message is left on the queue either way, and the worker moves on.
+            failed.incrementAndGet();
+            report(e);
+            return;
+        } finally {
+            extension.cancel(false);
+        }
+        try {
+            deleters.execute(() -> delete(message));
+        } catch (RejectedExecutionException e) {
+            // Stopping timed out before this handler finished; delete in place rather than lose the result.
+            delete(message);
+        }
+    }
+
+    private void extend(CloudQueueMessage message) {
+        // Updating changes the pop receipt, so it must not overlap with the delete.
+        synchronized (message) {
+            try {
+                queue.updateMessage(message, options.getVisibilityTimeoutSeconds());
+                extended.incrementAndGet();
+            } catch (StorageException | RuntimeException e) {
+                report(e);
+            }
+        }
+    }
+
+    private void delete(CloudQueueMessage message) {
+        synchronized (message) {
+            try {
+                queue.deleteMessage(message);
+                deleted.incrementAndGet();
+            } catch (StorageException | RuntimeException e) {
+                report(e);
+            }
+        }
+    }
+
+    /**
+     * Passes a failure to the error handler. A throwing error handler must not stop the fetcher, a worker or the
+     * visibility extensions of a message.
+     */
+    private void report(Throwable error) {
+        try {
+            options.getErrorHandler().accept(error);
+        } catch (Throwable ignored) {
+            // Nothing left to report it to.
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+}
@@ -0,0 +1,177 @@
+package com.tavi.storage;
+
+import java.util.function.Consumer;
+
+/**
+ * Options for a {@link QueueConsumer}.
+ *
+ * Not thread safe - configure before creating the consumer.
+ */
+public class QueueConsumerOptions
+{
+    /** The most messages a single retrieve call can return. */
+    public static final int MAX_BATCH_SIZE = 32;
+
+    private int batchSize = MAX_BATCH_SIZE;
+    private int prefetch = 64;
+    private int workers = 8;
+    private int deleteConcurrency = 4;
+    private int visibilityTimeoutSeconds = 30;
+    private long minBackoffMillis = 100;
+    private long maxBackoffMillis = 10000;
+    private Consumer<Throwable> errorHandler = error -> {};
+
+    /**
+     * @return a new QueueConsumerOptions with default values.
+     */
+    public static QueueConsumerOptions defaults() {
+        return new QueueConsumerOptions();
+    }
+
+    /**
+     * @return the most messages retrieved per call.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the most messages retrieved per call.
+     * @param batchSize between 1 and {@link #MAX_BATCH_SIZE}.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withBatchSize(int batchSize) {
+        if(batchSize <= 0 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @return the most retrieved messages buffered locally while waiting for a free worker.
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Sets the most retrieved messages buffered locally while waiting for a free worker. Buffered messages keep
+     * aging against their visibility timeout, so keep this small relative to what the workers get through in one
+     * visibility timeout.
+     * @param prefetch the buffer size, at least 1.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withPrefetch(int prefetch) {
+        if(prefetch <= 0)
+            throw new IllegalArgumentException("prefetch must be positive");
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * @return the number of threads running the handler.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets the number of threads running the handler.
+     * @param workers the number of threads, at least 1.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withWorkers(int workers) {
+        if(workers <= 0)
+            throw new IllegalArgumentException("workers must be positive");
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @return the number of threads deleting handled messages.
+     */
+    public int getDeleteConcurrency() {
+        return deleteConcurrency;
+    }
+
+    /**
+     * Sets the number of threads deleting handled messages.
+     * @param deleteConcurrency the number of threads, at least 1.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withDeleteConcurrency(int deleteConcurrency) {
+        if(deleteConcurrency <= 0)
+            throw new IllegalArgumentException("deleteConcurrency must be positive");
+        this.deleteConcurrency = deleteConcurrency;
+        return this;
+    }
+
+    /**
+     * @return how long retrieved messages stay invisible to other consumers, in seconds.
+     */
+    public int getVisibilityTimeoutSeconds() {
+        return visibilityTimeoutSeconds;
+    }
+
+    /**
+     * Sets how long retrieved messages stay invisible to other consumers. Messages whose handler runs longer get
+     * their visibility extended by the same amount every half timeout.
+     * @param visibilityTimeoutSeconds the timeout in seconds, at least 1.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withVisibilityTimeoutSeconds(int visibilityTimeoutSeconds) {
+        if(visibilityTimeoutSeconds <= 0)
+            throw new IllegalArgumentException("visibilityTimeoutSeconds must be positive");
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+        return this;
+    }
+
+    /**
+     * @return the wait after the first empty poll, in milliseconds.
+     */
+    public long getMinBackoffMillis() {
+        return minBackoffMillis;
+    }
+
+    /**
+     * @return the longest wait between empty polls, in milliseconds.
+     */
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Sets the wait between polls of an empty queue. The wait starts at min, doubles after every empty poll up to
+     * max and drops back to none as soon as a poll returns messages.
+     * @param minBackoffMillis the wait after the first empty poll.
+     * @param maxBackoffMillis the longest wait.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withBackoff(long minBackoffMillis, long maxBackoffMillis) {
+        if(minBackoffMillis <= 0 || maxBackoffMillis < minBackoffMillis)
+            throw new IllegalArgumentException("backoff must satisfy 0 < min <= max");
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return the callback receiving handler, retrieve, delete and visibility update failures.
+     */
+    public Consumer<Throwable> getErrorHandler() {
+        return errorHandler;
+    }
+
+    /**
+     * Sets the callback receiving handler, retrieve, delete and visibility update failures. Called from consumer
+     * threads; must not block. Exceptions it throws are ignored.
+     * @param errorHandler the callback.
+     * @return this instance.
+     */
+    public QueueConsumerOptions withErrorHandler(Consumer<Throwable> errorHandler) {
+        if(errorHandler == null)
+            throw new IllegalArgumentException("errorHandler must not be null");
+        this.errorHandler = errorHandler;
+        return this;
+    }
+}
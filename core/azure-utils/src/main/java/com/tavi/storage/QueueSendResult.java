@@ -0,0 +1,67 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+
+/**
+ * Outcome of sending one message of a bulk send.
+ */
+public final class QueueSendResult
+{
+    private final CloudQueueMessage message;
+    private final Exception error;
+
+    private QueueSendResult(CloudQueueMessage message, Exception error) {
+        this.message = message;
+        this.error = error;
+    }
+
+    /**
+     * @param message the sent message.
+     * @return a successful result.
+     */
+    static QueueSendResult succeeded(CloudQueueMessage message) {
+        return new QueueSendResult(message, null);
+    }
+
+    /**
+     * @param message the message that could not be sent.
+     * @param error the reason.
+     * @return a failed result.
+     */
+    static QueueSendResult failed(CloudQueueMessage message, Exception error) {
+        return new QueueSendResult(message, error);
+    }
+
+    /**
+     * @return the message.
+     */
+    public CloudQueueMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return true if the message was added to the queue.
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * @return the id the service assigned to the message, or null if it was not added.
+     */
+    public String getMessageId() {
+        return error == null ? message.getMessageId() : null;
+    }
+
+    /**
+     * @return the reason the message was not added, or null if it was.
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "QueueSendResult{id=" + getMessageId() + "}" : "QueueSendResult{error=" + error + "}";
+    }
+}
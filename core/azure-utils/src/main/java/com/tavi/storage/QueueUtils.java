@@ -5,15 +5,29 @@ import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.queue.CloudQueue;
 import com.microsoft.azure.storage.queue.CloudQueueClient;
 import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.microsoft.azure.storage.queue.QueueRequestOptions;
 import com.tavi.storage.exceptions.QueueNotFoundException;
 
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Helper class for Azure Queue related operations.
  *
- * WARNING: Not thread safe - assumes instances are not shared between threads.
+ * Thread safe - instances may be shared between threads. Use {@link #shared(String)} to also share the
+ * underlying client between instances created for the same account.
  */
 // TODO: Custom StorageException wrapper exceptions or use StorageExceptions?
 public class QueueUtils
@@ -24,6 +38,27 @@ public class QueueUtils
     /** The CloudQueueClient used for all the queue operations. */
     private final CloudQueueClient client;
 
+    /** Default maximum number of cached references and existence results. */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /** The most messages a bulk send keeps in flight at the same time. */
+    public static final int MAX_SEND_CONCURRENCY = 64;
+
+    /** Queue references, keyed by queue name. */
+    private volatile TtlCache<CloudQueue> queues = new TtlCache<>(DEFAULT_CACHE_SIZE);
+
+    /** Queues known to exist, keyed by queue name. Null when existence memoization is disabled. */
+    private volatile TtlCache<Boolean> existingQueues;
+
+    /** Runs the asynchronous methods. */
+    private volatile AsyncRunner async = AsyncRunner.shared();
+
+    /** Retries and paces requests. Null when requests go straight to the client. */
+    private volatile StorageThrottle throttle;
+
+    /** Records operations. Null when metrics are off. */
+    private volatile StorageMetrics metrics;
+
     /**
      * Initializes a QueueUtils from a given connection string.
      * @param connectionString the given connection string.
@@ -39,8 +74,17 @@ public class QueueUtils
      * @param account the storage account to use.
      */
     private QueueUtils(CloudStorageAccount account) {
+        this(account, account.createCloudQueueClient());
+    }
+
+    /**
+     * Initializes a QueueUtils from a given CloudStorageAccount and client.
+     * @param account the storage account to use.
+     * @param client the queue client to use.
+     */
+    private QueueUtils(CloudStorageAccount account, CloudQueueClient client) {
         this.account = account;
-        this.client = account.createCloudQueueClient();
+        this.client = client;
     }
 
 
@@ -69,6 +113,98 @@ public class QueueUtils
         return new QueueUtils(CloudStorageAccount.getDevelopmentStorageAccount());
     }
 
+    /**
+     * Initializes a QueueUtils backed by the process-wide client of the account behind a connection string.
+     * The connection string is only parsed the first time it is seen.
+     * @param connectionString the given connection string.
+     * @throws URISyntaxException
+     * @throws InvalidKeyException
+     * @see StorageClientRegistry
+     */
+    public static QueueUtils shared(String connectionString) throws URISyntaxException, InvalidKeyException {
+        return shared(StorageClientRegistry.account(connectionString));
+    }
+
+    /**
+     * Initializes a QueueUtils backed by the process-wide client of a given CloudStorageAccount.
+     * @param account the storage account to use.
+     * @see StorageClientRegistry
+     */
+    public static QueueUtils shared(CloudStorageAccount account) {
+        return new QueueUtils(account, StorageClientRegistry.queueClient(account));
+    }
+
+    /**
+     * Configures the reference cache and existence memoization. By default references are cached and every
+     * operation checks that its queue exists.
+     * @param maxEntries the maximum number of cached references and existence results.
+     * @param existenceTtl how long a successful existence check is trusted for. Zero disables memoization.
+     * @param unit the unit of existenceTtl.
+     * @return this instance.
+     */
+    public QueueUtils withReferenceCache(int maxEntries, long existenceTtl, TimeUnit unit) {
+        this.queues = new TtlCache<>(maxEntries);
+        this.existingQueues = existenceTtl > 0 ? new TtlCache<Boolean>(maxEntries, existenceTtl, unit) : null;
+        return this;
+    }
+
+    /**
+     * @return the counters of the queue reference cache.
+     */
+    public TtlCache.Stats getReferenceCacheStats() {
+        return queues.getStats();
+    }
+
+    /**
+     * @return the counters of the existence memoization; all zero when it is disabled.
+     */
+    public TtlCache.Stats getExistenceCacheStats() {
+        final TtlCache<Boolean> memo = existingQueues;
+        return memo != null ? memo.getStats() : new TtlCache.Stats(0, 0, 0, 0);
+    }
+
+    /**
+     * Configures the asynchronous methods. By default they share a process-wide limit of
+     * {@link AsyncOptions#DEFAULT_MAX_IN_FLIGHT} operations in flight with every other utils instance. Bulk sends
+     * run on the same executor.
+     * @param options the executor and in-flight limit.
+     * @return this instance.
+     */
+    public QueueUtils withAsync(AsyncOptions options) {
+        this.async = new AsyncRunner(options);
+        return this;
+    }
+
+    /**
+     * @return the number of asynchronous operations in flight, counting those of every instance sharing the limit.
+     */
+    public int getAsyncInFlightCount() {
+        return async.getInFlightCount();
+    }
+
+    /**
+     * Routes the requests of this instance through a throttle: retried with jittered backoff, paced by the
+     * concurrency limit and rate of the throttle. The requests are sent without the retries of the SDK, which would
+     * otherwise retry on their own below the throttle; the default request options of the client, which may be
+     * shared with other instances, are left as they are.
+     * @param throttle the throttle, usually shared by every utils of the account; null to stop throttling.
+     * @return this instance.
+     */
+    public QueueUtils withThrottle(StorageThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Records the operations of this instance: "queue.addMessage".
+     * @param metrics the metrics, usually shared by every utils of the application; null to stop recording.
+     * @return this instance.
+     */
+    public QueueUtils withMetrics(StorageMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     /**
      * Adds a message to a queue.
      * @param queueName the queue name.
@@ -91,22 +227,268 @@ public class QueueUtils
      * @throws QueueNotFoundException
      */
     public void addMessageToQueue(String queueName, CloudQueueMessage content) throws URISyntaxException, StorageException, QueueNotFoundException {
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "queue.addMessage");
+        try {
+            CloudQueue queue = getQueueReference(queueName);
+            if(exists(queueName, queue)) {
+                try {
+                    call(requestOptions -> {
+                        queue.addMessage(content, 0, 0, requestOptions, null);
+                        return null;
+                    });
+                } catch (StorageException e) {
+                    throw notFound(queueName, e);
+                }
+            } else {
+                throw new QueueNotFoundException("Unable to locate queue " + queueName);
+            }
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Adds a message to a queue asynchronously. Blocks while the maximum number of asynchronous operations is in
+     * flight.
+     * @param queueName the queue name.
+     * @param content the content (as string).
+     * @return a future completed with the message once added; it then carries the id assigned by the service.
+     * @see #addMessageToQueue(String, String)
+     */
+    public CompletableFuture<CloudQueueMessage> addMessageToQueueAsync(String queueName, String content) {
+        return addMessageToQueueAsync(queueName, new CloudQueueMessage(content));
+    }
+
+    /**
+     * Adds a message to a queue asynchronously. Blocks while the maximum number of asynchronous operations is in
+     * flight.
+     * @param queueName the queue name.
+     * @param content the message.
+     * @return a future completed with the message once added; it then carries the id assigned by the service.
+     * @see #addMessageToQueue(String, CloudQueueMessage)
+     */
+    public CompletableFuture<CloudQueueMessage> addMessageToQueueAsync(String queueName, CloudQueueMessage content) {
+        return async.submit(() -> {
+            addMessageToQueue(queueName, content);
+            return content;
+        });
+    }
+
+    /**
+     * Adds messages to a queue, sending up to concurrency messages at the same time over a single queue reference.
+     * The queue is checked to exist once; failures of individual messages are reported in the results instead of
+     * being thrown. The sends run on the executor of the asynchronous methods, see {@link #withAsync(AsyncOptions)},
+     * but do not count against its in-flight limit.
+     * @param queueName the queue name.
+     * @param messages the messages.
+     * @param concurrency how many messages to send at the same time, capped at {@link #MAX_SEND_CONCURRENCY}.
+     * @return one result per message, in the order of messages. Successful messages carry the id assigned by the service.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws QueueNotFoundException
+     */
+    public List<QueueSendResult> addMessagesToQueue(String queueName, Collection<CloudQueueMessage> messages, int concurrency)
+            throws URISyntaxException, StorageException, QueueNotFoundException {
+        return addMessagesToQueue(queueName, messages.stream(), concurrency);
+    }
+
+    /**
+     * Adds messages to a queue, sending up to concurrency messages at the same time over a single queue reference.
+     * Messages are taken from the stream one at a time as senders free up, so sending starts with the first message
+     * and the stream is never collected up front; only the results are kept.
+     * @param queueName the queue name.
+     * @param messages the messages.
+     * @param concurrency how many messages to send at the same time, capped at {@link #MAX_SEND_CONCURRENCY}.
+     * @return one result per message, in the order of messages.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws QueueNotFoundException
+     * @see #addMessagesToQueue(String, Collection, int)
+     */
+    public List<QueueSendResult> addMessagesToQueue(final String queueName, Stream<CloudQueueMessage> messages, int concurrency)
+            throws URISyntaxException, StorageException, QueueNotFoundException {
+        if(concurrency <= 0)
+            throw new IllegalArgumentException("concurrency must be positive");
+
+        final CloudQueue queue = getQueueReference(queueName);
+        if(!exists(queueName, queue))
+            throw new QueueNotFoundException("Unable to locate queue " + queueName);
+
+        final int senders = Math.min(concurrency, MAX_SEND_CONCURRENCY);
+        final Iterator<CloudQueueMessage> iterator = messages.iterator();
+        if(senders == 1) {
+            final List<QueueSendResult> results = new ArrayList<>();
+            while(iterator.hasNext())
+                results.add(send(queueName, queue, iterator.next()));
+            return results;
+        }
+
+        final Executor executor = async.getExecutor();
+        final Semaphore free = new Semaphore(senders);
+        final List<CompletableFuture<QueueSendResult>> results = new ArrayList<>();
+        try {
+            while(iterator.hasNext()) {
+                free.acquire();
+                final CloudQueueMessage message = iterator.next();
+                final CompletableFuture<QueueSendResult> result = new CompletableFuture<>();
+                results.add(result);
+                try {
+                    executor.execute(() -> {
+                        try {
+                            result.complete(send(queueName, queue, message));
+                        } catch (Throwable t) {
+                            result.completeExceptionally(t);
+                        } finally {
+                            free.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    free.release();
+                    result.complete(QueueSendResult.failed(message, e));
+                }
+            }
+            free.acquire(senders);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while sending messages to " + queueName, e);
+        }
+
+        final List<QueueSendResult> sent = new ArrayList<>(results.size());
+        for(CompletableFuture<QueueSendResult> result : results) {
+            try {
+                sent.add(result.join());
+            } catch (CompletionException e) {
+                // send() reports every exception in its result, so only errors get here.
+                throw (Error) e.getCause();
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Adds text messages to a queue.
+     * @param queueName the queue name.
+     * @param contents the message contents.
+     * @param concurrency how many messages to send at the same time, capped at {@link #MAX_SEND_CONCURRENCY}.
+     * @return one result per message, in the order of contents.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws QueueNotFoundException
+     * @see #addMessagesToQueue(String, Collection, int)
+     */
+    public List<QueueSendResult> addTextMessagesToQueue(String queueName, Collection<String> contents, int concurrency)
+            throws URISyntaxException, StorageException, QueueNotFoundException {
+        return addMessagesToQueue(queueName, contents.stream().map(CloudQueueMessage::new), concurrency);
+    }
+
+    /**
+     * Creates a consumer for a queue. The consumer does nothing until started.
+     * @param queueName the queue name.
+     * @param handler the message handler.
+     * @param options the batching, prefetch, concurrency, visibility and backoff options.
+     * @return the consumer.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws QueueNotFoundException
+     * @see QueueConsumer
+     */
+    public QueueConsumer createConsumer(String queueName, QueueConsumer.MessageHandler handler, QueueConsumerOptions options)
+            throws URISyntaxException, StorageException, QueueNotFoundException {
         CloudQueue queue = getQueueReference(queueName);
-        if(queue.exists()) {
-            queue.addMessage(content);
+        if(exists(queueName, queue)) {
+            return new QueueConsumer(queue, handler, options);
         } else {
             throw new QueueNotFoundException("Unable to locate queue " + queueName);
         }
     }
 
     /**
-     * Gets a reference to a queue.
+     * Gets a reference to a queue. References are cached per queue name.
      * @param queueName the queue name.
      * @return a reference to the queue.
      * @throws URISyntaxException
      * @throws StorageException
      */
     public CloudQueue getQueueReference(String queueName) throws URISyntaxException, StorageException {
-        return client.getQueueReference(queueName);
+        final TtlCache<CloudQueue> cache = queues;
+        CloudQueue queue = cache.get(queueName);
+        if(queue == null)
+            queue = cache.putIfAbsent(queueName, client.getQueueReference(queueName));
+        return queue;
+    }
+
+    /**
+     * Sends one message of a bulk send.
+     * @param queueName the queue name.
+     * @param queue the queue reference.
+     * @param message the message.
+     * @return the result.
+     */
+    private QueueSendResult send(String queueName, CloudQueue queue, CloudQueueMessage message) {
+        try {
+            call(requestOptions -> {
+                queue.addMessage(message, 0, 0, requestOptions, null);
+                return null;
+            });
+            return QueueSendResult.succeeded(message);
+        } catch (StorageException e) {
+            try {
+                return QueueSendResult.failed(message, notFound(queueName, e));
+            } catch (StorageException other) {
+                return QueueSendResult.failed(message, other);
+            }
+        } catch (RuntimeException e) {
+            return QueueSendResult.failed(message, e);
+        }
+    }
+
+    /**
+     * Runs a request through the throttle, if any.
+     * @param call the request.
+     * @return the result.
+     * @throws StorageException
+     */
+    private <T, E extends Exception> T call(StorageThrottle.OptionsCall<QueueRequestOptions, T, E> call) throws StorageException, E {
+        return StorageThrottle.call(throttle, QueueRequestOptions::new, call);
+    }
+
+    /**
+     * Checks if a queue exists, trusting a previous successful check while it is memoized.
+     * @param queueName the queue name.
+     * @param queue the queue reference.
+     * @return true if the queue exists.
+     * @throws StorageException
+     */
+    private boolean exists(String queueName, CloudQueue queue) throws StorageException {
+        final TtlCache<Boolean> memo = existingQueues;
+        if(memo == null)
+            return call(requestOptions -> queue.exists(requestOptions, null));
+        if(memo.get(queueName) != null)
+            return true;
+
+        final boolean exists = call(requestOptions -> queue.exists(requestOptions, null));
+        if(exists)
+            memo.put(queueName, Boolean.TRUE);
+        return exists;
+    }
+
+    /**
+     * Forgets a memoized existence check if the service reported the queue as missing.
+     * @param queueName the queue name.
+     * @param e the service error.
+     * @return the exception to throw if the queue is missing.
+     * @throws StorageException e itself, if the queue is not missing.
+     */
+    private QueueNotFoundException notFound(String queueName, StorageException e) throws StorageException {
+        if(e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+            throw e;
+
+        final TtlCache<Boolean> memo = existingQueues;
+        if(memo != null)
+            memo.invalidate(queueName);
+        return new QueueNotFoundException("Unable to locate queue " + queueName, e);
     }
 }
@@ -0,0 +1,70 @@
+package com.tavi.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for a {@link SasUrlGenerator}.
+ *
+ * Not thread safe - configure before creating the generator.
+ */
+public class SasOptions
+{
+    /** Default width of an expiry bucket, in milliseconds. */
+    public static final long DEFAULT_BUCKET_MILLIS = 60 * 1000;
+
+    /** Default number of URLs memoized per template and bucket. */
+    public static final int DEFAULT_MAX_MEMO_ENTRIES = 10000;
+
+    private long bucketMillis = DEFAULT_BUCKET_MILLIS;
+    private int maxMemoEntries = DEFAULT_MAX_MEMO_ENTRIES;
+
+    /**
+     * @return a new SasOptions with default values.
+     */
+    public static SasOptions defaults() {
+        return new SasOptions();
+    }
+
+    /**
+     * @return the width of an expiry bucket, in milliseconds.
+     */
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * Sets the width of an expiry bucket. Expiry times are rounded up to a multiple of it, so every URL for the same
+     * blob and template signed within one bucket is identical and signed once. A URL stays valid for at least the
+     * validity of its template and at most one bucket longer.
+     * @param bucket the width; at least one second, as expiry times have second resolution.
+     * @param unit the unit of bucket.
+     * @return this instance.
+     */
+    public SasOptions withBucket(long bucket, TimeUnit unit) {
+        final long millis = unit.toMillis(bucket);
+        if(millis < 1000)
+            throw new IllegalArgumentException("bucket must be at least one second");
+        this.bucketMillis = millis;
+        return this;
+    }
+
+    /**
+     * @return the number of URLs memoized per template and bucket.
+     */
+    public int getMaxMemoEntries() {
+        return maxMemoEntries;
+    }
+
+    /**
+     * Sets the number of URLs memoized per template and bucket. Once a bucket is full further URLs are signed on
+     * every call until the next bucket starts with an empty memo.
+     * @param maxMemoEntries the number of URLs, 0 to disable memoization.
+     * @return this instance.
+     */
+    public SasOptions withMaxMemoEntries(int maxMemoEntries) {
+        if(maxMemoEntries < 0)
+            throw new IllegalArgumentException("maxMemoEntries must not be negative");
+        this.maxMemoEntries = maxMemoEntries;
+        return this;
+    }
+}
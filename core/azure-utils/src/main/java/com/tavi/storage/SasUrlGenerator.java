@@ -0,0 +1,309 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageCredentials;
+import com.microsoft.azure.storage.StorageCredentialsAccountAndKey;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signs blob shared access URLs locally, without a service request and without the per call calendar, policy and
+ * key setup of the SDK. Each thread keeps its own initialized HMAC, the permission and policy parts of a signature
+ * are prepared once per {@link Template}, and expiry times are rounded up to buckets so that every URL for a blob
+ * is signed once per bucket and then served from a memo.
+ *
+ * The URLs carry blob level service signatures of the service version the SDK targets.
+ *
+ * Thread safe.
+ */
+public final class SasUrlGenerator
+{
+    /** The service version signatures are computed for. */
+    static final String SERVICE_VERSION = "2018-03-28";
+
+    private static final String HMAC = "HmacSHA256";
+
+    private final String accountName;
+    private final String endpoint;
+    private final SecretKeySpec key;
+    private final long bucketMillis;
+    private final int maxMemoEntries;
+
+    private final ThreadLocal<Mac> macs;
+
+    private final LongAdder signed = new LongAdder();
+    private final LongAdder memoHits = new LongAdder();
+
+    /**
+     * Initializes a generator.
+     * @param account the storage account; must be authenticated with its account key.
+     * @param options the bucket width and memo size.
+     * @throws InvalidKeyException
+     */
+    public SasUrlGenerator(CloudStorageAccount account, SasOptions options) throws InvalidKeyException {
+        final StorageCredentials credentials = account.getCredentials();
+        if(!(credentials instanceof StorageCredentialsAccountAndKey))
+            throw new IllegalArgumentException("Shared access signatures need account key credentials");
+
+        this.accountName = credentials.getAccountName();
+        final String uri = account.getBlobEndpoint().toString();
+        this.endpoint = uri.endsWith("/") ? uri : uri + "/";
+        this.key = new SecretKeySpec(((StorageCredentialsAccountAndKey) credentials).exportKey(), HMAC);
+        this.bucketMillis = options.getBucketMillis();
+        this.maxMemoEntries = options.getMaxMemoEntries();
+
+        // Fail here rather than on the first signature if the key is unusable.
+        newMac();
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                return newMac();
+            } catch (InvalidKeyException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private Mac newMac() throws InvalidKeyException {
+        try {
+            final Mac mac = Mac.getInstance(HMAC);
+            mac.init(key);
+            return mac;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HMAC + " is not available", e);
+        }
+    }
+
+    /**
+     * Creates a template for URLs of this generator.
+     * @param validity the minimum time a URL stays valid.
+     * @param unit the unit of validity.
+     * @param permissions the permissions to grant.
+     * @return the template.
+     */
+    public Template template(long validity, TimeUnit unit, EnumSet<SharedAccessBlobPermissions> permissions) {
+        return template(validity, unit, permissions, null);
+    }
+
+    /**
+     * Creates a template for URLs of this generator.
+     * @param validity the minimum time a URL stays valid.
+     * @param unit the unit of validity.
+     * @param permissions the permissions to grant; may be empty when a stored access policy grants them.
+     * @param groupPolicyIdentifier the stored access policy of the container, or null.
+     * @return the template.
+     */
+    public Template template(long validity, TimeUnit unit, EnumSet<SharedAccessBlobPermissions> permissions, String groupPolicyIdentifier) {
+        if(validity <= 0)
+            throw new IllegalArgumentException("validity must be positive");
+        final SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+        policy.setPermissions(permissions);
+        return new Template(this, unit.toMillis(validity), policy.permissionsToString(), groupPolicyIdentifier);
+    }
+
+    /**
+     * Creates a shared access URL for a blob. The blob is neither looked up nor required to exist.
+     * @param template the validity, permissions and policy of the URL; created by this generator.
+     * @param containerName the container name this blob resides in.
+     * @param blobName the blob name.
+     * @return the URL.
+     */
+    public String blobUrl(Template template, String containerName, String blobName) {
+        if(template.generator != this)
+            throw new IllegalArgumentException("Template was created by another generator");
+
+        final long expiry = expirySeconds(System.currentTimeMillis(), template.validityMillis);
+        Bucket bucket = template.bucket;
+        if(bucket == null || bucket.expirySeconds < expiry) {
+            bucket = new Bucket(template, expiry);
+            template.bucket = bucket;
+        } else if(bucket.expirySeconds > expiry) {
+            // A racing thread already moved the template to the next bucket; sign without the memo.
+            return sign(new Bucket(template, expiry), containerName, blobName);
+        }
+
+        if(maxMemoEntries == 0)
+            return sign(bucket, containerName, blobName);
+
+        final String memoKey = containerName + "/" + blobName;
+        final String memoized = bucket.urls.get(memoKey);
+        if(memoized != null) {
+            memoHits.increment();
+            return memoized;
+        }
+        final String url = sign(bucket, containerName, blobName);
+        if(bucket.urls.size() < maxMemoEntries)
+            bucket.urls.putIfAbsent(memoKey, url);
+        return url;
+    }
+
+    /**
+     * Rounds an expiry time up to the end of its bucket.
+     * @return the expiry time, in seconds since the epoch.
+     */
+    long expirySeconds(long nowMillis, long validityMillis) {
+        final long earliest = nowMillis + validityMillis;
+        return (earliest + bucketMillis - 1) / bucketMillis * bucketMillis / 1000;
+    }
+
+    private String sign(Bucket bucket, String containerName, String blobName) {
+        final String stringToSign = bucket.signaturePrefix + accountName + "/" + containerName + "/" + blobName
+                + bucket.template.signatureSuffix;
+        final byte[] hash = macs.get().doFinal(stringToSign.getBytes(StandardCharsets.UTF_8));
+        signed.increment();
+
+        final StringBuilder url = new StringBuilder(endpoint.length() + containerName.length() + blobName.length()
+                + bucket.query.length() + 64);
+        url.append(endpoint).append(containerName).append('/');
+        appendPath(url, blobName);
+        url.append('?').append(bucket.query);
+        appendSignature(url, Base64.getEncoder().encodeToString(hash));
+        return url.toString();
+    }
+
+    /**
+     * @return the number of URLs signed, rather than served from the memo.
+     */
+    public long getSignedCount() {
+        return signed.sum();
+    }
+
+    /**
+     * @return the number of URLs served from the memo.
+     */
+    public long getMemoHitCount() {
+        return memoHits.sum();
+    }
+
+    /**
+     * Percent-encodes a blob name for the URL path, keeping the '/' of virtual directories.
+     */
+    private static void appendPath(StringBuilder url, String blobName) {
+        for(byte b : blobName.getBytes(StandardCharsets.UTF_8)) {
+            final char c = (char) (b & 0xff);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~/!$&'()*+,;=:@".indexOf(c) >= 0)
+                url.append(c);
+            else
+                url.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+        }
+    }
+
+    /**
+     * Appends a base64 signature as a query value; only '+', '/' and '=' need encoding.
+     */
+    private static void appendSignature(StringBuilder url, String signature) {
+        url.append("&sig=");
+        for(int i = 0; i < signature.length(); i++) {
+            final char c = signature.charAt(i);
+            if(c == '+')
+                url.append("%2B");
+            else if(c == '/')
+                url.append("%2F");
+            else if(c == '=')
+                url.append("%3D");
+            else
+                url.append(c);
+        }
+    }
+
+    /**
+     * Encodes a query value like the SDK does.
+     */
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The validity, permissions and stored access policy of a family of URLs, with the parts of their signatures
+     * that do not depend on the blob or the expiry time. Reuse templates - the memo of signed URLs lives in them.
+     */
+    public static final class Template
+    {
+        private final SasUrlGenerator generator;
+        private final long validityMillis;
+        private final String permissions;
+        private final String identifier;
+
+        /** What follows the canonicalized resource in the string to sign. */
+        private final String signatureSuffix;
+
+        /** The current expiry bucket. */
+        private volatile Bucket bucket;
+
+        private Template(SasUrlGenerator generator, long validityMillis, String permissions, String identifier) {
+            this.generator = generator;
+            this.validityMillis = validityMillis;
+            this.permissions = permissions;
+            this.identifier = identifier;
+            // Identifier, IP range, protocol, version and the five response header overrides.
+            this.signatureSuffix = "\n" + (identifier != null ? identifier : "") + "\n\n\n" + SERVICE_VERSION + "\n\n\n\n\n";
+        }
+
+        /**
+         * @return the minimum time a URL stays valid, in milliseconds.
+         */
+        public long getValidityMillis() {
+            return validityMillis;
+        }
+
+        /**
+         * @return the granted permissions, in their signature form.
+         */
+        public String getPermissions() {
+            return permissions;
+        }
+    }
+
+    /**
+     * The URLs of a template that share an expiry time.
+     */
+    private static final class Bucket
+    {
+        final Template template;
+        final long expirySeconds;
+        /** Permissions, start and expiry time of the string to sign, up to the account name. */
+        final String signaturePrefix;
+        /** The query string without the signature. */
+        final String query;
+        final ConcurrentHashMap<String, String> urls = new ConcurrentHashMap<>();
+
+        Bucket(Template template, long expirySeconds) {
+            this.template = template;
+            this.expirySeconds = expirySeconds;
+
+            final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final String expiry = format.format(new Date(TimeUnit.SECONDS.toMillis(expirySeconds)));
+
+            this.signaturePrefix = template.permissions + "\n\n" + expiry + "\n/blob/";
+            final StringBuilder query = new StringBuilder("sv=").append(SERVICE_VERSION)
+                    .append("&se=").append(encode(expiry))
+                    .append("&sr=b");
+            if(!template.permissions.isEmpty())
+                query.append("&sp=").append(encode(template.permissions));
+            if(template.identifier != null)
+                query.append("&si=").append(encode(template.identifier));
+            this.query = query.toString();
+        }
+    }
+}
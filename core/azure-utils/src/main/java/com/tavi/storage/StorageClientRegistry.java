@@ -0,0 +1,93 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.queue.CloudQueueClient;
+import com.microsoft.azure.storage.table.CloudTableClient;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide registry of storage accounts and service clients.
+ *
+ * Connection strings are parsed once and every account gets at most one client per service, so
+ * instances created through the {@code shared(...)} factories of {@link BlobUtils}, {@link QueueUtils}
+ * and {@link TableUtils} all reuse the same clients. Accounts are keyed by identity - pass the same
+ * {@link CloudStorageAccount} instance (or the same connection string) to share clients.
+ *
+ * Thread safe.
+ */
+public final class StorageClientRegistry
+{
+    /** Parsed accounts, keyed by connection string. */
+    private static final ConcurrentMap<String, CloudStorageAccount> ACCOUNTS = new ConcurrentHashMap<>();
+
+    /** Blob clients, keyed by account. */
+    private static final ConcurrentMap<CloudStorageAccount, CloudBlobClient> BLOB_CLIENTS = new ConcurrentHashMap<>();
+
+    /** Queue clients, keyed by account. */
+    private static final ConcurrentMap<CloudStorageAccount, CloudQueueClient> QUEUE_CLIENTS = new ConcurrentHashMap<>();
+
+    /** Table clients, keyed by account. */
+    private static final ConcurrentMap<CloudStorageAccount, CloudTableClient> TABLE_CLIENTS = new ConcurrentHashMap<>();
+
+    private StorageClientRegistry() {}
+
+    /**
+     * Gets the account for a connection string, parsing it only the first time it is seen.
+     * @param connectionString the given connection string.
+     * @return the shared account.
+     * @throws URISyntaxException
+     * @throws InvalidKeyException
+     */
+    public static CloudStorageAccount account(String connectionString) throws URISyntaxException, InvalidKeyException {
+        CloudStorageAccount account = ACCOUNTS.get(connectionString);
+        if(account == null) {
+            final CloudStorageAccount parsed = CloudStorageAccount.parse(connectionString);
+            account = ACCOUNTS.putIfAbsent(connectionString, parsed);
+            if(account == null)
+                account = parsed;
+        }
+        return account;
+    }
+
+    /**
+     * Gets the shared blob client of an account.
+     * @param account the storage account.
+     * @return the shared client.
+     */
+    public static CloudBlobClient blobClient(CloudStorageAccount account) {
+        return BLOB_CLIENTS.computeIfAbsent(account, CloudStorageAccount::createCloudBlobClient);
+    }
+
+    /**
+     * Gets the shared queue client of an account.
+     * @param account the storage account.
+     * @return the shared client.
+     */
+    public static CloudQueueClient queueClient(CloudStorageAccount account) {
+        return QUEUE_CLIENTS.computeIfAbsent(account, CloudStorageAccount::createCloudQueueClient);
+    }
+
+    /**
+     * Gets the shared table client of an account.
+     * @param account the storage account.
+     * @return the shared client.
+     */
+    public static CloudTableClient tableClient(CloudStorageAccount account) {
+        return TABLE_CLIENTS.computeIfAbsent(account, CloudStorageAccount::createCloudTableClient);
+    }
+
+    /**
+     * Drops every registered account and client. Utils instances already created keep their clients.
+     */
+    public static void clear() {
+        ACCOUNTS.clear();
+        BLOB_CLIENTS.clear();
+        QUEUE_CLIENTS.clear();
+        TABLE_CLIENTS.clear();
+    }
+}
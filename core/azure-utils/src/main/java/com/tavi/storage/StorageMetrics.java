@@ -0,0 +1,337 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import com.microsoft.azure.storage.StorageException;
+import com.tavi.storage.exceptions.BlobNotFoundException;
+import com.tavi.storage.exceptions.QueueNotFoundException;
+import com.tavi.storage.exceptions.TableNotFoundException;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the operations of the utils classes: calls, bytes transferred, failures by HTTP status, requests sent to the
+ * service and a latency histogram per operation. Requests are counted from the request completed events of
+ * {@link OperationContext}, so the existence checks and SDK retries behind an operation show up as extra requests.
+ *
+ * Export by polling {@link #getSnapshot()} or by adding a {@link Listener}, e.g. one recording to a Micrometer
+ * timer. Requests sent by the worker threads of parallel transfers are not attributed to their operation.
+ *
+ * Thread safe - share one instance between the utils of an application, see
+ * {@link BlobUtils#withMetrics(StorageMetrics)}.
+ */
+public final class StorageMetrics
+{
+    /** The status of operations failing without a response from the service. */
+    public static final int NO_STATUS = -1;
+
+    /** The sample of the operation running on the current thread, to attribute requests to. */
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<>();
+
+    /** Nothing is recorded when metrics are off. */
+    private static final Sample NOOP = new Sample(null, null);
+
+    /**
+     * Receives every completed operation, on the thread that ran it. Must be fast and must not throw.
+     */
+    public interface Listener
+    {
+        /**
+         * @param operation the operation name, e.g. "blob.downloadText".
+         * @param nanos how long the operation took, in nanoseconds.
+         * @param bytes the number of bytes transferred.
+         * @param requests the number of requests sent to the service.
+         * @param status 0 if the operation succeeded, otherwise the HTTP status it failed with or {@link #NO_STATUS}.
+         */
+        void onOperation(String operation, long nanos, long bytes, int requests, int status);
+    }
+
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Initializes empty metrics, listening to the request events of the SDK.
+     */
+    public StorageMetrics() {
+        RequestCounter.install();
+    }
+
+    /**
+     * Adds a listener notified of every operation.
+     * @param listener the listener.
+     * @return this instance.
+     */
+    public StorageMetrics addListener(Listener listener) {
+        if(listener == null)
+            throw new IllegalArgumentException("Listener must not be null");
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * @param listener a listener added before.
+     * @return this instance.
+     */
+    public StorageMetrics removeListener(Listener listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * @param operation the operation name.
+     * @return the counters of an operation, or null if it never ran.
+     */
+    public Stats getStats(String operation) {
+        final Operation metrics = operations.get(operation);
+        return metrics == null ? null : metrics.getStats(operation);
+    }
+
+    /**
+     * @return the counters of every operation that ran, by operation name.
+     */
+    public Map<String, Stats> getSnapshot() {
+        final Map<String, Stats> snapshot = new TreeMap<>();
+        for(Map.Entry<String, Operation> entry : operations.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().getStats(entry.getKey()));
+        return snapshot;
+    }
+
+    /**
+     * Clears every counter.
+     */
+    public void reset() {
+        operations.clear();
+    }
+
+    /**
+     * Starts timing an operation on the current thread. Call {@link Sample#stop()} in a finally block.
+     * @param metrics the metrics to record to; null to record nothing.
+     * @param operation the operation name.
+     * @return the sample.
+     */
+    static Sample start(StorageMetrics metrics, String operation) {
+        return metrics == null ? NOOP : new Sample(metrics, operation);
+    }
+
+    private void record(String name, long nanos, long bytes, int requests, int status) {
+        Operation operation = operations.get(name);
+        if(operation == null)
+            operation = operations.computeIfAbsent(name, key -> new Operation());
+        operation.record(nanos, bytes, requests, status);
+
+        for(Listener listener : listeners)
+            listener.onOperation(name, nanos, bytes, requests, status);
+    }
+
+    /**
+     * @return the HTTP status an operation failed with, or {@link #NO_STATUS}.
+     */
+    static int statusOf(Throwable t) {
+        for(Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if(cause instanceof StorageException && ((StorageException) cause).getHttpStatusCode() > 0)
+                return ((StorageException) cause).getHttpStatusCode();
+            if(cause instanceof BlobNotFoundException || cause instanceof QueueNotFoundException || cause instanceof TableNotFoundException)
+                return HttpURLConnection.HTTP_NOT_FOUND;
+        }
+        return NO_STATUS;
+    }
+
+    /**
+     * Times a single operation and counts its bytes and requests. Not thread safe - used by the thread that runs
+     * the operation.
+     */
+    static final class Sample
+    {
+        private final StorageMetrics metrics;
+        private final String operation;
+        private final long start;
+        private final Sample outer;
+        private long bytes;
+        private int requests;
+        private int status;
+
+        private Sample(StorageMetrics metrics, String operation) {
+            this.metrics = metrics;
+            this.operation = operation;
+            if(metrics == null) {
+                this.start = 0;
+                this.outer = null;
+            } else {
+                this.start = System.nanoTime();
+                this.outer = CURRENT.get();
+                CURRENT.set(this);
+            }
+        }
+
+        /**
+         * @param count the number of bytes transferred.
+         */
+        void addBytes(long count) {
+            bytes += count;
+        }
+
+        /**
+         * Marks the operation failed.
+         * @param t the failure.
+         */
+        void fail(Throwable t) {
+            status = statusOf(t);
+        }
+
+        /**
+         * Records the operation; the operation it runs within, if any, counts the following requests again.
+         */
+        void stop() {
+            if(metrics == null)
+                return;
+            if(outer == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(outer);
+            metrics.record(operation, System.nanoTime() - start, bytes, requests, status);
+        }
+    }
+
+    /**
+     * Attributes completed requests to the operation running on the thread that sent them. The SDK raises the
+     * request events on the calling thread.
+     */
+    private static final class RequestCounter extends StorageEvent<RequestCompletedEvent>
+    {
+        private static volatile boolean installed;
+
+        static void install() {
+            if(installed)
+                return;
+            synchronized (RequestCounter.class) {
+                if(!installed) {
+                    OperationContext.getGlobalRequestCompletedEventHandler().addListener(new RequestCounter());
+                    installed = true;
+                }
+            }
+        }
+
+        @Override
+        public void eventOccurred(RequestCompletedEvent event) {
+            for(Sample sample = CURRENT.get(); sample != null; sample = sample.outer)
+                sample.requests++;
+        }
+    }
+
+    /**
+     * The counters of one operation.
+     */
+    private static final class Operation
+    {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder requests = new LongAdder();
+        private final ConcurrentMap<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        void record(long nanos, long count, int sent, int status) {
+            calls.increment();
+            bytes.add(count);
+            requests.add(sent);
+            latency.record(nanos);
+            if(status != 0) {
+                LongAdder errorCount = errors.get(status);
+                if(errorCount == null)
+                    errorCount = errors.computeIfAbsent(status, key -> new LongAdder());
+                errorCount.increment();
+            }
+        }
+
+        Stats getStats(String name) {
+            final Map<Integer, Long> errorCounts = new TreeMap<>();
+            long errorTotal = 0;
+            for(Map.Entry<Integer, LongAdder> entry : errors.entrySet()) {
+                final long errorCount = entry.getValue().sum();
+                errorCounts.put(entry.getKey(), errorCount);
+                errorTotal += errorCount;
+            }
+            return new Stats(name, calls.sum(), errorTotal, Collections.unmodifiableMap(errorCounts), bytes.sum(),
+                    requests.sum(), latency.getSnapshot());
+        }
+    }
+
+    /**
+     * A snapshot of the counters of an operation.
+     */
+    public static final class Stats
+    {
+        private final String operation;
+        private final long count;
+        private final long errors;
+        private final Map<Integer, Long> errorsByStatus;
+        private final long bytes;
+        private final long requests;
+        private final LatencyHistogram.Snapshot latency;
+
+        public Stats(String operation, long count, long errors, Map<Integer, Long> errorsByStatus, long bytes,
+                     long requests, LatencyHistogram.Snapshot latency) {
+            this.operation = operation;
+            this.count = count;
+            this.errors = errors;
+            this.errorsByStatus = errorsByStatus;
+            this.bytes = bytes;
+            this.requests = requests;
+            this.latency = latency;
+        }
+
+        /** @return the operation name. */
+        public String getOperation() {
+            return operation;
+        }
+
+        /** @return the number of times the operation ran. */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return the number of times the operation failed. */
+        public long getErrors() {
+            return errors;
+        }
+
+        /** @return the number of failures by HTTP status, {@link #NO_STATUS} for failures without a response. */
+        public Map<Integer, Long> getErrorsByStatus() {
+            return errorsByStatus;
+        }
+
+        /** @return the number of bytes transferred. */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return the number of requests sent to the service, existence checks and retries included. */
+        public long getRequests() {
+            return requests;
+        }
+
+        /** @return the mean number of requests per operation. */
+        public double getRequestsPerOperation() {
+            return count == 0 ? 0 : (double) requests / count;
+        }
+
+        /** @return the latencies of the operation, failures included. */
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{operation=" + operation + ", count=" + count + ", errors=" + errorsByStatus + ", bytes=" + bytes
+                    + ", requests=" + requests + ", latency=" + latency + "}";
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.RequestOptions;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Retries and paces the requests of a storage account.
+ *
+ * Every request first takes a token from a token bucket, if a rate limit is set, then waits for a slot under an
+ * adaptive concurrency limit. The limit grows additively while requests succeed and shrinks multiplicatively when
+ * the service throttles (AIMD), so clients back off together when the account is overloaded and recover once it is
+ * not. Requests failing with throttling, server errors or timeouts are retried after a random delay with an
+ * exponentially growing bound.
+ *
+ * Thread safe - share one instance between the utils of an account, see
+ * {@link BlobUtils#withThrottle(StorageThrottle)}.
+ */
+public final class StorageThrottle
+{
+    /** HTTP 429, not defined by HttpURLConnection. */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * A request to the service.
+     * @param <T> the result type.
+     * @param <E> another exception the request may throw, e.g. IOException.
+     */
+    public interface StorageCall<T, E extends Exception>
+    {
+        T call() throws StorageException, E;
+    }
+
+    /**
+     * A request to the service sent with the given request options.
+     * @param <O> the request options type.
+     * @param <T> the result type.
+     * @param <E> another exception the request may throw, e.g. IOException.
+     */
+    interface OptionsCall<O extends RequestOptions, T, E extends Exception>
+    {
+        T call(O options) throws StorageException, E;
+    }
+
+    private static final RetryNoRetry NO_RETRY = new RetryNoRetry();
+
+    private final ThrottleOptions options;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+
+    private final Object bucket = new Object();
+    private double tokens;
+    private long refilledNanos = System.nanoTime();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Initializes a throttle.
+     * @param options the retry, concurrency and rate options.
+     */
+    public StorageThrottle(ThrottleOptions options) {
+        this.options = options;
+        this.limit = options.getInitialConcurrency();
+        this.tokens = options.getBurst();
+        this.lastDecreaseNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(options.getBaseBackoffMillis());
+    }
+
+    /**
+     * Runs a request, waiting for a token and a slot first and retrying it on retryable failures.
+     * @param call the request.
+     * @param <T> the result type.
+     * @param <E> another exception the request may throw.
+     * @return the result.
+     * @throws StorageException if the request failed for good, or the thread was interrupted while waiting.
+     * @throws E if the request threw it; not retried.
+     */
+    public <T, E extends Exception> T call(StorageCall<T, E> call) throws StorageException, E {
+        for(int attempt = 0; ; attempt++) {
+            acquire();
+            requests.incrementAndGet();
+            try {
+                final T result = call.call();
+                onSuccess();
+                return result;
+            } catch (StorageException e) {
+                if(isThrottled(e)) {
+                    throttled.incrementAndGet();
+                    onThrottled();
+                }
+                if(attempt >= options.getMaxRetries() || !isRetryable(e))
+                    throw e;
+            } finally {
+                release();
+            }
+
+            retries.incrementAndGet();
+            sleep(backoffMillis(attempt));
+        }
+    }
+
+    /**
+     * Runs a request through a throttle, if any. A throttled request is sent with its own options turning off the
+     * retries of the SDK, which would otherwise retry below the throttle; an unthrottled one with null options, i.e.
+     * the defaults of the client.
+     * @param throttle the throttle; null to send the request as it is.
+     * @param newOptions creates empty request options.
+     * @param call the request.
+     * @param <O> the request options type.
+     * @param <T> the result type.
+     * @param <E> another exception the request may throw.
+     * @return the result.
+     * @throws StorageException
+     * @throws E
+     */
+    static <O extends RequestOptions, T, E extends Exception> T call(StorageThrottle throttle, Supplier<O> newOptions,
+                                                                      OptionsCall<O, T, E> call) throws StorageException, E {
+        if(throttle == null)
+            return call.call(null);
+        final O options = newOptions.get();
+        options.setRetryPolicyFactory(NO_RETRY);
+        return throttle.call(() -> call.call(options));
+    }
+
+    /**
+     * @return the current concurrency limit.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests in flight.
+     */
+    public int getInFlightCount() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests sent, retries included.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of retries.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of requests the service throttled.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the total time requests waited for a token or a slot, in milliseconds.
+     */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * @param e a service error.
+     * @return true if the service is shedding load: 503 Server Busy, 500 Operation Timed Out or 429.
+     */
+    static boolean isThrottled(StorageException e) {
+        final int status = e.getHttpStatusCode();
+        return status == HttpURLConnection.HTTP_UNAVAILABLE
+                || status == HTTP_TOO_MANY_REQUESTS
+                || (status == HttpURLConnection.HTTP_INTERNAL_ERROR && StorageErrorCodeStrings.OPERATION_TIMED_OUT.equals(e.getErrorCode()));
+    }
+
+    /**
+     * @param e a service error.
+     * @return true if the request may succeed when sent again.
+     */
+    static boolean isRetryable(StorageException e) {
+        return e.getHttpStatusCode() == HTTP_TOO_MANY_REQUESTS || ParallelTransfer.isRetryable(e);
+    }
+
+    /**
+     * @param attempt the attempt that failed, from 0.
+     * @return a random delay between 0 and min(max, base * 2^attempt).
+     */
+    long backoffMillis(int attempt) {
+        final long bound = Math.min(options.getMaxBackoffMillis(), options.getBaseBackoffMillis() << Math.min(attempt, 30));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    private void acquire() throws StorageException {
+        final long start = System.nanoTime();
+        try {
+            if(options.getRequestsPerSecond() > 0) {
+                final long wait = reserveToken();
+                if(wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            lock.lockInterruptibly();
+            try {
+                while(inFlight >= (int) limit)
+                    available.await();
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while waiting to send a request", e);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes a token, going into debt if there is none left.
+     * @return how long to wait until the token would have been available, in nanoseconds.
+     */
+    private long reserveToken() {
+        synchronized (bucket) {
+            final long now = System.nanoTime();
+            tokens = Math.min(options.getBurst(), tokens + (now - refilledNanos) / 1e9 * options.getRequestsPerSecond());
+            refilledNanos = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / options.getRequestsPerSecond() * 1e9);
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSuccess() {
+        lock.lock();
+        try {
+            final int before = (int) limit;
+            limit = Math.min(options.getMaxConcurrency(), limit + 1 / limit);
+            if((int) limit > before)
+                available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onThrottled() {
+        lock.lock();
+        try {
+            // Requests in flight when the service started throttling all fail together; shrink once for them.
+            final long now = System.nanoTime();
+            if(now - lastDecreaseNanos >= TimeUnit.MILLISECONDS.toNanos(options.getBaseBackoffMillis())) {
+                limit = Math.max(options.getMinConcurrency(), limit * options.getDecreaseFactor());
+                lastDecreaseNanos = now;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void sleep(long millis) throws StorageException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while waiting to retry a request", e);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.StorageExtendedErrorInformation;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableOperation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes table operations as entity group transactions.
+ *
+ * Operations are grouped by partition key. A partition is sent as soon as it holds
+ * {@link TableBatchWriterOptions#getBatchSize()} operations, or once its oldest operation waited
+ * {@link TableBatchWriterOptions#getFlushIntervalMillis()}. Different partitions are sent in parallel, the batches
+ * of one partition in write order. A batch the service rejects is split around the offending operation and the
+ * parts are sent again, so one bad entity only fails itself; failed operations go to
+ * {@link TableBatchWriterOptions#getErrorHandler()}.
+ *
+ * Thread safe - any number of threads may write. Create through
+ * {@link TableUtils#createBatchWriter(String, TableBatchWriterOptions)}.
+ */
+public final class TableBatchWriter implements Closeable
+{
+    /** The index of the failed operation leads the error message of a rejected batch, e.g. "3:The specified...". */
+    private static final Pattern FAILED_INDEX = Pattern.compile("^(\\d+):");
+
+    private final CloudTable table;
+    private final TableBatchWriterOptions options;
+    private final TransferOptions retries;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService timer;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Map<String, Partition> partitions = new HashMap<>();
+    private int pending;
+    private boolean closed;
+
+    private final long createdNanos = System.nanoTime();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong splits = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+
+    /**
+     * Operations of one partition waiting to be sent. Guarded by lock.
+     */
+    private static final class Partition
+    {
+        private final String key;
+        private final ArrayDeque<Pending> operations = new ArrayDeque<>();
+
+        /** A sender owns this partition; its batches are only ever sent by that sender. */
+        private boolean scheduled;
+
+        /** Send what is there even if the batch is not full. */
+        private boolean flushRequested;
+
+        private Partition(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Pending
+    {
+        private final TableOperation operation;
+        private final long writtenNanos;
+
+        private Pending(TableOperation operation, long writtenNanos) {
+            this.operation = operation;
+            this.writtenNanos = writtenNanos;
+        }
+    }
+
+    /**
+     * Initializes a writer.
+     * @param table the table to write to.
+     * @param options the writer options.
+     */
+    TableBatchWriter(CloudTable table, TableBatchWriterOptions options) {
+        this.table = table;
+        this.options = options;
+        this.retries = TransferOptions.defaults()
+                .withMaxRetries(options.getMaxRetries())
+                .withRetryBackoffMillis(options.getRetryBackoffMillis());
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getFlushIntervalMillis());
+
+        final String name = "table-batch-" + table.getName();
+        this.senders = Executors.newFixedThreadPool(options.getParallelism(), new DaemonThreadFactory(name + "-send"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(name + "-flush"));
+
+        final long period = Math.max(1, options.getFlushIntervalMillis() / 4);
+        timer.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues an insert or replace of an entity.
+     * @param entity the entity.
+     * @throws InterruptedException
+     */
+    public void insertOrReplace(TableEntity entity) throws InterruptedException {
+        write(entity.getPartitionKey(), TableOperation.insertOrReplace(entity));
+    }
+
+    /**
+     * Queues an insert or merge of an entity.
+     * @param entity the entity.
+     * @throws InterruptedException
+     */
+    public void insertOrMerge(TableEntity entity) throws InterruptedException {
+        write(entity.getPartitionKey(), TableOperation.insertOrMerge(entity));
+    }
+
+    /**
+     * Queues an insert of an entity.
+     * @param entity the entity.
+     * @throws InterruptedException
+     */
+    public void insert(TableEntity entity) throws InterruptedException {
+        write(entity.getPartitionKey(), TableOperation.insert(entity));
+    }
+
+    /**
+     * Queues a delete of an entity.
+     * @param entity the entity.
+     * @throws InterruptedException
+     */
+    public void delete(TableEntity entity) throws InterruptedException {
+        write(entity.getPartitionKey(), TableOperation.delete(entity));
+    }
+
+    /**
+     * Queues an operation, waiting while the writer already holds
+     * {@link TableBatchWriterOptions#getMaxPendingOperations()} operations.
+     * @param partitionKey the partition key of the entity the operation applies to.
+     * @param operation a write operation; retrieve operations cannot be batched with others.
+     * @throws InterruptedException
+     */
+    public void write(String partitionKey, TableOperation operation) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while(pending >= options.getMaxPendingOperations() && !closed)
+                notFull.await();
+            if(closed)
+                throw new IllegalStateException("Writer closed");
+
+            Partition partition = partitions.get(partitionKey);
+            if(partition == null) {
+                partition = new Partition(partitionKey);
+                partitions.put(partitionKey, partition);
+            }
+            partition.operations.add(new Pending(operation, System.nanoTime()));
+            pending++;
+
+            if(partition.operations.size() >= options.getBatchSize())
+                schedule(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends every queued operation, partial batches included, and waits until they completed.
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            for(Partition partition : partitions.values()) {
+                partition.flushRequested = true;
+                schedule(partition);
+            }
+            while(pending > 0)
+                drained.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the queued operations and releases the writer threads. Further writes throw.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdownNow();
+            senders.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of operations written but not completed yet.
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of the writer counters.
+     */
+    public Stats getStats() {
+        return new Stats(written.get(), failed.get(), batches.get(), requests.get(), splits.get(),
+                batchNanos.get(), maxBatchNanos.get(), System.nanoTime() - createdNanos);
+    }
+
+    /**
+     * Hands a partition to a sender, unless one already owns it. Requires lock.
+     */
+    private void schedule(Partition partition) {
+        if(!partition.scheduled) {
+            partition.scheduled = true;
+            senders.execute(() -> drain(partition));
+        }
+    }
+
+    private void flushExpired() {
+        final long now = System.nanoTime();
+        lock.lock();
+        try {
+            for(Partition partition : partitions.values())
+                if(!partition.scheduled && isExpired(partition, now))
+                    schedule(partition);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isExpired(Partition partition, long now) {
+        final Pending oldest = partition.operations.peek();
+        return oldest != null && now - oldest.writtenNanos >= flushIntervalNanos;
+    }
+
+    /**
+     * Sends the batches of a partition until it has no batch ready.
+     */
+    private void drain(Partition partition) {
+        boolean done = false;
+        try {
+            while(true) {
+                final List<TableOperation> batch;
+                lock.lock();
+                try {
+                    batch = nextBatch(partition);
+                    if(batch == null) {
+                        partition.scheduled = false;
+                        if(partition.operations.isEmpty())
+                            partitions.remove(partition.key);
+                        done = true;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    send(batch);
+                } finally {
+                    // Completed even if sending ended abnormally, so that flush, close and writers never wait for it.
+                    lock.lock();
+                    try {
+                        pending -= batch.size();
+                        notFull.signalAll();
+                        if(pending == 0)
+                            drained.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            if(!done)
+                release(partition);
+        }
+    }
+
+    /**
+     * Gives up the partition after its sender ended abnormally, handing what is left to a new sender.
+     */
+    private void release(Partition partition) {
+        lock.lock();
+        try {
+            partition.scheduled = false;
+            if(partition.operations.isEmpty()) {
+                partitions.remove(partition.key);
+            } else if(partition.flushRequested || partition.operations.size() >= options.getBatchSize()) {
+                try {
+                    schedule(partition);
+                } catch (RejectedExecutionException e) {
+                    partition.scheduled = false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next batch of a partition if it is full, expired or being flushed. Requires lock.
+     * @return the batch, or null if none is ready.
+     */
+    private List<TableOperation> nextBatch(Partition partition) {
+        final int size = partition.operations.size();
+        if(size == 0) {
+            partition.flushRequested = false;
+            return null;
+        }
+        if(size < options.getBatchSize() && !partition.flushRequested && !isExpired(partition, System.nanoTime()))
+            return null;
+
+        final List<TableOperation> batch = new ArrayList<>(Math.min(size, options.getBatchSize()));
+        while(batch.size() < options.getBatchSize() && !partition.operations.isEmpty())
+            batch.add(partition.operations.poll().operation);
+        return batch;
+    }
+
+    /**
+     * Sends a batch, retrying it on server errors and splitting it if the service rejects it.
+     * Every operation ends up either written or reported to the error handler.
+     */
+    private void send(final List<TableOperation> operations) {
+        final long start = System.nanoTime();
+        try {
+            ParallelTransfer.retry(retries, () -> {
+                requests.incrementAndGet();
+                return operations.size() == 1 ? table.execute(operations.get(0)) : table.execute(toBatch(operations));
+            });
+        } catch (StorageException e) {
+            if(operations.size() > 1 && !ParallelTransfer.isRetryable(e)) {
+                split(operations, failedIndex(e, operations.size()));
+            } else {
+                fail(operations, e);
+            }
+            return;
+        } catch (IllegalArgumentException e) {
+            // Operations that cannot share a batch, e.g. a retrieve or a mismatched partition key.
+            if(operations.size() > 1) {
+                split(operations, -1);
+            } else {
+                fail(operations, e);
+            }
+            return;
+        } catch (IOException | RuntimeException e) {
+            fail(operations, e);
+            return;
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        batches.incrementAndGet();
+        batchNanos.addAndGet(elapsed);
+        maxBatchNanos.accumulateAndGet(elapsed, Math::max);
+        written.addAndGet(operations.size());
+    }
+
+    /**
+     * Sends the parts of a rejected batch one after the other, keeping the write order.
+     * @param operations the rejected batch.
+     * @param failedIndex the operation the service blamed, or -1 to split in halves.
+     */
+    private void split(List<TableOperation> operations, int failedIndex) {
+        splits.incrementAndGet();
+        if(failedIndex >= 0) {
+            if(failedIndex > 0)
+                send(operations.subList(0, failedIndex));
+            send(operations.subList(failedIndex, failedIndex + 1));
+            if(failedIndex + 1 < operations.size())
+                send(operations.subList(failedIndex + 1, operations.size()));
+        } else {
+            final int half = operations.size() / 2;
+            send(operations.subList(0, half));
+            send(operations.subList(half, operations.size()));
+        }
+    }
+
+    private void fail(List<TableOperation> operations, Exception e) {
+        if(e instanceof InterruptedIOException)
+            Thread.currentThread().interrupt();
+        failed.addAndGet(operations.size());
+        for(TableOperation operation : operations) {
+            try {
+                options.getErrorHandler().accept(operation, e);
+            } catch (RuntimeException ignored) {
+                // A failing handler must neither stall the writer nor skip the other operations.
+            }
+        }
+    }
+
+    private static TableBatchOperation toBatch(List<TableOperation> operations) {
+        final TableBatchOperation batch = new TableBatchOperation();
+        batch.addAll(operations);
+        return batch;
+    }
+
+    /**
+     * @param e the error of a rejected batch.
+     * @param size the batch size.
+     * @return the index of the operation the service blamed, or -1 if the error does not name one.
+     */
+    static int failedIndex(StorageException e, int size) {
+        final StorageExtendedErrorInformation info = e.getExtendedErrorInformation();
+        final String message = info != null && info.getErrorMessage() != null ? info.getErrorMessage() : e.getMessage();
+        if(message == null)
+            return -1;
+
+        final Matcher matcher = FAILED_INDEX.matcher(message);
+        if(!matcher.find())
+            return -1;
+        try {
+            final int index = Integer.parseInt(matcher.group(1));
+            return index < size ? index : -1;
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    /**
+     * A snapshot of the counters of a writer.
+     */
+    public static final class Stats
+    {
+        private final long written;
+        private final long failed;
+        private final long batches;
+        private final long requests;
+        private final long splits;
+        private final long batchNanos;
+        private final long maxBatchNanos;
+        private final long elapsedNanos;
+
+        public Stats(long written, long failed, long batches, long requests, long splits,
+                     long batchNanos, long maxBatchNanos, long elapsedNanos) {
+            this.written = written;
+            this.failed = failed;
+            this.batches = batches;
+            this.requests = requests;
+            this.splits = splits;
+            this.batchNanos = batchNanos;
+            this.maxBatchNanos = maxBatchNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** @return the number of operations written. */
+        public long getWritten() {
+            return written;
+        }
+
+        /** @return the number of operations reported to the error handler. */
+        public long getFailed() {
+            return failed;
+        }
+
+        /** @return the number of batches written, single operations included. */
+        public long getBatches() {
+            return batches;
+        }
+
+        /** @return the number of requests sent, retries and rejected batches included. */
+        public long getRequests() {
+            return requests;
+        }
+
+        /** @return the number of rejected batches that were split. */
+        public long getSplits() {
+            return splits;
+        }
+
+        /** @return the mean time to write a batch, retries included, in milliseconds. */
+        public double getMeanBatchLatencyMillis() {
+            return batches == 0 ? 0 : batchNanos / 1e6 / batches;
+        }
+
+        /** @return the longest time to write a batch, retries included, in milliseconds. */
+        public double getMaxBatchLatencyMillis() {
+            return maxBatchNanos / 1e6;
+        }
+
+        /** @return the mean number of operations per written batch. */
+        public double getMeanBatchSize() {
+            return batches == 0 ? 0 : (double) written / batches;
+        }
+
+        /** @return operations written per second since the writer was created. */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : written * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{written=" + written + ", failed=" + failed + ", batches=" + batches + ", requests=" + requests
+                    + ", splits=" + splits + ", meanBatchLatencyMillis=" + getMeanBatchLatencyMillis()
+                    + ", throughput=" + getThroughput() + "}";
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.table.TableOperation;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Options for a {@link TableBatchWriter}.
+ *
+ * Not thread safe - configure before creating the writer.
+ */
+public class TableBatchWriterOptions
+{
+    /** The most operations an entity group transaction can have. */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private int batchSize = MAX_BATCH_SIZE;
+    private long flushIntervalMillis = 1000;
+    private int parallelism = 8;
+    private int maxPendingOperations = 10000;
+    private int maxRetries = TransferOptions.DEFAULT_MAX_RETRIES;
+    private long retryBackoffMillis = TransferOptions.DEFAULT_RETRY_BACKOFF_MILLIS;
+    private BiConsumer<TableOperation, Exception> errorHandler = (operation, error) -> {};
+
+    /**
+     * @return a new TableBatchWriterOptions with default values.
+     */
+    public static TableBatchWriterOptions defaults() {
+        return new TableBatchWriterOptions();
+    }
+
+    /**
+     * @return the most operations sent in one batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the most operations sent in one batch. A partition is flushed as soon as it has this many operations.
+     * @param batchSize between 1 and {@link #MAX_BATCH_SIZE}.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withBatchSize(int batchSize) {
+        if(batchSize <= 0 || batchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_BATCH_SIZE);
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @return the longest an operation waits for its batch to fill up, in milliseconds.
+     */
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    /**
+     * Sets the longest an operation waits for its batch to fill up before the partial batch is sent.
+     * @param flushIntervalMillis the interval in milliseconds, at least 1.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withFlushIntervalMillis(long flushIntervalMillis) {
+        if(flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("flushIntervalMillis must be positive");
+        this.flushIntervalMillis = flushIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @return the most batches in flight at the same time.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the most batches in flight at the same time. Batches of different partitions run in parallel; the
+     * batches of one partition are always sent one after the other, in write order.
+     * @param parallelism the parallelism, at least 1.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withParallelism(int parallelism) {
+        if(parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return the most operations written but not yet completed before writers block.
+     */
+    public int getMaxPendingOperations() {
+        return maxPendingOperations;
+    }
+
+    /**
+     * Sets the most operations written but not yet completed. Writes block while the writer holds this many.
+     * @param maxPendingOperations the limit, at least {@link #getBatchSize()}.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withMaxPendingOperations(int maxPendingOperations) {
+        if(maxPendingOperations <= 0)
+            throw new IllegalArgumentException("maxPendingOperations must be positive");
+        this.maxPendingOperations = maxPendingOperations;
+        return this;
+    }
+
+    /**
+     * @return the number of times a batch failing with a server error or timeout is retried.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a batch failing with a server error or timeout is retried as a whole. Batches
+     * rejected by the service are split instead.
+     * @param maxRetries the number of retries, 0 to disable.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withMaxRetries(int maxRetries) {
+        if(maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @return the delay before the first retry of a batch, in milliseconds.
+     */
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    /**
+     * Sets the delay before the first retry of a batch. The delay doubles with every retry.
+     * @param retryBackoffMillis the delay in milliseconds.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withRetryBackoffMillis(long retryBackoffMillis) {
+        if(retryBackoffMillis < 0)
+            throw new IllegalArgumentException("retryBackoffMillis must not be negative");
+        this.retryBackoffMillis = retryBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return the callback receiving every operation that could not be written.
+     */
+    public BiConsumer<TableOperation, Exception> getErrorHandler() {
+        return errorHandler;
+    }
+
+    /**
+     * Sets the callback receiving every operation that could not be written, with the reason. Called from
+     * writer threads; must not block. Exceptions it throws are ignored.
+     * @param errorHandler the callback.
+     * @return this instance.
+     */
+    public TableBatchWriterOptions withErrorHandler(BiConsumer<TableOperation, Exception> errorHandler) {
+        if(errorHandler == null)
+            throw new IllegalArgumentException("errorHandler must not be null");
+        this.errorHandler = errorHandler;
+        return this;
+    }
+}
@@ -0,0 +1,184 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates over the results of a table query one segment at a time, optionally fetching the next segment in the
+ * background while the current one is consumed. At most two segments are held in memory.
+ *
+ * The position of the cursor is {@link #getContinuationToken()} plus {@link #getSegmentOffset()}: opening a new
+ * cursor with {@link TableQueryOptions#withContinuationToken(ResultContinuation)} and
+ * {@link TableQueryOptions#withSkip(long)} set to those values resumes right after the last entity returned.
+ *
+ * Not thread safe - consume from a single thread. Create through
+ * {@link TableUtils#querySegmented(String, TableQuery, TableQueryOptions)}.
+ * @param <T> the entity type.
+ */
+public final class TableQueryCursor<T extends TableEntity> implements Closeable
+{
+    /** Fetches the next segments; idle threads are released after a minute. */
+    private static final ExecutorService PREFETCHER = Executors.newCachedThreadPool(new DaemonThreadFactory("table-query-prefetch"));
+
+    private final CloudTable table;
+    private final TableQuery<T> query;
+    private final boolean prefetch;
+
+    private List<T> segment;
+    private int position;
+    private ResultContinuation segmentToken;
+    private ResultContinuation nextToken;
+    private Future<ResultSegment<T>> next;
+    private long skip;
+
+    private int segments;
+    private long returned;
+    private boolean closed;
+
+    /**
+     * Initializes a cursor and fetches the first segment.
+     * @param table the table to query.
+     * @param query the query; its take count is set to the page size, if any.
+     * @param options the query options.
+     * @throws StorageException
+     */
+    TableQueryCursor(CloudTable table, TableQuery<T> query, TableQueryOptions options) throws StorageException {
+        this.table = table;
+        this.query = query;
+        this.prefetch = options.isPrefetch();
+        this.skip = options.getSkip();
+        if(options.getPageSize() != null)
+            query.setTakeCount(options.getPageSize());
+
+        accept(table.executeSegmented(query, options.getContinuationToken()), options.getContinuationToken());
+    }
+
+    /**
+     * @return true if there are more entities, fetching the next segment if needed.
+     * @throws StorageException
+     */
+    public boolean hasNext() throws StorageException {
+        if(closed)
+            throw new IllegalStateException("Cursor closed");
+
+        while(true) {
+            final int skipped = (int) Math.min(skip, segment.size() - position);
+            position += skipped;
+            skip -= skipped;
+
+            if(position < segment.size())
+                return true;
+            if(nextToken == null)
+                return false;
+
+            final ResultContinuation token = nextToken;
+            accept(fetch(token), token);
+        }
+    }
+
+    /**
+     * @return the next entity.
+     * @throws StorageException
+     * @throws NoSuchElementException if there are no more entities.
+     */
+    public T next() throws StorageException {
+        if(!hasNext())
+            throw new NoSuchElementException();
+        returned++;
+        return segment.get(position++);
+    }
+
+    /**
+     * @return the token the current segment was fetched with, or null for the first segment of a query started
+     * from the beginning.
+     */
+    public ResultContinuation getContinuationToken() {
+        return segmentToken;
+    }
+
+    /**
+     * @return the number of entities of the current segment already returned or skipped.
+     */
+    public int getSegmentOffset() {
+        return position;
+    }
+
+    /**
+     * @return the token of the segment after the current one, or null if the current segment is the last.
+     */
+    public ResultContinuation getNextContinuationToken() {
+        return nextToken;
+    }
+
+    /**
+     * @return the number of segments fetched so far.
+     */
+    public int getSegmentCount() {
+        return segments;
+    }
+
+    /**
+     * @return the number of entities returned so far.
+     */
+    public long getReturnedCount() {
+        return returned;
+    }
+
+    /**
+     * Cancels the prefetch in flight, if any.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if(next != null)
+            next.cancel(true);
+        next = null;
+        segment = null;
+    }
+
+    private void accept(ResultSegment<T> result, ResultContinuation token) {
+        segment = result.getResults();
+        position = 0;
+        segmentToken = token;
+        segments++;
+
+        nextToken = result.getHasMoreResults() ? result.getContinuationToken() : null;
+        if(prefetch && nextToken != null) {
+            final ResultContinuation nextSegmentToken = nextToken;
+            next = PREFETCHER.submit(() -> table.executeSegmented(query, nextSegmentToken));
+        }
+    }
+
+    private ResultSegment<T> fetch(ResultContinuation token) throws StorageException {
+        if(next == null)
+            return table.executeSegmented(query, token);
+
+        final Future<ResultSegment<T>> prefetched = next;
+        next = null;
+        try {
+            return prefetched.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while fetching the next segment", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof StorageException)
+                throw (StorageException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw (Error) cause;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+
+/**
+ * Options for a {@link TableQueryCursor}.
+ *
+ * Not thread safe - configure before opening the cursor.
+ */
+public class TableQueryOptions
+{
+    /** The most entities the service returns per segment. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private Integer pageSize;
+    private boolean prefetch = true;
+    private ResultContinuation continuationToken;
+    private long skip;
+
+    /**
+     * @return a new TableQueryOptions with default values.
+     */
+    public static TableQueryOptions defaults() {
+        return new TableQueryOptions();
+    }
+
+    /**
+     * @return the most entities fetched per segment, or null to use the take count of the query.
+     */
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the most entities fetched per segment. Overrides the take count of the query.
+     * @param pageSize between 1 and {@link #MAX_PAGE_SIZE}.
+     * @return this instance.
+     */
+    public TableQueryOptions withPageSize(int pageSize) {
+        if(pageSize <= 0 || pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_PAGE_SIZE);
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @return true if the next segment is fetched in the background while the current one is consumed.
+     */
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Fetches the next segment in the background while the current one is consumed. At most two segments are
+     * held in memory either way.
+     * @param prefetch prefetch or not.
+     * @return this instance.
+     */
+    public TableQueryOptions withPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * @return the token the query starts from, or null to start from the beginning.
+     */
+    public ResultContinuation getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * Starts the query from a token, e.g. {@link TableQueryCursor#getContinuationToken()} of an interrupted scan.
+     * @param continuationToken the token, or null to start from the beginning.
+     * @return this instance.
+     */
+    public TableQueryOptions withContinuationToken(ResultContinuation continuationToken) {
+        this.continuationToken = continuationToken;
+        return this;
+    }
+
+    /**
+     * @return the number of entities skipped from where the query starts.
+     */
+    public long getSkip() {
+        return skip;
+    }
+
+    /**
+     * Skips entities from where the query starts, e.g. {@link TableQueryCursor#getSegmentOffset()} of an
+     * interrupted scan, so that resuming returns none of the entities already consumed.
+     * @param skip the number of entities to skip.
+     * @return this instance.
+     */
+    public TableQueryOptions withSkip(long skip) {
+        if(skip < 0)
+            throw new IllegalArgumentException("skip must not be negative");
+        this.skip = skip;
+        return this;
+    }
+}
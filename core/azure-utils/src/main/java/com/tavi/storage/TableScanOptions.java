@@ -0,0 +1,91 @@
+package com.tavi.storage;
+
+import java.util.List;
+
+/**
+ * Options for parallel table scans.
+ *
+ * Not thread safe - configure before starting the scan.
+ */
+public class TableScanOptions
+{
+    private int parallelism = 8;
+    private int queueCapacity = 1000;
+    private Integer pageSize;
+
+    /**
+     * Derives the partition ranges of a scan, e.g. from known key prefixes or the distribution of the keys.
+     */
+    public interface KeySpaceSplitter
+    {
+        /**
+         * @param parallelism the parallelism of the scan; a few ranges per thread balance uneven ranges best.
+         * @return ranges that together cover the keys to scan, without overlapping.
+         */
+        List<PartitionRange> split(int parallelism);
+    }
+
+    /**
+     * @return a new TableScanOptions with default values.
+     */
+    public static TableScanOptions defaults() {
+        return new TableScanOptions();
+    }
+
+    /**
+     * @return the most ranges scanned at the same time.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the most ranges scanned at the same time.
+     * @param parallelism the parallelism, at least 1.
+     * @return this instance.
+     */
+    public TableScanOptions withParallelism(int parallelism) {
+        if(parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return the most entities fetched but not yet consumed by a stream.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the most entities fetched but not yet consumed by a stream. Scanning pauses while the queue is full.
+     * @param queueCapacity the capacity, at least 1.
+     * @return this instance.
+     */
+    public TableScanOptions withQueueCapacity(int queueCapacity) {
+        if(queueCapacity <= 0)
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * @return the most entities fetched per segment, or null to use the take count of the query.
+     */
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the most entities fetched per segment of each range.
+     * @param pageSize between 1 and {@link TableQueryOptions#MAX_PAGE_SIZE}.
+     * @return this instance.
+     */
+    public TableScanOptions withPageSize(int pageSize) {
+        if(pageSize <= 0 || pageSize > TableQueryOptions.MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("pageSize must be between 1 and " + TableQueryOptions.MAX_PAGE_SIZE);
+        this.pageSize = pageSize;
+        return this;
+    }
+}
@@ -0,0 +1,285 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableEntity;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.tavi.storage.exceptions.UncheckedStorageException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans partition ranges of a table in parallel on a fork/join pool. The range list is split in halves until each
+ * task holds a single range, so idle threads steal the remaining ranges of busy ones. Each range is read segment
+ * by segment with a {@link TableQueryCursor}.
+ *
+ * Single use - every scan creates a scanner and a pool of its own.
+ * @param <T> the entity type.
+ */
+final class TableScanner<T extends TableEntity>
+{
+    /** Marks the end of the entities in the queue of a stream. */
+    private static final Object END = new Object();
+
+    /** How often a producer blocked on a full queue checks whether the stream was closed. */
+    private static final long OFFER_MILLIS = 100;
+
+    private final CloudTable table;
+    private final TableQuery<T> query;
+    private final List<PartitionRange> ranges;
+    private final TableScanOptions options;
+
+    private volatile boolean cancelled;
+
+    /** The first failure of any range; the other ranges are cancelled and fail with a CancellationException. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param table the table to scan.
+     * @param query the query each range is restricted to; not modified.
+     * @param ranges the partition ranges to scan.
+     * @param options the scan options.
+     */
+    TableScanner(CloudTable table, TableQuery<T> query, List<PartitionRange> ranges, TableScanOptions options) {
+        if(ranges.isEmpty())
+            throw new IllegalArgumentException("At least one partition range is required");
+        this.table = table;
+        this.query = query;
+        this.ranges = ranges;
+        this.options = options;
+    }
+
+    /**
+     * Scans every range, handing entities to a consumer from the scanning threads. Stops at the first failure.
+     * @param consumer the consumer; called concurrently, in no particular order.
+     * @return the number of entities scanned.
+     * @throws StorageException
+     */
+    long forEach(Consumer<? super T> consumer) throws StorageException {
+        final AtomicLong count = new AtomicLong();
+        final ForkJoinPool pool = newPool();
+        try {
+            pool.submit(new ScanTask(ranges, entity -> {
+                consumer.accept(entity);
+                count.incrementAndGet();
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("OperationInterrupted", "Interrupted while scanning " + table.getName(), e);
+        } catch (ExecutionException e) {
+            throw rethrow(failure.get() != null ? failure.get() : e.getCause());
+        } catch (CancellationException e) {
+            throw rethrow(failure.get() != null ? failure.get() : e);
+        } finally {
+            cancelled = true;
+            pool.shutdownNow();
+        }
+        return count.get();
+    }
+
+    /**
+     * Starts scanning every range into a bounded queue and returns the entities as a stream. Scanning pauses while
+     * the queue is full; closing the stream stops it. A failure ends the stream with an
+     * {@link UncheckedStorageException} or the original runtime exception.
+     * @return the entities, in no particular order.
+     */
+    Stream<T> stream() {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(options.getQueueCapacity());
+        final ForkJoinPool pool = newPool();
+
+        pool.execute(() -> {
+            try {
+                new ScanTask(ranges, entity -> offer(queue, entity)).invoke();
+            } catch (Throwable ignored) {
+                // Recorded in failure by the range that failed first.
+            } finally {
+                try {
+                    offer(queue, END);
+                } catch (CancellationException ignored) {
+                    // Nobody is reading any more.
+                }
+            }
+        });
+
+        final Iterator<T> iterator = new Iterator<T>() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                if(next == null)
+                    next = take(queue);
+                if(next != END)
+                    return true;
+
+                final Throwable t = failure.get();
+                if(t == null)
+                    return false;
+                if(t instanceof Error)
+                    throw (Error) t;
+                final StorageException e = storageException(t);
+                if(e != null)
+                    throw new UncheckedStorageException(e);
+                throw (RuntimeException) t;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                final T entity = (T) next;
+                next = null;
+                return entity;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    cancelled = true;
+                    pool.shutdownNow();
+                    queue.clear();
+                });
+    }
+
+    /**
+     * Scans a list of ranges, splitting it in halves until a single range is left.
+     */
+    private final class ScanTask extends RecursiveAction
+    {
+        private final List<PartitionRange> ranges;
+        private final Consumer<? super T> sink;
+
+        private ScanTask(List<PartitionRange> ranges, Consumer<? super T> sink) {
+            this.ranges = ranges;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if(ranges.size() == 1) {
+                try {
+                    scan(ranges.get(0), sink);
+                } catch (CancellationException e) {
+                    throw e;
+                } catch (StorageException e) {
+                    throw fail(new UncheckedStorageException("Unable to scan " + ranges.get(0), e));
+                } catch (RuntimeException e) {
+                    throw fail(e);
+                } catch (Error e) {
+                    throw fail(e);
+                }
+                return;
+            }
+
+            final int half = ranges.size() / 2;
+            invokeAll(new ScanTask(ranges.subList(0, half), sink), new ScanTask(ranges.subList(half, ranges.size()), sink));
+        }
+    }
+
+    /**
+     * Records the first failure and stops the other ranges instead of letting them run to completion for nothing.
+     * @return t, to throw.
+     */
+    private <E extends Throwable> E fail(E t) {
+        failure.compareAndSet(null, t);
+        cancelled = true;
+        return t;
+    }
+
+    private void scan(PartitionRange range, Consumer<? super T> sink) throws StorageException {
+        final TableQueryOptions cursorOptions = TableQueryOptions.defaults().withPrefetch(false);
+        if(options.getPageSize() != null)
+            cursorOptions.withPageSize(options.getPageSize());
+
+        try (TableQueryCursor<T> cursor = new TableQueryCursor<>(table, restrict(range), cursorOptions)) {
+            while(!cancelled && cursor.hasNext())
+                sink.accept(cursor.next());
+        }
+        if(cancelled)
+            throw new CancellationException();
+    }
+
+    /**
+     * @return a copy of the query restricted to a range.
+     */
+    private TableQuery<T> restrict(PartitionRange range) {
+        final TableQuery<T> restricted = new TableQuery<>(query.getClazzType());
+        final String rangeFilter = range.toFilter();
+        final String filter = query.getFilterString();
+        if(filter != null && !filter.isEmpty() && rangeFilter != null) {
+            restricted.setFilterString(TableQuery.combineFilters("(" + filter + ")", TableQuery.Operators.AND, rangeFilter));
+        } else if(filter != null && !filter.isEmpty()) {
+            restricted.setFilterString(filter);
+        } else if(rangeFilter != null) {
+            restricted.setFilterString(rangeFilter);
+        }
+        restricted.setColumns(query.getColumns());
+        restricted.setTakeCount(query.getTakeCount());
+        return restricted;
+    }
+
+    private void offer(BlockingQueue<Object> queue, Object item) {
+        try {
+            while(!queue.offer(item, OFFER_MILLIS, TimeUnit.MILLISECONDS))
+                if(cancelled)
+                    throw new CancellationException();
+        } catch (InterruptedException e) {
+            throw new CancellationException();
+        }
+    }
+
+    private Object take(BlockingQueue<Object> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedStorageException(new StorageException("OperationInterrupted", "Interrupted while scanning " + table.getName(), e));
+        }
+    }
+
+    private ForkJoinPool newPool() {
+        final String name = "table-scan-" + table.getName();
+        return new ForkJoinPool(options.getParallelism(), pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * @return the StorageException behind a scan failure, or null if there is none.
+     */
+    private static StorageException storageException(Throwable t) {
+        for(Throwable cause = t; cause != null; cause = cause.getCause())
+            if(cause instanceof StorageException)
+                return (StorageException) cause;
+        return null;
+    }
+
+    private static StorageException rethrow(Throwable t) throws StorageException {
+        final StorageException e = storageException(t);
+        if(e != null)
+            return e;
+        if(t instanceof Error)
+            throw (Error) t;
+        throw (RuntimeException) t;
+    }
+}
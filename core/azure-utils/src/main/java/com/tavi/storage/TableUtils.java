@@ -1,17 +1,26 @@
 package com.tavi.storage;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.table.*;
 import com.tavi.storage.exceptions.TableNotFoundException;
 
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Helper class for Azure Table related operations.
  *
- * WARNING: Not thread safe - assumes instances are not shared between threads.
+ * Thread safe - instances may be shared between threads. Use {@link #shared(String)} to also share the
+ * underlying client between instances created for the same account.
  */
 // TODO: Custom StorageException wrapper exceptions or use StorageExceptions?
 public class TableUtils
@@ -22,6 +31,24 @@ public class TableUtils
     /** The CloudTableClient used for all the table operations. */
     private final CloudTableClient client;
 
+    /** Default maximum number of cached references and existence results. */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    /** Table references, keyed by table name. */
+    private volatile TtlCache<CloudTable> tables = new TtlCache<>(DEFAULT_CACHE_SIZE);
+
+    /** Tables known to exist, keyed by table name. Null when existence memoization is disabled. */
+    private volatile TtlCache<Boolean> existingTables;
+
+    /** Runs the asynchronous methods. */
+    private volatile AsyncRunner async = AsyncRunner.shared();
+
+    /** Retries and paces requests. Null when requests go straight to the client. */
+    private volatile StorageThrottle throttle;
+
+    /** Records operations. Null when metrics are off. */
+    private volatile StorageMetrics metrics;
+
     /**
      * Initializes a TableUtils from a given connection string.
      * @param connectionString the given connection string.
@@ -37,8 +64,17 @@ public class TableUtils
      * @param account the storage account to use.
      */
     private TableUtils(CloudStorageAccount account) {
+        this(account, account.createCloudTableClient());
+    }
+
+    /**
+     * Initializes a TableUtils from a given CloudStorageAccount and client.
+     * @param account the storage account to use.
+     * @param client the table client to use.
+     */
+    private TableUtils(CloudStorageAccount account, CloudTableClient client) {
         this.account = account;
-        this.client = account.createCloudTableClient();
+        this.client = client;
     }
 
 
@@ -67,6 +103,97 @@ public class TableUtils
         return new TableUtils(CloudStorageAccount.getDevelopmentStorageAccount());
     }
 
+    /**
+     * Initializes a TableUtils backed by the process-wide client of the account behind a connection string.
+     * The connection string is only parsed the first time it is seen.
+     * @param connectionString the given connection string.
+     * @throws URISyntaxException
+     * @throws InvalidKeyException
+     * @see StorageClientRegistry
+     */
+    public static TableUtils shared(String connectionString) throws URISyntaxException, InvalidKeyException {
+        return shared(StorageClientRegistry.account(connectionString));
+    }
+
+    /**
+     * Initializes a TableUtils backed by the process-wide client of a given CloudStorageAccount.
+     * @param account the storage account to use.
+     * @see StorageClientRegistry
+     */
+    public static TableUtils shared(CloudStorageAccount account) {
+        return new TableUtils(account, StorageClientRegistry.tableClient(account));
+    }
+
+    /**
+     * Configures the reference cache and existence memoization. By default references are cached and every
+     * operation checks that its table exists.
+     * @param maxEntries the maximum number of cached references and existence results.
+     * @param existenceTtl how long a successful existence check is trusted for. Zero disables memoization.
+     * @param unit the unit of existenceTtl.
+     * @return this instance.
+     */
+    public TableUtils withReferenceCache(int maxEntries, long existenceTtl, TimeUnit unit) {
+        this.tables = new TtlCache<>(maxEntries);
+        this.existingTables = existenceTtl > 0 ? new TtlCache<Boolean>(maxEntries, existenceTtl, unit) : null;
+        return this;
+    }
+
+    /**
+     * @return the counters of the table reference cache.
+     */
+    public TtlCache.Stats getReferenceCacheStats() {
+        return tables.getStats();
+    }
+
+    /**
+     * @return the counters of the existence memoization; all zero when it is disabled.
+     */
+    public TtlCache.Stats getExistenceCacheStats() {
+        final TtlCache<Boolean> memo = existingTables;
+        return memo != null ? memo.getStats() : new TtlCache.Stats(0, 0, 0, 0);
+    }
+
+    /**
+     * Configures the asynchronous methods. By default they share a process-wide limit of
+     * {@link AsyncOptions#DEFAULT_MAX_IN_FLIGHT} operations in flight with every other utils instance.
+     * @param options the executor and in-flight limit.
+     * @return this instance.
+     */
+    public TableUtils withAsync(AsyncOptions options) {
+        this.async = new AsyncRunner(options);
+        return this;
+    }
+
+    /**
+     * @return the number of asynchronous operations in flight, counting those of every instance sharing the limit.
+     */
+    public int getAsyncInFlightCount() {
+        return async.getInFlightCount();
+    }
+
+    /**
+     * Routes the requests of this instance through a throttle: retried with jittered backoff, paced by the
+     * concurrency limit and rate of the throttle. The requests are sent without the retries of the SDK, which would
+     * otherwise retry on their own below the throttle; the default request options of the client, which may be
+     * shared with other instances, are left as they are.
+     * @param throttle the throttle, usually shared by every utils of the account; null to stop throttling.
+     * @return this instance.
+     */
+    public TableUtils withThrottle(StorageThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Records the operations of this instance: "table.execute".
+     * @param metrics the metrics, usually shared by every utils of the application; null to stop recording.
+     * @return this instance.
+     */
+    public TableUtils withMetrics(StorageMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
     /**
      * Executes an operation on a given table.
      * @param tableName the table name.
@@ -78,15 +205,28 @@ public class TableUtils
      * @throws TableNotFoundException
      */
     public TableResult execute(String tableName, boolean createIfNotExists, TableOperation operation) throws URISyntaxException, StorageException, TableNotFoundException {
-        CloudTable table = getTableReference(tableName);
+        final StorageMetrics.Sample sample = StorageMetrics.start(metrics, "table.execute");
+        try {
+            CloudTable table = getTableReference(tableName);
 
-        if(createIfNotExists)
-            table.createIfNotExists();
+            final boolean memoized = isMemoized(tableName);
+            if(createIfNotExists && !memoized)
+                call(requestOptions -> table.createIfNotExists(requestOptions, null));
 
-        if(table.exists()) {
-            return table.execute(operation);
-        } else {
-            throw new TableNotFoundException("Unable to locate table " + tableName);
+            if(memoized || exists(tableName, table)) {
+                try {
+                    return call(requestOptions -> table.execute(operation, requestOptions, null));
+                } catch (StorageException e) {
+                    throw notFound(tableName, e);
+                }
+            } else {
+                throw new TableNotFoundException("Unable to locate table " + tableName);
+            }
+        } catch (Exception e) {
+            sample.fail(e);
+            throw e;
+        } finally {
+            sample.stop();
         }
     }
 
@@ -103,6 +243,48 @@ public class TableUtils
         return execute(tableName, false, operation);
     }
 
+    /**
+     * Executes an operation on a given table asynchronously. Blocks while the maximum number of asynchronous
+     * operations is in flight.
+     * @param tableName the table name.
+     * @param createIfNotExists create the table if it doesn't exist?
+     * @param operation the operation to execute.
+     * @return a future completed with the result.
+     * @see #execute(String, boolean, TableOperation)
+     */
+    public CompletableFuture<TableResult> executeAsync(String tableName, boolean createIfNotExists, TableOperation operation) {
+        return async.submit(() -> execute(tableName, createIfNotExists, operation));
+    }
+
+    /**
+     * Executes an operation on a given table asynchronously. Assumes table already exists and fails if it doesn't.
+     * @param tableName the table name.
+     * @param operation the operation to execute.
+     * @return a future completed with the result.
+     * @see #execute(String, TableOperation)
+     */
+    public CompletableFuture<TableResult> executeAsync(String tableName, TableOperation operation) {
+        return executeAsync(tableName, false, operation);
+    }
+
+    /**
+     * Creates a writer that groups operations on a given table into entity group transactions.
+     * @param tableName the table name.
+     * @param options the writer options.
+     * @return the writer; close it to flush the remaining operations.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws TableNotFoundException
+     */
+    public TableBatchWriter createBatchWriter(String tableName, TableBatchWriterOptions options) throws URISyntaxException, StorageException, TableNotFoundException {
+        CloudTable table = getTableReference(tableName);
+        if(isMemoized(tableName) || exists(tableName, table)) {
+            return new TableBatchWriter(table, options);
+        } else {
+            throw new TableNotFoundException("Unable to locate table " + tableName);
+        }
+    }
+
     /**
      * Query a table.
      * @param tableName the table name.
@@ -115,7 +297,7 @@ public class TableUtils
      */
     public <T extends TableEntity> Iterable<T> query(String tableName, TableQuery<T> query) throws URISyntaxException, StorageException, TableNotFoundException {
         CloudTable table = getTableReference(tableName);
-        if(table.exists()) {
+        if(isMemoized(tableName) || exists(tableName, table)) {
             return table.execute(query);
         } else {
             throw new TableNotFoundException("Unable to locate table " + tableName);
@@ -123,13 +305,195 @@ public class TableUtils
     }
 
     /**
-     * Gets a reference to a table.
+     * Query a table asynchronously. Every result is fetched before the future completes, so use
+     * {@link #querySegmented(String, TableQuery, TableQueryOptions)} for large results. Blocks while the maximum
+     * number of asynchronous operations is in flight.
+     * @param tableName the table name.
+     * @param query the query to execute.
+     * @param <T> type to be returned.
+     * @return a future completed with every result of the query.
+     * @see #query(String, TableQuery)
+     */
+    public <T extends TableEntity> CompletableFuture<List<T>> queryAsync(String tableName, TableQuery<T> query) {
+        return async.submit(() -> {
+            final List<T> results = new ArrayList<>();
+            for(T entity : query(tableName, query))
+                results.add(entity);
+            return results;
+        });
+    }
+
+    /**
+     * Query a table one segment at a time. The first segment is fetched before this returns.
+     * @param tableName the table name.
+     * @param query the query to execute; its take count is set to the page size, if any.
+     * @param options the page size, prefetch and where to start from.
+     * @param <T> type to be returned.
+     * @return a cursor over the results; close it to cancel the prefetch in flight.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws TableNotFoundException
+     */
+    public <T extends TableEntity> TableQueryCursor<T> querySegmented(String tableName, TableQuery<T> query, TableQueryOptions options) throws URISyntaxException, StorageException, TableNotFoundException {
+        CloudTable table = getTableReference(tableName);
+        if(isMemoized(tableName) || exists(tableName, table)) {
+            try {
+                return new TableQueryCursor<>(table, query, options);
+            } catch (StorageException e) {
+                throw notFound(tableName, e);
+            }
+        } else {
+            throw new TableNotFoundException("Unable to locate table " + tableName);
+        }
+    }
+
+    /**
+     * Scans partition ranges of a table in parallel, handing every entity to a consumer.
+     * @param tableName the table name.
+     * @param query the query each range is restricted to; not modified.
+     * @param ranges the partition ranges to scan, e.g. from {@link PartitionRange#split(String...)}.
+     * @param options the parallelism and page size.
+     * @param consumer the consumer; called concurrently from the scanning threads, in no particular order.
+     * @param <T> type to be returned.
+     * @return the number of entities scanned.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws TableNotFoundException
+     */
+    public <T extends TableEntity> long scan(String tableName, TableQuery<T> query, List<PartitionRange> ranges, TableScanOptions options, Consumer<? super T> consumer) throws URISyntaxException, StorageException, TableNotFoundException {
+        final TableScanner<T> scanner = new TableScanner<>(getExistingTable(tableName), query, ranges, options);
+        try {
+            return scanner.forEach(consumer);
+        } catch (StorageException e) {
+            throw notFound(tableName, e);
+        }
+    }
+
+    /**
+     * Scans a table in parallel over the ranges of a key space splitter, handing every entity to a consumer.
+     * @see #scan(String, TableQuery, List, TableScanOptions, Consumer)
+     */
+    public <T extends TableEntity> long scan(String tableName, TableQuery<T> query, TableScanOptions.KeySpaceSplitter splitter, TableScanOptions options, Consumer<? super T> consumer) throws URISyntaxException, StorageException, TableNotFoundException {
+        return scan(tableName, query, splitter.split(options.getParallelism()), options, consumer);
+    }
+
+    /**
+     * Scans partition ranges of a table in parallel into a bounded queue. Scanning starts right away, pauses while
+     * the queue is full and stops when the stream is closed. Scan failures surface from the stream as
+     * {@link com.tavi.storage.exceptions.UncheckedStorageException}.
+     * @param tableName the table name.
+     * @param query the query each range is restricted to; not modified.
+     * @param ranges the partition ranges to scan, e.g. from {@link PartitionRange#split(String...)}.
+     * @param options the parallelism, queue capacity and page size.
+     * @param <T> type to be returned.
+     * @return the entities, in no particular order; close the stream to stop scanning early.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws TableNotFoundException
+     */
+    public <T extends TableEntity> Stream<T> scan(String tableName, TableQuery<T> query, List<PartitionRange> ranges, TableScanOptions options) throws URISyntaxException, StorageException, TableNotFoundException {
+        return new TableScanner<>(getExistingTable(tableName), query, ranges, options).stream();
+    }
+
+    /**
+     * Scans a table in parallel over the ranges of a key space splitter into a bounded queue.
+     * @see #scan(String, TableQuery, List, TableScanOptions)
+     */
+    public <T extends TableEntity> Stream<T> scan(String tableName, TableQuery<T> query, TableScanOptions.KeySpaceSplitter splitter, TableScanOptions options) throws URISyntaxException, StorageException, TableNotFoundException {
+        return scan(tableName, query, splitter.split(options.getParallelism()), options);
+    }
+
+    /**
+     * Gets a reference to a table. References are cached per table name.
      * @param tableName the table name.
      * @return a reference to a table.
      * @throws URISyntaxException
      * @throws StorageException
      */
     public CloudTable getTableReference(String tableName) throws URISyntaxException, StorageException {
-        return client.getTableReference(tableName);
+        final TtlCache<CloudTable> cache = tables;
+        CloudTable table = cache.get(tableName);
+        if(table == null)
+            table = cache.putIfAbsent(tableName, client.getTableReference(tableName));
+        return table;
+    }
+
+    /**
+     * Gets a reference to a table that is memoized as existing or checked to exist.
+     * @param tableName the table name.
+     * @return a reference to the table.
+     * @throws URISyntaxException
+     * @throws StorageException
+     * @throws TableNotFoundException
+     */
+    private CloudTable getExistingTable(String tableName) throws URISyntaxException, StorageException, TableNotFoundException {
+        CloudTable table = getTableReference(tableName);
+        if(isMemoized(tableName) || exists(tableName, table)) {
+            return table;
+        } else {
+            throw new TableNotFoundException("Unable to locate table " + tableName);
+        }
+    }
+
+    /**
+     * Runs a request through the throttle, if any.
+     * @param call the request.
+     * @return the result.
+     * @throws StorageException
+     */
+    private <T, E extends Exception> T call(StorageThrottle.OptionsCall<TableRequestOptions, T, E> call) throws StorageException, E {
+        return StorageThrottle.call(throttle, TableRequestOptions::new, call);
+    }
+
+    /**
+     * Checks if a table exists and memoizes a positive answer.
+     * @param tableName the table name.
+     * @param table the table reference.
+     * @return true if the table exists.
+     * @throws StorageException
+     */
+    private boolean exists(String tableName, CloudTable table) throws StorageException {
+        final boolean exists = call(requestOptions -> table.exists(requestOptions, null));
+        if(exists)
+            memoize(tableName);
+        return exists;
+    }
+
+    /**
+     * @param tableName the table name.
+     * @return true if the table is memoized as existing.
+     */
+    private boolean isMemoized(String tableName) {
+        final TtlCache<Boolean> memo = existingTables;
+        return memo != null && memo.get(tableName) != null;
+    }
+
+    /**
+     * Memoizes a table as existing, if memoization is enabled.
+     * @param tableName the table name.
+     */
+    private void memoize(String tableName) {
+        final TtlCache<Boolean> memo = existingTables;
+        if(memo != null)
+            memo.put(tableName, Boolean.TRUE);
+    }
+
+    /**
+     * Forgets a memoized existence check if the service reported the table as missing.
+     * Other 404 responses (e.g. a missing entity) are left alone.
+     * @param tableName the table name.
+     * @param e the service error.
+     * @return the exception to throw if the table is missing.
+     * @throws StorageException e itself, if the table is not missing.
+     */
+    private TableNotFoundException notFound(String tableName, StorageException e) throws StorageException {
+        if(e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND
+                || !StorageErrorCodeStrings.TABLE_NOT_FOUND.equals(e.getErrorCode()))
+            throw e;
+
+        final TtlCache<Boolean> memo = existingTables;
+        if(memo != null)
+            memo.invalidate(tableName);
+        return new TableNotFoundException("Unable to locate table " + tableName, e);
     }
 }
@@ -0,0 +1,161 @@
+package com.tavi.storage;
+
+/**
+ * Options for a {@link StorageThrottle}.
+ *
+ * Not thread safe - configure before creating the throttle.
+ */
+public class ThrottleOptions
+{
+    private int maxRetries = 5;
+    private long baseBackoffMillis = 100;
+    private long maxBackoffMillis = 10000;
+
+    private int initialConcurrency = 64;
+    private int minConcurrency = 1;
+    private int maxConcurrency = 512;
+    private double decreaseFactor = 0.5;
+
+    private double requestsPerSecond;
+    private int burst = 1;
+
+    /**
+     * @return a new ThrottleOptions with default values.
+     */
+    public static ThrottleOptions defaults() {
+        return new ThrottleOptions();
+    }
+
+    /**
+     * @return the number of times a failed request is retried.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a request is retried after throttling, a server error or a timeout.
+     * @param maxRetries the number of retries, 0 to disable.
+     * @return this instance.
+     */
+    public ThrottleOptions withMaxRetries(int maxRetries) {
+        if(maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @return the upper bound of the delay before the first retry, in milliseconds.
+     */
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    /**
+     * @return the upper bound of the delay before any retry, in milliseconds.
+     */
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Sets the delay before retries. The delay before retry n is random between 0 and
+     * min(max, base * 2^n), so clients throttled at the same time do not retry at the same time.
+     * @param baseBackoffMillis the bound for the first retry.
+     * @param maxBackoffMillis the bound for any retry.
+     * @return this instance.
+     */
+    public ThrottleOptions withBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        if(baseBackoffMillis <= 0 || maxBackoffMillis < baseBackoffMillis)
+            throw new IllegalArgumentException("backoff must satisfy 0 < base <= max");
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of requests allowed in flight at first.
+     */
+    public int getInitialConcurrency() {
+        return initialConcurrency;
+    }
+
+    /**
+     * @return the fewest requests allowed in flight, however often the service throttles.
+     */
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    /**
+     * @return the most requests allowed in flight, however long the service keeps up.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Sets the bounds of the adaptive concurrency limit. The limit grows by one for every limit successful requests
+     * and is multiplied by {@link #getDecreaseFactor()} when the service throttles.
+     * @param initial the limit at first.
+     * @param min the lowest limit, at least 1.
+     * @param max the highest limit.
+     * @return this instance.
+     */
+    public ThrottleOptions withConcurrency(int initial, int min, int max) {
+        if(min <= 0 || initial < min || max < initial)
+            throw new IllegalArgumentException("concurrency must satisfy 0 < min <= initial <= max");
+        this.initialConcurrency = initial;
+        this.minConcurrency = min;
+        this.maxConcurrency = max;
+        return this;
+    }
+
+    /**
+     * @return the factor the concurrency limit is multiplied by when the service throttles.
+     */
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    /**
+     * Sets the factor the concurrency limit is multiplied by when the service throttles.
+     * @param decreaseFactor between 0 and 1, exclusive.
+     * @return this instance.
+     */
+    public ThrottleOptions withDecreaseFactor(double decreaseFactor) {
+        if(decreaseFactor <= 0 || decreaseFactor >= 1)
+            throw new IllegalArgumentException("decreaseFactor must be between 0 and 1, exclusive");
+        this.decreaseFactor = decreaseFactor;
+        return this;
+    }
+
+    /**
+     * @return the most requests started per second, or 0 for no limit.
+     */
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * @return the most requests started at once after an idle period.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Limits the request rate, e.g. to stay under the scalability targets of the account. Retries count too.
+     * @param requestsPerSecond the rate, or 0 for no limit.
+     * @param burst the most requests started at once after an idle period, at least 1.
+     * @return this instance.
+     */
+    public ThrottleOptions withRateLimit(double requestsPerSecond, int burst) {
+        if(requestsPerSecond < 0 || burst <= 0)
+            throw new IllegalArgumentException("rate limit must satisfy requestsPerSecond >= 0 and burst > 0");
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+        return this;
+    }
+}
@@ -0,0 +1,152 @@
+package com.tavi.storage;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Options for parallel, chunked blob transfers.
+ *
+ * Not thread safe - configure before handing to a transfer and do not modify while it runs.
+ */
+public class TransferOptions
+{
+    /** Default block (or range) size: 4 MB. */
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /** Largest block size accepted by the service: 100 MB. */
+    public static final int MAX_BLOCK_SIZE = 100 * 1024 * 1024;
+
+    /** Default number of blocks transferred at the same time. */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /** Default number of retries for a single block. */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /** Default delay before the first retry of a block, in milliseconds. Doubles with every retry. */
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 200;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+    private boolean resume;
+    private ExecutorService executor;
+
+    /**
+     * @return a new TransferOptions with default values.
+     */
+    public static TransferOptions defaults() {
+        return new TransferOptions();
+    }
+
+    /**
+     * @return the size of a block (or range), in bytes.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the size of a block (or range).
+     * @param blockSize the size in bytes, between 1 and {@link #MAX_BLOCK_SIZE}.
+     * @return this instance.
+     */
+    public TransferOptions withBlockSize(int blockSize) {
+        if(blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("blockSize must be between 1 and " + MAX_BLOCK_SIZE);
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of blocks transferred at the same time.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the maximum number of blocks transferred at the same time.
+     * @param parallelism the parallelism, at least 1.
+     * @return this instance.
+     */
+    public TransferOptions withParallelism(int parallelism) {
+        if(parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return the number of times a failed block is retried.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the number of times a failed block is retried. Only server errors, timeouts and I/O errors are retried.
+     * @param maxRetries the number of retries, 0 to disable.
+     * @return this instance.
+     */
+    public TransferOptions withMaxRetries(int maxRetries) {
+        if(maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @return the delay before the first retry of a block, in milliseconds.
+     */
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    /**
+     * Sets the delay before the first retry of a block. The delay doubles with every retry.
+     * @param retryBackoffMillis the delay in milliseconds.
+     * @return this instance.
+     */
+    public TransferOptions withRetryBackoffMillis(long retryBackoffMillis) {
+        if(retryBackoffMillis < 0)
+            throw new IllegalArgumentException("retryBackoffMillis must not be negative");
+        this.retryBackoffMillis = retryBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @return true if uploads skip blocks already staged by a previous, interrupted attempt.
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Makes uploads look up the uncommitted blocks of the target blob first and skip those already staged
+     * with the expected size. Only valid when retrying the upload of the same data with the same block size.
+     * @param resume resume from already staged blocks or not.
+     * @return this instance.
+     */
+    public TransferOptions withResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * @return the executor blocks are transferred on, or null to use a pool private to each transfer.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor blocks are transferred on. The executor is not shut down by transfers; at most
+     * {@link #getParallelism()} blocks of a transfer run on it at the same time.
+     * @param executor the executor, or null to use a pool private to each transfer.
+     * @return this instance.
+     */
+    public TransferOptions withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+}
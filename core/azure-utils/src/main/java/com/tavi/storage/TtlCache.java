@@ -0,0 +1,229 @@
+package com.tavi.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least recently used cache whose entries expire a fixed time after being stored.
+ *
+ * Thread safe.
+ * @param <V> the cached value type.
+ */
+public final class TtlCache<V>
+{
+    /** The maximum number of entries kept before the least recently used one is evicted. */
+    private final int maxEntries;
+
+    /** How long an entry stays valid, in nanoseconds. Non-positive means entries never expire. */
+    private final long ttlNanos;
+
+    /** The entries, in access order. Guarded by itself. */
+    private final LinkedHashMap<String, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initializes a cache.
+     * @param maxEntries the maximum number of entries.
+     * @param ttl how long an entry stays valid. Non-positive means entries never expire.
+     * @param unit the unit of ttl.
+     */
+    public TtlCache(final int maxEntries, long ttl, TimeUnit unit) {
+        if(maxEntries <= 0)
+            throw new IllegalArgumentException("maxEntries must be positive");
+
+        this.maxEntries = maxEntries;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                if(size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Initializes a cache whose entries never expire.
+     * @param maxEntries the maximum number of entries.
+     */
+    public TtlCache(int maxEntries) {
+        this(maxEntries, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets a value.
+     * @param key the key.
+     * @return the value, or null if there is none or it expired.
+     */
+    public V get(String key) {
+        synchronized (entries) {
+            final Entry<V> entry = entries.get(key);
+            if(entry != null && !entry.isExpired(System.nanoTime())) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            if(entry != null)
+                entries.remove(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores a value, evicting the least recently used entry if the cache is full.
+     * @param key the key.
+     * @param value the value.
+     * @return the value now cached under key; an existing, unexpired value wins over the given one.
+     */
+    public V putIfAbsent(String key, V value) {
+        final long now = System.nanoTime();
+        synchronized (entries) {
+            final Entry<V> existing = entries.get(key);
+            if(existing != null && !existing.isExpired(now))
+                return existing.value;
+            entries.put(key, new Entry<>(value, ttlNanos > 0 ? now + ttlNanos : Long.MAX_VALUE));
+            return value;
+        }
+    }
+
+    /**
+     * Stores a value, replacing any existing one.
+     * @param key the key.
+     * @param value the value.
+     */
+    public void put(String key, V value) {
+        final long now = System.nanoTime();
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, ttlNanos > 0 ? now + ttlNanos : Long.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Removes a value.
+     * @param key the key.
+     */
+    public void invalidate(String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes every value whose key starts with a given prefix.
+     * @param prefix the key prefix.
+     */
+    public void invalidatePrefix(String prefix) {
+        synchronized (entries) {
+            final Iterator<String> keys = entries.keySet().iterator();
+            while(keys.hasNext()) {
+                if(keys.next().startsWith(prefix))
+                    keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes every value.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries, including expired entries not yet purged.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the maximum number of entries.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return a snapshot of the hit, miss and eviction counters.
+     */
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), size());
+    }
+
+    private static final class Entry<V>
+    {
+        private final V value;
+        private final long expiresAtNanos;
+
+        private Entry(V value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAtNanos != Long.MAX_VALUE && now - expiresAtNanos >= 0;
+        }
+    }
+
+    /**
+     * Point in time snapshot of the cache counters.
+     */
+    public static final class Stats
+    {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int size;
+
+        public Stats(long hits, long misses, long evictions, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        /** @return the number of lookups answered from the cache. */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return the number of lookups not answered from the cache. */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return the number of entries dropped because the cache was full. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** @return the number of entries at the time of the snapshot. */
+        public int getSize() {
+            return size;
+        }
+
+        /** @return hits divided by lookups, or 0 if there were no lookups. */
+        public double getHitRate() {
+            final long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "}";
+        }
+    }
+}
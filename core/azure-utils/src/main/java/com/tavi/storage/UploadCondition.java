@@ -0,0 +1,64 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.AccessCondition;
+
+/**
+ * When an upload may write a blob, checked by the service in the same request as the write.
+ *
+ * Immutable.
+ */
+public final class UploadCondition
+{
+    private static final UploadCondition OVERWRITE = new UploadCondition(false, null);
+    private static final UploadCondition CREATE_ONLY = new UploadCondition(true, null);
+
+    private final boolean createOnly;
+    private final String etag;
+
+    private UploadCondition(boolean createOnly, String etag) {
+        this.createOnly = createOnly;
+        this.etag = etag;
+    }
+
+    /**
+     * @return a condition that always holds: an existing blob is replaced.
+     */
+    public static UploadCondition overwrite() {
+        return OVERWRITE;
+    }
+
+    /**
+     * @return a condition that holds only if the blob does not exist (If-None-Match: *).
+     */
+    public static UploadCondition createOnly() {
+        return CREATE_ONLY;
+    }
+
+    /**
+     * Creates a condition that holds only if the blob was not written since it had an ETag (If-Match), e.g. the
+     * ETag returned by the previous upload, for optimistic concurrency.
+     * @param etag the expected ETag.
+     * @return the condition.
+     */
+    public static UploadCondition ifMatch(String etag) {
+        if(etag == null || etag.isEmpty())
+            throw new IllegalArgumentException("etag must not be empty");
+        return new UploadCondition(false, etag);
+    }
+
+    /**
+     * @return the SDK condition of the write request; null for {@link #overwrite()}.
+     */
+    AccessCondition toAccessCondition() {
+        if(createOnly)
+            return AccessCondition.generateIfNotExistsCondition();
+        if(etag != null)
+            return AccessCondition.generateIfMatchCondition(etag);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return createOnly ? "createOnly" : etag != null ? "ifMatch(" + etag + ")" : "overwrite";
+    }
+}
@@ -0,0 +1,19 @@
+package com.tavi.storage.exceptions;
+
+/**
+ * A conditional write was refused: the blob already exists, or changed since its ETag was read.
+ */
+public class BlobConditionFailedException extends BlobException
+{
+    public BlobConditionFailedException() {}
+
+    public BlobConditionFailedException(String message)
+    {
+        super(message);
+    }
+
+    public BlobConditionFailedException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
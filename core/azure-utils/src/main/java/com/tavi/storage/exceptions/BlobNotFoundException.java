@@ -11,4 +11,9 @@ public class BlobNotFoundException extends BlobException
     {
         super(message);
     }
+
+    public BlobNotFoundException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
 }
@@ -11,4 +11,9 @@ public class ContainerNotFoundException extends BlobException
     {
         super(message);
     }
+
+    public ContainerNotFoundException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
 }
\ No newline at end of file
@@ -11,4 +11,9 @@ public class QueueNotFoundException extends QueueException
     {
         super(message);
     }
+
+    public QueueNotFoundException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
 }
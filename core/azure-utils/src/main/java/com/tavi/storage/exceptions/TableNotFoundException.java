@@ -11,4 +11,9 @@ public class TableNotFoundException extends TableException
     {
         super(message);
     }
+
+    public TableNotFoundException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
 }
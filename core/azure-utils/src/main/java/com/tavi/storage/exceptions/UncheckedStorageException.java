@@ -0,0 +1,25 @@
+package com.tavi.storage.exceptions;
+
+import com.microsoft.azure.storage.StorageException;
+
+/**
+ * Wraps a StorageException where checked exceptions cannot be thrown, e.g. from a Stream.
+ */
+public class UncheckedStorageException extends RuntimeException
+{
+    public UncheckedStorageException(StorageException cause)
+    {
+        super(cause);
+    }
+
+    public UncheckedStorageException(String message, StorageException cause)
+    {
+        super(message, cause);
+    }
+
+    @Override
+    public synchronized StorageException getCause()
+    {
+        return (StorageException) super.getCause();
+    }
+}
@@ -0,0 +1,95 @@
+package com.tavi.storage;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static junit.framework.TestCase.*;
+
+public class BlobCacheTest
+{
+    private static final String ETAG = "\"0x1\"";
+
+    @Test
+    public void testByteBudgetEvictsLeastRecentlyUsed() {
+        final BlobCache cache = new BlobCache(BlobCacheOptions.defaults().withMaxBytes(100).withMaxEntryBytes(60));
+        cache.put("c/a", ETAG, new byte[40]);
+        cache.put("c/b", ETAG, new byte[40]);
+        assertNotNull(cache.get("c/a"));
+        cache.put("c/c", ETAG, new byte[40]);
+
+        assertNotNull(cache.get("c/a"));
+        assertNull(cache.get("c/b"));
+        assertNotNull(cache.get("c/c"));
+
+        cache.put("c/large", ETAG, new byte[61]);
+        assertNull(cache.get("c/large"));
+
+        final BlobCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getSize());
+        assertEquals(80, stats.getBytes());
+        assertEquals(2, stats.getMisses());
+    }
+
+    @Test
+    public void testFreshnessAndRevalidation() throws InterruptedException {
+        final BlobCache cache = new BlobCache(BlobCacheOptions.defaults().withFreshness(30, TimeUnit.MILLISECONDS));
+        cache.put("c/a", ETAG, new byte[1]);
+        final BlobCache.Entry entry = cache.get("c/a");
+        assertTrue(cache.isFresh(entry));
+        Thread.sleep(50);
+        assertFalse(cache.isFresh(entry));
+        cache.revalidated(entry);
+        assertTrue(cache.isFresh(entry));
+
+        assertFalse(new BlobCache(BlobCacheOptions.defaults()).isFresh(entry));
+        assertEquals(3, cache.getStats().getHits());
+        assertEquals(1, cache.getStats().getNotModified());
+    }
+
+    @Test
+    public void testDiskTier() throws Exception {
+        final Path directory = Files.createTempDirectory("blob-cache");
+        try {
+            final BlobCache cache = new BlobCache(BlobCacheOptions.defaults().withMaxBytes(10).withDiskTier(directory, 15));
+            cache.put("c/a", "\"a\"", new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+            cache.put("c/b", "\"b\"", new byte[8]);
+            cache.put("c/c", "\"c\"", new byte[8]);
+            // a then b spilled to disk; the disk budget only holds one of them.
+            assertEquals(8, cache.getStats().getDiskBytes());
+            assertNull(cache.get("c/a"));
+
+            final BlobCache.Entry b = cache.get("c/b");
+            assertEquals("\"b\"", b.etag);
+            assertEquals(1, cache.getStats().getDiskHits());
+
+            cache.clear();
+            assertEquals(0, cache.getStats().getDiskBytes());
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(0, files.count());
+            }
+        } finally {
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testInvalidOptions() {
+        try {
+            BlobCacheOptions.defaults().withMaxBytes(0);
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+        try {
+            BlobCacheOptions.defaults().withFreshness(-1, TimeUnit.SECONDS);
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+    }
+}
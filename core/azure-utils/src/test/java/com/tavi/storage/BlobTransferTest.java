@@ -0,0 +1,392 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({CloudStorageAccount.class, CloudBlobClient.class, CloudBlobContainer.class, CloudBlob.class,
+                    CloudBlockBlob.class, BlobProperties.class})
+public class BlobTransferTest
+{
+    private static final String CONNECTION_STRING = "test";
+    private static final String CONTAINER_NAME = "test-container";
+    private static final String BLOCK_BOB_NAME = "block-blob";
+
+    private static final int BLOCK_SIZE = 1024;
+    private static final int BLOCKS = 32;
+    private static final long BLOCK_LATENCY_MILLIS = 20;
+
+    private CloudBlobContainer container;
+    private BlobUtils bu;
+
+    @Before
+    public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
+        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        PowerMockito.mockStatic(CloudStorageAccount.class);
+        when(CloudStorageAccount.parse(anyString())).thenReturn(account);
+
+        final CloudBlobClient client = mock(CloudBlobClient.class);
+        container = mock(CloudBlobContainer.class);
+        when(client.getContainerReference(anyString())).thenReturn(container);
+        when(account.createCloudBlobClient()).thenReturn(client);
+
+        bu = BlobUtils.from(CONNECTION_STRING);
+    }
+
+    private FakeBlockBlob setUpFakeBlockBlob(long latencyMillis) throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = new FakeBlockBlob(latencyMillis);
+        when(container.getBlockBlobReference(anyString())).thenReturn(fake.blob);
+        when(container.getBlobReferenceFromServer(anyString(), any(), any(), any(), any())).thenReturn(fake.blob);
+        return fake;
+    }
+
+    private static byte[] randomData(int length) {
+        final byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static TransferOptions options(int parallelism) {
+        return TransferOptions.defaults().withBlockSize(BLOCK_SIZE).withParallelism(parallelism).withRetryBackoffMillis(1);
+    }
+
+    @Test
+    public void testParallelUpload() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE * BLOCKS + BLOCK_SIZE / 2);
+
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(8));
+
+        assertEquals(BLOCKS + 1, fake.stagedBlocks.get());
+        assertTrue(Arrays.equals(data, fake.committed));
+        verify(fake.blob, never()).uploadFromByteArray(any(byte[].class), any(int.class), any(int.class), any(), any(), any());
+    }
+
+    @Test
+    public void testParallelUploadOfOffsetRange() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE * 4);
+
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, 100, BLOCK_SIZE * 3, options(2));
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 100, 100 + BLOCK_SIZE * 3), fake.committed));
+    }
+
+    @Test
+    public void testSmallUploadUsesSingleRequest() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE);
+
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(8));
+
+        assertEquals(0, fake.stagedBlocks.get());
+        assertTrue(Arrays.equals(data, fake.committed));
+    }
+
+    @Test
+    public void testParallelUploadScalesWithParallelism() throws URISyntaxException, StorageException, IOException {
+        setUpFakeBlockBlob(BLOCK_LATENCY_MILLIS);
+        final byte[] data = randomData(BLOCK_SIZE * BLOCKS);
+
+        long start = System.nanoTime();
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(1));
+        final long sequential = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(8));
+        final long parallel = System.nanoTime() - start;
+
+        assertTrue("Expected 8 way upload to be at least 3x faster: " + sequential + "ns vs " + parallel + "ns",
+                parallel * 3 < sequential);
+    }
+
+    @Test
+    public void testUploadRetriesFailedBlocks() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.failuresToInject.set(3);
+        final byte[] data = randomData(BLOCK_SIZE * 4);
+
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(4));
+
+        assertTrue(Arrays.equals(data, fake.committed));
+        verify(fake.blob, times(7)).uploadBlock(anyString(), any(InputStream.class), anyLong());
+    }
+
+    @Test
+    public void testUploadFailsAfterMaxRetries() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.failuresToInject.set(Integer.MAX_VALUE);
+        final byte[] data = randomData(BLOCK_SIZE * 4);
+
+        try {
+            bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(1).withMaxRetries(2));
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(500, e.getHttpStatusCode());
+        }
+        assertNull(fake.committed);
+        verify(fake.blob, never()).commitBlockList(any());
+    }
+
+    @Test
+    public void testUploadResumesFromStagedBlocks() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE * 4);
+        fake.uncommitted.put(BlockBlobUploader.blockId(0), Arrays.copyOfRange(data, 0, BLOCK_SIZE));
+        fake.uncommitted.put(BlockBlobUploader.blockId(1), Arrays.copyOfRange(data, BLOCK_SIZE, BLOCK_SIZE * 2));
+        // Wrong size - must be staged again.
+        fake.uncommitted.put(BlockBlobUploader.blockId(2), new byte[1]);
+
+        bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(2).withResume(true));
+
+        assertEquals(2, fake.stagedBlocks.get());
+        assertTrue(Arrays.equals(data, fake.committed));
+    }
+
+    @Test
+    public void testParallelDownloadToFile() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.committed = randomData(BLOCK_SIZE * BLOCKS + 7);
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            bu.downloadToFile(CONTAINER_NAME, BLOCK_BOB_NAME, file, options(8));
+            assertTrue(Arrays.equals(fake.committed, Files.readAllBytes(file.toPath())));
+            assertEquals(BLOCKS + 1, fake.rangeRequests.get());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParallelDownloadOverwritesLargerFile() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.committed = randomData(BLOCK_SIZE / 2);
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            Files.write(file.toPath(), randomData(BLOCK_SIZE * 4));
+            bu.downloadToFile(CONTAINER_NAME, BLOCK_BOB_NAME, file, options(8));
+            assertTrue(Arrays.equals(fake.committed, Files.readAllBytes(file.toPath())));
+
+            fake.committed = new byte[0];
+            bu.downloadToFile(CONTAINER_NAME, BLOCK_BOB_NAME, file, options(8));
+            assertEquals(0, file.length());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParallelDownloadRetriesFailedRanges() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.committed = randomData(BLOCK_SIZE * 4);
+        fake.failuresToInject.set(2);
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            bu.downloadToFile(CONTAINER_NAME, BLOCK_BOB_NAME, file, options(4));
+            assertTrue(Arrays.equals(fake.committed, Files.readAllBytes(file.toPath())));
+            assertEquals(6, fake.rangeRequests.get());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFailedRangeWaitsForRunningRanges() throws Exception {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.committed = randomData(BLOCK_SIZE * 4);
+        final AtomicInteger running = new AtomicInteger();
+        doAnswer(invocation -> {
+            final long offset = invocation.getArgument(0);
+            if(offset == 0) {
+                // Fails for good once the other ranges are running.
+                Thread.sleep(50);
+                throw new StorageException("AuthorizationFailure", "Injected failure", 403, null, null);
+            }
+            running.incrementAndGet();
+            try {
+                // Like a blocking socket read, which an interrupt does not stop.
+                final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+                while(System.nanoTime() < end) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ignored) {
+                        // Keep reading.
+                    }
+                }
+                final byte[] buffer = invocation.getArgument(2);
+                final int bufferOffset = invocation.getArgument(3);
+                System.arraycopy(fake.committed, (int) offset, buffer, bufferOffset, BLOCK_SIZE);
+                return BLOCK_SIZE;
+            } finally {
+                running.decrementAndGet();
+            }
+        }).when(fake.blob).downloadRangeToByteArray(anyLong(), any(), any(byte[].class), any(int.class),
+                any(AccessCondition.class), any(), any());
+
+        final BufferPool pool = new BufferPool(false, 1024 * 1024);
+        bu.withBufferPool(pool);
+        try {
+            bu.downloadToChannel(CONTAINER_NAME, BLOCK_BOB_NAME, Channels.newChannel(new ByteArrayOutputStream()), options(4));
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            // The range buffers are back in the pool only once no range writes into them anymore.
+            assertEquals(0, running.get());
+        }
+        try {
+            bu.downloadToBuffer(CONTAINER_NAME, BLOCK_BOB_NAME, pool, options(4));
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(0, running.get());
+        }
+        try {
+            bu.downloadToBuffer(CONTAINER_NAME, BLOCK_BOB_NAME, ByteBuffer.allocate(BLOCK_SIZE * 4), options(4));
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            // The caller gets its buffer back only once no range writes into it anymore.
+            assertEquals(0, running.get());
+        }
+    }
+
+    @Test
+    public void testParallelDownloadScalesWithParallelism() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(BLOCK_LATENCY_MILLIS);
+        fake.committed = randomData(BLOCK_SIZE * BLOCKS);
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            long start = System.nanoTime();
+            bu.downloadToFile(CONTAINER_NAME, BLOCK_BOB_NAME, file, options(1));
+            final long sequential = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            bu.downloadToFile(CONTAINER_NAME, BLOCK_BOB_NAME, file, options(8));
+            final long parallel = System.nanoTime() - start;
+
+            assertTrue("Expected 8 way download to be at least 3x faster: " + sequential + "ns vs " + parallel + "ns",
+                    parallel * 3 < sequential);
+            assertTrue(Arrays.equals(fake.committed, Files.readAllBytes(file.toPath())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStreamingUploadBoundsMemory() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(2);
+        final int parallelism = 4;
+        final long length = BLOCK_SIZE * 200L + 3;
+        final long maxReadAhead = (long) BLOCK_SIZE * (parallelism + 1);
+
+        final InputStream data = new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                if(position == length)
+                    return -1;
+                assertTrue("Read too far ahead of staged blocks", position - fake.stagedBytes.get() < maxReadAhead);
+                return (int) (position++ % 251);
+            }
+        };
+        bu.uploadBlockBlobFromStream(CONTAINER_NAME, BLOCK_BOB_NAME, data, options(parallelism));
+
+        assertEquals(201, fake.stagedBlocks.get());
+        assertEquals(length, fake.committed.length);
+        for(int i = 0; i < length; i++)
+            assertEquals((byte) (i % 251), fake.committed[i]);
+    }
+
+    @Test
+    public void testStreamingUploadOfSmallStream() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE - 1);
+
+        bu.uploadBlockBlobFromStream(CONTAINER_NAME, BLOCK_BOB_NAME, new ByteArrayInputStream(data), options(4));
+
+        assertEquals(0, fake.stagedBlocks.get());
+        assertTrue(Arrays.equals(data, fake.committed));
+    }
+
+    @Test
+    public void testStreamingUploadFromChannelAndFile() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE * 10 + 1);
+
+        bu.uploadBlockBlobFromChannel(CONTAINER_NAME, BLOCK_BOB_NAME, Channels.newChannel(new ByteArrayInputStream(data)), options(3));
+        assertTrue(Arrays.equals(data, fake.committed));
+
+        fake.committed = null;
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            Files.write(file.toPath(), data);
+            bu.uploadBlockBlobFromFile(CONTAINER_NAME, BLOCK_BOB_NAME, file.toPath(), options(3));
+            assertTrue(Arrays.equals(data, fake.committed));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryMappedFileUpload() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        fake.failuresToInject.set(2);
+        final byte[] data = randomData(BLOCK_SIZE * BLOCKS + 11);
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            Files.write(file.toPath(), data);
+            bu.uploadBlockBlobFromFile(CONTAINER_NAME, BLOCK_BOB_NAME, file.toPath(), options(8));
+            assertTrue(Arrays.equals(data, fake.committed));
+            assertEquals(BLOCKS + 1, fake.stagedBlocks.get());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryMappedSmallFileUpload() throws URISyntaxException, StorageException, IOException {
+        final FakeBlockBlob fake = setUpFakeBlockBlob(0);
+        final byte[] data = randomData(BLOCK_SIZE / 3);
+        final File file = File.createTempFile("blob", ".bin");
+        try {
+            Files.write(file.toPath(), data);
+            bu.uploadBlockBlobFromFile(CONTAINER_NAME, BLOCK_BOB_NAME, file.toPath(), options(8));
+            assertTrue(Arrays.equals(data, fake.committed));
+            assertEquals(0, fake.stagedBlocks.get());
+        } finally {
+            file.delete();
+        }
+    }
+}
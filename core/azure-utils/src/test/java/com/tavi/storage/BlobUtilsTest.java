@@ -20,11 +20,16 @@ import java.net.URL;
 import java.security.InvalidKeyException;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
@@ -34,6 +39,7 @@ import static org.powermock.api.mockito.PowerMockito.when;
 public class BlobUtilsTest
 {
     private static final String CONNECTION_STRING = "test";
+    private static final int THREADS = 64;
 
     private static final String DUMMY_TEXT = "test text";
     private static final String CONTAINER_NAME = "test-container";
@@ -54,50 +60,54 @@ public class BlobUtilsTest
         METADATA.put(M_K2, M_V2);
     }
 
+    private CloudStorageAccount account;
     private CloudBlobContainer container;
 
     @Before
     public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
-        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        StorageClientRegistry.clear();
+
+        account = mock(CloudStorageAccount.class);
         PowerMockito.mockStatic(CloudStorageAccount.class);
         when(CloudStorageAccount.parse(anyString())).thenReturn(account);
 
         final CloudBlobClient client = mock(CloudBlobClient.class);
         container = mock(CloudBlobContainer.class);
         when(container.generateSharedAccessSignature(any(SharedAccessBlobPolicy.class), any())).thenReturn(DUMMY_SAS);
-        when(container.exists()).thenReturn(true);
+        when(container.exists(any(), any(), any())).thenReturn(true);
 
         when(client.getContainerReference(anyString())).thenReturn(container);
         when(account.createCloudBlobClient()).thenReturn(client);
     }
 
-    public void setUpBlockBlob(boolean exists) throws URISyntaxException, StorageException, IOException {
+    public CloudBlockBlob setUpBlockBlob(boolean exists) throws URISyntaxException, StorageException, IOException {
         final CloudBlockBlob cloudBlockBlob = mock(CloudBlockBlob.class);
-        when(cloudBlockBlob.downloadText()).thenReturn(DUMMY_TEXT);
-        when(cloudBlockBlob.exists()).thenReturn(exists);
+        when(cloudBlockBlob.downloadText(any(), any(), any(), any())).thenReturn(DUMMY_TEXT);
+        when(cloudBlockBlob.exists(any(), any(), any())).thenReturn(exists);
 
         when(container.getBlockBlobReference(anyString())).thenReturn(cloudBlockBlob);
+        return cloudBlockBlob;
     }
 
     public void setUpAppendBlob(boolean exists) throws URISyntaxException, StorageException {
         final CloudAppendBlob cloudAppendBlob = mock(CloudAppendBlob.class);
-        when(cloudAppendBlob.exists()).thenReturn(exists);
+        when(cloudAppendBlob.exists(any(), any(), any())).thenReturn(exists);
 
         when(container.getAppendBlobReference(anyString())).thenReturn(cloudAppendBlob);
     }
 
     public void setUpPageBlob(boolean exists) throws URISyntaxException, StorageException {
         final CloudPageBlob cloudPageBlob = mock(CloudPageBlob.class);
-        when(cloudPageBlob.exists()).thenReturn(exists);
+        when(cloudPageBlob.exists(any(), any(), any())).thenReturn(exists);
 
         when(container.getPageBlobReference(anyString())).thenReturn(cloudPageBlob);
     }
 
     public void setUpServerBlob() throws URISyntaxException, StorageException, IOException {
         final CloudBlockBlob cloudBlockBlob = mock(CloudBlockBlob.class);
-        when(cloudBlockBlob.downloadText()).thenReturn(DUMMY_TEXT);
+        when(cloudBlockBlob.downloadText(any(), any(), any(), any())).thenReturn(DUMMY_TEXT);
         when(cloudBlockBlob.getUri()).thenReturn(new URI(DUMMY_URI_PATH));
-        when(cloudBlockBlob.exists()).thenReturn(true);
+        when(cloudBlockBlob.exists(any(), any(), any())).thenReturn(true);
 
         final BlobProperties blobProperties = mock(BlobProperties.class);
         when(blobProperties.getBlobType()).thenReturn(BlobType.BLOCK_BLOB);
@@ -105,7 +115,7 @@ public class BlobUtilsTest
 
         when(cloudBlockBlob.getMetadata()).thenReturn(METADATA);
 
-        when(container.getBlobReferenceFromServer(any())).thenReturn(cloudBlockBlob);
+        when(container.getBlobReferenceFromServer(any(), any(), any(), any(), any())).thenReturn(cloudBlockBlob);
     }
 
     @Test
@@ -169,6 +179,23 @@ public class BlobUtilsTest
         }
     }
 
+    @Test
+    public void testAsync() throws Exception {
+        BlobUtils bu = BlobUtils.from(CONNECTION_STRING).withAsync(AsyncOptions.defaults().withMaxInFlight(2));
+        setUpBlockBlob(true);
+        assertEquals(DUMMY_TEXT, bu.downloadTextAsync(CONTAINER_NAME, BLOCK_BOB_NAME).get());
+        assertNull(bu.uploadBlockBlobFromByteArrayAsync(CONTAINER_NAME, BLOCK_BOB_NAME, new byte[] { 0xF, 0xE }, TransferOptions.defaults()).get());
+        assertEquals(0, bu.getAsyncInFlightCount());
+
+        setUpBlockBlob(false);
+        try {
+            bu.downloadTextAsync(CONTAINER_NAME, BLOCK_BOB_NAME).get();
+            fail("Expected BlobNotFoundException not thrown!");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BlobNotFoundException);
+        }
+    }
+
     @Test
     public void testCreateSharedBlobURL() throws URISyntaxException, InvalidKeyException, IOException, StorageException, ContainerNotFoundException {
         BlobUtils bu = BlobUtils.from(CONNECTION_STRING);
@@ -179,7 +206,7 @@ public class BlobUtilsTest
             assertEquals(DUMMY_URI_PATH + "?" + DUMMY_SAS, url.toString());
         }
         {
-            when(container.exists()).thenReturn(false);
+            when(container.exists(any(), any(), any())).thenReturn(false);
 
             try {
                 URL url = bu.createSharedBlobURL(CONTAINER_NAME, BLOCK_BOB_NAME, 10, SharedAccessBlobPermissions.READ);
@@ -188,7 +215,7 @@ public class BlobUtilsTest
                 ; // NO-OP; expected
             }
 
-            when(container.exists()).thenReturn(true);
+            when(container.exists(any(), any(), any())).thenReturn(true);
         }
         {
             URL url = bu.createSharedBlobURL(CONTAINER_NAME, BLOCK_BOB_NAME, 10, EnumSet.of(SharedAccessBlobPermissions.READ));
@@ -233,25 +260,82 @@ public class BlobUtilsTest
             setUpBlockBlob(true);
             CloudBlob cloudBlob = bu.getBlockBlobReference(CONTAINER_NAME, BLOCK_BOB_NAME);
             assertNotNull(cloudBlob);
-            assertTrue(cloudBlob.exists());
+            assertTrue(cloudBlob.exists(null, null, null));
         }
         {
             setUpServerBlob();
             CloudBlob cloudBlob = bu.getBlobReferenceFromServer(CONTAINER_NAME, BLOCK_BOB_NAME);
             assertNotNull(cloudBlob);
-            assertTrue(cloudBlob.exists());
+            assertTrue(cloudBlob.exists(null, null, null));
         }
         {
             setUpAppendBlob(true);
             CloudBlob cloudBlob = bu.getAppendBlobReference(CONTAINER_NAME, BLOCK_BOB_NAME);
             assertNotNull(cloudBlob);
-            assertTrue(cloudBlob.exists());
+            assertTrue(cloudBlob.exists(null, null, null));
         }
         {
             setUpPageBlob(true);
             CloudBlob cloudBlob = bu.getPageBlobReference(CONTAINER_NAME, BLOCK_BOB_NAME);
             assertNotNull(cloudBlob);
-            assertTrue(cloudBlob.exists());
+            assertTrue(cloudBlob.exists(null, null, null));
+        }
+    }
+
+    @Test
+    public void testSharedConcurrentAccess() throws Exception {
+        setUpBlockBlob(true);
+        final byte[] data =  { 0xF, 0xE };
+        final List<BlobUtils> instances = Concurrency.run(THREADS, index -> {
+            BlobUtils bu = BlobUtils.shared(CONNECTION_STRING);
+            bu.uploadBlockBlobFromByteArray(CONTAINER_NAME, BLOCK_BOB_NAME + index, data, false);
+            assertEquals(DUMMY_TEXT, bu.downloadText(CONTAINER_NAME, BLOCK_BOB_NAME + index));
+            return bu;
+        });
+        assertEquals(THREADS, instances.size());
+        verify(account, times(1)).createCloudBlobClient();
+    }
+
+    @Test
+    public void testSingleInstanceConcurrentAccess() throws Exception {
+        setUpBlockBlob(true);
+        final BlobUtils bu = BlobUtils.from(CONNECTION_STRING);
+        final List<CloudBlobContainer> references = Concurrency.run(THREADS, index -> {
+            assertEquals(DUMMY_TEXT, bu.downloadText(CONTAINER_NAME, BLOCK_BOB_NAME));
+            return bu.getContainerReference(CONTAINER_NAME);
+        });
+        for(CloudBlobContainer reference : references)
+            assertSame(references.get(0), reference);
+    }
+
+    @Test
+    public void testExistenceMemoization() throws Exception {
+        final BlobUtils bu = BlobUtils.from(CONNECTION_STRING).withReferenceCache(16, 1, TimeUnit.MINUTES);
+        final CloudBlockBlob blob = setUpBlockBlob(true);
+        setUpServerBlob();
+        for(int i = 0; i < 10; i++) {
+            assertEquals(DUMMY_TEXT, bu.downloadText(CONTAINER_NAME, BLOCK_BOB_NAME));
+            bu.createSharedBlobURL(CONTAINER_NAME, BLOCK_BOB_NAME, 10, SharedAccessBlobPermissions.READ);
+        }
+        verify(blob, times(1)).exists(any(), any(), any());
+        verify(container, times(1)).exists(any(), any(), any());
+        assertEquals(18, bu.getExistenceCacheStats().getHits());
+
+        when(blob.downloadText(any(), any(), any(), any())).thenThrow(new StorageException("BlobNotFound", "The specified blob does not exist.", 404, null, null));
+        try {
+            bu.downloadText(CONTAINER_NAME, BLOCK_BOB_NAME);
+            fail("Expected BlobNotFoundException not thrown!");
+        } catch (BlobNotFoundException e) {
+            ; // NO-OP; expected
+        }
+        when(blob.exists(any(), any(), any())).thenReturn(false);
+        try {
+            bu.downloadText(CONTAINER_NAME, BLOCK_BOB_NAME);
+            fail("Expected BlobNotFoundException not thrown!");
+        } catch (BlobNotFoundException e) {
+            ; // NO-OP; expected
         }
+        verify(blob, times(2)).exists(any(), any(), any());
+        verify(container, times(1)).exists(any(), any(), any());
     }
 }
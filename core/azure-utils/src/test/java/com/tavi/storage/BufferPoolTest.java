@@ -0,0 +1,48 @@
+package com.tavi.storage;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static junit.framework.TestCase.*;
+
+public class BufferPoolTest
+{
+    @Test
+    public void testReusesReleasedBuffers() {
+        final BufferPool pool = new BufferPool(true, 1024 * 1024);
+        final ByteBuffer first = pool.acquire(5000);
+        assertTrue(first.isDirect());
+        assertEquals(8192, first.capacity());
+        assertEquals(5000, first.limit());
+        assertEquals(0, first.position());
+
+        first.put((byte) 1);
+        pool.release(first);
+        assertEquals(8192, pool.getPooledBytes());
+
+        final ByteBuffer second = pool.acquire(8000);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(8000, second.limit());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+        assertEquals(0, pool.getPooledBytes());
+
+        assertEquals(4096, pool.acquire(0).capacity());
+        assertEquals(16384, pool.acquire(8193).capacity());
+    }
+
+    @Test
+    public void testBudgetAndForeignBuffers() {
+        final BufferPool pool = new BufferPool(false, 8192);
+        pool.release(pool.acquire(8192));
+        pool.release(pool.acquire(8192 * 2));
+        assertEquals(8192, pool.getPooledBytes());
+
+        pool.release(ByteBuffer.allocateDirect(4096));
+        pool.release(ByteBuffer.allocate(5000));
+        pool.release(null);
+        assertEquals(8192, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,60 @@
+package com.tavi.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Test helper running the same task from many threads at once.
+ */
+final class Concurrency
+{
+    private Concurrency() {}
+
+    /**
+     * Runs a task from a number of threads, all released at the same time.
+     * @param threads the number of threads.
+     * @param task the task to run; receives the thread index.
+     * @param <T> the task result type.
+     * @return the results, in thread index order.
+     */
+    static <T> List<T> run(int threads, final IndexedTask<T> task) throws InterruptedException, ExecutionException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<Future<T>> futures = new ArrayList<>(threads);
+            for(int i = 0; i < threads; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        start.await();
+                        return task.run(index);
+                    }
+                }));
+            }
+            start.countDown();
+
+            final List<T> results = new ArrayList<>(threads);
+            for(Future<T> future : futures)
+                results.add(future.get(30, TimeUnit.SECONDS));
+            return results;
+        } catch (TimeoutException e) {
+            throw new ExecutionException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    interface IndexedTask<T>
+    {
+        T run(int index) throws Exception;
+    }
+}
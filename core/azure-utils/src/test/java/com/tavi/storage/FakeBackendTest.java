@@ -0,0 +1,610 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.RetryLinearRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CopyStatus;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.microsoft.azure.storage.table.DynamicTableEntity;
+import com.microsoft.azure.storage.table.EntityProperty;
+import com.microsoft.azure.storage.table.TableQuery;
+import com.tavi.storage.exceptions.BlobConditionFailedException;
+import com.tavi.storage.exceptions.BlobNotFoundException;
+import com.tavi.storage.fake.FakeStorageServer;
+import com.tavi.storage.fake.Fault;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Runs the utils against the in-process fake backend, through the real SDK and HTTP stack.
+ */
+public class FakeBackendTest
+{
+    private FakeStorageServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        StorageClientRegistry.clear();
+        server = FakeStorageServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testParallelUploadAndDownload() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final StorageMetrics metrics = new StorageMetrics();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount()).withMetrics(metrics);
+        final TransferOptions options = TransferOptions.defaults().withBlockSize(64 * 1024).withParallelism(4);
+
+        final byte[] data = new byte[300 * 1024];
+        new Random(3).nextBytes(data);
+        blobUtils.uploadBlockBlobFromByteArray("container", "blob", data, options);
+
+        final File file = File.createTempFile("fake-backend", ".bin");
+        try {
+            blobUtils.downloadToFile("container", "blob", file, options);
+            assertTrue(Arrays.equals(data, Files.readAllBytes(file.toPath())));
+        } finally {
+            file.delete();
+        }
+
+        assertEquals(data.length, metrics.getStats("blob.upload").getBytes());
+        assertEquals(1, metrics.getStats("blob.download").getCount());
+        assertEquals(0, metrics.getStats("blob.upload").getErrors());
+    }
+
+    @Test
+    public void testDownloadIntoBuffersAndChannels() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final BufferPool pool = new BufferPool(true, 1024 * 1024);
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount()).withBufferPool(pool);
+        final TransferOptions options = TransferOptions.defaults().withBlockSize(16 * 1024).withParallelism(3);
+
+        final byte[] data = new byte[100 * 1024 + 7];
+        new Random(5).nextBytes(data);
+        blobUtils.uploadBlockBlobFromByteArray("container", "blob", data, options);
+
+        final ByteBuffer heap = ByteBuffer.allocate(data.length + 10);
+        heap.position(10);
+        assertEquals(data.length, blobUtils.downloadToBuffer("container", "blob", heap, options));
+        assertEquals(data.length + 10, heap.position());
+        assertTrue(Arrays.equals(data, Arrays.copyOfRange(heap.array(), 10, data.length + 10)));
+
+        final ByteBuffer direct = blobUtils.downloadToBuffer("container", "blob", pool, options);
+        assertTrue(direct.isDirect());
+        assertEquals(ByteBuffer.wrap(data), direct);
+        pool.release(direct);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, blobUtils.downloadToChannel("container", "blob", Channels.newChannel(out), options));
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        // One buffer for the pooled download; seven ranges in windows of three reuse the full-size range buffers.
+        assertEquals(5, pool.getAllocationCount());
+        assertEquals(3, pool.getReuseCount());
+
+        try {
+            blobUtils.downloadToBuffer("container", "blob", ByteBuffer.allocate(data.length - 1), options);
+            fail("Expected BufferOverflowException not thrown!");
+        } catch (BufferOverflowException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testDownloadCacheRevalidates() throws Exception {
+        final CloudBlockBlob blob = server.getAccount().createCloudBlobClient().getContainerReference("container")
+                .getBlockBlobReference("config");
+        blob.getContainer().create();
+        blob.uploadText("v1");
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount()).withDownloadCache(BlobCacheOptions.defaults());
+
+        long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        assertEquals("v1", blobUtils.downloadText("container", "config"));
+        assertEquals("v1", blobUtils.downloadText("container", "config"));
+        // One download, then one conditional request answered with 304 - no existence checks.
+        assertEquals(requests + 2, server.getRequestCount(FakeStorageServer.Service.BLOB));
+        assertEquals(1, blobUtils.getDownloadCacheStats().getNotModified());
+
+        blob.uploadText("v2");
+        assertEquals("v2", blobUtils.downloadText("container", "config"));
+
+        blobUtils.uploadBlockBlobFromByteArray("container", "config", "v3".getBytes(), false);
+        assertEquals(0, blobUtils.getDownloadCacheStats().getSize());
+
+        blob.delete();
+        try {
+            blobUtils.downloadText("container", "config");
+            fail("Expected BlobNotFoundException not thrown!");
+        } catch (BlobNotFoundException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testFreshDownloadCacheSkipsRequests() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount())
+                .withDownloadCache(BlobCacheOptions.defaults().withFreshness(1, TimeUnit.MINUTES));
+        blobUtils.uploadBlockBlobFromByteArray("container", "config", "v1".getBytes(), false);
+
+        assertEquals("v1", blobUtils.downloadText("container", "config"));
+        assertSame(blobUtils.getBlobReferenceFromServer("container", "config"), blobUtils.getBlobReferenceFromServer("container", "config"));
+        final long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        for(int i = 0; i < 10; i++) {
+            assertEquals("v1", blobUtils.downloadText("container", "config"));
+            assertEquals(2, blobUtils.getProperties("container", "config").getLength());
+        }
+        assertEquals(requests, server.getRequestCount(FakeStorageServer.Service.BLOB));
+    }
+
+    @Test
+    public void testAttributesInOneRequest() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount()).withAttributeCache(16, 1, TimeUnit.MINUTES);
+        final CloudBlockBlob blob = blobUtils.getBlockBlobReference("container", "blob");
+        blob.getMetadata().put("owner", "tests");
+        blob.uploadText("text");
+
+        final long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        final BlobAttributes attributes = blobUtils.getAttributes("container", "blob");
+        assertEquals(4, attributes.getLength());
+        assertEquals("tests", attributes.getMetadata().get("owner"));
+        assertEquals(attributes.getEtag(), blobUtils.getProperties("container", "blob").getEtag());
+        assertEquals("tests", blobUtils.getMetadata("container", "blob").get("owner"));
+        assertEquals(requests + 1, server.getRequestCount(FakeStorageServer.Service.BLOB));
+        assertEquals(2, blobUtils.getAttributeCacheStats().getHits());
+
+        blobUtils.uploadBlockBlobFromByteArray("container", "blob", "longer text".getBytes(), false);
+        assertEquals(11, blobUtils.getProperties("container", "blob").getLength());
+    }
+
+    @Test
+    public void testLocalSasSigning() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount());
+        blobUtils.uploadBlockBlobFromByteArray("container", "blob", "text".getBytes(), false);
+        final URL verified = blobUtils.createSharedBlobURL("container", "blob", 60, SharedAccessBlobPermissions.READ);
+
+        blobUtils.withLocalSasSigning(true);
+        final long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        final URL local = blobUtils.createSharedBlobURL("container", "blob", 60, SharedAccessBlobPermissions.READ);
+        final URL missing = blobUtils.createSharedBlobURL("container", "missing", 60, SharedAccessBlobPermissions.READ);
+        assertEquals(requests, server.getRequestCount(FakeStorageServer.Service.BLOB));
+
+        assertEquals(verified.getPath(), local.getPath());
+        assertTrue(local.getQuery().contains("sig="));
+        assertTrue(missing.getPath().endsWith("/container/missing"));
+    }
+
+    @Test
+    public void testParallelListingResumesFromCheckpoint() throws Exception {
+        final CloudBlobContainer container = server.getAccount().createCloudBlobClient().getContainerReference("container");
+        container.create();
+        final Set<String> names = new TreeSet<>();
+        for(String directory : new String[] {"", "a/", "b/", "b/c/", "d/"}) {
+            for(int i = 0; i < 5; i++) {
+                final CloudBlockBlob blob = container.getBlockBlobReference(directory + "blob" + i);
+                blob.getMetadata().put("index", String.valueOf(i));
+                blob.uploadText(blob.getName());
+                names.add(blob.getName());
+            }
+        }
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount());
+
+        final Set<String> listed = new ConcurrentSkipListSet<>();
+        final BlobListingCheckpoint complete = new BlobListingCheckpoint();
+        final long count = blobUtils.listBlobs("container", "", BlobListOptions.defaults().withPageSize(2).withIncludeMetadata(true)
+                .withCheckpoint(complete), item -> {
+            assertNotNull(((CloudBlob) item).getMetadata().get("index"));
+            listed.add(((CloudBlob) item).getName());
+        });
+        assertEquals(names.size(), count);
+        assertEquals(names, listed);
+        // The root and its three top level directories; b/c/ is listed flat with b/.
+        assertEquals(4, complete.getPrefixCount());
+        assertTrue(BlobListingCheckpoint.parse(complete.toString()).isComplete());
+
+        // Stop a deeper split listing part way, as if the job crashed, and resume it from the persisted checkpoint.
+        final BlobListOptions options = BlobListOptions.defaults().withPageSize(2).withSplitDepth(2).withParallelism(2).withQueueCapacity(1);
+        final BlobListingCheckpoint checkpoint = new BlobListingCheckpoint();
+        final Set<String> resumed = new TreeSet<>();
+        try (Stream<ListBlobItem> stream = blobUtils.listBlobs("container", "", options.withCheckpoint(checkpoint))) {
+            stream.limit(12).forEach(item -> resumed.add(((CloudBlob) item).getName()));
+        }
+        final String persisted = checkpoint.toString();
+        assertFalse(BlobListingCheckpoint.parse(persisted).isComplete());
+
+        final long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        final AtomicLong repeated = new AtomicLong();
+        try (Stream<ListBlobItem> stream = blobUtils.listBlobs("container", "", options.withCheckpoint(BlobListingCheckpoint.parse(persisted)))) {
+            stream.forEach(item -> {
+                if(!resumed.add(((CloudBlob) item).getName()))
+                    repeated.incrementAndGet();
+            });
+        }
+        assertEquals(names, resumed);
+        assertTrue(repeated.get() < 12);
+        assertTrue(server.getRequestCount(FakeStorageServer.Service.BLOB) - requests < 20);
+
+        try {
+            blobUtils.listBlobs("container", "a/", options.withCheckpoint(BlobListingCheckpoint.parse(persisted)));
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testBulkCopyAndDelete() throws Exception {
+        final CloudBlobClient client = server.getAccount().createCloudBlobClient();
+        final CloudBlobContainer container = client.getContainerReference("container");
+        container.create();
+        client.getContainerReference("archive").create();
+        for(String directory : new String[] {"logs/a/", "logs/b/", "logs/"}) {
+            for(int i = 0; i < 10; i++) {
+                final CloudBlockBlob blob = container.getBlockBlobReference(directory + i);
+                blob.getMetadata().put("index", String.valueOf(i));
+                blob.uploadText(blob.getName());
+            }
+        }
+        container.getBlockBlobReference("keep").uploadText("keep");
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount());
+        final BlobBulkOptions options = BlobBulkOptions.defaults().withParallelism(4).withPollInterval(5, TimeUnit.MILLISECONDS);
+
+        final BlobBulkResult copied = blobUtils.copyBlobs("container", "logs/", "archive", "2024/", options);
+        assertEquals(30, copied.getSucceeded());
+        assertEquals(0, copied.getFailed());
+        final CloudBlockBlob copy = client.getContainerReference("archive").getBlockBlobReference("2024/a/3");
+        assertEquals("logs/a/3", copy.downloadText());
+        assertEquals("3", copy.getMetadata().get("index"));
+        assertEquals(CopyStatus.SUCCESS, copy.getCopyState().getStatus());
+
+        server.withFault(Fault.of(403, "AuthorizationPermissionMismatch").forMethod("DELETE").forPath(".*/logs/b/.*"));
+        final BlobBulkResult deleted = blobUtils.deleteBlobs("container", "logs/", options.withMaxReportedFailures(3));
+        assertEquals(20, deleted.getSucceeded());
+        assertEquals(10, deleted.getFailed());
+        assertEquals(3, deleted.getFailures().size());
+        for(Map.Entry<String, Exception> failure : deleted.getFailures().entrySet()) {
+            assertTrue(failure.getKey().startsWith("logs/b/"));
+            assertEquals(403, ((StorageException) failure.getValue()).getHttpStatusCode());
+        }
+        server.clearFaults();
+
+        final Set<String> left = new TreeSet<>();
+        for(ListBlobItem item : container.listBlobs("", true))
+            left.add(((CloudBlob) item).getName());
+        assertEquals(11, left.size());
+        assertTrue(left.contains("keep"));
+
+        try {
+            blobUtils.copyBlobs("container", "logs/", "container", "logs/old/", options);
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testThrottleLeavesSharedClientRetries() throws Exception {
+        final CloudStorageAccount account = server.getAccount();
+        final CloudBlobClient client = StorageClientRegistry.blobClient(account);
+        final RetryLinearRetry retries = new RetryLinearRetry(10, 3);
+        client.getDefaultRequestOptions().setRetryPolicyFactory(retries);
+        client.getContainerReference("shared").create();
+        client.getContainerReference("shared").getBlockBlobReference("blob").uploadText("text");
+
+        final BlobUtils throttled = BlobUtils.shared(account)
+                .withThrottle(new StorageThrottle(ThrottleOptions.defaults().withMaxRetries(0)));
+        final BlobUtils plain = BlobUtils.shared(account);
+        assertSame(retries, client.getDefaultRequestOptions().getRetryPolicyFactory());
+
+        // Throttled requests are retried by the throttle only, not by the SDK below it.
+        server.withFault(Fault.serverBusy().forMethod("HEAD").forPath("/shared/blob").times(2));
+        final long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        try {
+            throttled.getBlobReferenceFromServer("shared", "blob");
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(503, e.getHttpStatusCode());
+        }
+        assertEquals(requests + 1, server.getRequestCount(FakeStorageServer.Service.BLOB));
+
+        // Other instances on the client keep the retries of the SDK.
+        assertEquals("blob", plain.getBlobReferenceFromServer("shared", "blob").getName());
+    }
+
+    @Test
+    public void testSmallStreamUploadGoesThroughThrottle() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withBackoff(1, 10));
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount()).withThrottle(throttle);
+
+        // Fits in one block, so it is uploaded in a single request - retried by the throttle like any other.
+        server.withFault(Fault.serverBusy().forMethod("PUT").forPath("/container/small").times(1));
+        blobUtils.uploadBlockBlobFromStream("container", "small", new ByteArrayInputStream("small".getBytes()), TransferOptions.defaults());
+        assertEquals(1, throttle.getRetryCount());
+        assertEquals("small", blobUtils.downloadText("container", "small"));
+    }
+
+    @Test
+    public void testConditionalUploads() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("container").create();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount());
+
+        final long requests = server.getRequestCount(FakeStorageServer.Service.BLOB);
+        final String created = blobUtils.uploadBlockBlobFromByteArray("container", "blob", "v1".getBytes(), UploadCondition.createOnly());
+        final String updated = blobUtils.uploadBlockBlobFromByteArray("container", "blob", "v2".getBytes(), UploadCondition.ifMatch(created));
+        assertFalse(created.equals(updated));
+        assertEquals(requests + 2, server.getRequestCount(FakeStorageServer.Service.BLOB));
+
+        for(UploadCondition refused : new UploadCondition[] {UploadCondition.createOnly(), UploadCondition.ifMatch(created)}) {
+            try {
+                blobUtils.uploadBlockBlobFromByteArray("container", "blob", "v3".getBytes(), refused);
+                fail("Expected BlobConditionFailedException not thrown!");
+            } catch (BlobConditionFailedException e) {
+                ; // NO-OP; expected
+            }
+        }
+
+        // Parallel uploads check the condition when committing the block list.
+        final byte[] data = new byte[10 * 1024];
+        new Random(9).nextBytes(data);
+        final TransferOptions options = TransferOptions.defaults().withBlockSize(4 * 1024).withParallelism(2);
+        try {
+            blobUtils.uploadBlockBlobFromByteArray("container", "blob", data, 0, data.length, UploadCondition.ifMatch(created), options);
+            fail("Expected BlobConditionFailedException not thrown!");
+        } catch (BlobConditionFailedException e) {
+            ; // NO-OP; expected
+        }
+        assertEquals("v2", blobUtils.downloadText("container", "blob"));
+
+        final String replaced = blobUtils.uploadBlockBlobFromByteArray("container", "blob", data, 0, data.length, UploadCondition.ifMatch(updated), options);
+        assertEquals(replaced, blobUtils.getProperties("container", "blob").getEtag());
+        assertNotNull(blobUtils.uploadBlockBlobFromByteArray("container", "blob", "v4".getBytes(), UploadCondition.overwrite()));
+        assertEquals("v4", blobUtils.downloadText("container", "blob"));
+    }
+
+    @Test(timeout = 60000)
+    public void testAppendBlobWriter() throws Exception {
+        final CloudBlobContainer logs = server.getAccount().createCloudBlobClient().getContainerReference("logs");
+        logs.create();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount());
+        final List<byte[]> failedBlocks = new CopyOnWriteArrayList<>();
+        final AppendBlobWriterOptions options = AppendBlobWriterOptions.defaults()
+                .withBlockSize(64)
+                .withBufferSize(256)
+                .withFlushIntervalMillis(20)
+                .withRolloverBlockCount(5)
+                .withRetryBackoffMillis(1)
+                .withErrorHandler((records, error) -> failedBlocks.add(records));
+
+        final AppendBlobWriter writer = blobUtils.createAppendBlobWriter("logs", "audit", options);
+        server.withFault(Fault.serverBusy().forMethod("PUT").forPath(".*/logs/audit").times(2));
+        Concurrency.run(4, index -> {
+            for(int i = 0; i < 50; i++)
+                writer.write(index + ":" + i + "\n");
+            return null;
+        });
+        writer.close();
+
+        final AppendBlobWriter.Stats stats = writer.getStats();
+        assertEquals(200, stats.getRecords());
+        assertEquals(0, stats.getFailed());
+        assertTrue(failedBlocks.isEmpty());
+        assertTrue(stats.getBlocks() < 50);
+        assertTrue(stats.getRollovers() > 0);
+        assertEquals("audit." + stats.getRollovers(), writer.getBlobName());
+
+        // Every record once, whole, and in write order per thread.
+        final StringBuilder text = new StringBuilder();
+        for(int segment = 0; segment <= stats.getRollovers(); segment++) {
+            final String name = segment == 0 ? "audit" : "audit." + segment;
+            final CloudAppendBlob blob = logs.getAppendBlobReference(name);
+            blob.downloadAttributes();
+            assertTrue(blob.getProperties().getAppendBlobCommittedBlockCount() <= 5);
+            final String content = blobUtils.downloadText("logs", name);
+            assertTrue(content.endsWith("\n"));
+            text.append(content);
+        }
+        final int[] next = new int[4];
+        for(String line : text.toString().split("\n")) {
+            final String[] parts = line.split(":");
+            final int thread = Integer.parseInt(parts[0]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+        }
+        assertTrue(Arrays.equals(new int[] {50, 50, 50, 50}, next));
+
+        // A new writer continues the last blob; a partial block goes out on its own after the flush interval.
+        final AppendBlobWriter resumed = blobUtils.createAppendBlobWriter("logs", "audit", options);
+        assertEquals(writer.getBlobName(), resumed.getBlobName());
+        final CloudAppendBlob last = logs.getAppendBlobReference(resumed.getBlobName());
+        final String before = blobUtils.downloadText("logs", last.getName());
+        resumed.write("late\n");
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(resumed.getPendingBytes() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(before + "late\n", blobUtils.downloadText("logs", last.getName()));
+
+        // A rejected block goes to the error handler and the writer carries on.
+        server.withFault(Fault.of(403, "AuthorizationFailure").forMethod("PUT").forPath(".*/logs/audit.*").times(1));
+        resumed.write("lost\n");
+        resumed.flush();
+        resumed.write("kept\n");
+        resumed.close();
+        assertEquals(1, failedBlocks.size());
+        assertEquals("lost\n", new String(failedBlocks.get(0), "UTF-8"));
+        assertEquals(before + "late\nkept\n", blobUtils.downloadText("logs", last.getName()));
+
+        try {
+            resumed.write("closed");
+            fail("Expected IllegalStateException not thrown!");
+        } catch (IllegalStateException e) {
+            ; // NO-OP; expected
+        }
+
+        // A throwing error handler neither stalls the writer nor stops it appending.
+        final AtomicInteger handled = new AtomicInteger();
+        final AppendBlobWriter throwing = blobUtils.createAppendBlobWriter("logs", "throwing", options.withMaxRetries(0)
+                .withErrorHandler((records, error) -> {
+                    handled.incrementAndGet();
+                    throw new IllegalStateException("handler failed");
+                }));
+        server.withFault(Fault.of(403, "AuthorizationFailure").forMethod("PUT").forPath(".*/logs/throwing").times(3));
+        // More than the buffer holds, so writes would block for good if failed blocks were never released.
+        for(int i = 0; i < 100; i++)
+            throwing.write(i + "\n");
+        throwing.close();
+        assertEquals(3, handled.get());
+        assertEquals(0, throwing.getPendingBytes());
+        assertTrue(throwing.getStats().getWritten() > 0);
+    }
+
+    @Test
+    public void testPageBlobChannel() throws Exception {
+        server.getAccount().createCloudBlobClient().getContainerReference("pages").create();
+        final BlobUtils blobUtils = BlobUtils.from(server.getAccount());
+        final PageBlobChannelOptions options = PageBlobChannelOptions.defaults()
+                .withCacheSize(16 * 1024)
+                .withReadSize(4 * 1024)
+                .withMaxWriteSize(8 * 1024);
+
+        // Small random writes, mirrored locally.
+        final Random random = new Random(25);
+        final byte[] expected = new byte[66 * 1024];
+        try (PageBlobChannel channel = blobUtils.createPageBlobChannel("pages", "disk", 64 * 1024, options)) {
+            for(int i = 0; i < 300; i++) {
+                final byte[] data = new byte[1 + random.nextInt(100)];
+                random.nextBytes(data);
+                final int position = random.nextInt(64 * 1024 - data.length);
+                System.arraycopy(data, 0, expected, position, data.length);
+                channel.position(position);
+                assertEquals(data.length, channel.write(ByteBuffer.wrap(data)));
+            }
+            assertTrue(channel.getWriteRequestCount() < 300);
+
+            // Writing past the end grows the blob to the next page boundary.
+            final byte[] tail = "tail".getBytes();
+            System.arraycopy(tail, 0, expected, 65 * 1024 + 600, tail.length);
+            channel.position(65 * 1024 + 600).write(ByteBuffer.wrap(tail));
+            assertEquals(66 * 1024, channel.size());
+        }
+
+        try (PageBlobChannel channel = blobUtils.openPageBlobChannel("pages", "disk", options)) {
+            assertEquals(66 * 1024, channel.size());
+            final ByteBuffer content = ByteBuffer.allocate(expected.length);
+            while(content.hasRemaining() && channel.read(content) >= 0);
+            assertTrue(Arrays.equals(expected, content.array()));
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+
+            // Served from the cache once read.
+            final long reads = channel.getReadRequestCount();
+            channel.position(60 * 1024).read(ByteBuffer.allocate(1024));
+            assertEquals(reads, channel.getReadRequestCount());
+
+            // Adjacent dirty pages go out in writes of the maximum size.
+            final long writes = channel.getWriteRequestCount();
+            final byte[] block = new byte[16 * 1024];
+            random.nextBytes(block);
+            System.arraycopy(block, 0, expected, 1024, block.length);
+            channel.position(1024).write(ByteBuffer.wrap(block));
+            assertEquals(32, channel.getDirtyPageCount());
+            channel.flush();
+            assertEquals(0, channel.getDirtyPageCount());
+            assertEquals(writes + 2, channel.getWriteRequestCount());
+
+            channel.position(40 * 1024).truncate(32 * 1024);
+            assertEquals(32 * 1024, channel.size());
+            assertEquals(32 * 1024, channel.position());
+        }
+
+        final byte[] stored = new byte[32 * 1024];
+        assertEquals(stored.length, blobUtils.getPageBlobReference("pages", "disk").downloadToByteArray(stored, 0));
+        assertTrue(Arrays.equals(Arrays.copyOf(expected, 32 * 1024), stored));
+
+        try {
+            blobUtils.openPageBlobChannel("pages", "missing", options);
+            fail("Expected BlobNotFoundException not thrown!");
+        } catch (BlobNotFoundException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testBatchWritesAndScan() throws Exception {
+        server.getAccount().createCloudTableClient().getTableReference("table").create();
+        final TableUtils tableUtils = TableUtils.from(server.getAccount());
+
+        try (TableBatchWriter writer = tableUtils.createBatchWriter("table", TableBatchWriterOptions.defaults())) {
+            for(int i = 0; i < 500; i++) {
+                final DynamicTableEntity entity = new DynamicTableEntity("p" + i % 5, String.format("r%04d", i));
+                entity.getProperties().put("Count", new EntityProperty(i));
+                writer.insertOrReplace(entity);
+            }
+            writer.flush();
+            assertEquals(500, writer.getStats().getWritten());
+            assertEquals(0, writer.getStats().getFailed());
+        }
+
+        final ConcurrentSkipListSet<String> rows = new ConcurrentSkipListSet<>();
+        final TableQuery<DynamicTableEntity> query = TableQuery.from(DynamicTableEntity.class)
+                .where(TableQuery.generateFilterCondition("Count", TableQuery.QueryComparisons.LESS_THAN, 100));
+        final List<PartitionRange> ranges = PartitionRange.split("p2", "p4");
+        final long count = tableUtils.scan("table", query, ranges, TableScanOptions.defaults().withPageSize(7),
+                entity -> rows.add(entity.getRowKey()));
+
+        assertEquals(100, count);
+        assertEquals(100, rows.size());
+        assertEquals("r0000", rows.first());
+        assertEquals("r0099", rows.last());
+    }
+
+    @Test
+    public void testThrottleRidesOutServerBusy() throws Exception {
+        final CloudQueue queue = server.getAccount().createCloudQueueClient().getQueueReference("queue");
+        queue.create();
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withBackoff(1, 5));
+        final QueueUtils queueUtils = QueueUtils.from(server.getAccount()).withThrottle(throttle);
+
+        server.withFault(Fault.serverBusy().forService(FakeStorageServer.Service.QUEUE).forMethod("POST").times(2));
+        queueUtils.addMessageToQueue("queue", new CloudQueueMessage("message"));
+
+        assertEquals(2, throttle.getThrottledCount());
+        assertEquals("message", queue.retrieveMessage().getMessageContentAsString());
+    }
+}
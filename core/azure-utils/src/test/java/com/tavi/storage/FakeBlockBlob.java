@@ -0,0 +1,119 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobProperties;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+/**
+ * In-memory stand-in for the block operations of a block blob, backed by a mocked {@link CloudBlockBlob}.
+ * Tests using it must prepare CloudBlob, CloudBlockBlob and BlobProperties for mocking.
+ */
+final class FakeBlockBlob
+{
+    final CloudBlockBlob blob = mock(CloudBlockBlob.class);
+    final Map<String, byte[]> uncommitted = new ConcurrentHashMap<>();
+    final AtomicInteger stagedBlocks = new AtomicInteger();
+    final AtomicLong stagedBytes = new AtomicLong();
+    final AtomicInteger failuresToInject = new AtomicInteger();
+    final AtomicInteger rangeRequests = new AtomicInteger();
+    volatile byte[] committed;
+
+    /**
+     * @param latencyMillis how long staging a block or downloading a range takes.
+     */
+    FakeBlockBlob(final long latencyMillis) throws StorageException, IOException {
+        final BlobProperties properties = mock(BlobProperties.class);
+        when(properties.getLength()).thenAnswer(invocation -> (long) committed.length);
+        when(properties.getEtag()).thenReturn("\"0x1\"");
+        when(blob.getProperties()).thenReturn(properties);
+
+        doAnswer(invocation -> {
+            final long offset = invocation.getArgument(0);
+            final Long length = invocation.getArgument(1);
+            final byte[] buffer = invocation.getArgument(2);
+            final int bufferOffset = invocation.getArgument(3);
+            Thread.sleep(latencyMillis);
+            rangeRequests.incrementAndGet();
+            if(failuresToInject.getAndDecrement() > 0)
+                throw new StorageException("InternalError", "Injected failure", 500, null, null);
+            final int count = (int) Math.min(length, committed.length - offset);
+            System.arraycopy(committed, (int) offset, buffer, bufferOffset, count);
+            return count;
+        }).when(blob).downloadRangeToByteArray(anyLong(), any(), any(byte[].class), any(int.class),
+                any(AccessCondition.class), any(), any());
+
+        doAnswer(invocation -> {
+            final byte[] data = readFully(invocation.getArgument(1));
+            Thread.sleep(latencyMillis);
+            if(failuresToInject.getAndDecrement() > 0)
+                throw new StorageException("InternalError", "Injected failure", 500, null, null);
+            uncommitted.put(invocation.getArgument(0), data);
+            stagedBlocks.incrementAndGet();
+            stagedBytes.addAndGet(data.length);
+            return null;
+        }).when(blob).uploadBlock(anyString(), any(InputStream.class), anyLong());
+
+        doAnswer(invocation -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for(BlockEntry entry : invocation.<Iterable<BlockEntry>>getArgument(0))
+                out.write(uncommitted.get(entry.getId()));
+            committed = out.toByteArray();
+            uncommitted.clear();
+            return null;
+        }).when(blob).commitBlockList(any());
+
+        doAnswer(invocation -> {
+            final ArrayList<BlockEntry> entries = new ArrayList<>();
+            for(Map.Entry<String, byte[]> staged : uncommitted.entrySet()) {
+                final BlockEntry entry = new BlockEntry(staged.getKey());
+                entry.setSize(staged.getValue().length);
+                entries.add(entry);
+            }
+            return entries;
+        }).when(blob).downloadBlockList(eq(BlockListingFilter.UNCOMMITTED), any(), any(), any());
+
+        doAnswer(invocation -> {
+            committed = readFully(invocation.getArgument(0));
+            return null;
+        }).when(blob).upload(any(InputStream.class), anyLong(), any(), any(), any());
+
+        doAnswer(invocation -> {
+            final byte[] data = invocation.getArgument(0);
+            final int offset = invocation.getArgument(1);
+            final int length = invocation.getArgument(2);
+            final byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            committed = copy;
+            return null;
+        }).when(blob).uploadFromByteArray(any(byte[].class), any(int.class), any(int.class), any(), any(), any());
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,228 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueClient;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.tavi.storage.exceptions.QueueNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({CloudStorageAccount.class, CloudQueue.class, CloudQueueClient.class})
+public class QueueConsumerTest
+{
+    private static final String CONNECTION_STRING = "test";
+    private static final String QUEUE_NAME = "test-queue";
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private CloudQueue queue;
+    private QueueUtils queueUtils;
+
+    private final Queue<CloudQueueMessage> visible = new ConcurrentLinkedQueue<>();
+    private final Set<String> deleted = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger retrieveCalls = new AtomicInteger();
+    private final AtomicInteger retrieveFailures = new AtomicInteger();
+    private final AtomicInteger largestBatch = new AtomicInteger();
+    private final AtomicInteger updates = new AtomicInteger();
+
+    @Before
+    public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
+        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        PowerMockito.mockStatic(CloudStorageAccount.class);
+        Mockito.when(CloudStorageAccount.parse(anyString())).thenReturn(account);
+
+        queue = mock(CloudQueue.class);
+        when(queue.exists(any(), any())).thenReturn(true);
+        when(queue.retrieveMessages(anyInt(), anyInt(), any(), any())).thenAnswer(invocation -> {
+            retrieveCalls.incrementAndGet();
+            if(retrieveFailures.getAndDecrement() > 0)
+                throw new StorageException("ServerBusy", "The server is busy.", 503, null, null);
+            final int count = invocation.getArgument(0);
+            largestBatch.accumulateAndGet(count, Math::max);
+            final List<CloudQueueMessage> batch = new ArrayList<>();
+            CloudQueueMessage message;
+            while(batch.size() < count && (message = visible.poll()) != null)
+                batch.add(message);
+            return batch;
+        });
+        doAnswer(invocation -> {
+            deleted.add(invocation.<CloudQueueMessage>getArgument(0).getMessageContentAsString());
+            return null;
+        }).when(queue).deleteMessage(any(CloudQueueMessage.class));
+        doAnswer(invocation -> {
+            updates.incrementAndGet();
+            return null;
+        }).when(queue).updateMessage(any(CloudQueueMessage.class), anyInt());
+
+        final CloudQueueClient cloudQueueClient = mock(CloudQueueClient.class);
+        when(cloudQueueClient.getQueueReference(any())).thenReturn(queue);
+        when(account.createCloudQueueClient()).thenReturn(cloudQueueClient);
+
+        queueUtils = QueueUtils.from(CONNECTION_STRING);
+    }
+
+    private void enqueue(int count) {
+        for(int i = 0; i < count; i++)
+            visible.add(new CloudQueueMessage("message-" + i));
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(!condition.holds()) {
+            if(System.currentTimeMillis() > deadline)
+                fail("Timed out waiting for the consumer");
+            Thread.sleep(10);
+        }
+    }
+
+    private interface Condition
+    {
+        boolean holds() throws Exception;
+    }
+
+    @Test
+    public void testConsumesAndDeletesMessages() throws Exception {
+        enqueue(500);
+        final Set<String> handled = ConcurrentHashMap.newKeySet();
+        final QueueConsumerOptions options = QueueConsumerOptions.defaults().withWorkers(8).withPrefetch(64).withBackoff(5, 20);
+
+        try (QueueConsumer consumer = queueUtils.createConsumer(QUEUE_NAME,
+                message -> handled.add(message.getMessageContentAsString()), options).start()) {
+            waitFor(() -> consumer.getDeletedCount() == 500);
+            assertEquals(500, consumer.getReceivedCount());
+            assertEquals(500, consumer.getHandledCount());
+            assertEquals(0, consumer.getFailedCount());
+        }
+        assertEquals(500, handled.size());
+        assertEquals(500, deleted.size());
+        assertEquals(QueueConsumerOptions.MAX_BATCH_SIZE, largestBatch.get());
+        assertTrue("Expected batched retrieves, got " + retrieveCalls.get(), retrieveCalls.get() < 100);
+    }
+
+    @Test
+    public void testFailedMessagesAreNotDeleted() throws Exception {
+        enqueue(20);
+        final AtomicInteger errors = new AtomicInteger();
+        final QueueConsumerOptions options = QueueConsumerOptions.defaults().withWorkers(2).withBackoff(5, 20)
+                .withErrorHandler(error -> errors.incrementAndGet());
+
+        try (QueueConsumer consumer = queueUtils.createConsumer(QUEUE_NAME, message -> {
+            if(message.getMessageContentAsString().endsWith("3"))
+                throw new IllegalStateException("Cannot handle " + message.getMessageContentAsString());
+        }, options).start()) {
+            waitFor(() -> consumer.getDeletedCount() + consumer.getFailedCount() == 20);
+            assertEquals(2, consumer.getFailedCount());
+        }
+        assertEquals(18, deleted.size());
+        assertFalse(deleted.contains("message-3"));
+        assertFalse(deleted.contains("message-13"));
+        assertEquals(2, errors.get());
+    }
+
+    @Test
+    public void testThrowingErrorHandlerDoesNotStopConsumer() throws Exception {
+        enqueue(20);
+        retrieveFailures.set(1);
+        final AtomicInteger errors = new AtomicInteger();
+        final QueueConsumerOptions options = QueueConsumerOptions.defaults().withWorkers(2).withBackoff(5, 20)
+                .withErrorHandler(error -> {
+                    errors.incrementAndGet();
+                    throw new IllegalStateException("Error handler failed");
+                });
+
+        try (QueueConsumer consumer = queueUtils.createConsumer(QUEUE_NAME, message -> {
+            final String content = message.getMessageContentAsString();
+            if(content.endsWith("3"))
+                throw new IllegalStateException("Cannot handle " + content);
+            if(content.endsWith("7"))
+                throw new AssertionError("Cannot handle " + content);
+        }, options).start()) {
+            waitFor(() -> consumer.getDeletedCount() + consumer.getFailedCount() == 20);
+            assertEquals(4, consumer.getFailedCount());
+        }
+        assertEquals(16, deleted.size());
+        assertFalse(deleted.contains("message-7"));
+        // The failed retrieve and the four failed messages.
+        assertEquals(5, errors.get());
+    }
+
+    @Test
+    public void testLongHandlersExtendVisibility() throws Exception {
+        enqueue(1);
+        final QueueConsumerOptions options = QueueConsumerOptions.defaults().withWorkers(1).withBackoff(5, 20)
+                .withVisibilityTimeoutSeconds(2);
+
+        try (QueueConsumer consumer = queueUtils.createConsumer(QUEUE_NAME, message -> Thread.sleep(2500), options).start()) {
+            waitFor(() -> consumer.getDeletedCount() == 1);
+            assertEquals(2, consumer.getExtendedCount());
+        }
+        assertEquals(2, updates.get());
+    }
+
+    @Test
+    public void testIdleQueueBacksOff() throws Exception {
+        final QueueConsumerOptions options = QueueConsumerOptions.defaults().withBackoff(20, 400);
+
+        try (QueueConsumer consumer = queueUtils.createConsumer(QUEUE_NAME, message -> {}, options).start()) {
+            Thread.sleep(1500);
+            // 20 + 40 + 80 + 160 + 400 + 400 ... ms between polls: about 7 polls in 1.5s instead of hundreds.
+            assertTrue("Expected few polls, got " + consumer.getPollCount(), consumer.getPollCount() <= 9);
+            assertEquals(consumer.getPollCount(), consumer.getEmptyPollCount());
+
+            enqueue(3);
+            waitFor(() -> consumer.getDeletedCount() == 3);
+        }
+    }
+
+    @Test
+    public void testCreateConsumerForMissingQueue() throws Exception {
+        when(queue.exists(any(), any())).thenReturn(false);
+        try {
+            queueUtils.createConsumer(QUEUE_NAME, message -> {}, QueueConsumerOptions.defaults());
+            fail("Expected QueueNotFoundException not thrown!");
+        } catch (QueueNotFoundException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testStartOnlyOnce() throws Exception {
+        try (QueueConsumer consumer = queueUtils.createConsumer(QUEUE_NAME, message -> {}, QueueConsumerOptions.defaults()).start()) {
+            assertTrue(consumer.isRunning());
+            try {
+                consumer.start();
+                fail("Expected IllegalStateException not thrown!");
+            } catch (IllegalStateException e) {
+                ; // NO-OP; expected
+            }
+            assertTrue(consumer.stop(1, TimeUnit.SECONDS));
+            assertFalse(consumer.isRunning());
+        }
+    }
+}
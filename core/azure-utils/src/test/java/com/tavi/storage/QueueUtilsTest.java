@@ -11,15 +11,34 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
+import org.powermock.reflect.Whitebox;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static junit.framework.TestCase.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
@@ -28,6 +47,7 @@ import static org.powermock.api.mockito.PowerMockito.when;
 public class QueueUtilsTest
 {
     private static final String CONNECTION_STRING = "test";
+    private static final int THREADS = 64;
 
     private static final String QUEUE_NAME = "test-queue";
     private static final String MESSAGE_TEXT = "test message";
@@ -35,15 +55,19 @@ public class QueueUtilsTest
 
     private CloudQueue queue;
 
+    private CloudStorageAccount account;
+
     @Before
     public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
-        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        StorageClientRegistry.clear();
+
+        account = mock(CloudStorageAccount.class);
         PowerMockito.mockStatic(CloudStorageAccount.class);
         Mockito.when(CloudStorageAccount.parse(anyString())).thenReturn(account);
         Mockito.when(CloudStorageAccount.getDevelopmentStorageAccount()).thenReturn(account);
 
         queue = mock(CloudQueue.class);
-        when(queue.exists()).thenReturn(true);
+        when(queue.exists(any(), any())).thenReturn(true);
 
         final CloudQueueClient cloudQueueClient = mock(CloudQueueClient.class);
         when(cloudQueueClient.getQueueReference(any())).thenReturn(queue);
@@ -73,14 +97,14 @@ public class QueueUtilsTest
                 queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE_TEXT);
             }
             {
-                when(queue.exists()).thenReturn(false);
+                when(queue.exists(any(), any())).thenReturn(false);
                 try {
                     queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE_TEXT);
                     fail("Expected QueueNotFoundException not thrown!");
                 } catch (QueueNotFoundException e) {
                     ; // NO-OP; expected
                 }
-                when(queue.exists()).thenReturn(true);
+                when(queue.exists(any(), any())).thenReturn(true);
             }
         }
         {
@@ -89,14 +113,14 @@ public class QueueUtilsTest
                 queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE);
             }
             {
-                when(queue.exists()).thenReturn(false);
+                when(queue.exists(any(), any())).thenReturn(false);
                 try {
                     queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE);
                     fail("Expected QueueNotFoundException not thrown!");
                 } catch (QueueNotFoundException e) {
                     ; // NO-OP; expected
                 }
-                when(queue.exists()).thenReturn(true);
+                when(queue.exists(any(), any())).thenReturn(true);
             }
         }
     }
@@ -107,7 +131,213 @@ public class QueueUtilsTest
         {
             CloudQueue cloudQueue = queueUtils.getQueueReference(QUEUE_NAME);
             assertNotNull(cloudQueue);
-            assertTrue(cloudQueue.exists());
+            assertTrue(cloudQueue.exists(null, null));
+        }
+    }
+
+    @Test
+    public void testSharedConcurrentAccess() throws Exception {
+        final List<QueueUtils> instances = Concurrency.run(THREADS, index -> {
+            final QueueUtils qu = QueueUtils.shared(CONNECTION_STRING);
+            qu.addMessageToQueue(QUEUE_NAME + (index % 4), MESSAGE_TEXT);
+            return qu;
+        });
+        assertEquals(THREADS, instances.size());
+        verify(account, times(1)).createCloudQueueClient();
+    }
+
+    @Test
+    public void testSingleInstanceConcurrentAccess() throws Exception {
+        final QueueUtils qu = QueueUtils.from(CONNECTION_STRING);
+        final List<CloudQueue> references = Concurrency.run(THREADS, index -> {
+            qu.addMessageToQueue(QUEUE_NAME, MESSAGE_TEXT);
+            return qu.getQueueReference(QUEUE_NAME);
+        });
+        for(CloudQueue reference : references)
+            assertSame(references.get(0), reference);
+    }
+
+    @Test
+    public void testExistenceMemoization() throws URISyntaxException, InvalidKeyException, QueueNotFoundException, StorageException {
+        final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING).withReferenceCache(16, 1, TimeUnit.MINUTES);
+        for(int i = 0; i < 10; i++)
+            queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE_TEXT);
+        verify(queue, times(1)).exists(any(), any());
+        assertEquals(9, queueUtils.getExistenceCacheStats().getHits());
+        assertEquals(1, queueUtils.getExistenceCacheStats().getMisses());
+
+        doThrow(new StorageException("QueueNotFound", "The specified queue does not exist.", 404, null, null))
+                .when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+        try {
+            queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE_TEXT);
+            fail("Expected QueueNotFoundException not thrown!");
+        } catch (QueueNotFoundException e) {
+            ; // NO-OP; expected
+        }
+
+        doNothing().when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+        queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE_TEXT);
+        verify(queue, times(2)).exists(any(), any());
+    }
+
+    private void setUpSendLatency(final long latencyMillis) throws StorageException {
+        doAnswer(invocation -> {
+            Thread.sleep(latencyMillis);
+            final CloudQueueMessage message = invocation.getArgument(0);
+            if(message.getMessageContentAsString().startsWith("fail"))
+                throw new StorageException("RequestBodyTooLarge", "The request body is too large.", 413, null, null);
+            Whitebox.invokeMethod(message, "setMessageId", "id-" + message.getMessageContentAsString());
+            return null;
+        }).when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+    }
+
+    private static List<String> contents(int count) {
+        final List<String> contents = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            contents.add(MESSAGE_TEXT + i);
+        return contents;
+    }
+
+    @Test
+    public void testAddMessageToQueueAsync() throws Exception {
+        final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING).withAsync(AsyncOptions.defaults().withMaxInFlight(4));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        doAnswer(invocation -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+            final CloudQueueMessage message = invocation.getArgument(0);
+            Whitebox.invokeMethod(message, "setMessageId", "id-" + message.getMessageContentAsString());
+            return null;
+        }).when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+
+        final List<CompletableFuture<CloudQueueMessage>> futures = new ArrayList<>();
+        for(String content : contents(40))
+            futures.add(queueUtils.addMessageToQueueAsync(QUEUE_NAME, content));
+        for(int i = 0; i < futures.size(); i++)
+            assertEquals("id-" + MESSAGE_TEXT + i, futures.get(i).get().getMessageId());
+        assertEquals(4, maxRunning.get());
+
+        when(queue.exists(any(), any())).thenReturn(false);
+        try {
+            queueUtils.addMessageToQueueAsync(QUEUE_NAME, MESSAGE_TEXT).get();
+            fail("Expected QueueNotFoundException not thrown!");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof QueueNotFoundException);
+        }
+    }
+
+    @Test
+    public void testAddMessageToQueueThrottled() throws URISyntaxException, InvalidKeyException, QueueNotFoundException, StorageException {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withBackoff(1, 5));
+        final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING).withThrottle(throttle);
+        final AtomicInteger attempts = new AtomicInteger();
+        doAnswer(invocation -> {
+            if(attempts.incrementAndGet() <= 2)
+                throw new StorageException("ServerBusy", "The server is busy.", 503, null, null);
+            return null;
+        }).when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+
+        queueUtils.addMessageToQueue(QUEUE_NAME, MESSAGE);
+        verify(queue, times(3)).addMessage(eq(MESSAGE), anyInt(), anyInt(), any(), any());
+        assertEquals(2, throttle.getThrottledCount());
+        // Exists check plus three sends.
+        assertEquals(4, throttle.getRequestCount());
+    }
+
+    @Test
+    public void testAddMessagesToQueue() throws URISyntaxException, InvalidKeyException, QueueNotFoundException, StorageException {
+        final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING);
+        setUpSendLatency(0);
+        final List<String> contents = new ArrayList<>(contents(50));
+        contents.set(17, "fail");
+
+        final List<QueueSendResult> results = queueUtils.addTextMessagesToQueue(QUEUE_NAME, contents, 8);
+        assertEquals(contents.size(), results.size());
+        for(int i = 0; i < contents.size(); i++) {
+            final QueueSendResult result = results.get(i);
+            assertEquals(contents.get(i), result.getMessage().getMessageContentAsString());
+            if(i == 17) {
+                assertFalse(result.isSuccess());
+                assertNull(result.getMessageId());
+                assertEquals(413, ((StorageException) result.getError()).getHttpStatusCode());
+            } else {
+                assertTrue(result.isSuccess());
+                assertEquals("id-" + contents.get(i), result.getMessageId());
+            }
+        }
+        verify(queue, times(1)).exists(any(), any());
+        verify(queue, times(50)).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+
+        when(queue.exists(any(), any())).thenReturn(false);
+        try {
+            queueUtils.addMessagesToQueue(QUEUE_NAME, Arrays.asList(MESSAGE), 8);
+            fail("Expected QueueNotFoundException not thrown!");
+        } catch (QueueNotFoundException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testAddMessagesToQueueReportsMissingQueue() throws URISyntaxException, InvalidKeyException, QueueNotFoundException, StorageException {
+        final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING);
+        doThrow(new StorageException("QueueNotFound", "The specified queue does not exist.", 404, null, null))
+                .when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+
+        final List<QueueSendResult> results = queueUtils.addTextMessagesToQueue(QUEUE_NAME, contents(4), 2);
+        for(QueueSendResult result : results)
+            assertTrue(result.getError() instanceof QueueNotFoundException);
+    }
+
+    @Test
+    public void testAddMessagesToQueueScalesWithConcurrency() throws URISyntaxException, InvalidKeyException, QueueNotFoundException, StorageException {
+        final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING);
+        setUpSendLatency(10);
+        final List<String> contents = contents(64);
+
+        long start = System.nanoTime();
+        queueUtils.addTextMessagesToQueue(QUEUE_NAME, contents, 1);
+        final long sequential = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        queueUtils.addTextMessagesToQueue(QUEUE_NAME, contents, 16);
+        final long concurrent = System.nanoTime() - start;
+
+        assertTrue("Expected 16 way send to be at least 6x faster: " + sequential + "ns vs " + concurrent + "ns",
+                concurrent * 6 < sequential);
+    }
+
+    @Test
+    public void testAddMessagesToQueueStreamsThroughInstanceExecutor() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        final ExecutorService pool = Executors.newCachedThreadPool();
+        try {
+            final QueueUtils queueUtils = QueueUtils.from(CONNECTION_STRING).withAsync(AsyncOptions.defaults()
+                    .withExecutor(command -> { executed.incrementAndGet(); pool.execute(command); }));
+            final AtomicInteger pulled = new AtomicInteger();
+            final AtomicInteger sent = new AtomicInteger();
+            final AtomicInteger maxAhead = new AtomicInteger();
+            doAnswer(invocation -> {
+                Thread.sleep(5);
+                sent.incrementAndGet();
+                final CloudQueueMessage message = invocation.getArgument(0);
+                Whitebox.invokeMethod(message, "setMessageId", "id-" + message.getMessageContentAsString());
+                return null;
+            }).when(queue).addMessage(any(CloudQueueMessage.class), anyInt(), anyInt(), any(), any());
+
+            final Stream<CloudQueueMessage> messages = IntStream.range(0, 40).mapToObj(i -> {
+                maxAhead.accumulateAndGet(pulled.incrementAndGet() - sent.get(), Math::max);
+                return new CloudQueueMessage(MESSAGE_TEXT + i);
+            });
+            final List<QueueSendResult> results = queueUtils.addMessagesToQueue(QUEUE_NAME, messages, 4);
+            assertEquals(40, results.size());
+            for(int i = 0; i < results.size(); i++)
+                assertEquals("id-" + MESSAGE_TEXT + i, results.get(i).getMessageId());
+            assertEquals(40, executed.get());
+            assertTrue("Pulled " + maxAhead.get() + " messages ahead of the sends", maxAhead.get() <= 5);
+        } finally {
+            pool.shutdown();
         }
     }
 }
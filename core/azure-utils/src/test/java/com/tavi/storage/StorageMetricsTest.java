@@ -0,0 +1,92 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageException;
+import com.tavi.storage.exceptions.BlobNotFoundException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class StorageMetricsTest
+{
+    private static final String OPERATION = "test.operation";
+
+    @Test
+    public void testHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 1000; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i * 100));
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(50.05, snapshot.getMeanMillis(), 0.01);
+        assertEquals(100, snapshot.getMaxMillis(), 0.001);
+        assertEquals(50, snapshot.getPercentileMillis(50), 50 / 64.0);
+        assertEquals(99, snapshot.getPercentileMillis(99), 99 / 64.0);
+        assertEquals(100, snapshot.getPercentileMillis(100), 0.001);
+        assertEquals(0.1, snapshot.getPercentileMillis(0), 0.1 / 64);
+
+        assertEquals(0, new LatencyHistogram().getSnapshot().getPercentileMillis(99), 0);
+        try {
+            snapshot.getPercentileMillis(101);
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        long previous = -1;
+        for(long value = 0; value < 1 << 20; value++) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(value <= LatencyHistogram.highestValue(index));
+            assertTrue(LatencyHistogram.highestValue(index) - value <= value / 64);
+            assertTrue(index >= previous);
+            previous = index;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testSamples() {
+        final StorageMetrics metrics = new StorageMetrics();
+        assertNull(metrics.getStats(OPERATION));
+
+        StorageMetrics.Sample sample = StorageMetrics.start(metrics, OPERATION);
+        sample.addBytes(100);
+        sample.stop();
+
+        sample = StorageMetrics.start(metrics, OPERATION);
+        sample.fail(new StorageException("ServerBusy", "busy", 503, null, null));
+        sample.stop();
+
+        sample = StorageMetrics.start(metrics, OPERATION);
+        sample.fail(new BlobNotFoundException("missing", new StorageException("BlobNotFound", "missing", 404, null, null)));
+        sample.stop();
+
+        sample = StorageMetrics.start(metrics, OPERATION);
+        sample.fail(new IOException("disk full"));
+        sample.stop();
+
+        final StorageMetrics.Stats stats = metrics.getStats(OPERATION);
+        assertEquals(4, stats.getCount());
+        assertEquals(3, stats.getErrors());
+        assertEquals(100, stats.getBytes());
+        assertEquals(Long.valueOf(1), stats.getErrorsByStatus().get(503));
+        assertEquals(Long.valueOf(1), stats.getErrorsByStatus().get(404));
+        assertEquals(Long.valueOf(1), stats.getErrorsByStatus().get(StorageMetrics.NO_STATUS));
+        assertEquals(4, stats.getLatency().getCount());
+
+        metrics.reset();
+        assertTrue(metrics.getSnapshot().isEmpty());
+
+        // Metrics off records nothing.
+        sample = StorageMetrics.start(null, OPERATION);
+        sample.addBytes(100);
+        sample.stop();
+        assertTrue(metrics.getSnapshot().isEmpty());
+    }
+}
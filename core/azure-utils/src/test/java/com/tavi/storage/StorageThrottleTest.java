@@ -0,0 +1,124 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+public class StorageThrottleTest
+{
+    private static final String RESULT = "result";
+
+    private static StorageException error(int status, String code) {
+        return new StorageException(code, "test error", status, null, null);
+    }
+
+    @Test
+    public void testRetriesServerBusy() throws StorageException {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withBackoff(1, 5).withConcurrency(16, 1, 64));
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final String result = throttle.call(() -> {
+            if(attempts.incrementAndGet() <= 2)
+                throw error(503, StorageErrorCodeStrings.SERVER_BUSY);
+            return RESULT;
+        });
+        assertEquals(RESULT, result);
+        assertEquals(3, throttle.getRequestCount());
+        assertEquals(2, throttle.getRetryCount());
+        assertEquals(2, throttle.getThrottledCount());
+        assertTrue(throttle.getLimit() < 16);
+        assertEquals(0, throttle.getInFlightCount());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withMaxRetries(2).withBackoff(1, 5));
+        try {
+            throttle.call(() -> {
+                throw error(429, "TooManyRequests");
+            });
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(429, e.getHttpStatusCode());
+        }
+        assertEquals(3, throttle.getRequestCount());
+        assertEquals(3, throttle.getThrottledCount());
+        assertEquals(0, throttle.getInFlightCount());
+    }
+
+    @Test
+    public void testDoesNotRetryClientErrors() {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withBackoff(1, 5));
+        try {
+            throttle.call(() -> {
+                throw error(404, StorageErrorCodeStrings.RESOURCE_NOT_FOUND);
+            });
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(404, e.getHttpStatusCode());
+        }
+        assertEquals(1, throttle.getRequestCount());
+        assertEquals(0, throttle.getRetryCount());
+        assertEquals(0, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void testThrottledErrors() {
+        assertTrue(StorageThrottle.isThrottled(error(503, StorageErrorCodeStrings.SERVER_BUSY)));
+        assertTrue(StorageThrottle.isThrottled(error(429, "TooManyRequests")));
+        assertTrue(StorageThrottle.isThrottled(error(500, StorageErrorCodeStrings.OPERATION_TIMED_OUT)));
+        assertFalse(StorageThrottle.isThrottled(error(500, StorageErrorCodeStrings.INTERNAL_ERROR)));
+        assertTrue(StorageThrottle.isRetryable(error(500, StorageErrorCodeStrings.INTERNAL_ERROR)));
+        assertFalse(StorageThrottle.isRetryable(error(409, "Conflict")));
+    }
+
+    @Test
+    public void testLimitRecoversOnSuccess() throws StorageException {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withConcurrency(4, 1, 8));
+        for(int i = 0; i < 100; i++)
+            throttle.call(() -> RESULT);
+        assertEquals(8, throttle.getLimit());
+    }
+
+    @Test
+    public void testLimitsConcurrency() throws Exception {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withConcurrency(4, 4, 4));
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        Concurrency.run(32, index -> throttle.call(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            running.decrementAndGet();
+            return index;
+        }));
+        assertEquals(4, maxRunning.get());
+        assertEquals(32, throttle.getRequestCount());
+        assertTrue(throttle.getWaitMillis() > 0);
+    }
+
+    @Test
+    public void testRateLimit() throws StorageException {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withRateLimit(20, 1));
+
+        final long start = System.nanoTime();
+        for(int i = 0; i < 11; i++)
+            throttle.call(() -> RESULT);
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Expected 11 requests at 20/s to take about 500ms: " + elapsedMillis + "ms", elapsedMillis >= 450);
+    }
+
+    @Test
+    public void testBackoffIsBounded() {
+        final StorageThrottle throttle = new StorageThrottle(ThrottleOptions.defaults().withBackoff(10, 100));
+        for(int attempt = 0; attempt < 40; attempt++) {
+            final long backoff = throttle.backoffMillis(attempt);
+            assertTrue(backoff >= 0);
+            assertTrue(backoff <= Math.min(100, 10L << attempt));
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.StorageExtendedErrorInformation;
+import com.microsoft.azure.storage.table.*;
+import com.tavi.storage.exceptions.TableNotFoundException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({CloudStorageAccount.class, CloudTableClient.class, CloudTable.class})
+public class TableBatchWriterTest
+{
+    private static final String CONNECTION_STRING = "test";
+    private static final String TABLE_NAME = "test-table";
+    private static final String BAD_ROW = "bad";
+
+    private CloudTable table;
+    private TableUtils tableUtils;
+
+    /** Entities behind the operations written by a test; operations do not expose them. */
+    private final Map<TableOperation, TableServiceEntity> entities = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final List<List<TableServiceEntity>> committed = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger serverErrorsToInject = new AtomicInteger();
+    private volatile boolean reportFailedIndex = true;
+
+    @Before
+    public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
+        StorageClientRegistry.clear();
+
+        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        PowerMockito.mockStatic(CloudStorageAccount.class);
+        Mockito.when(CloudStorageAccount.parse(anyString())).thenReturn(account);
+
+        table = mock(CloudTable.class);
+        when(table.getName()).thenReturn(TABLE_NAME);
+        when(table.exists(any(), any())).thenReturn(true);
+        when(table.execute(any(TableBatchOperation.class))).thenAnswer(invocation -> {
+            final List<TableOperation> batch = invocation.getArgument(0);
+            return commit(batch);
+        });
+        when(table.execute(any(TableOperation.class))).thenAnswer(invocation -> {
+            final TableOperation operation = invocation.getArgument(0);
+            return commit(Collections.singletonList(operation)).get(0);
+        });
+
+        final CloudTableClient client = mock(CloudTableClient.class);
+        when(client.getTableReference(any())).thenReturn(table);
+        when(account.createCloudTableClient()).thenReturn(client);
+
+        tableUtils = TableUtils.from(CONNECTION_STRING);
+    }
+
+    private ArrayList<TableResult> commit(List<TableOperation> batch) throws StorageException {
+        if(serverErrorsToInject.getAndDecrement() > 0)
+            throw new StorageException("ServerBusy", "The server is busy.", 503, null, null);
+
+        final List<TableServiceEntity> batchEntities = new ArrayList<>();
+        for(int i = 0; i < batch.size(); i++) {
+            final TableServiceEntity entity = entities.get(batch.get(i));
+            if(BAD_ROW.equals(entity.getRowKey())) {
+                final StorageExtendedErrorInformation info = new StorageExtendedErrorInformation();
+                info.setErrorCode("PropertyValueTooLarge");
+                info.setErrorMessage((reportFailedIndex ? i + ":" : "") + "The property value exceeds the maximum allowed size.");
+                throw new StorageException("PropertyValueTooLarge", info.getErrorMessage(), 400, info, null);
+            }
+            batchEntities.add(entity);
+        }
+        committed.add(batchEntities);
+
+        final ArrayList<TableResult> results = new ArrayList<>();
+        for(int i = 0; i < batch.size(); i++)
+            results.add(new TableResult(204));
+        return results;
+    }
+
+    private TableOperation operation(String partitionKey, String rowKey) {
+        final TableServiceEntity entity = new TableServiceEntity(partitionKey, rowKey);
+        final TableOperation operation = TableOperation.insertOrReplace(entity);
+        entities.put(operation, entity);
+        return operation;
+    }
+
+    @Test
+    public void testGroupsByPartition() throws Exception {
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults().withFlushIntervalMillis(60000);
+        final TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options);
+        for(int i = 0; i < 350; i++)
+            for(String partition : new String[] {"a", "b", "c"})
+                writer.write(partition, operation(partition, String.format("%04d", i)));
+        writer.close();
+
+        // 3 full batches per partition, plus the 50 left over sent on close.
+        assertEquals(12, committed.size());
+        for(List<TableServiceEntity> batch : committed) {
+            assertTrue(batch.size() == 100 || batch.size() == 50);
+            for(TableServiceEntity entity : batch)
+                assertEquals(batch.get(0).getPartitionKey(), entity.getPartitionKey());
+        }
+
+        final TableBatchWriter.Stats stats = writer.getStats();
+        assertEquals(1050, stats.getWritten());
+        assertEquals(0, stats.getFailed());
+        assertEquals(12, stats.getBatches());
+        assertEquals(12, stats.getRequests());
+        assertEquals(87.5, stats.getMeanBatchSize());
+        assertTrue(stats.getThroughput() > 0);
+    }
+
+    @Test
+    public void testKeepsWriteOrderWithinPartition() throws Exception {
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults().withBatchSize(10).withParallelism(4);
+        try (TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options)) {
+            Concurrency.run(4, index -> {
+                final String partition = "p" + index;
+                for(int i = 0; i < 500; i++)
+                    writer.write(partition, operation(partition, String.format("%04d", i)));
+                return null;
+            });
+        }
+
+        final Map<String, List<String>> rows = new ConcurrentHashMap<>();
+        for(List<TableServiceEntity> batch : committed)
+            for(TableServiceEntity entity : batch)
+                rows.computeIfAbsent(entity.getPartitionKey(), key -> new ArrayList<>()).add(entity.getRowKey());
+        assertEquals(4, rows.size());
+        for(List<String> partitionRows : rows.values()) {
+            assertEquals(500, partitionRows.size());
+            final List<String> sorted = new ArrayList<>(partitionRows);
+            Collections.sort(sorted);
+            assertEquals(sorted, partitionRows);
+        }
+    }
+
+    @Test
+    public void testFlushesPartialBatchesOnTime() throws Exception {
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults().withFlushIntervalMillis(50);
+        try (TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options)) {
+            for(int i = 0; i < 5; i++)
+                writer.write("a", operation("a", "row" + i));
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while(writer.getStats().getWritten() < 5 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(5, writer.getStats().getWritten());
+            assertEquals(0, writer.getPendingCount());
+        }
+        assertEquals(1, committed.size());
+    }
+
+    @Test
+    public void testSplitsAroundFailedOperation() throws Exception {
+        assertEquals(1, assertSplitsAroundFailedOperation().getSplits());
+    }
+
+    @Test
+    public void testBisectsWhenFailedOperationUnknown() throws Exception {
+        reportFailedIndex = false;
+        // The halves holding index 37 of 100: 50, 25, 13, 6, 3 and finally 1.
+        assertEquals(6, assertSplitsAroundFailedOperation().getSplits());
+    }
+
+    private TableBatchWriter.Stats assertSplitsAroundFailedOperation() throws Exception {
+        final List<TableOperation> failures = Collections.synchronizedList(new ArrayList<>());
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults()
+                .withErrorHandler((operation, error) -> {
+                    assertEquals(400, ((StorageException) error).getHttpStatusCode());
+                    failures.add(operation);
+                });
+
+        final TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options);
+        TableOperation bad = null;
+        for(int i = 0; i < 100; i++) {
+            final TableOperation operation = operation("a", i == 37 ? BAD_ROW : String.format("%04d", i));
+            if(i == 37)
+                bad = operation;
+            writer.write("a", operation);
+        }
+        writer.close();
+
+        assertEquals(1, failures.size());
+        assertSame(bad, failures.get(0));
+
+        int rows = 0;
+        for(List<TableServiceEntity> batch : committed)
+            rows += batch.size();
+        assertEquals(99, rows);
+
+        final TableBatchWriter.Stats stats = writer.getStats();
+        assertEquals(99, stats.getWritten());
+        assertEquals(1, stats.getFailed());
+        return stats;
+    }
+
+    @Test
+    public void testRetriesServerErrors() throws Exception {
+        serverErrorsToInject.set(2);
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults().withRetryBackoffMillis(1);
+        final TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options);
+        for(int i = 0; i < 100; i++)
+            writer.write("a", operation("a", String.format("%04d", i)));
+        writer.close();
+
+        assertEquals(1, committed.size());
+        final TableBatchWriter.Stats stats = writer.getStats();
+        assertEquals(100, stats.getWritten());
+        assertEquals(3, stats.getRequests());
+        assertEquals(0, stats.getSplits());
+    }
+
+    @Test
+    public void testFailsBatchWhenRetriesExhausted() throws Exception {
+        serverErrorsToInject.set(Integer.MAX_VALUE);
+        final AtomicInteger failures = new AtomicInteger();
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults().withMaxRetries(1).withRetryBackoffMillis(1)
+                .withErrorHandler((operation, error) -> failures.incrementAndGet());
+        final TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options);
+        for(int i = 0; i < 100; i++)
+            writer.write("a", operation("a", String.format("%04d", i)));
+        writer.close();
+
+        assertEquals(100, failures.get());
+        assertEquals(2, writer.getStats().getRequests());
+        assertEquals(0, writer.getStats().getSplits());
+    }
+
+    @Test(timeout = 30000)
+    public void testThrowingErrorHandlerDoesNotStallWriter() throws Exception {
+        serverErrorsToInject.set(Integer.MAX_VALUE);
+        final AtomicInteger failures = new AtomicInteger();
+        final TableBatchWriterOptions options = TableBatchWriterOptions.defaults().withMaxRetries(0)
+                .withBatchSize(10).withMaxPendingOperations(20)
+                .withErrorHandler((operation, error) -> {
+                    failures.incrementAndGet();
+                    throw new IllegalStateException("handler failed");
+                });
+        final TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, options);
+        // More than the pending limit, so writers would block for good if a batch never completed.
+        for(int i = 0; i < 100; i++)
+            writer.write("a", operation("a", String.format("%04d", i)));
+        writer.flush();
+        assertEquals(100, failures.get());
+        assertEquals(0, writer.getPendingCount());
+
+        // An Error escaping the handler ends the sender, not the writer.
+        final TableBatchWriter fatal = tableUtils.createBatchWriter(TABLE_NAME, options.withErrorHandler((operation, error) -> {
+            throw new AssertionError("handler failed");
+        }));
+        for(int i = 0; i < 100; i++)
+            fatal.write("b", operation("b", String.format("%04d", i)));
+        fatal.flush();
+        assertEquals(0, fatal.getPendingCount());
+
+        serverErrorsToInject.set(0);
+        fatal.write("b", operation("b", "last"));
+        fatal.close();
+        assertEquals(1, fatal.getStats().getWritten());
+        writer.close();
+    }
+
+    @Test
+    public void testWriteAfterClose() throws Exception {
+        final TableBatchWriter writer = tableUtils.createBatchWriter(TABLE_NAME, TableBatchWriterOptions.defaults());
+        writer.close();
+        try {
+            writer.insertOrReplace(new TableServiceEntity("a", "b"));
+            fail("Expected IllegalStateException not thrown!");
+        } catch (IllegalStateException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testCreateBatchWriterForMissingTable() throws Exception {
+        when(table.exists(any(), any())).thenReturn(false);
+        try {
+            tableUtils.createBatchWriter(TABLE_NAME, TableBatchWriterOptions.defaults());
+            fail("Expected TableNotFoundException not thrown!");
+        } catch (TableNotFoundException e) {
+            ; // NO-OP; expected
+        }
+    }
+}
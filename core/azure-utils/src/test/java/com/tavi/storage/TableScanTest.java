@@ -0,0 +1,231 @@
+package com.tavi.storage;
+
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.*;
+import com.tavi.storage.exceptions.UncheckedStorageException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static junit.framework.TestCase.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({CloudStorageAccount.class, CloudTableClient.class, CloudTable.class})
+public class TableScanTest
+{
+    private static final String CONNECTION_STRING = "test";
+    private static final String TABLE_NAME = "test-table";
+    private static final int ROWS_PER_PARTITION = 200;
+    private static final int PARTITIONS = 26;
+
+    private static final Pattern LOWER = Pattern.compile("PartitionKey ge '([^']*)'");
+    private static final Pattern UPPER = Pattern.compile("PartitionKey lt '([^']*)'");
+
+    /** Every entity of the table, sorted by partition and row key. */
+    private static final List<TableServiceEntity> ROWS = new ArrayList<>();
+
+    static {
+        for(char partition = 'a'; partition < 'a' + PARTITIONS; partition++)
+            for(int row = 0; row < ROWS_PER_PARTITION; row++)
+                ROWS.add(new TableServiceEntity(String.valueOf(partition), String.format("%05d", row)));
+    }
+
+    private CloudTable table;
+    private TableUtils tableUtils;
+
+    private final Set<String> filters = ConcurrentHashMap.newKeySet();
+    private final Set<String> threads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger segments = new AtomicInteger();
+    private volatile String failingPartition;
+
+    @Before
+    public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
+        StorageClientRegistry.clear();
+
+        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        PowerMockito.mockStatic(CloudStorageAccount.class);
+        Mockito.when(CloudStorageAccount.parse(anyString())).thenReturn(account);
+
+        table = mock(CloudTable.class);
+        when(table.getName()).thenReturn(TABLE_NAME);
+        when(table.exists(any(), any())).thenReturn(true);
+        when(table.executeSegmented(any(TableQuery.class), Mockito.<ResultContinuation>any())).thenAnswer(invocation -> {
+            final TableQuery<?> query = invocation.getArgument(0);
+            final ResultContinuation token = invocation.getArgument(1);
+            return segment(query.getFilterString(), token, query.getTakeCount() != null ? query.getTakeCount() : 1000);
+        });
+
+        final CloudTableClient client = mock(CloudTableClient.class);
+        when(client.getTableReference(any())).thenReturn(table);
+        when(account.createCloudTableClient()).thenReturn(client);
+
+        tableUtils = TableUtils.from(CONNECTION_STRING);
+    }
+
+    /**
+     * Serves the rows matching the partition range of a filter, take rows per segment.
+     */
+    private ResultSegment<TableServiceEntity> segment(String filter, ResultContinuation token, int take) throws StorageException {
+        segments.incrementAndGet();
+        threads.add(Thread.currentThread().getName());
+        if(filter != null)
+            filters.add(filter);
+
+        final String from = bound(LOWER, filter);
+        final String to = bound(UPPER, filter);
+        final ArrayList<TableServiceEntity> results = new ArrayList<>();
+        ResultContinuation next = null;
+        // The fake token carries the index of the next row.
+        int index = token != null ? Integer.parseInt(token.getNextRowKey()) : from != null ? (from.charAt(0) - 'a') * ROWS_PER_PARTITION : 0;
+        for(; index < ROWS.size(); index++) {
+            final TableServiceEntity row = ROWS.get(index);
+            if(to != null && row.getPartitionKey().compareTo(to) >= 0)
+                break;
+            if(row.getPartitionKey().equals(failingPartition))
+                throw new StorageException("ServerBusy", "The server is busy.", 503, null, null);
+            if(results.size() == take) {
+                next = new ResultContinuation();
+                next.setContinuationType(ResultContinuationType.TABLE);
+                next.setNextPartitionKey(row.getPartitionKey());
+                next.setNextRowKey(String.valueOf(index));
+                break;
+            }
+            results.add(row);
+        }
+        return new ResultSegment<>(results, take, next);
+    }
+
+    private static String bound(Pattern pattern, String filter) {
+        if(filter == null)
+            return null;
+        final Matcher matcher = pattern.matcher(filter);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static String key(TableEntity entity) {
+        return entity.getPartitionKey() + "/" + entity.getRowKey();
+    }
+
+    @Test
+    public void testPartitionRanges() {
+        assertEquals(Collections.singletonList(PartitionRange.all()), PartitionRange.split());
+        assertEquals(Arrays.asList(PartitionRange.between(null, "g"), PartitionRange.between("g", "n"), PartitionRange.between("n", null)),
+                PartitionRange.split("n", "g", "g"));
+
+        assertNull(PartitionRange.all().toFilter());
+        assertEquals("PartitionKey lt 'g'", PartitionRange.between(null, "g").toFilter());
+        assertEquals("(PartitionKey ge 'g') and (PartitionKey lt 'n')", PartitionRange.between("g", "n").toFilter());
+        try {
+            PartitionRange.between("n", "g");
+            fail("Expected IllegalArgumentException not thrown!");
+        } catch (IllegalArgumentException e) {
+            ; // NO-OP; expected
+        }
+    }
+
+    @Test
+    public void testScanWithConsumer() throws Exception {
+        final Set<String> keys = ConcurrentHashMap.newKeySet();
+        final TableQuery<TableServiceEntity> query = TableQuery.from(TableServiceEntity.class);
+        final TableScanOptions options = TableScanOptions.defaults().withParallelism(4).withPageSize(50);
+
+        final long count = tableUtils.scan(TABLE_NAME, query, PartitionRange.split("e", "j", "o", "t"), options,
+                entity -> assertTrue(keys.add(key(entity))));
+
+        assertEquals(ROWS.size(), count);
+        assertEquals(ROWS.size(), keys.size());
+        assertEquals(5, filters.size());
+        assertEquals(ROWS.size() / 50, segments.get());
+        assertTrue("Expected several scanning threads, got " + threads, threads.size() > 1);
+        assertNull(query.getFilterString());
+        assertNull(query.getTakeCount());
+    }
+
+    @Test
+    public void testScanWithSplitter() throws Exception {
+        final TableQuery<TableServiceEntity> query = TableQuery.from(TableServiceEntity.class)
+                .where(TableQuery.generateFilterCondition("RowKey", TableQuery.QueryComparisons.LESS_THAN, "99999"));
+        final TableScanOptions.KeySpaceSplitter splitter = parallelism -> {
+            final List<String> boundaries = new ArrayList<>();
+            for(int i = 1; i < parallelism * 2; i++)
+                boundaries.add(String.valueOf((char) ('a' + i * PARTITIONS / (parallelism * 2))));
+            return PartitionRange.split(boundaries.toArray(new String[0]));
+        };
+
+        final long count = tableUtils.scan(TABLE_NAME, query, splitter, TableScanOptions.defaults().withParallelism(3), entity -> {});
+        assertEquals(ROWS.size(), count);
+        assertEquals(6, filters.size());
+        for(String filter : filters)
+            assertTrue(filter, filter.startsWith("((RowKey lt '99999')) and ("));
+    }
+
+    @Test
+    public void testScanAsStream() throws Exception {
+        final TableScanOptions options = TableScanOptions.defaults().withParallelism(4).withQueueCapacity(16).withPageSize(100);
+        try (Stream<TableServiceEntity> stream = tableUtils.scan(TABLE_NAME, TableQuery.from(TableServiceEntity.class),
+                PartitionRange.split("d", "h", "l", "p", "t", "x"), options)) {
+            final List<String> keys = stream.map(TableScanTest::key).collect(Collectors.toList());
+            assertEquals(ROWS.size(), keys.size());
+            assertEquals(ROWS.size(), keys.stream().distinct().count());
+        }
+    }
+
+    @Test
+    public void testStreamClosedEarly() throws Exception {
+        final TableScanOptions options = TableScanOptions.defaults().withParallelism(2).withQueueCapacity(10).withPageSize(10);
+        try (Stream<TableServiceEntity> stream = tableUtils.scan(TABLE_NAME, TableQuery.from(TableServiceEntity.class),
+                PartitionRange.split("n"), options)) {
+            assertEquals(25, stream.limit(25).count());
+        }
+        final int fetched = segments.get();
+        Thread.sleep(300);
+        // Bounded by the queue: nowhere near the 520 segments of the whole table.
+        assertTrue("Expected the scan to stop, got " + segments.get(), segments.get() <= fetched + 2 && fetched < 20);
+    }
+
+    @Test
+    public void testScanFailure() throws Exception {
+        failingPartition = "q";
+        try {
+            tableUtils.scan(TABLE_NAME, TableQuery.from(TableServiceEntity.class), PartitionRange.split("h", "p", "w"),
+                    TableScanOptions.defaults().withPageSize(100), entity -> {});
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(503, e.getHttpStatusCode());
+        }
+
+        try (Stream<TableServiceEntity> stream = tableUtils.scan(TABLE_NAME, TableQuery.from(TableServiceEntity.class),
+                PartitionRange.split("h", "p", "w"), TableScanOptions.defaults().withPageSize(100))) {
+            stream.count();
+            fail("Expected UncheckedStorageException not thrown!");
+        } catch (UncheckedStorageException e) {
+            assertEquals(503, e.getCause().getHttpStatusCode());
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package com.tavi.storage;
 
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.table.*;
 import com.tavi.storage.exceptions.TableNotFoundException;
@@ -16,12 +22,18 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
 
@@ -30,6 +42,7 @@ import static org.powermock.api.mockito.PowerMockito.when;
 public class TableUtilsTest
 {
     private static final String CONNECTION_STRING = "test";
+    private static final int THREADS = 64;
 
     private static final String TABLE_NAME = "test-table";
     private static final TableResult OK_RESPONSE = new TableResult(200);
@@ -39,11 +52,17 @@ public class TableUtilsTest
             new TableServiceEntity("1", "0xFE")
     );
 
+    private static final int SCAN_SIZE = 2500;
+
     private CloudTable table;
 
+    private CloudStorageAccount account;
+
     @Before
     public void setUp() throws URISyntaxException, InvalidKeyException, StorageException {
-        final CloudStorageAccount account = mock(CloudStorageAccount.class);
+        StorageClientRegistry.clear();
+
+        account = mock(CloudStorageAccount.class);
         PowerMockito.mockStatic(CloudStorageAccount.class);
         Mockito.when(CloudStorageAccount.parse(anyString())).thenReturn(account);
         Mockito.when(CloudStorageAccount.getDevelopmentStorageAccount()).thenReturn(account);
@@ -51,17 +70,24 @@ public class TableUtilsTest
         final CloudTableClient client = mock(CloudTableClient.class);
 
         table = mock(CloudTable.class);
-        when(table.execute(any(TableOperation.class))).thenReturn(OK_RESPONSE);
+        when(table.execute(any(TableOperation.class), any(), any())).thenReturn(OK_RESPONSE);
         when(table.execute(any(TableQuery.class))).thenReturn(QUERY_RESPONSE);
-        when(table.exists()).thenReturn(true);
-        when(table.createIfNotExists()).then(new Answer<Boolean>() {
+        when(table.exists(any(), any())).thenReturn(true);
+        when(table.createIfNotExists(any(), any())).then(new Answer<Boolean>() {
             @Override
             public Boolean answer(InvocationOnMock invocationOnMock) throws Throwable {
-                when(table.exists()).thenReturn(true);
+                when(table.exists(any(), any())).thenReturn(true);
                 return true;
             }
         });
 
+        when(table.executeSegmented(any(TableQuery.class), Mockito.<ResultContinuation>any())).thenAnswer(invocation -> {
+            final TableQuery<?> query = invocation.getArgument(0);
+            final ResultContinuation token = invocation.getArgument(1);
+            return segment(token == null ? 0 : Integer.parseInt(token.getNextRowKey()),
+                    query.getTakeCount() != null ? query.getTakeCount() : 1000);
+        });
+
         when(client.getTableReference(any())).thenReturn(table);
 
         when(account.createCloudTableClient()).thenReturn(client);
@@ -93,7 +119,7 @@ public class TableUtilsTest
                 assertEquals(200, tableResult.getHttpStatusCode());
             }
             {
-                when(table.exists()).thenReturn(false);
+                when(table.exists(any(), any())).thenReturn(false);
                 try {
                     TableOperation tableOperation = TableOperation.insert(new TableServiceEntity());
                     TableResult tableResult = tableUtils.execute(TABLE_NAME, tableOperation);
@@ -101,7 +127,7 @@ public class TableUtilsTest
                 } catch (TableNotFoundException e) {
                     ; // NO-OP; expected
                 }
-                when(table.exists()).thenReturn(true);
+                when(table.exists(any(), any())).thenReturn(true);
             }
         }
         {
@@ -112,16 +138,62 @@ public class TableUtilsTest
                 assertEquals(200, tableResult.getHttpStatusCode());
             }
             {
-                when(table.exists()).thenReturn(false);
+                when(table.exists(any(), any())).thenReturn(false);
                 TableOperation tableOperation = TableOperation.insert(new TableServiceEntity());
                 TableResult tableResult = tableUtils.execute(TABLE_NAME, true, tableOperation);
                 assertNotNull(tableResult);
                 assertEquals(200, tableResult.getHttpStatusCode());
-                when(table.exists()).thenReturn(true);
+                when(table.exists(any(), any())).thenReturn(true);
             }
         }
     }
 
+    @Test
+    public void testExecuteMetrics() throws URISyntaxException, InvalidKeyException, TableNotFoundException, StorageException {
+        final StorageMetrics metrics = new StorageMetrics();
+        final List<String> listened = new ArrayList<>();
+        metrics.addListener((operation, nanos, bytes, requests, status) -> listened.add(operation + ":" + requests + ":" + status));
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING).withMetrics(metrics);
+        when(table.exists(any(), any())).then(invocation -> {
+            completeRequest();
+            return true;
+        });
+        when(table.execute(any(TableOperation.class), any(), any())).then(invocation -> {
+            completeRequest();
+            return OK_RESPONSE;
+        });
+
+        for(int i = 0; i < 10; i++)
+            tableUtils.execute(TABLE_NAME, TableOperation.insert(new TableServiceEntity()));
+        when(table.exists(any(), any())).thenReturn(false);
+        try {
+            tableUtils.execute(TABLE_NAME, TableOperation.insert(new TableServiceEntity()));
+            fail("Expected TableNotFoundException not thrown!");
+        } catch (TableNotFoundException e) {
+            ; // NO-OP; expected
+        }
+
+        final StorageMetrics.Stats stats = metrics.getStats("table.execute");
+        assertEquals(11, stats.getCount());
+        assertEquals(1, stats.getErrors());
+        assertEquals(Long.valueOf(1), stats.getErrorsByStatus().get(404));
+        // An existence check and the operation itself.
+        assertEquals(20, stats.getRequests());
+        assertEquals(11, stats.getLatency().getCount());
+        assertEquals(11, listened.size());
+        assertEquals("table.execute:2:0", listened.get(0));
+        assertEquals("table.execute:0:404", listened.get(10));
+        assertEquals(1, metrics.getSnapshot().size());
+    }
+
+    /**
+     * Raises the event the SDK raises on the calling thread when a request completes.
+     */
+    private static void completeRequest() {
+        OperationContext.getGlobalRequestCompletedEventHandler().fireEvent(
+                new RequestCompletedEvent(new OperationContext(), null, new RequestResult()));
+    }
+
     @Test
     public void testQuery() throws URISyntaxException, InvalidKeyException, TableNotFoundException, StorageException {
         final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
@@ -132,7 +204,7 @@ public class TableUtilsTest
             assertEquals(QUERY_RESPONSE, result);
         }
         {
-            when(table.exists()).thenReturn(false);
+            when(table.exists(any(), any())).thenReturn(false);
             try {
                 TableQuery<TableServiceEntity> query = TableQuery.from(TableServiceEntity.class);
                 Iterable<TableServiceEntity> result = tableUtils.query(TABLE_NAME, query);
@@ -140,7 +212,22 @@ public class TableUtilsTest
             } catch (TableNotFoundException e) {
                 ; // NO-OP; expected
             }
-            when(table.exists()).thenReturn(true);
+            when(table.exists(any(), any())).thenReturn(true);
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
+        assertEquals(200, tableUtils.executeAsync(TABLE_NAME, TableOperation.insert(new TableServiceEntity())).get().getHttpStatusCode());
+        assertEquals(QUERY_RESPONSE, tableUtils.queryAsync(TABLE_NAME, TableQuery.from(TableServiceEntity.class)).get());
+
+        when(table.exists(any(), any())).thenReturn(false);
+        try {
+            tableUtils.executeAsync(TABLE_NAME, TableOperation.insert(new TableServiceEntity())).get();
+            fail("Expected TableNotFoundException not thrown!");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TableNotFoundException);
         }
     }
 
@@ -149,6 +236,169 @@ public class TableUtilsTest
         final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
         final CloudTable table = tableUtils.getTableReference(TABLE_NAME);
         assertNotNull(table);
-        assertTrue(table.exists());
+        assertTrue(table.exists(null, null));
+    }
+
+    @Test
+    public void testSharedConcurrentAccess() throws Exception {
+        final List<TableUtils> instances = Concurrency.run(THREADS, index -> {
+            final TableUtils tu = TableUtils.shared(CONNECTION_STRING);
+            assertEquals(200, tu.execute(TABLE_NAME + (index % 4), TableOperation.insert(new TableServiceEntity())).getHttpStatusCode());
+            return tu;
+        });
+        assertEquals(THREADS, instances.size());
+        verify(account, times(1)).createCloudTableClient();
+    }
+
+    @Test
+    public void testSingleInstanceConcurrentAccess() throws Exception {
+        final TableUtils tu = TableUtils.from(CONNECTION_STRING);
+        final List<CloudTable> references = Concurrency.run(THREADS, index -> {
+            assertEquals(200, tu.execute(TABLE_NAME, TableOperation.insert(new TableServiceEntity())).getHttpStatusCode());
+            return tu.getTableReference(TABLE_NAME);
+        });
+        for(CloudTable reference : references)
+            assertSame(references.get(0), reference);
+    }
+
+    @Test
+    public void testExistenceMemoization() throws URISyntaxException, InvalidKeyException, TableNotFoundException, StorageException {
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING).withReferenceCache(16, 1, TimeUnit.MINUTES);
+        for(int i = 0; i < 10; i++) {
+            tableUtils.execute(TABLE_NAME, true, TableOperation.insert(new TableServiceEntity()));
+            tableUtils.query(TABLE_NAME, TableQuery.from(TableServiceEntity.class));
+        }
+        verify(table, times(1)).exists(any(), any());
+        verify(table, times(1)).createIfNotExists(any(), any());
+        assertEquals(19, tableUtils.getExistenceCacheStats().getHits());
+
+        when(table.execute(any(TableOperation.class), any(), any()))
+                .thenThrow(new StorageException("ResourceNotFound", "The specified resource does not exist.", 404, null, null))
+                .thenThrow(new StorageException("TableNotFound", "The table specified does not exist.", 404, null, null))
+                .thenReturn(OK_RESPONSE);
+        try {
+            tableUtils.execute(TABLE_NAME, TableOperation.retrieve("1", "2", TableServiceEntity.class));
+            fail("Expected StorageException not thrown!");
+        } catch (StorageException e) {
+            assertEquals(404, e.getHttpStatusCode());
+        }
+        try {
+            tableUtils.execute(TABLE_NAME, TableOperation.retrieve("1", "2", TableServiceEntity.class));
+            fail("Expected TableNotFoundException not thrown!");
+        } catch (TableNotFoundException e) {
+            ; // NO-OP; expected
+        }
+        verify(table, times(1)).exists(any(), any());
+
+        tableUtils.execute(TABLE_NAME, TableOperation.insert(new TableServiceEntity()));
+        verify(table, times(2)).exists(any(), any());
+    }
+
+    /**
+     * Serves rows 0 to SCAN_SIZE - 1 of partition "p", take rows per segment.
+     */
+    private static ResultSegment<TableServiceEntity> segment(int start, int take) {
+        final int end = Math.min(start + take, SCAN_SIZE);
+        final ArrayList<TableServiceEntity> results = new ArrayList<>();
+        for(int row = start; row < end; row++)
+            results.add(new TableServiceEntity("p", String.format("%05d", row)));
+
+        ResultContinuation next = null;
+        if(end < SCAN_SIZE) {
+            next = new ResultContinuation();
+            next.setContinuationType(ResultContinuationType.TABLE);
+            next.setNextPartitionKey("p");
+            next.setNextRowKey(String.format("%05d", end));
+        }
+        return new ResultSegment<>(results, take, next);
+    }
+
+    @Test
+    public void testQuerySegmented() throws Exception {
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
+        final TableQuery<TableServiceEntity> query = TableQuery.from(TableServiceEntity.class);
+        try (TableQueryCursor<TableServiceEntity> cursor = tableUtils.querySegmented(TABLE_NAME, query, TableQueryOptions.defaults().withPageSize(100))) {
+            int expected = 0;
+            while(cursor.hasNext())
+                assertEquals(String.format("%05d", expected++), cursor.next().getRowKey());
+            assertEquals(SCAN_SIZE, expected);
+            assertEquals(SCAN_SIZE, cursor.getReturnedCount());
+            assertEquals(25, cursor.getSegmentCount());
+            assertNull(cursor.getNextContinuationToken());
+        }
+        assertEquals(Integer.valueOf(100), query.getTakeCount());
+        verify(table, times(25)).executeSegmented(any(TableQuery.class), Mockito.<ResultContinuation>any());
+    }
+
+    @Test
+    public void testQuerySegmentedPrefetch() throws Exception {
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
+        final TableQueryOptions options = TableQueryOptions.defaults().withPageSize(100);
+        try (TableQueryCursor<TableServiceEntity> cursor = tableUtils.querySegmented(TABLE_NAME, TableQuery.from(TableServiceEntity.class), options)) {
+            // The second segment is requested before the first one is consumed.
+            verify(table, timeout(5000).times(2)).executeSegmented(any(TableQuery.class), Mockito.<ResultContinuation>any());
+            assertEquals(1, cursor.getSegmentCount());
+        }
+
+        options.withPrefetch(false);
+        try (TableQueryCursor<TableServiceEntity> cursor = tableUtils.querySegmented(TABLE_NAME, TableQuery.from(TableServiceEntity.class), options)) {
+            Thread.sleep(100);
+            verify(table, times(3)).executeSegmented(any(TableQuery.class), Mockito.<ResultContinuation>any());
+            assertTrue(cursor.hasNext());
+        }
+    }
+
+    @Test
+    public void testQuerySegmentedResume() throws Exception {
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
+        final ResultContinuation token;
+        final int offset;
+        try (TableQueryCursor<TableServiceEntity> cursor = tableUtils.querySegmented(TABLE_NAME,
+                TableQuery.from(TableServiceEntity.class), TableQueryOptions.defaults().withPageSize(100))) {
+            for(int i = 0; i < 250; i++)
+                cursor.next();
+            token = cursor.getContinuationToken();
+            offset = cursor.getSegmentOffset();
+        }
+        assertEquals("00200", token.getNextRowKey());
+        assertEquals(50, offset);
+
+        final TableQueryOptions resume = TableQueryOptions.defaults().withPageSize(100).withContinuationToken(token).withSkip(offset);
+        try (TableQueryCursor<TableServiceEntity> cursor = tableUtils.querySegmented(TABLE_NAME, TableQuery.from(TableServiceEntity.class), resume)) {
+            assertEquals("00250", cursor.next().getRowKey());
+            int remaining = 1;
+            while(cursor.hasNext()) {
+                cursor.next();
+                remaining++;
+            }
+            assertEquals(SCAN_SIZE - 250, remaining);
+        }
+    }
+
+    @Test
+    public void testQuerySegmentedErrors() throws Exception {
+        final TableUtils tableUtils = TableUtils.from(CONNECTION_STRING);
+        when(table.executeSegmented(any(TableQuery.class), Mockito.<ResultContinuation>any()))
+                .thenReturn(segment(0, 100))
+                .thenThrow(new StorageException("ServerBusy", "The server is busy.", 503, null, null));
+        try (TableQueryCursor<TableServiceEntity> cursor = tableUtils.querySegmented(TABLE_NAME,
+                TableQuery.from(TableServiceEntity.class), TableQueryOptions.defaults().withPageSize(100))) {
+            for(int i = 0; i < 100; i++)
+                cursor.next();
+            try {
+                cursor.hasNext();
+                fail("Expected StorageException not thrown!");
+            } catch (StorageException e) {
+                assertEquals(503, e.getHttpStatusCode());
+            }
+        }
+
+        when(table.exists(any(), any())).thenReturn(false);
+        try {
+            tableUtils.querySegmented(TABLE_NAME, TableQuery.from(TableServiceEntity.class), TableQueryOptions.defaults());
+            fail("Expected TableNotFoundException not thrown!");
+        } catch (TableNotFoundException e) {
+            ; // NO-OP; expected
+        }
     }
 }
@@ -0,0 +1,75 @@
+package com.tavi.storage;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class TtlCacheTest
+{
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+
+    @Test
+    public void testGetAndPut() {
+        final TtlCache<String> cache = new TtlCache<>(4);
+        assertNull(cache.get(KEY));
+        assertEquals(VALUE, cache.putIfAbsent(KEY, VALUE));
+        assertEquals(VALUE, cache.putIfAbsent(KEY, "other"));
+        assertEquals(VALUE, cache.get(KEY));
+
+        cache.put(KEY, "other");
+        assertEquals("other", cache.get(KEY));
+
+        final TtlCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(1, stats.getSize());
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        final TtlCache<String> cache = new TtlCache<>(4, 20, TimeUnit.MILLISECONDS);
+        cache.put(KEY, VALUE);
+        assertEquals(VALUE, cache.get(KEY));
+        Thread.sleep(40);
+        assertNull(cache.get(KEY));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        final TtlCache<String> cache = new TtlCache<>(2);
+        cache.put("a", VALUE);
+        cache.put("b", VALUE);
+        cache.get("a");
+        cache.put("c", VALUE);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void testInvalidate() {
+        final TtlCache<String> cache = new TtlCache<>(8);
+        cache.put("container", VALUE);
+        cache.put("container/a", VALUE);
+        cache.put("container/b", VALUE);
+        cache.put("other/a", VALUE);
+
+        cache.invalidate("container");
+        assertNull(cache.get("container"));
+
+        cache.invalidatePrefix("container/");
+        assertNull(cache.get("container/a"));
+        assertNull(cache.get("container/b"));
+        assertNotNull(cache.get("other/a"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+}